@@ -0,0 +1,113 @@
+package net.wouto.modelsync.mongo.benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import net.wouto.modelsync.mongo.Engine;
+import net.wouto.modelsync.mongo.SchedulerOptions;
+import net.wouto.modelsync.mongo.SimpleCollection;
+import net.wouto.modelsync.mongo.SimpleConnection;
+import net.wouto.modelsync.mongo.benchmarks.Fixtures.FlatModel;
+import net.wouto.modelsync.mongo.future.FutureCallback;
+import net.wouto.modelsync.mongo.memory.InMemoryMongo;
+import net.wouto.modelsync.mongo.query.Query;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Keeps {@link #IN_FLIGHT} reads in flight at once against the in-memory
+ * backend with a simulated round trip, on the blocking and the non-blocking
+ * engine. Next to the throughput it prints the most threads the library had
+ * running while they were in flight.
+ * <br />
+ * The blocking engine parks one read thread per round trip, so it is given
+ * {@link #CONCURRENCY} read threads, the size of the driver's connection pool.
+ * @author Wouter
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@OperationsPerInvocation(EngineBenchmark.IN_FLIGHT)
+public class EngineBenchmark {
+
+    static final int IN_FLIGHT = 10000;
+    static final int CONCURRENCY = 100;
+    static final int DOCUMENTS = 1000;
+    static final long ROUND_TRIP_MICROS = 200;
+
+    @Param({"BLOCKING", "NON_BLOCKING"})
+    public String engine;
+
+    private int baseline;
+    private SimpleConnection connection;
+    private SimpleCollection collection;
+    private String[] keys;
+    private volatile int peakThreads;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        this.baseline = ManagementFactory.getThreadMXBean().getThreadCount();
+        InMemoryMongo memory = new InMemoryMongo();
+        this.connection = new SimpleConnection("localhost", 27017, new SchedulerOptions()
+                .readThreads(CONCURRENCY)
+                .readQueueSize(IN_FLIGHT));
+        this.connection.setEngine(Engine.valueOf(this.engine));
+        this.connection.connectInMemory(memory);
+        this.collection = this.connection.getCollection("benchmarks", "flat");
+        this.collection.getHandle(Document.class).createIndex(new Document("uuid", 1));
+        Random r = new Random(1);
+        this.keys = new String[DOCUMENTS];
+        for (int i = 0; i < DOCUMENTS; i++) {
+            FlatModel m = Fixtures.flat(r);
+            this.keys[i] = m.uuid;
+            this.collection.insertSync(SimpleCollection.asDBObject(m));
+        }
+        memory.setLatency(ROUND_TRIP_MICROS, TimeUnit.MICROSECONDS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.out.println();
+        System.out.println(this.engine + ": " + this.peakThreads + " threads for " + IN_FLIGHT + " reads in flight");
+        this.connection.disconnect();
+    }
+
+    @Benchmark
+    public void findOneInFlight() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(IN_FLIGHT);
+        FutureCallback<FlatModel> done = new FutureCallback<FlatModel>() {
+
+            @Override
+            public void onComplete(FlatModel result, Exception err) {
+                latch.countDown();
+            }
+
+        };
+        for (int i = 0; i < IN_FLIGHT; i++) {
+            this.collection.findOneAsync(Query.equals("uuid", this.keys[i % DOCUMENTS]), FlatModel.class).onComplete(done);
+        }
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount() - this.baseline;
+        if (threads > this.peakThreads) {
+            this.peakThreads = threads;
+        }
+        latch.await();
+    }
+
+}
@@ -0,0 +1,103 @@
+package net.wouto.modelsync.mongo.benchmarks;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import net.wouto.modelsync.mongo.ExecutionMode;
+import net.wouto.modelsync.mongo.SchedulerOptions;
+import net.wouto.modelsync.mongo.SimpleConnection;
+import net.wouto.modelsync.mongo.SimpleMongoThreadFactory;
+import net.wouto.modelsync.mongo.SimpleScheduler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Keeps {@link #IN_FLIGHT} blocking operations in flight at once, each parking
+ * for a simulated driver round trip, on the cached pool the scheduler used
+ * to have, on pooled threads and on virtual threads. Pooled and virtual
+ * threads are limited to {@link #CONCURRENCY} running operations, the size
+ * of the driver's connection pool.
+ * <br />
+ * The virtual variant needs Java 21 or newer to run, on older JVMs it fails
+ * its setup and the other variants still run.
+ * @author Wouter
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@OperationsPerInvocation(ExecutionModeBenchmark.IN_FLIGHT)
+public class ExecutionModeBenchmark {
+
+    static final int IN_FLIGHT = 10000;
+    static final int CONCURRENCY = 100;
+    static final long ROUND_TRIP_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    @Param({"CACHED", "POOLED", "VIRTUAL"})
+    public String mode;
+
+    private ExecutorService cached;
+    private SimpleScheduler scheduler;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        if (this.mode.equals("CACHED")) {
+            this.cached = Executors.newCachedThreadPool(new SimpleMongoThreadFactory("Benchmark-Cached"));
+            return;
+        }
+        ExecutionMode executionMode = ExecutionMode.valueOf(this.mode);
+        if (!executionMode.isAvailable()) {
+            throw new IllegalStateException(executionMode + " is not available on Java " + System.getProperty("java.version"));
+        }
+        this.scheduler = new SimpleConnection("localhost", 27017, new SchedulerOptions()
+                .readThreads(CONCURRENCY)
+                .readQueueSize(IN_FLIGHT)
+                .executionMode(executionMode)).getScheduler();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (this.cached != null) {
+            this.cached.shutdown();
+        }
+    }
+
+    @Benchmark
+    public void blockingOperations() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(IN_FLIGHT);
+        Runnable operation = new Runnable() {
+
+            @Override
+            public void run() {
+                LockSupport.parkNanos(ROUND_TRIP_NANOS);
+                latch.countDown();
+            }
+
+        };
+        for (int i = 0; i < IN_FLIGHT; i++) {
+            if (this.cached != null) {
+                this.cached.execute(operation);
+            } else {
+                this.scheduler.doRead(operation);
+            }
+        }
+        latch.await();
+    }
+
+}
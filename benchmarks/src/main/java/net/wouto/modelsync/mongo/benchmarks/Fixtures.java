@@ -0,0 +1,181 @@
+package net.wouto.modelsync.mongo.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import net.wouto.modelsync.mongo.annotations.DBSync;
+import net.wouto.modelsync.mongo.codec.ModelCodecProvider;
+import net.wouto.modelsync.mongo.sync.AccessorStrategy;
+import net.wouto.modelsync.mongo.sync.ModelMappers;
+import net.wouto.modelsync.mongo.sync.ModelMetadata;
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.codecs.Codec;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.io.BasicOutputBuffer;
+
+/**
+ * Models and documents generated in-process, so every benchmark runs without a server.
+ * @author Wouter
+ */
+public final class Fixtures {
+
+    public static final CodecRegistry registry = ModelCodecProvider.withModels(com.mongodb.MongoClient.getDefaultCodecRegistry());
+
+    /**
+     * How models are mapped during a benchmark.
+     */
+    public enum Mapping {
+        GENERATED,
+        METHOD_HANDLE,
+        REFLECTION;
+
+        public void apply() {
+            ModelMetadata.setAccessorStrategy(this == REFLECTION ? AccessorStrategy.REFLECTION : AccessorStrategy.METHOD_HANDLE);
+            ModelMappers.setGeneratedMappers(this == GENERATED);
+        }
+    }
+
+    public static class FlatModel {
+
+        @DBSync(index = true)
+        public String uuid;
+        @DBSync
+        public String username;
+        @DBSync
+        public int permission;
+        @DBSync
+        public long createdAt;
+        @DBSync
+        public double balance;
+        @DBSync
+        public boolean verified;
+        @DBSync("mail")
+        public String email;
+        @DBSync
+        public Integer level;
+
+    }
+
+    public static class Address {
+
+        @DBSync
+        public String street;
+        @DBSync
+        public int number;
+        @DBSync
+        public String city;
+
+    }
+
+    public static class Profile {
+
+        @DBSync
+        public String bio;
+        @DBSync
+        public Address home;
+        @DBSync
+        public Address work;
+
+    }
+
+    public static class NestedModel {
+
+        @DBSync(index = true)
+        public String uuid;
+        @DBSync
+        public Profile profile;
+        @DBSync
+        public FlatModel account;
+
+    }
+
+    public static class Item {
+
+        @DBSync
+        public String name;
+        @DBSync
+        public int amount;
+        @DBSync
+        public double price;
+
+    }
+
+    public static class CollectionModel {
+
+        @DBSync(index = true)
+        public String uuid;
+        @DBSync
+        public List<Item> items;
+        @DBSync
+        public List<String> tags;
+        @DBSync
+        public List<Integer> scores;
+
+    }
+
+    private Fixtures() {
+    }
+
+    public static FlatModel flat(Random r) {
+        FlatModel m = new FlatModel();
+        m.uuid = Long.toHexString(r.nextLong()) + Long.toHexString(r.nextLong());
+        m.username = "user" + r.nextInt(100000);
+        m.permission = r.nextInt(10);
+        m.createdAt = System.currentTimeMillis() - r.nextInt(1000000);
+        m.balance = r.nextDouble() * 1000;
+        m.verified = r.nextBoolean();
+        m.email = m.username + "@example.com";
+        m.level = r.nextInt(100);
+        return m;
+    }
+
+    public static Address address(Random r) {
+        Address a = new Address();
+        a.street = "Street " + r.nextInt(1000);
+        a.number = r.nextInt(500);
+        a.city = "City " + r.nextInt(50);
+        return a;
+    }
+
+    public static NestedModel nested(Random r) {
+        NestedModel m = new NestedModel();
+        m.uuid = Long.toHexString(r.nextLong());
+        m.profile = new Profile();
+        m.profile.bio = "bio " + r.nextLong();
+        m.profile.home = address(r);
+        m.profile.work = address(r);
+        m.account = flat(r);
+        return m;
+    }
+
+    public static CollectionModel collections(Random r, int size) {
+        CollectionModel m = new CollectionModel();
+        m.uuid = Long.toHexString(r.nextLong());
+        m.items = new ArrayList<>();
+        m.tags = new ArrayList<>();
+        m.scores = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            Item item = new Item();
+            item.name = "item" + r.nextInt(1000);
+            item.amount = r.nextInt(64);
+            item.price = r.nextDouble() * 100;
+            m.items.add(item);
+            m.tags.add("tag" + r.nextInt(1000));
+            m.scores.add(r.nextInt());
+        }
+        return m;
+    }
+
+    public static byte[] toBson(Document document) {
+        return toBson(document, registry.get(Document.class));
+    }
+
+    public static <T> byte[] toBson(T value, Codec<T> codec) {
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        codec.encode(new BsonBinaryWriter(buffer), value, EncoderContext.builder().build());
+        return buffer.toByteArray();
+    }
+
+}
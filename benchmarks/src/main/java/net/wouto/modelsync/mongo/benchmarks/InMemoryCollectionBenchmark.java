@@ -0,0 +1,115 @@
+package net.wouto.modelsync.mongo.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.wouto.modelsync.mongo.SimpleCollection;
+import net.wouto.modelsync.mongo.SimpleConnection;
+import net.wouto.modelsync.mongo.benchmarks.Fixtures.FlatModel;
+import net.wouto.modelsync.mongo.callbacks.LoadOneCallback;
+import net.wouto.modelsync.mongo.query.Query;
+import net.wouto.modelsync.mongo.update.Update;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end {@link SimpleCollection} operations against the in-memory backend,
+ * covering query building, mapping and scheduling without a network.
+ * @author Wouter
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InMemoryCollectionBenchmark {
+
+    static final int TASKS = 1000;
+
+    @Param({"1000", "100000"})
+    public int documents;
+
+    private SimpleConnection connection;
+    private SimpleCollection collection;
+    private String[] keys;
+    private final AtomicInteger next = new AtomicInteger();
+
+    @Setup
+    public void setup() throws Exception {
+        this.connection = new SimpleConnection();
+        this.connection.connectInMemory();
+        this.collection = this.connection.getCollection("benchmarks", "flat");
+        this.collection.getHandle(Document.class).createIndex(new Document("uuid", 1));
+        Random r = new Random(1);
+        this.keys = new String[this.documents];
+        for (int i = 0; i < this.documents; i++) {
+            FlatModel m = Fixtures.flat(r);
+            this.keys[i] = m.uuid;
+            this.collection.insertSync(SimpleCollection.asDBObject(m));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.connection.disconnect();
+    }
+
+    private String nextKey() {
+        return this.keys[(this.next.getAndIncrement() & Integer.MAX_VALUE) % this.keys.length];
+    }
+
+    @Benchmark
+    public FlatModel findOneByIndex() throws Exception {
+        return this.collection.findOneSync(Query.equals("uuid", this.nextKey()), FlatModel.class);
+    }
+
+    @Benchmark
+    public FlatModel findOneByScan() throws Exception {
+        return this.collection.findOneSync(Query.equals("mail", "nobody@example.com"), FlatModel.class);
+    }
+
+    @Benchmark
+    public Object incrementByIndex() throws Exception {
+        return this.collection.updateSync(Query.equals("uuid", this.nextKey()), Update.increment("balance", 1));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object incrementByIndexContended() throws Exception {
+        return this.incrementByIndex();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TASKS)
+    public void findOneAsync() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(TASKS);
+        LoadOneCallback<FlatModel> callback = new LoadOneCallback<FlatModel>() {
+
+            @Override
+            public void onQueryDone(FlatModel object, Exception err) {
+                latch.countDown();
+            }
+
+        };
+        for (int i = 0; i < TASKS; i++) {
+            this.collection.findOne(Query.equals("uuid", this.nextKey()), FlatModel.class, callback);
+        }
+        latch.await();
+    }
+
+}
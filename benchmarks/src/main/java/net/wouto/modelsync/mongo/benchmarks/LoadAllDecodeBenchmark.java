@@ -0,0 +1,93 @@
+package net.wouto.modelsync.mongo.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import net.wouto.modelsync.mongo.SimpleCollection;
+import net.wouto.modelsync.mongo.sync.ModelMappers;
+import org.bson.BsonBinaryReader;
+import org.bson.Document;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The decoding half of {@link SimpleCollection#loadAllSync(Class)}: turning a
+ * batch of wire documents into models. Compares the former Document plus JSON
+ * round-trip path, the Document path and the model codec that loadAllSync uses now.
+ * @author Wouter
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@OperationsPerInvocation(LoadAllDecodeBenchmark.BATCH)
+public class LoadAllDecodeBenchmark {
+
+    static final int BATCH = 1000;
+
+    @Param({"GENERATED", "METHOD_HANDLE", "REFLECTION"})
+    public Fixtures.Mapping mapping;
+
+    private final DecoderContext context = DecoderContext.builder().build();
+    private List<byte[]> batch;
+    private Codec<Document> documentCodec;
+    private Codec<Fixtures.FlatModel> modelCodec;
+
+    @Setup
+    public void setup() {
+        this.mapping.apply();
+        Random r = new Random(42);
+        this.documentCodec = Fixtures.registry.get(Document.class);
+        this.modelCodec = Fixtures.registry.get(Fixtures.FlatModel.class);
+        this.batch = new ArrayList<>();
+        for (int i = 0; i < BATCH; i++) {
+            this.batch.add(Fixtures.toBson(SimpleCollection.asDBObject(Fixtures.flat(r))));
+        }
+    }
+
+    @Benchmark
+    public List<Fixtures.FlatModel> jsonRoundTrip() {
+        List<Fixtures.FlatModel> out = new ArrayList<>(BATCH);
+        for (byte[] bson : this.batch) {
+            Document d = this.documentCodec.decode(new BsonBinaryReader(ByteBuffer.wrap(bson)), this.context);
+            out.add(ModelMappers.decode(Fixtures.FlatModel.class, Document.parse(d.toJson())));
+        }
+        return out;
+    }
+
+    @Benchmark
+    public List<Fixtures.FlatModel> document() {
+        List<Fixtures.FlatModel> out = new ArrayList<>(BATCH);
+        for (byte[] bson : this.batch) {
+            Document d = this.documentCodec.decode(new BsonBinaryReader(ByteBuffer.wrap(bson)), this.context);
+            out.add(ModelMappers.decode(Fixtures.FlatModel.class, d));
+        }
+        return out;
+    }
+
+    @Benchmark
+    public List<Fixtures.FlatModel> codec() {
+        List<Fixtures.FlatModel> out = new ArrayList<>(BATCH);
+        for (byte[] bson : this.batch) {
+            out.add(this.modelCodec.decode(new BsonBinaryReader(ByteBuffer.wrap(bson)), this.context));
+        }
+        return out;
+    }
+
+}
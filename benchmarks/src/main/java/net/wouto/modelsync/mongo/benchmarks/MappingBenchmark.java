@@ -0,0 +1,126 @@
+package net.wouto.modelsync.mongo.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import net.wouto.modelsync.mongo.SimpleCollection;
+import net.wouto.modelsync.mongo.sync.ModelMappers;
+import org.bson.BsonBinaryReader;
+import org.bson.Document;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Model to document mapping ({@link SimpleCollection#asDBObject(Object)} and
+ * {@link ModelMappers#decode(Class, Document)}, which backs
+ * {@link SimpleCollection#fromDBObject(Class, Document)}) and the BSON codec,
+ * on flat, nested and collection-heavy models.
+ * @author Wouter
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MappingBenchmark {
+
+    @Param({"GENERATED", "METHOD_HANDLE", "REFLECTION"})
+    public Fixtures.Mapping mapping;
+
+    @Param({"50"})
+    public int collectionSize;
+
+    private Fixtures.FlatModel flat;
+    private Fixtures.NestedModel nested;
+    private Fixtures.CollectionModel collections;
+    private Document flatDocument;
+    private Document nestedDocument;
+    private Document collectionsDocument;
+    private Codec<Fixtures.FlatModel> flatCodec;
+    private Codec<Fixtures.NestedModel> nestedCodec;
+    private Codec<Fixtures.CollectionModel> collectionsCodec;
+    private byte[] flatBson;
+    private byte[] nestedBson;
+    private byte[] collectionsBson;
+
+    @Setup
+    public void setup() {
+        this.mapping.apply();
+        Random r = new Random(42);
+        this.flat = Fixtures.flat(r);
+        this.nested = Fixtures.nested(r);
+        this.collections = Fixtures.collections(r, this.collectionSize);
+        this.flatDocument = SimpleCollection.asDBObject(this.flat);
+        this.nestedDocument = SimpleCollection.asDBObject(this.nested);
+        this.collectionsDocument = SimpleCollection.asDBObject(this.collections);
+        this.flatCodec = Fixtures.registry.get(Fixtures.FlatModel.class);
+        this.nestedCodec = Fixtures.registry.get(Fixtures.NestedModel.class);
+        this.collectionsCodec = Fixtures.registry.get(Fixtures.CollectionModel.class);
+        this.flatBson = Fixtures.toBson(this.flat, this.flatCodec);
+        this.nestedBson = Fixtures.toBson(this.nested, this.nestedCodec);
+        this.collectionsBson = Fixtures.toBson(this.collections, this.collectionsCodec);
+    }
+
+    @Benchmark
+    public Document encodeFlat() {
+        return SimpleCollection.asDBObject(this.flat);
+    }
+
+    @Benchmark
+    public Document encodeNested() {
+        return SimpleCollection.asDBObject(this.nested);
+    }
+
+    @Benchmark
+    public Document encodeCollections() {
+        return SimpleCollection.asDBObject(this.collections);
+    }
+
+    @Benchmark
+    public Fixtures.FlatModel decodeFlat() {
+        return ModelMappers.decode(Fixtures.FlatModel.class, this.flatDocument);
+    }
+
+    @Benchmark
+    public Fixtures.NestedModel decodeNested() {
+        return ModelMappers.decode(Fixtures.NestedModel.class, this.nestedDocument);
+    }
+
+    @Benchmark
+    public Fixtures.CollectionModel decodeCollections() {
+        return ModelMappers.decode(Fixtures.CollectionModel.class, this.collectionsDocument);
+    }
+
+    @Benchmark
+    public byte[] codecEncodeFlat() {
+        return Fixtures.toBson(this.flat, this.flatCodec);
+    }
+
+    @Benchmark
+    public Fixtures.FlatModel codecDecodeFlat() {
+        return this.flatCodec.decode(new BsonBinaryReader(ByteBuffer.wrap(this.flatBson)), DecoderContext.builder().build());
+    }
+
+    @Benchmark
+    public Fixtures.NestedModel codecDecodeNested() {
+        return this.nestedCodec.decode(new BsonBinaryReader(ByteBuffer.wrap(this.nestedBson)), DecoderContext.builder().build());
+    }
+
+    @Benchmark
+    public Fixtures.CollectionModel codecDecodeCollections() {
+        return this.collectionsCodec.decode(new BsonBinaryReader(ByteBuffer.wrap(this.collectionsBson)), DecoderContext.builder().build());
+    }
+
+}
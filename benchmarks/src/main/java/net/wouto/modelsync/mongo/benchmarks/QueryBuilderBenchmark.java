@@ -0,0 +1,69 @@
+package net.wouto.modelsync.mongo.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import net.wouto.modelsync.mongo.query.Query;
+import net.wouto.modelsync.mongo.query.QueryList;
+import net.wouto.modelsync.mongo.update.Update;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building {@link Query}, {@link QueryList} and {@link Update} objects.
+ * @author Wouter
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBuilderBenchmark {
+
+    @Param({"10", "200"})
+    public int values;
+
+    @Benchmark
+    public Query equals() {
+        return Query.equals("username", "WouterG");
+    }
+
+    @Benchmark
+    public Query nestedAnd() {
+        return Query.and()
+                .add(Query.equals("username", "WouterG"))
+                .add(Query.greaterThan("permission", 5))
+                .add(Query.not()
+                        .add(Query.size("verifiedEmails", 0)).finish()
+                ).finish();
+    }
+
+    @Benchmark
+    public Query in() {
+        QueryList list = Query.in("uuid");
+        for (int i = 0; i < this.values; i++) {
+            list.add((Object) i);
+        }
+        return list.finish();
+    }
+
+    @Benchmark
+    public Update combinedUpdate() {
+        return Update.set("username", "WouterG")
+                .append(Update.increment("logins", 1))
+                .append(Update.currentDate("lastLogin"));
+    }
+
+    @Benchmark
+    public Update push() {
+        return Update.push("emails", "wouter@example.com");
+    }
+
+}
@@ -0,0 +1,91 @@
+package net.wouto.modelsync.mongo.benchmarks;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import net.wouto.modelsync.mongo.SimpleConnection;
+import net.wouto.modelsync.mongo.SimpleScheduler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Dispatch overhead of {@link SimpleScheduler#doRead(Runnable)},
+ * {@link SimpleScheduler#doWrite(Runnable)} and the keyed write lanes:
+ * submitting empty tasks and waiting for all of them to run.
+ * @author Wouter
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@OperationsPerInvocation(SchedulerBenchmark.TASKS)
+public class SchedulerBenchmark {
+
+    static final int TASKS = 1000;
+
+    private SimpleScheduler scheduler;
+
+    @Setup
+    public void setup() {
+        this.scheduler = new SimpleConnection().getScheduler();
+    }
+
+    private static Runnable countDown(final CountDownLatch latch) {
+        return new Runnable() {
+
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+
+        };
+    }
+
+    @Benchmark
+    public void doRead() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(TASKS);
+        Runnable r = countDown(latch);
+        for (int i = 0; i < TASKS; i++) {
+            this.scheduler.doRead(r);
+        }
+        latch.await();
+    }
+
+    @Benchmark
+    public void doWrite() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(TASKS);
+        Runnable r = countDown(latch);
+        for (int i = 0; i < TASKS; i++) {
+            this.scheduler.doWrite(r);
+        }
+        latch.await();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void doWriteContended() throws InterruptedException {
+        this.doWrite();
+    }
+
+    @Benchmark
+    public void doWriteKeyed() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(TASKS);
+        Runnable r = countDown(latch);
+        for (int i = 0; i < TASKS; i++) {
+            this.scheduler.doWrite(Integer.valueOf(i & 63), r);
+        }
+        latch.await();
+    }
+
+}
@@ -0,0 +1,491 @@
+package net.wouto.modelsync.mongo.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates a ModelMapper for every class declaring DBSync fields.
+ * <br />
+ * The mapper is written next to the model as <i>Model_DBSyncMapper</i> and
+ * reads and writes the fields directly, so it is only generated when every
+ * mapped field and the no-argument constructor are reachable from the model's
+ * package. Other models are left to the reflection mapper at runtime.
+ * @author Wouter
+ */
+public class DBSyncProcessor extends AbstractProcessor {
+
+    static final String DBSYNC = "net.wouto.modelsync.mongo.annotations.DBSync";
+    static final String SUFFIX = "_DBSyncMapper";
+
+    private static final String MAPPER = "net.wouto.modelsync.mongo.sync.ModelMapper";
+    private static final String MAPPERS = "net.wouto.modelsync.mongo.sync.ModelMappers";
+    private static final String DOCUMENT = "org.bson.Document";
+    private static final String FIELDS = "net.wouto.modelsync.mongo.sync.FieldMetadata";
+
+    private static final String[] primitives = new String[]{
+        "java.lang.Boolean",
+        "java.lang.Character",
+        "java.lang.Byte",
+        "java.lang.Short",
+        "java.lang.Integer",
+        "java.lang.Long",
+        "java.lang.Float",
+        "java.lang.Double",
+        "java.lang.Object",
+        "java.lang.String"
+    };
+
+    private enum Kind {
+        VALUE,
+        MODEL,
+        VALUE_ARRAY,
+        MODEL_ARRAY,
+        VALUE_COLLECTION,
+        MODEL_COLLECTION
+    }
+
+    private static final class MappedField {
+
+        private VariableElement element;
+        private String name;
+        private String dbName;
+        private boolean index;
+        private Kind kind;
+        private TypeMirror elementType;
+        private boolean serializable;
+
+    }
+
+    private Elements elements;
+    private Types types;
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton(DBSYNC);
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        this.elements = this.processingEnv.getElementUtils();
+        this.types = this.processingEnv.getTypeUtils();
+        TypeElement dbsync = this.elements.getTypeElement(DBSYNC);
+        if (dbsync == null) {
+            return false;
+        }
+        Set<TypeElement> models = new LinkedHashSet<>();
+        for (Element e : roundEnv.getElementsAnnotatedWith(dbsync)) {
+            if (e.getKind() == ElementKind.FIELD) {
+                models.add((TypeElement) e.getEnclosingElement());
+            }
+        }
+        for (TypeElement model : models) {
+            try {
+                this.generate(model);
+            } catch (IOException ex) {
+                this.processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Cannot write mapper: " + ex.getMessage(), model);
+            }
+        }
+        return false;
+    }
+
+    private void skip(TypeElement model, String reason) {
+        this.processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE,
+                "No mapper generated for " + model.getQualifiedName() + ", " + reason + ". It is mapped through reflection instead.", model);
+    }
+
+    private void generate(TypeElement model) throws IOException {
+        String pkg = this.elements.getPackageOf(model).getQualifiedName().toString();
+        if (model.getModifiers().contains(Modifier.ABSTRACT)) {
+            this.skip(model, "it is abstract");
+            return;
+        }
+        if (!model.getTypeParameters().isEmpty()) {
+            this.skip(model, "it is generic");
+            return;
+        }
+        if (!this.isReachable(model, pkg)) {
+            this.skip(model, "it is not reachable from its package");
+            return;
+        }
+        if (!this.hasReachableConstructor(model)) {
+            this.skip(model, "it has no non-private constructor without arguments");
+            return;
+        }
+        List<MappedField> fields = new ArrayList<>();
+        TypeElement clazz = model;
+        while (clazz != null && !clazz.getQualifiedName().contentEquals("java.lang.Object")) {
+            for (VariableElement f : ElementFilter.fieldsIn(clazz.getEnclosedElements())) {
+                AnnotationMirror annotation = this.getDBSync(f);
+                if (annotation == null) {
+                    continue;
+                }
+                Set<Modifier> modifiers = f.getModifiers();
+                if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.FINAL) || modifiers.contains(Modifier.STATIC)) {
+                    this.skip(model, "field " + f.getSimpleName() + " is private, final or static");
+                    return;
+                }
+                if (!modifiers.contains(Modifier.PUBLIC) && !this.elements.getPackageOf(clazz).getQualifiedName().contentEquals(pkg)) {
+                    this.skip(model, "field " + f.getSimpleName() + " is not visible from " + pkg);
+                    return;
+                }
+                MappedField mapped = this.resolve(f, annotation);
+                if (mapped.kind != Kind.VALUE && mapped.kind != Kind.VALUE_ARRAY && mapped.kind != Kind.VALUE_COLLECTION
+                        && !this.isReachable(this.types.erasure(mapped.elementType), pkg)) {
+                    this.skip(model, "the type of field " + f.getSimpleName() + " is not visible from " + pkg);
+                    return;
+                }
+                fields.add(mapped);
+            }
+            clazz = this.superclassOf(clazz);
+        }
+        this.write(model, pkg, fields);
+    }
+
+    /**
+     * Collects the projected keys of a model, those of nested models as dotted
+     * paths. A model nested in itself is projected whole from where it repeats.
+     */
+    private void project(List<String> keys, String prefix, List<MappedField> fields, List<String> path) {
+        for (MappedField f : fields) {
+            if (!f.serializable) {
+                continue;
+            }
+            String key = prefix + f.dbName;
+            if ((f.kind == Kind.MODEL || f.kind == Kind.MODEL_ARRAY || f.kind == Kind.MODEL_COLLECTION)
+                    && f.elementType.getKind() == TypeKind.DECLARED) {
+                TypeElement nested = (TypeElement) ((DeclaredType) f.elementType).asElement();
+                String name = nested.getQualifiedName().toString();
+                if (!path.contains(name)) {
+                    int size = keys.size();
+                    path.add(name);
+                    this.project(keys, key + ".", this.mappedFields(nested), path);
+                    path.remove(path.size() - 1);
+                    if (keys.size() > size) {
+                        continue;
+                    }
+                }
+            }
+            keys.add(key);
+        }
+    }
+
+    private List<MappedField> mappedFields(TypeElement model) {
+        List<MappedField> fields = new ArrayList<>();
+        TypeElement clazz = model;
+        while (clazz != null && !clazz.getQualifiedName().contentEquals("java.lang.Object")) {
+            for (VariableElement f : ElementFilter.fieldsIn(clazz.getEnclosedElements())) {
+                AnnotationMirror annotation = this.getDBSync(f);
+                if (annotation != null) {
+                    fields.add(this.resolve(f, annotation));
+                }
+            }
+            clazz = this.superclassOf(clazz);
+        }
+        return fields;
+    }
+
+    private TypeElement superclassOf(TypeElement clazz) {
+        TypeMirror superclass = clazz.getSuperclass();
+        if (superclass.getKind() != TypeKind.DECLARED) {
+            return null;
+        }
+        return (TypeElement) ((DeclaredType) superclass).asElement();
+    }
+
+    private boolean isReachable(TypeMirror type, String pkg) {
+        if (type.getKind() != TypeKind.DECLARED) {
+            return true;
+        }
+        return this.isReachable((TypeElement) ((DeclaredType) type).asElement(), pkg);
+    }
+
+    private boolean isReachable(TypeElement type, String pkg) {
+        Element e = type;
+        while (e != null && (e.getKind().isClass() || e.getKind().isInterface())) {
+            TypeElement t = (TypeElement) e;
+            Set<Modifier> modifiers = t.getModifiers();
+            if (modifiers.contains(Modifier.PRIVATE)) {
+                return false;
+            }
+            if (t.getNestingKind() == NestingKind.MEMBER && !modifiers.contains(Modifier.STATIC) && e == type) {
+                return false;
+            }
+            if (t.getNestingKind() == NestingKind.LOCAL || t.getNestingKind() == NestingKind.ANONYMOUS) {
+                return false;
+            }
+            if (!modifiers.contains(Modifier.PUBLIC) && !this.elements.getPackageOf(t).getQualifiedName().contentEquals(pkg)) {
+                return false;
+            }
+            e = e.getEnclosingElement();
+        }
+        return true;
+    }
+
+    private boolean hasReachableConstructor(TypeElement model) {
+        for (ExecutableElement c : ElementFilter.constructorsIn(model.getEnclosedElements())) {
+            if (c.getParameters().isEmpty() && !c.getModifiers().contains(Modifier.PRIVATE)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private AnnotationMirror getDBSync(Element e) {
+        for (AnnotationMirror m : e.getAnnotationMirrors()) {
+            if (((TypeElement) m.getAnnotationType().asElement()).getQualifiedName().contentEquals(DBSYNC)) {
+                return m;
+            }
+        }
+        return null;
+    }
+
+    private MappedField resolve(VariableElement f, AnnotationMirror annotation) {
+        MappedField mapped = new MappedField();
+        mapped.element = f;
+        mapped.name = f.getSimpleName().toString();
+        mapped.dbName = mapped.name;
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : this.elements.getElementValuesWithDefaults(annotation).entrySet()) {
+            String key = entry.getKey().getSimpleName().toString();
+            if (key.equals("value")) {
+                String value = (String) entry.getValue().getValue();
+                if (!value.isEmpty()) {
+                    mapped.dbName = value;
+                }
+            } else if (key.equals("index")) {
+                mapped.index = (Boolean) entry.getValue().getValue();
+            }
+        }
+        TypeMirror type = f.asType();
+        TypeMirror collection = this.types.erasure(this.elements.getTypeElement("java.util.Collection").asType());
+        if (type.getKind() == TypeKind.ARRAY) {
+            mapped.elementType = ((javax.lang.model.type.ArrayType) type).getComponentType();
+            mapped.kind = this.isPrimitive(mapped.elementType) ? Kind.VALUE_ARRAY : Kind.MODEL_ARRAY;
+        } else if (type.getKind() == TypeKind.DECLARED && this.types.isAssignable(this.types.erasure(type), collection)) {
+            List<? extends TypeMirror> args = ((DeclaredType) type).getTypeArguments();
+            if (!args.isEmpty() && args.get(0).getKind() == TypeKind.DECLARED) {
+                mapped.elementType = this.types.erasure(args.get(0));
+            } else {
+                mapped.elementType = this.elements.getTypeElement("java.lang.Object").asType();
+            }
+            mapped.kind = this.isPrimitive(mapped.elementType) ? Kind.VALUE_COLLECTION : Kind.MODEL_COLLECTION;
+        } else {
+            mapped.elementType = type;
+            mapped.kind = this.isPrimitive(type) ? Kind.VALUE : Kind.MODEL;
+        }
+        mapped.serializable = this.isPrimitive(mapped.elementType) || this.isModel(mapped.elementType);
+        return mapped;
+    }
+
+    private boolean isPrimitive(TypeMirror type) {
+        if (type.getKind().isPrimitive()) {
+            return true;
+        }
+        if (type.getKind() != TypeKind.DECLARED) {
+            return false;
+        }
+        TypeMirror erased = this.types.erasure(type);
+        for (String p : primitives) {
+            if (this.types.isAssignable(this.elements.getTypeElement(p).asType(), erased)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isModel(TypeMirror type) {
+        if (type.getKind() != TypeKind.DECLARED) {
+            return false;
+        }
+        TypeElement clazz = (TypeElement) ((DeclaredType) type).asElement();
+        while (clazz != null && !clazz.getQualifiedName().contentEquals("java.lang.Object")) {
+            for (VariableElement f : ElementFilter.fieldsIn(clazz.getEnclosedElements())) {
+                if (this.getDBSync(f) != null) {
+                    return true;
+                }
+            }
+            clazz = this.superclassOf(clazz);
+        }
+        return false;
+    }
+
+    private static String literal(String s) {
+        StringBuilder b = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            switch (c) {
+                case '"':
+                    b.append("\\\"");
+                    break;
+                case '\\':
+                    b.append("\\\\");
+                    break;
+                case '\n':
+                    b.append("\\n");
+                    break;
+                default:
+                    b.append(c);
+                    break;
+            }
+        }
+        return b.append('"').toString();
+    }
+
+    private String typeName(TypeMirror type) {
+        return this.types.erasure(type).toString();
+    }
+
+    private String boxedName(TypeMirror type) {
+        if (type.getKind().isPrimitive()) {
+            return this.types.boxedClass((javax.lang.model.type.PrimitiveType) type).getQualifiedName().toString();
+        }
+        return this.typeName(type);
+    }
+
+    private void write(TypeElement model, String pkg, List<MappedField> fields) throws IOException {
+        String binary = this.elements.getBinaryName(model).toString();
+        String simple = (pkg.isEmpty() ? binary : binary.substring(pkg.length() + 1)).replace('$', '_') + SUFFIX;
+        String modelName = model.getQualifiedName().toString();
+        MappedField index = null;
+        for (MappedField f : fields) {
+            if (f.index) {
+                index = f;
+                break;
+            }
+        }
+
+        StringBuilder b = new StringBuilder();
+        if (!pkg.isEmpty()) {
+            b.append("package ").append(pkg).append(";\n\n");
+        }
+        b.append("/**\n * Generated by the ModelSyncMongoDB processor from {@link ").append(modelName).append("}, do not edit.\n */\n");
+        b.append("public final class ").append(simple).append(" implements ").append(MAPPER).append("<").append(modelName).append("> {\n\n");
+
+        b.append("    @Override\n    public Class<").append(modelName).append("> getType() {\n");
+        b.append("        return ").append(modelName).append(".class;\n    }\n\n");
+
+        b.append("    @Override\n    public ").append(modelName).append(" newInstance() {\n");
+        b.append("        return new ").append(modelName).append("();\n    }\n\n");
+
+        b.append("    @Override\n    public ").append(DOCUMENT).append(" encode(").append(modelName).append(" instance) {\n");
+        b.append("        ").append(DOCUMENT).append(" document = new ").append(DOCUMENT).append("();\n");
+        for (MappedField f : fields) {
+            if (!f.serializable) {
+                continue;
+            }
+            b.append("        document.put(").append(literal(f.dbName)).append(", ");
+            switch (f.kind) {
+                case MODEL:
+                    b.append(MAPPERS).append(".encode(instance.").append(f.name).append(")");
+                    break;
+                case MODEL_ARRAY:
+                case MODEL_COLLECTION:
+                    b.append(MAPPERS).append(".encodeAll(instance.").append(f.name).append(")");
+                    break;
+                default:
+                    b.append("instance.").append(f.name);
+                    break;
+            }
+            b.append(");\n");
+        }
+        b.append("        return document;\n    }\n\n");
+
+        b.append("    @Override\n    @SuppressWarnings(\"unchecked\")\n    public ").append(modelName).append(" decode(").append(modelName).append(" instance, ").append(DOCUMENT).append(" data) {\n");
+        b.append("        Object value;\n");
+        for (MappedField f : fields) {
+            if (f.kind == Kind.VALUE_ARRAY || f.kind == Kind.MODEL_ARRAY) {
+                continue;
+            }
+            TypeMirror type = f.element.asType();
+            b.append("        if (data.containsKey(").append(literal(f.dbName)).append(")) {\n");
+            b.append("            value = data.get(").append(literal(f.dbName)).append(");\n");
+            // a value of the wrong type or a number that does not fit exactly is skipped, like the reflection mapper does
+            b.append("            try {\n");
+            switch (f.kind) {
+                case MODEL:
+                    b.append("                instance.").append(f.name).append(" = ").append(MAPPERS).append(".decode(")
+                            .append(this.typeName(f.elementType)).append(".class, (").append(DOCUMENT).append(") value);\n");
+                    break;
+                case MODEL_COLLECTION:
+                    b.append("                instance.").append(f.name).append(" = (").append(this.typeName(type)).append(") ").append(MAPPERS).append(".decodeAll(")
+                            .append(this.typeName(f.elementType)).append(".class, (java.util.Collection) value);\n");
+                    break;
+                default:
+                    if (type.getKind().isPrimitive()) {
+                        TypeKind k = type.getKind();
+                        b.append("                if (value != null) {\n");
+                        if (k == TypeKind.BOOLEAN || k == TypeKind.CHAR) {
+                            b.append("                    instance.").append(f.name).append(" = (").append(this.boxedName(type)).append(") value;\n");
+                        } else {
+                            String convert = "to" + Character.toUpperCase(type.toString().charAt(0)) + type.toString().substring(1);
+                            b.append("                    instance.").append(f.name).append(" = ").append(FIELDS).append(".").append(convert).append("((java.lang.Number) value);\n");
+                        }
+                        b.append("                }\n");
+                    } else if (this.typeName(type).equals("java.lang.Object")) {
+                        b.append("                instance.").append(f.name).append(" = value;\n");
+                    } else {
+                        b.append("                instance.").append(f.name).append(" = (").append(this.typeName(type)).append(") value;\n");
+                    }
+                    break;
+            }
+            b.append("            } catch (java.lang.ClassCastException | java.lang.ArithmeticException ex) {\n");
+            b.append("                java.util.logging.Logger.getLogger(").append(literal(MAPPERS)).append(").log(java.util.logging.Level.WARNING, ")
+                    .append(literal("Skipping field " + f.name + " of " + modelName + ": ")).append(" + ex.getMessage());\n");
+            b.append("            }\n");
+            b.append("        }\n");
+        }
+        b.append("        return instance;\n    }\n\n");
+
+        b.append("    @Override\n    public String getIndexKey() {\n");
+        b.append("        return ").append(index == null ? "null" : literal(index.dbName)).append(";\n    }\n\n");
+
+        b.append("    @Override\n    public Object getIndexValue(").append(modelName).append(" instance) {\n");
+        b.append("        return ").append(index == null ? "null" : "instance." + index.name).append(";\n    }\n\n");
+
+        b.append("    @Override\n    public ").append(DOCUMENT).append(" getProjection() {\n");
+        b.append("        ").append(DOCUMENT).append(" projection = new ").append(DOCUMENT).append("();\n");
+        List<String> keys = new ArrayList<>();
+        List<String> path = new ArrayList<>();
+        path.add(modelName);
+        this.project(keys, "", fields, path);
+        for (String key : keys) {
+            b.append("        projection.put(").append(literal(key)).append(", 1);\n");
+        }
+        b.append("        return projection;\n    }\n\n");
+        b.append("}\n");
+
+        String qualified = pkg.isEmpty() ? simple : pkg + "." + simple;
+        try (Writer w = this.processingEnv.getFiler().createSourceFile(qualified, model).openWriter()) {
+            w.write(b.toString());
+        }
+    }
+
+}
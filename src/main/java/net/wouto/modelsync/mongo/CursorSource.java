@@ -0,0 +1,92 @@
+package net.wouto.modelsync.mongo;
+
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCursor;
+import java.util.ArrayList;
+import java.util.List;
+import net.wouto.modelsync.mongo.future.FutureCallback;
+import net.wouto.modelsync.mongo.stream.BatchSource;
+
+/**
+ * Reads batches from a synchronous driver cursor, one read thread task per batch.
+ * @author Wouter
+ * @param <T> the result type
+ */
+final class CursorSource<T> implements BatchSource<T> {
+
+    private final SimpleScheduler scheduler;
+    private final FindIterable<T> find;
+    private final int batchSize;
+    private MongoCursor<T> cursor;
+    private boolean reading;
+    private boolean closed;
+
+    CursorSource(SimpleScheduler scheduler, FindIterable<T> find, int batchSize) {
+        this.scheduler = scheduler;
+        this.find = find;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public void next(final FutureCallback<List<T>> callback) {
+        this.scheduler.doRead(new MongoOperation<List<T>>() {
+
+            @Override
+            List<T> execute() throws Exception {
+                return CursorSource.this.read();
+            }
+
+            @Override
+            void done(List<T> result, Exception err) {
+                callback.onComplete(result, err);
+            }
+
+        });
+    }
+
+    private List<T> read() {
+        MongoCursor<T> c;
+        synchronized (this) {
+            if (this.closed) {
+                return null;
+            }
+            if (this.cursor == null) {
+                this.cursor = this.find.batchSize(this.batchSize).iterator();
+            }
+            c = this.cursor;
+            this.reading = true;
+        }
+        List<T> batch = new ArrayList<>(this.batchSize);
+        try {
+            while (batch.size() < this.batchSize && c.hasNext()) {
+                batch.add(c.next());
+            }
+        } finally {
+            synchronized (this) {
+                this.reading = false;
+                if (this.closed) {
+                    c.close();
+                }
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Closes the cursor right away, or after the batch being read when there is one.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            if (this.reading || this.cursor == null) {
+                return;
+            }
+        }
+        this.cursor.close();
+    }
+
+}
@@ -0,0 +1,37 @@
+package net.wouto.modelsync.mongo;
+
+/**
+ * The driver a {@link SimpleConnection} runs asynchronous operations on.
+ * @author Wouter
+ */
+public enum Engine {
+
+    /**
+     * The synchronous driver, every operation occupies a scheduler thread
+     * until the server replies.
+     */
+    BLOCKING,
+    /**
+     * The asynchronous driver, operations are sent without occupying a thread
+     * and complete on the driver's own threads once the server replies.
+     * Requires org.mongodb:mongodb-driver-async on the classpath.
+     * The *Sync methods keep using the synchronous driver.
+     */
+    NON_BLOCKING;
+
+    /**
+     * @return whether the driver for this engine is on the classpath
+     */
+    public boolean isAvailable() {
+        if (this == BLOCKING) {
+            return true;
+        }
+        try {
+            Class.forName("com.mongodb.async.client.MongoClients", false, Engine.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException ex) {
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,28 @@
+package net.wouto.modelsync.mongo;
+
+/**
+ * The kind of threads a {@link SimpleScheduler} runs operations on.
+ * @author Wouter
+ */
+public enum ExecutionMode {
+
+    /**
+     * Fixed pools of platform threads, the read and write thread counts are pool sizes.
+     */
+    POOLED,
+    /**
+     * A new virtual thread for every operation. The read and write thread
+     * counts limit how many operations run at the same time, the queue sizes
+     * how many more may wait. Requires a JVM with virtual threads (21 or newer),
+     * on older JVMs the scheduler logs a warning and uses {@link #POOLED}.
+     */
+    VIRTUAL;
+
+    /**
+     * @return whether this mode can be used on the running JVM
+     */
+    public boolean isAvailable() {
+        return this == POOLED || VirtualThreadExecutor.virtualThreadFactory("SimpleMongo") != null;
+    }
+
+}
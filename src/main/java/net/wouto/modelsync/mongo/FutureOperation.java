@@ -0,0 +1,35 @@
+package net.wouto.modelsync.mongo;
+
+import net.wouto.modelsync.mongo.future.MongoFuture;
+
+/**
+ * An operation completing a {@link MongoFuture} instead of calling back.
+ * It is skipped when the future is already done by the time a scheduler
+ * thread picks it up, because it timed out or was cancelled.
+ * @author Wouter
+ * @param <R> the result type
+ */
+abstract class FutureOperation<R> extends MongoOperation<R> {
+
+    final MongoFuture<R> future = new MongoFuture<>();
+
+    abstract R call() throws Exception;
+
+    @Override
+    final R execute() throws Exception {
+        if (this.future.isDone()) {
+            return null;
+        }
+        return this.call();
+    }
+
+    @Override
+    final void done(R result, Exception err) {
+        if (err != null) {
+            this.future.fail(err);
+        } else {
+            this.future.complete(result);
+        }
+    }
+
+}
@@ -0,0 +1,19 @@
+package net.wouto.modelsync.mongo;
+
+import net.wouto.modelsync.mongo.future.MongoFuture;
+
+/**
+ * Writes kept in memory for a while before they are sent, registered with the
+ * {@link SimpleScheduler} so they are flushed by {@link SimpleScheduler#flushWrites()}
+ * and before the connection closes.
+ * @author Wouter
+ */
+interface HeldWrites {
+
+    /**
+     * Sends everything held right away.
+     * @return completes once it is written
+     */
+    MongoFuture<?> flush();
+
+}
@@ -0,0 +1,441 @@
+package net.wouto.modelsync.mongo;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import net.wouto.modelsync.mongo.bulk.Bulk;
+import net.wouto.modelsync.mongo.bulk.BulkExecution;
+import net.wouto.modelsync.mongo.bulk.BulkItemResult;
+import net.wouto.modelsync.mongo.bulk.BulkReport;
+import net.wouto.modelsync.mongo.future.FutureCallback;
+import net.wouto.modelsync.mongo.future.MongoFuture;
+import net.wouto.modelsync.mongo.future.MongoFutures;
+import net.wouto.modelsync.mongo.query.Query;
+import net.wouto.modelsync.mongo.update.Update;
+import org.bson.Document;
+
+/**
+ * Sums increments of the same field of the same document in memory and sends
+ * them as a single $inc at an interval, see
+ * {@link SimpleCollection#aggregateIncrements(long, TimeUnit, int)}.
+ * <br />
+ * Every (filter, field) pair has a counter of its own. A counter starts as a
+ * single value and spreads over one value per processor once threads collide
+ * on it, so a hot counter does not make every thread wait on one cache line.
+ * A flush takes every counter, combines the counters of a filter into one
+ * update and sends them as one unordered bulk write. Increments coming in
+ * while a flush runs go into new counters for the next flush.
+ * <br />
+ * Increments are not ordered with other writes to the same documents, and
+ * are only on the server after the next flush.
+ * @author Wouter
+ */
+public final class IncrementAggregator implements HeldWrites {
+
+    private static final long DEAD = Long.MIN_VALUE;
+    /**
+     * longs per stripe, so every stripe has a cache line to itself
+     */
+    private static final int PAD = 8;
+    private static final int STRIPES = stripeCount();
+
+    private final SimpleCollection collection;
+    private final SimpleScheduler scheduler;
+    private final int maxCounters;
+    private final boolean upsert;
+    private final ConcurrentMap<Key, Cell> counters;
+    private final AtomicInteger live;
+    private final ScheduledFuture<?> timer;
+
+    private final Cell received;
+    private final AtomicLong flushedIncrements;
+    private final AtomicLong updatesSent;
+    private final AtomicLong flushCount;
+    private final AtomicLong failedUpdates;
+
+    private MongoFuture<BulkReport> last;
+    private boolean flushQueued;
+    private volatile boolean closed;
+
+    IncrementAggregator(SimpleCollection collection, long interval, TimeUnit unit, int maxCounters, boolean upsert) {
+        if (maxCounters < 1) {
+            throw new IllegalArgumentException("maxCounters must be at least 1, got " + maxCounters);
+        }
+        this.collection = collection;
+        this.scheduler = collection.getScheduler();
+        this.maxCounters = maxCounters;
+        this.upsert = upsert;
+        this.counters = new ConcurrentHashMap<>();
+        this.live = new AtomicInteger();
+        this.received = new Cell();
+        this.flushedIncrements = new AtomicLong();
+        this.updatesSent = new AtomicLong();
+        this.flushCount = new AtomicLong();
+        this.failedUpdates = new AtomicLong();
+        this.last = MongoFutures.completed(null);
+        this.timer = this.scheduler.getTimer().scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                IncrementAggregator.this.requestFlush();
+            }
+
+        }, interval, interval, unit);
+        this.scheduler.register(this);
+    }
+
+    private static int stripeCount() {
+        int n = 1;
+        while (n < Runtime.getRuntime().availableProcessors() && n < 64) {
+            n <<= 1;
+        }
+        return n;
+    }
+
+    /**
+     * Adds to a field of the documents matching a filter with the next flush.
+     * After {@link #close()} the increment is sent directly.
+     * @param q the filter, only its query document is used
+     * @param field
+     * @param delta
+     */
+    public void increment(Query q, String field, long delta) {
+        if (this.closed) {
+            this.collection.update(q, Update.increment(field, delta), this.upsert, false);
+            return;
+        }
+        this.add(new Key(q.getQuery(), field), delta);
+        this.received.add(1);
+        if (this.closed) {
+            // closed while adding, the final flush may have missed the counter
+            this.requestFlush();
+        }
+    }
+
+    private void add(Key key, long delta) {
+        for (;;) {
+            Cell cell = this.counters.get(key);
+            if (cell == null) {
+                Cell created = new Cell();
+                // the filter of the caller may change after this returns
+                cell = this.counters.putIfAbsent(new Key(new Document(key.filter), key.field), created);
+                if (cell == null) {
+                    cell = created;
+                    if (this.live.incrementAndGet() == this.maxCounters) {
+                        this.requestFlush();
+                    }
+                }
+            }
+            if (cell.add(delta)) {
+                return;
+            }
+            // taken by a flush, it no longer belongs in the map
+            if (this.counters.remove(key, cell)) {
+                this.live.decrementAndGet();
+            }
+        }
+    }
+
+    private void requestFlush() {
+        synchronized (this) {
+            if (this.flushQueued) {
+                return;
+            }
+        }
+        this.flush();
+    }
+
+    /**
+     * Sends every summed increment once the flush before it is done.
+     * @return the report of the bulk write, empty when nothing was summed
+     */
+    @Override
+    public MongoFuture<BulkReport> flush() {
+        final MongoFuture<BulkReport> result = new MongoFuture<>();
+        MongoFuture<BulkReport> previous;
+        synchronized (this) {
+            previous = this.last;
+            this.last = result;
+            this.flushQueued = true;
+        }
+        previous.onComplete(new FutureCallback<BulkReport>() {
+
+            @Override
+            public void onComplete(BulkReport ignored, Exception err) {
+                IncrementAggregator.this.send(result);
+            }
+
+        });
+        return result;
+    }
+
+    /**
+     * Stops the timer and sends what is summed, later increments are sent directly.
+     * @return completes once the last increments are written
+     */
+    public MongoFuture<BulkReport> close() {
+        this.timer.cancel(false);
+        this.scheduler.unregister(this);
+        this.closed = true;
+        return this.flush();
+    }
+
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    private void send(final MongoFuture<BulkReport> result) {
+        synchronized (this) {
+            this.flushQueued = false;
+        }
+        long increments = this.received.sum();
+        final Map<Document, Document> updates = new LinkedHashMap<>();
+        for (Map.Entry<Key, Cell> entry : this.counters.entrySet()) {
+            Key key = entry.getKey();
+            long delta = entry.getValue().take();
+            if (this.counters.remove(key, entry.getValue())) {
+                this.live.decrementAndGet();
+            }
+            if (delta == 0) {
+                continue;
+            }
+            Document inc = updates.get(key.filter);
+            if (inc == null) {
+                inc = new Document();
+                updates.put(key.filter, inc);
+            }
+            inc.put(key.field, delta);
+        }
+        this.flushedIncrements.set(increments);
+        Bulk bulk = new Bulk().ordered(false);
+        final List<Document> filters = new ArrayList<>(updates.keySet());
+        for (Document filter : filters) {
+            bulk.update(new Query(filter), new Update(new Document("$inc", updates.get(filter))), this.upsert, false);
+        }
+        if (filters.isEmpty()) {
+            result.complete(new BulkExecution(bulk).report());
+            return;
+        }
+        this.flushCount.incrementAndGet();
+        this.collection.bulkWriteAsync(bulk).onComplete(new FutureCallback<BulkReport>() {
+
+            @Override
+            public void onComplete(BulkReport report, Exception err) {
+                if (err != null) {
+                    err.printStackTrace();
+                    IncrementAggregator.this.retry(updates);
+                    result.fail(err);
+                    return;
+                }
+                int failed = 0;
+                Map<Document, Document> unsent = new LinkedHashMap<>();
+                Exception unreachable = null;
+                for (int i = 0; i < filters.size(); i++) {
+                    BulkItemResult item = report.getResult(i);
+                    if (item.getStatus() != BulkItemResult.Status.FAILED) {
+                        continue;
+                    }
+                    if (item.getError() != null && JournaledWrites.isUnreachable(item.getError())) {
+                        // never reached the server, add it to the next flush
+                        unsent.put(filters.get(i), updates.get(filters.get(i)));
+                        unreachable = item.getError();
+                        continue;
+                    }
+                    System.out.println("Cannot increment " + updates.get(filters.get(i)).toJson() + ": " + item);
+                    failed++;
+                }
+                IncrementAggregator.this.updatesSent.addAndGet(filters.size() - failed - unsent.size());
+                IncrementAggregator.this.failedUpdates.addAndGet(failed);
+                if (unreachable != null) {
+                    unreachable.printStackTrace();
+                    IncrementAggregator.this.retry(unsent);
+                }
+                result.complete(report);
+            }
+
+        });
+    }
+
+    /**
+     * Adds the increments of a bulk write that failed as a whole, or that
+     * could not reach the server, back so they go out with the next flush.
+     * After {@link #close()} they are lost.
+     */
+    private void retry(Map<Document, Document> updates) {
+        if (this.closed) {
+            this.failedUpdates.addAndGet(updates.size());
+            System.out.println("Cannot increment, dropping " + updates.size() + " summed updates");
+            return;
+        }
+        for (Map.Entry<Document, Document> update : updates.entrySet()) {
+            for (Map.Entry<String, Object> field : update.getValue().entrySet()) {
+                this.add(new Key(update.getKey(), field.getKey()), (Long) field.getValue());
+            }
+        }
+    }
+
+    /**
+     * @return the number of counters waiting for the next flush
+     */
+    public int getPendingCount() {
+        return this.live.get();
+    }
+
+    /**
+     * @return the number of increments received since this aggregator was created
+     */
+    public long getIncrementCount() {
+        return this.received.sum();
+    }
+
+    /**
+     * @return the number of updates the server applied, one per filter per flush
+     */
+    public long getUpdateCount() {
+        return this.updatesSent.get();
+    }
+
+    /**
+     * @return the number of updates the server rejected or that were dropped
+     */
+    public long getFailedUpdateCount() {
+        return this.failedUpdates.get();
+    }
+
+    /**
+     * @return the number of flushes that had something to send
+     */
+    public long getFlushCount() {
+        return this.flushCount.get();
+    }
+
+    /**
+     * @return the number of increments flushed per update sent, 1 means nothing
+     * was combined, 0 when nothing was sent yet
+     */
+    public double getCompressionRatio() {
+        long updates = this.updatesSent.get() + this.failedUpdates.get();
+        return updates == 0 ? 0 : (double) this.flushedIncrements.get() / updates;
+    }
+
+    @Override
+    public String toString() {
+        return "IncrementAggregator{" + "increments=" + this.getIncrementCount() + ", updates=" + this.getUpdateCount()
+                + ", flushes=" + this.getFlushCount() + ", compression=" + String.format("%.1f", this.getCompressionRatio()) + '}';
+    }
+
+    private static final class Key {
+
+        private final Document filter;
+        private final String field;
+        private final int hash;
+
+        private Key(Document filter, String field) {
+            this.filter = filter;
+            this.field = field;
+            this.hash = 31 * filter.hashCode() + field.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return this.field.equals(other.field) && this.filter.equals(other.filter);
+        }
+
+    }
+
+    /**
+     * A counter adding to a single value until two threads collide on it, then
+     * to one stripe per processor. Taking the sum marks every value dead, an
+     * add that finds a dead value fails so the caller starts a new counter.
+     */
+    private static final class Cell {
+
+        private final AtomicLong base = new AtomicLong();
+        private volatile AtomicLongArray stripes;
+
+        /**
+         * @param delta
+         * @return false when the counter was taken
+         */
+        boolean add(long delta) {
+            AtomicLongArray s = this.stripes;
+            if (s == null) {
+                long b = this.base.get();
+                if (b == DEAD) {
+                    return false;
+                }
+                if (this.base.compareAndSet(b, b + delta)) {
+                    return true;
+                }
+                s = this.expand();
+                if (s == null) {
+                    return false;
+                }
+            }
+            int i = ((int) Thread.currentThread().getId() & (STRIPES - 1)) * PAD;
+            for (;;) {
+                long v = s.get(i);
+                if (v == DEAD) {
+                    return false;
+                }
+                if (s.compareAndSet(i, v, v + delta)) {
+                    return true;
+                }
+            }
+        }
+
+        private synchronized AtomicLongArray expand() {
+            if (this.base.get() == DEAD) {
+                return null;
+            }
+            if (this.stripes == null) {
+                this.stripes = new AtomicLongArray(STRIPES * PAD);
+            }
+            return this.stripes;
+        }
+
+        long sum() {
+            long total = this.base.get();
+            AtomicLongArray s = this.stripes;
+            if (s != null) {
+                for (int i = 0; i < s.length(); i += PAD) {
+                    total += s.get(i);
+                }
+            }
+            return total;
+        }
+
+        /**
+         * @return the sum, after which every add fails
+         */
+        synchronized long take() {
+            long total = this.base.getAndSet(DEAD);
+            AtomicLongArray s = this.stripes;
+            if (s != null) {
+                for (int i = 0; i < s.length(); i += PAD) {
+                    total += s.getAndSet(i, DEAD);
+                }
+            }
+            return total;
+        }
+
+    }
+
+}
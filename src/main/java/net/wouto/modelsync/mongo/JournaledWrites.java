@@ -0,0 +1,351 @@
+package net.wouto.modelsync.mongo;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoNamespace;
+import com.mongodb.MongoNodeIsRecoveringException;
+import com.mongodb.MongoNotPrimaryException;
+import com.mongodb.MongoSocketException;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.MongoWaitQueueFullException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.DeleteManyModel;
+import com.mongodb.client.model.DeleteOneModel;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.UpdateManyModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import java.io.IOException;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.wouto.modelsync.mongo.bulk.Bulk;
+import net.wouto.modelsync.mongo.bulk.BulkExecution;
+import net.wouto.modelsync.mongo.bulk.BulkReport;
+import net.wouto.modelsync.mongo.future.MongoFuture;
+import net.wouto.modelsync.mongo.future.MongoFutures;
+import net.wouto.modelsync.mongo.journal.WriteJournal;
+import net.wouto.modelsync.mongo.journal.WriteRecords;
+import org.bson.Document;
+
+/**
+ * Sends the asynchronous writes of a connection through a {@link WriteJournal},
+ * see {@link SimpleConnection#setJournal(WriteJournal)}.
+ * <br />
+ * A write is appended to the journal before it is queued on its write lane,
+ * and acknowledged there once the server applied it or rejected it. When the
+ * server can not be reached the write stays in the journal and the journal
+ * starts buffering: queued and new writes are only appended, and a single
+ * thread sends them in journal order once the server answers again, after
+ * which writes go out on their lanes again. Their futures complete once they
+ * are applied.
+ * <br />
+ * A write the server was lost during may have been applied, it is sent again
+ * all the same. Writes are delivered at least once, so only idempotent ones
+ * are taken.
+ * @author Wouter
+ */
+final class JournaledWrites {
+
+    private static final long RETRY_MILLIS = 1000;
+    private static final Object DEFERRED = new Object();
+    private static final Logger logger = Logger.getLogger(JournaledWrites.class.getName());
+
+    private final SimpleConnection connection;
+    private final SimpleScheduler scheduler;
+    private final WriteJournal journal;
+    private final ConcurrentMap<Long, MongoFuture<Object>> waiting;
+    private final TreeSet<Long> deferred;
+    private final TreeSet<Long> queued;
+    private boolean buffering;
+    private boolean stopped;
+    private Thread drainer;
+
+    JournaledWrites(SimpleConnection connection, SimpleScheduler scheduler, WriteJournal journal) {
+        this.connection = connection;
+        this.scheduler = scheduler;
+        this.journal = journal;
+        this.waiting = new ConcurrentHashMap<>();
+        this.deferred = new TreeSet<>(journal.getPending());
+        this.queued = new TreeSet<>();
+        // writes left over from before are sent before anything new
+        this.buffering = !this.deferred.isEmpty();
+    }
+
+    WriteJournal getJournal() {
+        return this.journal;
+    }
+
+    /**
+     * Sends the writes left in the journal, once connected.
+     */
+    synchronized void start() {
+        this.stopped = false;
+        if (this.buffering) {
+            this.drain();
+        }
+    }
+
+    synchronized void stop() {
+        this.stopped = true;
+        if (this.drainer != null) {
+            this.drainer.interrupt();
+            this.drainer = null;
+        }
+    }
+
+    synchronized boolean isBuffering() {
+        return this.buffering;
+    }
+
+    /**
+     * @param <R>
+     * @param collection
+     * @param key the document the write targets, as for {@link SimpleScheduler#laneOf(Object)}
+     * @param record from {@link WriteRecords}
+     * @return completes once the write is applied, fails for a write that is
+     * not {@link WriteRecords#isIdempotent(Document) idempotent}
+     */
+    <R> MongoFuture<R> submit(SimpleCollection collection, Object key, Document record) {
+        if (!WriteRecords.isIdempotent(record)) {
+            // a write sent again after losing the server may have been applied already
+            return MongoFutures.failed(new IllegalArgumentException("Cannot journal " + record.toJson() + ", it is not idempotent"));
+        }
+        MongoNamespace namespace = collection.getHandle().getNamespace();
+        final Document entry = new Document("db", namespace.getDatabaseName()).append("collection", namespace.getCollectionName()).append("write", record);
+        final long sequence;
+        try {
+            sequence = this.journal.append(entry);
+        } catch (IOException | RuntimeException ex) {
+            return MongoFutures.failed(ex);
+        }
+        MongoFuture<Object> future = new MongoFuture<>();
+        this.waiting.put(sequence, future);
+        synchronized (this) {
+            if (this.buffering) {
+                this.deferred.add(sequence);
+                return (MongoFuture<R>) future;
+            }
+            this.queued.add(sequence);
+        }
+        this.scheduler.doWrite(this.scheduler.laneOf(key), new MongoOperation<Object>() {
+
+            @Override
+            Object execute() throws Exception {
+                synchronized (JournaledWrites.this) {
+                    if (JournaledWrites.this.buffering) {
+                        // a write in front of it is waiting for the server, keep the order
+                        JournaledWrites.this.defer(sequence);
+                        return DEFERRED;
+                    }
+                }
+                return JournaledWrites.this.apply(entry, false);
+            }
+
+            @Override
+            void done(Object result, Exception err) {
+                if (result == DEFERRED) {
+                    return;
+                }
+                if (err != null && isUnreachable(err)) {
+                    JournaledWrites.this.defer(sequence);
+                    return;
+                }
+                synchronized (JournaledWrites.this) {
+                    JournaledWrites.this.queued.remove(sequence);
+                    JournaledWrites.this.notifyAll();
+                }
+                JournaledWrites.this.finish(sequence, result, err);
+            }
+
+        });
+        return (MongoFuture<R>) future;
+    }
+
+    private synchronized void defer(long sequence) {
+        this.queued.remove(sequence);
+        this.deferred.add(sequence);
+        if (!this.buffering) {
+            logger.log(Level.WARNING, "Server unreachable, buffering writes in {0}", this.journal);
+            this.buffering = true;
+        }
+        this.drain();
+        this.notifyAll();
+    }
+
+    private void drain() {
+        if (this.drainer != null || this.stopped) {
+            return;
+        }
+        this.drainer = new SimpleMongoThreadFactory("SimpleMongo-Journal").newThread(new Runnable() {
+
+            @Override
+            public void run() {
+                JournaledWrites.this.replay();
+            }
+
+        });
+        this.drainer.setDaemon(true);
+        this.drainer.start();
+    }
+
+    /**
+     * Sends the deferred writes one at a time in journal order, waiting for
+     * the server as long as it can not be reached.
+     */
+    private void replay() {
+        while (!Thread.currentThread().isInterrupted()) {
+            Long sequence;
+            synchronized (this) {
+                if (this.deferred.isEmpty() && this.queued.isEmpty()) {
+                    logger.log(Level.INFO, "Journal replayed, sending writes directly again");
+                    this.buffering = false;
+                    this.drainer = null;
+                    return;
+                }
+                if (this.deferred.isEmpty() || (!this.queued.isEmpty() && this.queued.first() < this.deferred.first())) {
+                    // an older write is still queued on its lane, it defers itself or finishes first
+                    try {
+                        this.wait(RETRY_MILLIS);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    continue;
+                }
+                sequence = this.deferred.first();
+            }
+            Document entry = this.journal.read(sequence);
+            Object result = null;
+            Exception err = null;
+            if (entry != null) {
+                try {
+                    result = this.apply(entry, true);
+                } catch (Exception ex) {
+                    if (isUnreachable(ex)) {
+                        try {
+                            TimeUnit.MILLISECONDS.sleep(RETRY_MILLIS);
+                        } catch (InterruptedException ie) {
+                            return;
+                        }
+                        continue;
+                    }
+                    err = ex;
+                }
+            }
+            synchronized (this) {
+                this.deferred.remove(sequence);
+            }
+            this.finish(sequence, result, err);
+        }
+    }
+
+    private void finish(long sequence, Object result, Exception err) {
+        try {
+            this.journal.acknowledge(sequence);
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Cannot acknowledge journaled write " + sequence, ex);
+        }
+        MongoFuture<Object> future = this.waiting.remove(sequence);
+        if (future == null) {
+            if (err != null) {
+                logger.log(Level.WARNING, "Replayed write " + sequence + " failed", err);
+            }
+        } else if (err != null) {
+            future.fail(err);
+        } else {
+            future.complete(result);
+        }
+    }
+
+    /**
+     * @param entry
+     * @param retry whether the write may have been applied before, an insert
+     * failing on its own _id then counts as applied
+     */
+    private Object apply(Document entry, boolean retry) throws Exception {
+        SimpleCollection collection = this.connection.getCollection(entry.getString("db"), entry.getString("collection"));
+        if (collection == null) {
+            throw new MongoTimeoutException("Not connected");
+        }
+        MongoCollection<Document> handle = collection.getHandle(Document.class);
+        Document record = (Document) entry.get("write");
+        String type = record.getString("type");
+        switch (type) {
+            case WriteRecords.INSERT:
+                Document document = (Document) record.get("document");
+                try {
+                    handle.insertOne(document);
+                } catch (MongoWriteException ex) {
+                    if (!retry || ex.getError().getCode() != 11000) {
+                        throw ex;
+                    }
+                }
+                return document;
+            case WriteRecords.BULK:
+                return this.applyBulk(handle, WriteRecords.toBulk(record), retry);
+            default:
+                return applyOne(handle, WriteRecords.toWriteModel(record));
+        }
+    }
+
+    private static Object applyOne(MongoCollection<Document> handle, WriteModel<Document> write) {
+        if (write instanceof ReplaceOneModel) {
+            ReplaceOneModel<Document> r = (ReplaceOneModel<Document>) write;
+            return handle.replaceOne(r.getFilter(), r.getReplacement(), r.getOptions());
+        } else if (write instanceof UpdateOneModel) {
+            UpdateOneModel<Document> u = (UpdateOneModel<Document>) write;
+            return handle.updateOne(u.getFilter(), u.getUpdate(), u.getOptions());
+        } else if (write instanceof UpdateManyModel) {
+            UpdateManyModel<Document> u = (UpdateManyModel<Document>) write;
+            return handle.updateMany(u.getFilter(), u.getUpdate(), u.getOptions());
+        } else if (write instanceof DeleteOneModel) {
+            return handle.deleteOne(((DeleteOneModel<Document>) write).getFilter());
+        } else if (write instanceof DeleteManyModel) {
+            return handle.deleteMany(((DeleteManyModel<Document>) write).getFilter());
+        }
+        throw new IllegalArgumentException("Cannot apply " + write.getClass().getName());
+    }
+
+    /**
+     * Like {@link SimpleCollection#bulkWriteSync(Bulk)}, except that losing
+     * the server fails the whole bulk so it is sent again.
+     * @param retry whether the bulk may have been applied in part before, see {@link BulkExecution#replayed()}
+     */
+    private BulkReport applyBulk(MongoCollection<Document> handle, Bulk bulk, boolean retry) {
+        BulkExecution execution = new BulkExecution(bulk);
+        if (retry) {
+            execution.replayed();
+        }
+        while (execution.hasNext()) {
+            List<WriteModel<Document>> chunk = execution.next();
+            try {
+                execution.completed(handle.bulkWrite(chunk, execution.getOptions()));
+            } catch (MongoBulkWriteException ex) {
+                execution.failed(ex);
+            } catch (RuntimeException ex) {
+                if (isUnreachable(ex)) {
+                    throw ex;
+                }
+                execution.failed(ex);
+            }
+        }
+        return execution.report();
+    }
+
+    /**
+     * @param err
+     * @return whether the write failed because no server could take it, rather than the server rejecting it
+     */
+    static boolean isUnreachable(Throwable err) {
+        return err instanceof MongoSocketException
+                || err instanceof MongoTimeoutException
+                || err instanceof MongoNotPrimaryException
+                || err instanceof MongoNodeIsRecoveringException
+                || err instanceof MongoWaitQueueFullException;
+    }
+
+}
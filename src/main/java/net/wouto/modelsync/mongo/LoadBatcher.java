@@ -0,0 +1,186 @@
+package net.wouto.modelsync.mongo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import net.wouto.modelsync.mongo.future.FutureCallback;
+import net.wouto.modelsync.mongo.future.MongoFuture;
+import net.wouto.modelsync.mongo.query.QueryList;
+import org.bson.Document;
+
+/**
+ * Collects the asynchronous loads of a collection and reads them with one
+ * $in query on the index, see {@link SchedulerOptions#loadBatching(int, long, TimeUnit)}.
+ * <br />
+ * Loads wait in a batch per model class, which is read once it holds enough
+ * of them or the first has waited long enough. Every document read is put in
+ * the instances waiting for its index value, a load no document matches
+ * completes with null on its own.
+ * @author Wouter
+ */
+final class LoadBatcher {
+
+    private final SimpleScheduler scheduler;
+    private final SimpleCollection collection;
+    private final int size;
+    private final long delayMillis;
+    private final ConcurrentMap<Class<?>, Batch> batches;
+
+    LoadBatcher(SimpleScheduler scheduler, SimpleCollection collection) {
+        this.scheduler = scheduler;
+        this.collection = collection;
+        this.size = scheduler.getOptions().getLoadBatchSize();
+        this.delayMillis = scheduler.getOptions().getLoadBatchDelay(TimeUnit.MILLISECONDS);
+        this.batches = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * @param <T>
+     * @param instance
+     * @param key the index key of its class
+     * @param value its index value
+     * @return a future of the loaded instance, completing with null when no document matches
+     */
+    <T> MongoFuture<T> load(T instance, String key, Object value) {
+        Class<?> type = instance.getClass();
+        Batch batch = this.batches.get(type);
+        if (batch == null) {
+            batch = new Batch(key);
+            Batch current = this.batches.putIfAbsent(type, batch);
+            if (current != null) {
+                batch = current;
+            }
+        }
+        Pending<T> load = new Pending<>(instance, value);
+        this.add(batch, load);
+        return load.future;
+    }
+
+    private void add(final Batch batch, Pending<?> load) {
+        synchronized (batch) {
+            batch.loads.add(load);
+            if (batch.loads.size() >= this.size) {
+                this.send(batch);
+            } else if (batch.timer == null) {
+                batch.timer = this.scheduler.getTimer().schedule(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        synchronized (batch) {
+                            batch.timer = null;
+                            LoadBatcher.this.send(batch);
+                        }
+                    }
+
+                }, this.delayMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void send(Batch batch) {
+        if (batch.timer != null) {
+            batch.timer.cancel(false);
+            batch.timer = null;
+        }
+        if (batch.loads.isEmpty()) {
+            return;
+        }
+        final List<Pending<?>> loads = batch.loads;
+        final String key = batch.key;
+        batch.loads = new ArrayList<>();
+        // the same document may be loaded in more than one instance
+        Set<Object> values = new LinkedHashSet<>();
+        for (Pending<?> load : loads) {
+            values.add(load.value);
+        }
+        QueryList in = new QueryList(key, "$in");
+        for (Object value : values) {
+            in.add(value);
+        }
+        this.collection.findAsync(in.finish()).onComplete(new FutureCallback<List<Document>>() {
+
+            @Override
+            public void onComplete(List<Document> result, Exception err) {
+                if (err != null) {
+                    for (Pending<?> load : loads) {
+                        load.future.fail(err);
+                    }
+                    return;
+                }
+                Map<Object, Document> found = new HashMap<>();
+                for (Document doc : result) {
+                    Object value = normalize(doc.get(key));
+                    if (!found.containsKey(value)) {
+                        found.put(value, doc);
+                    }
+                }
+                for (Pending<?> load : loads) {
+                    LoadBatcher.this.complete(load, found.get(normalize(load.value)));
+                }
+            }
+
+        });
+    }
+
+    private <T> void complete(Pending<T> load, Document doc) {
+        if (doc == null) {
+            load.future.complete(null);
+            return;
+        }
+        try {
+            load.future.complete(this.collection.fromDBObject(load.instance, doc));
+        } catch (Exception ex) {
+            load.future.fail(ex);
+        }
+    }
+
+    /**
+     * Numbers come back from the server as the type they were stored as, an
+     * int index is matched with the long it was saved as and the other way around.
+     */
+    private static Object normalize(Object value) {
+        if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).longValue();
+        }
+        return value;
+    }
+
+    private static final class Batch {
+
+        private final String key;
+        private List<Pending<?>> loads;
+        private ScheduledFuture<?> timer;
+
+        private Batch(String key) {
+            this.key = key;
+            this.loads = new ArrayList<>();
+        }
+
+    }
+
+    /**
+     * A batched load and the future its caller waits on.
+     * @param <T>
+     */
+    private static final class Pending<T> {
+
+        private final T instance;
+        private final Object value;
+        private final MongoFuture<T> future;
+
+        private Pending(T instance, Object value) {
+            this.instance = instance;
+            this.value = value;
+            this.future = new MongoFuture<>();
+        }
+
+    }
+
+}
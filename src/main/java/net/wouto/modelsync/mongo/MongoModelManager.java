@@ -4,23 +4,65 @@ import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.result.DeleteResult;
 import com.mongodb.client.result.UpdateResult;
-import java.lang.reflect.Array;
 import java.lang.reflect.ParameterizedType;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import net.wouto.modelsync.mongo.bulk.Bulk;
+import net.wouto.modelsync.mongo.bulk.BulkItemResult;
+import net.wouto.modelsync.mongo.bulk.BulkReport;
+import net.wouto.modelsync.mongo.cache.CacheOptions;
+import net.wouto.modelsync.mongo.cache.CacheStats;
+import net.wouto.modelsync.mongo.cache.OffHeapCache;
+import net.wouto.modelsync.mongo.cache.SegmentedLruCache;
+import net.wouto.modelsync.mongo.cache.Weigher;
 import net.wouto.modelsync.mongo.callbacks.*;
+import net.wouto.modelsync.mongo.future.FutureCallback;
+import net.wouto.modelsync.mongo.future.MongoFuture;
+import net.wouto.modelsync.mongo.future.MongoFutures;
+import net.wouto.modelsync.mongo.future.Transformer;
 import net.wouto.modelsync.mongo.query.Query;
+import net.wouto.modelsync.mongo.sync.ModelMapper;
+import net.wouto.modelsync.mongo.sync.ModelMappers;
+import net.wouto.modelsync.mongo.sync.SaveResult;
 import net.wouto.modelsync.mongo.update.Update;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.reactivestreams.Publisher;
 
 public class MongoModelManager<T> {
 
     private Class<T> type;
     private SimpleCollection collection;
+    private volatile boolean autoProjection;
+    private volatile WriteBehind<T> writeBehind;
+    private volatile SegmentedLruCache<Object, T> nearCache;
+    private volatile OffHeapCache<Object> offHeapCache;
 
     public MongoModelManager(SimpleCollection collection) {
         this.collection = collection;
         this.type = (Class<T>) ((ParameterizedType) getClass().getGenericSuperclass()).getActualTypeArguments()[0];
+        this.autoProjection = true;
+    }
+
+    /**
+     * Typed reads only fetch the keys the model maps, nested models included,
+     * unless the query sets a projection of its own. Enabled by default.
+     * @param autoProjection false to always fetch whole documents
+     */
+    public void setAutoProjection(boolean autoProjection) {
+        this.autoProjection = autoProjection;
+    }
+
+    public boolean isAutoProjection() {
+        return this.autoProjection;
+    }
+
+    private Query project(Query q) {
+        if (!this.autoProjection || q.getProjection() != null) {
+            return q;
+        }
+        return q.projection(ModelMappers.forClass(this.type).getProjection());
     }
 
     public MongoCollection getHandle() {
@@ -31,72 +73,536 @@ public class MongoModelManager<T> {
         return this.collection;
     }
     
+    /**
+     * Holds saved objects back and writes the latest state of each one every
+     * interval, in one bulk write. Saving an object again before it is
+     * written costs nothing extra. Only {@link #save(Object)} and
+     * {@link #saveAsync(Object)} are held back, other writes are sent right
+     * away and may be overtaken by a held back save of the same document.
+     * <br />
+     * Dirty objects are kept by their index value. Once maxDirty of them are
+     * waiting, saving another one flushes and, with {@link SaturationPolicy#BLOCK}
+     * or {@link SaturationPolicy#CALLER_RUNS}, waits for room, with
+     * {@link SaturationPolicy#REJECT} it fails with a {@link java.util.concurrent.RejectedExecutionException}.
+     * {@link SimpleConnection#disconnect()} writes what is left.
+     * @param interval
+     * @param unit
+     * @param maxDirty how many objects may wait to be written
+     * @param policy
+     */
+    public synchronized void enableWriteBehind(long interval, TimeUnit unit, int maxDirty, SaturationPolicy policy) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("interval must be positive, got " + interval);
+        }
+        if (maxDirty < 1) {
+            throw new IllegalArgumentException("maxDirty must be at least 1, got " + maxDirty);
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("policy can not be null");
+        }
+        if (this.writeBehind != null) {
+            this.writeBehind.close();
+        }
+        this.writeBehind = new WriteBehind<>(this.collection, interval, unit, maxDirty, policy);
+    }
+
+    public void enableWriteBehind(long interval, TimeUnit unit, int maxDirty) {
+        this.enableWriteBehind(interval, unit, maxDirty, SaturationPolicy.BLOCK);
+    }
+
+    /**
+     * Saves are sent right away again.
+     * @return the flush writing the objects that were still held back
+     */
+    public synchronized MongoFuture<BulkReport> disableWriteBehind() {
+        WriteBehind<T> current = this.writeBehind;
+        this.writeBehind = null;
+        return current == null ? MongoFutures.<BulkReport>completed(null) : current.close();
+    }
+
+    public boolean isWriteBehind() {
+        return this.writeBehind != null;
+    }
+
+    /**
+     * Writes the objects held back by write-behind now.
+     * @return the report of the bulk write, null when write-behind is off
+     */
+    public MongoFuture<BulkReport> flush() {
+        WriteBehind<T> current = this.writeBehind;
+        return current == null ? MongoFutures.<BulkReport>completed(null) : current.flush();
+    }
+
+    /**
+     * @return the number of objects waiting to be written by write-behind
+     */
+    public int getDirtyCount() {
+        WriteBehind<T> current = this.writeBehind;
+        return current == null ? 0 : current.getDirtyCount();
+    }
+
+    /**
+     * Keeps models read by their index value in memory, so reading them again
+     * returns the same instance without asking the server. Only
+     * {@link #findOne(Query, LoadOneCallback)} and {@link #findOneAsync(Query)}
+     * with a query on nothing but the index value and {@link #loadAsync(Object)}
+     * use it.
+     * <br />
+     * Saving a model through this manager puts it in the cache, other writes
+     * through this manager remove the models they may change, every model
+     * when their filter is not the index value. Writes sent around this
+     * manager are not seen, use {@link CacheOptions#expireAfterWrite(long, TimeUnit)}
+     * or {@link #evict(Object)} for those.
+     * @param options
+     */
+    public void enableNearCache(CacheOptions options) {
+        this.enableNearCache(options, null);
+    }
+
+    /**
+     * @param options
+     * @param weigher the weight of a model for {@link CacheOptions#maximumWeight(long)}
+     * @see #enableNearCache(CacheOptions)
+     */
+    public synchronized void enableNearCache(CacheOptions options, Weigher<? super T> weigher) {
+        if (ModelMappers.forClass(this.type).getIndexKey() == null) {
+            throw new IllegalArgumentException(this.type.getName() + " has no index to cache it by");
+        }
+        this.nearCache = new SegmentedLruCache<>(options, weigher);
+    }
+
+    public synchronized void disableNearCache() {
+        this.nearCache = null;
+    }
+
+    public boolean isNearCache() {
+        return this.nearCache != null;
+    }
+
+    /**
+     * Keeps models read by their index value as BSON outside of the heap, for
+     * more models than the near cache can hold without slowing down the
+     * garbage collector. Used and kept up to date like the near cache, with
+     * which it can be combined to look in the near cache first. Every read
+     * from it decodes a new instance.
+     * @param capacity the number of bytes to use at most
+     * @param expireAfterWrite how long a model is used after it was put, 0 for no limit
+     * @param unit
+     * @see #enableNearCache(CacheOptions)
+     */
+    public synchronized void enableOffHeapCache(long capacity, long expireAfterWrite, TimeUnit unit) {
+        if (ModelMappers.forClass(this.type).getIndexKey() == null) {
+            throw new IllegalArgumentException(this.type.getName() + " has no index to cache it by");
+        }
+        this.offHeapCache = new OffHeapCache<>(capacity, expireAfterWrite, unit);
+    }
+
+    public void enableOffHeapCache(long capacity) {
+        this.enableOffHeapCache(capacity, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The memory of the cache is released once it is collected.
+     */
+    public synchronized void disableOffHeapCache() {
+        this.offHeapCache = null;
+    }
+
+    public boolean isOffHeapCache() {
+        return this.offHeapCache != null;
+    }
+
+    /**
+     * @return the statistics of the off-heap cache, null when it is off
+     */
+    public CacheStats getOffHeapCacheStats() {
+        OffHeapCache<Object> cache = this.offHeapCache;
+        return cache == null ? null : cache.getStats();
+    }
+
+    private boolean isCaching() {
+        return this.nearCache != null || this.offHeapCache != null;
+    }
+
+    private Codec<T> codec() {
+        return (Codec<T>) this.collection.getHandle().getCodecRegistry().get(this.type);
+    }
+
+    /**
+     * @return the statistics of the near cache, null when it is off
+     */
+    public CacheStats getNearCacheStats() {
+        SegmentedLruCache<Object, T> cache = this.nearCache;
+        return cache == null ? null : cache.getStats();
+    }
+
+    /**
+     * Removes a model from the near and off-heap cache, for documents changed elsewhere.
+     * @param indexValue
+     */
+    public void evict(Object indexValue) {
+        SegmentedLruCache<Object, T> cache = this.nearCache;
+        if (cache != null) {
+            cache.invalidate(indexValue);
+        }
+        OffHeapCache<Object> offHeap = this.offHeapCache;
+        if (offHeap != null) {
+            offHeap.invalidate(indexValue);
+        }
+    }
+
+    public void evictAll() {
+        SegmentedLruCache<Object, T> cache = this.nearCache;
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+        OffHeapCache<Object> offHeap = this.offHeapCache;
+        if (offHeap != null) {
+            offHeap.invalidateAll();
+        }
+    }
+
+    /**
+     * @param q
+     * @return the index value the query matches on, null when it matches on anything else
+     */
+    private Object indexValueOf(Query q) {
+        Document filter = q.getQuery();
+        if (filter.size() != 1) {
+            return null;
+        }
+        String key = ModelMappers.forClass(this.type).getIndexKey();
+        Object value = filter.get(key);
+        if (value == null || value instanceof Document || value instanceof Pattern) {
+            return null;
+        }
+        return value;
+    }
+
+    /**
+     * Removes the models a write with this filter may change from the caches.
+     */
+    private void invalidate(Query q) {
+        if (!this.isCaching()) {
+            return;
+        }
+        Object value = this.indexValueOf(q);
+        if (value == null) {
+            this.evictAll();
+        } else {
+            this.evict(value);
+        }
+    }
+
+    /**
+     * Invalidates once the write is done as well, a read in the meantime may
+     * have cached the document as it was before.
+     */
+    private <R> MongoFuture<R> invalidateAfter(final Query q, MongoFuture<R> write) {
+        if (!this.isCaching()) {
+            return write;
+        }
+        return write.onComplete(new FutureCallback<R>() {
+
+            @Override
+            public void onComplete(R result, Exception err) {
+                MongoModelManager.this.invalidate(q);
+            }
+
+        });
+    }
+
+    private void cache(T object) {
+        SegmentedLruCache<Object, T> cache = this.nearCache;
+        OffHeapCache<Object> offHeap = this.offHeapCache;
+        if (cache == null && offHeap == null) {
+            return;
+        }
+        Object value = ModelMappers.forClass(this.type).getIndexValue(object);
+        if (value == null) {
+            return;
+        }
+        if (cache != null) {
+            cache.put(value, object);
+        }
+        if (offHeap != null) {
+            offHeap.put(value, object, this.codec());
+        }
+    }
+
+    /**
+     * Caches the object once it is written, a failed write evicts it instead
+     * so the caches never hold a state the database did not store.
+     */
+    private <R> MongoFuture<R> cacheAfter(final T object, MongoFuture<R> write) {
+        if (!this.isCaching()) {
+            return write;
+        }
+        return write.onComplete(new FutureCallback<R>() {
+
+            @Override
+            public void onComplete(R result, Exception err) {
+                if (err == null) {
+                    MongoModelManager.this.cache(object);
+                } else {
+                    MongoModelManager.this.evictObject(object);
+                }
+            }
+
+        });
+    }
+
+    /**
+     * Caches the objects whose save was applied and evicts the others.
+     */
+    private void cacheApplied(T[] objects, BulkReport report) {
+        if (!this.isCaching()) {
+            return;
+        }
+        for (int i = 0; i < objects.length; i++) {
+            if (report.getResult(i).isApplied()) {
+                this.cache(objects[i]);
+            } else {
+                this.evictObject(objects[i]);
+            }
+        }
+    }
+
+    private void evictObject(T object) {
+        Object value = ModelMappers.forClass(this.type).getIndexValue(object);
+        if (value != null) {
+            this.evict(value);
+        }
+    }
+
+    /**
+     * An insert may fail on an existing document, so inserted models are not cached.
+     */
+    private void evictEach(T[] objects) {
+        if (!this.isCaching()) {
+            return;
+        }
+        for (T t : objects) {
+            this.evictObject(t);
+        }
+    }
+
     public void save(T object) {
-        this.collection.save(object);
+        WriteBehind<T> current = this.writeBehind;
+        if (this.isCaching()) {
+            // the caches are filled once the write is done, so it needs a future
+            this.saveAsync(object).onComplete(new FutureCallback<UpdateResult>() {
+
+                @Override
+                public void onComplete(UpdateResult result, Exception err) {
+                    if (err != null) {
+                        err.printStackTrace();
+                    }
+                }
+
+            });
+        } else if (current == null || !current.save(object, null)) {
+            this.collection.save(object);
+        }
+    }
+
+    public void save(T object, final SaveCallback callback) {
+        this.saveChangesAsync(object).onComplete(new FutureCallback<SaveResult>() {
+
+            @Override
+            public void onComplete(SaveResult result, Exception err) {
+                if (callback != null) {
+                    callback.onQueryDone(result, err);
+                }
+            }
+
+        });
     }
     
+    /**
+     * Saves the objects in chunks of {@link Bulk#DEFAULT_CHUNK_SIZE}, one round trip each.
+     * @param objects
+     */
     public void saveMany(T[] objects) {
+        this.saveManyAsync(objects).onComplete(new FutureCallback<BulkReport>() {
+
+            @Override
+            public void onComplete(BulkReport result, Exception err) {
+                if (err != null) {
+                    err.printStackTrace();
+                    return;
+                }
+                for (BulkItemResult failure : result.getErrors()) {
+                    System.out.println("Cannot save object: " + failure);
+                }
+            }
+
+        });
+    }
+
+    public BulkReport saveManySync(T[] objects) {
+        BulkReport report;
+        try {
+            report = this.collection.bulkWriteSync(this.saves(objects));
+        } catch (RuntimeException ex) {
+            this.evictEach(objects);
+            throw ex;
+        }
+        this.cacheApplied(objects, report);
+        return report;
+    }
+
+    public MongoFuture<BulkReport> saveManyAsync(final T[] objects) {
+        MongoFuture<BulkReport> write;
+        try {
+            write = this.collection.bulkWriteAsync(this.saves(objects));
+        } catch (IllegalArgumentException ex) {
+            return MongoFutures.failed(ex);
+        }
+        if (!this.isCaching()) {
+            return write;
+        }
+        return write.onComplete(new FutureCallback<BulkReport>() {
+
+            @Override
+            public void onComplete(BulkReport result, Exception err) {
+                if (err == null) {
+                    MongoModelManager.this.cacheApplied(objects, result);
+                } else {
+                    MongoModelManager.this.evictEach(objects);
+                }
+            }
+
+        });
+    }
+
+    /**
+     * Ordered, so an object listed twice ends up as its last copy.
+     */
+    private Bulk saves(T[] objects) {
+        Bulk bulk = new Bulk();
+        for (T t : objects) {
+            bulk.save(t);
+        }
+        return bulk;
+    }
+
+    public void insertMany(T[] objects, BulkCallback callback) {
+        this.evictEach(objects);
+        this.collection.bulkWrite(this.inserts(objects), callback);
+    }
+
+    public BulkReport insertManySync(T[] objects) {
+        this.evictEach(objects);
+        return this.collection.bulkWriteSync(this.inserts(objects));
+    }
+
+    public MongoFuture<BulkReport> insertManyAsync(T[] objects) {
+        this.evictEach(objects);
+        return this.collection.bulkWriteAsync(this.inserts(objects));
+    }
+
+    private Bulk inserts(T[] objects) {
+        Bulk bulk = new Bulk().ordered(false);
         for (T t : objects) {
-            this.save(t);
+            bulk.insertModel(t);
         }
+        return bulk;
+    }
+
+    public void bulkWrite(Bulk bulk, final BulkCallback callback) {
+        this.bulkWriteAsync(bulk).onComplete(new FutureCallback<BulkReport>() {
+
+            @Override
+            public void onComplete(BulkReport result, Exception err) {
+                if (callback != null) {
+                    callback.onQueryDone(result, err);
+                }
+            }
+
+        });
+    }
+
+    public BulkReport bulkWriteSync(Bulk bulk) {
+        this.evictAll();
+        try {
+            return this.collection.bulkWriteSync(bulk);
+        } finally {
+            this.evictAll();
+        }
+    }
+
+    public MongoFuture<BulkReport> bulkWriteAsync(Bulk bulk) {
+        this.evictAll();
+        return this.invalidateAfter(Query.empty, this.collection.bulkWriteAsync(bulk));
     }
 
     public void loadAll(LoadMultiCallback callback) {
-        this.collection.loadAll(type, callback);
+        this.collection.find(this.project(Query.empty), this.type, callback);
     }
 
     public T[] loadAllSync() throws Exception {
-        return (T[]) this.collection.loadAllSync(type);
+        return this.collection.findAllSync(this.project(Query.empty), this.type);
     }
 
-    public void remove(Query q, DeleteCallback callback) {
-        this.collection.remove(q, callback);
+    public void remove(Query q, final DeleteCallback callback) {
+        this.removeAsync(q).onComplete(new FutureCallback<DeleteResult>() {
+
+            @Override
+            public void onComplete(DeleteResult result, Exception err) {
+                if (callback != null) {
+                    callback.onQueryDone(result, err);
+                }
+            }
+
+        });
     }
 
     public void remove(Query q) {
-        this.collection.remove(q);
+        this.remove(q, null);
     }
 
     public DeleteResult removeSync(Query q) throws Exception {
-        return this.collection.removeSync(q);
+        this.invalidate(q);
+        try {
+            return this.collection.removeSync(q);
+        } finally {
+            this.invalidate(q);
+        }
     }
 
     public void findAndRemove(Query q, final LoadOneCallback callback) {
-        this.collection.findAndRemove(q, new ReadCallback() {
+        this.findAndRemoveAsync(q).onComplete(new FutureCallback<T>() {
 
             @Override
-            public void onQueryDone(Document result, Exception err) {
-                if (err != null) {
-                    callback.onQueryDone(null, err);
-                } else {
-                    callback.onQueryDone(MongoModelManager.this.collection.fromDBObject(MongoModelManager.this.type, result), err);
+            public void onComplete(T result, Exception err) {
+                if (callback != null) {
+                    callback.onQueryDone(result, err);
                 }
             }
-            
+
         });
     }
 
     public Document findOneAndRemoveSync(Query q) throws Exception {
-        return this.collection.findOneAndRemoveSync(q);
+        this.invalidate(q);
+        try {
+            return this.collection.findOneAndRemoveSync(q);
+        } finally {
+            this.invalidate(q);
+        }
     }
 
     public void find(Query q, final LoadMultiCallback callback) {
-        this.collection.find(q, new MultiReadCallback() {
+        this.collection.find(this.project(q), this.type, callback);
+    }
 
-            @Override
-            public void onQueryDone(Document[] result, Exception err) {
-                if (err != null) {
-                    callback.onQueryDone(null, err);
-                } else {
-                    List<T> objects = new ArrayList();
-                    for (Document r : result) {
-                        objects.add(MongoModelManager.this.collection.fromDBObject(type, r));
-                    }
-                    callback.onQueryDone((T[])objects.toArray((T[])Array.newInstance(type, objects.size())), err);
-                }
-            }
-            
-        });
+    public void findStream(Query q, StreamCallback<T> callback) {
+        this.collection.findStream(this.project(q), this.type, callback);
+    }
+
+    public Publisher<T> findPublisher(Query q) {
+        return this.collection.findPublisher(this.project(q), this.type);
     }
 
     public MongoCursor findSync(Query q) throws Exception {
@@ -104,17 +610,15 @@ public class MongoModelManager<T> {
     }
 
     public void findOne(Query q, final LoadOneCallback callback) {
-        this.collection.findOne(q, new ReadCallback() {
+        this.findOneAsync(q).onComplete(new FutureCallback<T>() {
 
             @Override
-            public void onQueryDone(Document result, Exception err) {
-                if (err != null) {
-                    callback.onQueryDone(null, err);
-                } else {
-                    callback.onQueryDone(MongoModelManager.this.collection.fromDBObject(type, result), err);
+            public void onComplete(T result, Exception err) {
+                if (callback != null) {
+                    callback.onQueryDone(result, err);
                 }
             }
-            
+
         });
     }
 
@@ -123,51 +627,244 @@ public class MongoModelManager<T> {
     }
 
     public void insert(Document obj, DocumentWriteCallback callback) {
+        this.evictDocument(obj);
         this.collection.insert(obj, callback);
     }
 
     public void insert(Document obj) {
+        this.evictDocument(obj);
         this.collection.insert(obj);
     }
 
     public void insertSync(Document obj) throws Exception {
+        this.evictDocument(obj);
         this.collection.insertSync(obj);
     }
 
-    public void updateOrInsert(String key, Object value, Update set, UpdateCallback callback) {
-        this.collection.updateOrInsert(key, value, set, callback);
+    private void evictDocument(Document obj) {
+        Object value = obj.get(ModelMappers.forClass(this.type).getIndexKey());
+        if (value != null) {
+            this.evict(value);
+        }
+    }
+
+    public void updateOrInsert(String key, Object value, Update set, final UpdateCallback callback) {
+        this.updateOrInsertAsync(key, value, set).onComplete(this.updated(callback));
     }
 
     public void updateOrInsert(String key, Object value, Update set) {
-        this.collection.updateOrInsert(key, value, set);
+        this.updateOrInsert(key, value, set, null);
     }
 
     public UpdateResult updateOrInsertSync(String key, Object value, Update set) throws Exception {
-        return this.collection.updateOrInsertSync(key, value, set);
+        Query q = Query.equals(key, value);
+        this.invalidate(q);
+        try {
+            return this.collection.updateOrInsertSync(key, value, set);
+        } finally {
+            this.invalidate(q);
+        }
     }
 
     public void update(Query q, Update u, boolean upsert, boolean multi, UpdateCallback callback) {
-        this.collection.update(q, u, upsert, multi, callback);
+        this.updateAsync(q, u, upsert, multi).onComplete(this.updated(callback));
     }
 
     public void update(Query q, Update u, boolean upsert, boolean multi) {
-        this.collection.update(q, u, upsert, multi);
+        this.update(q, u, upsert, multi, null);
     }
 
     public UpdateResult updateSync(Query q, Update u, boolean upsert, boolean multi) throws Exception {
-        return this.collection.updateSync(q, u, upsert, multi);
+        this.invalidate(q);
+        try {
+            return this.collection.updateSync(q, u, upsert, multi);
+        } finally {
+            this.invalidate(q);
+        }
     }
 
     public void update(Query q, Update u, UpdateCallback callback) {
-        this.collection.update(q, u, callback);
+        this.updateAsync(q, u).onComplete(this.updated(callback));
     }
 
     public void update(Query q, Update u) {
-        this.collection.update(q, u);
+        this.update(q, u, null);
     }
 
     public UpdateResult updateSync(Query q, Update u) throws Exception {
-        return this.collection.updateSync(q, u);
+        this.invalidate(q);
+        try {
+            return this.collection.updateSync(q, u);
+        } finally {
+            this.invalidate(q);
+        }
+    }
+
+    private FutureCallback<UpdateResult> updated(final UpdateCallback callback) {
+        return new FutureCallback<UpdateResult>() {
+
+            @Override
+            public void onComplete(UpdateResult result, Exception err) {
+                if (callback != null) {
+                    callback.onQueryDone(result, err);
+                }
+            }
+
+        };
+    }
+
+    /**
+     * @param object
+     * @return with write-behind a future completing once the object is written
+     */
+    public MongoFuture<UpdateResult> saveAsync(T object) {
+        WriteBehind<T> current = this.writeBehind;
+        if (current != null) {
+            MongoFuture<UpdateResult> result = new MongoFuture<>();
+            if (current.save(object, result)) {
+                return this.cacheAfter(object, result);
+            }
+        }
+        return this.cacheAfter(object, this.collection.saveAsync(object));
+    }
+
+    public MongoFuture<SaveResult> saveChangesAsync(T object) {
+        return this.cacheAfter(object, this.collection.saveChangesAsync(object));
+    }
+
+    /**
+     * With the near cache a cached model of the same index value is copied
+     * into the object instead of reading it.
+     * @param object
+     * @return
+     */
+    public MongoFuture<T> loadAsync(final T object) {
+        final SegmentedLruCache<Object, T> cache = this.nearCache;
+        final OffHeapCache<Object> offHeap = this.offHeapCache;
+        final ModelMapper<T> mapper = ModelMappers.forClass(this.type);
+        final Object value = cache == null && offHeap == null ? null : mapper.getIndexValue(object);
+        if (value == null) {
+            return this.collection.loadAsync(object);
+        }
+        T cached = cache == null ? null : cache.get(value);
+        if (cached == object) {
+            return MongoFutures.completed(object);
+        } else if (cached != null) {
+            return MongoFutures.completed(this.collection.fromDBObject(object, mapper.encode(cached)));
+        }
+        RawBsonDocument stored = offHeap == null ? null : offHeap.get(value);
+        if (stored != null) {
+            T loaded = this.collection.fromDBObject(object, stored.decode((Codec<Document>) this.collection.getHandle().getCodecRegistry().get(Document.class)));
+            if (cache != null) {
+                cache.putIfAbsent(value, loaded);
+            }
+            return MongoFutures.completed(loaded);
+        }
+        return this.collection.loadAsync(object).map(new Transformer<T, T>() {
+
+            @Override
+            public T apply(T loaded) {
+                if (loaded != null) {
+                    if (offHeap != null) {
+                        offHeap.put(value, loaded, MongoModelManager.this.codec());
+                    }
+                    if (cache != null) {
+                        cache.putIfAbsent(value, loaded);
+                    }
+                }
+                return loaded;
+            }
+
+        });
+    }
+
+    public MongoFuture<T[]> loadAllAsync() {
+        return this.collection.findAsync(this.project(Query.empty), this.type);
+    }
+
+    public MongoFuture<DeleteResult> removeAsync(Query q) {
+        this.invalidate(q);
+        return this.invalidateAfter(q, this.collection.removeAsync(q));
+    }
+
+    public MongoFuture<T> findAndRemoveAsync(Query q) {
+        this.invalidate(q);
+        return this.invalidateAfter(q, this.collection.findAndRemoveAsync(this.project(q), this.type));
+    }
+
+    public MongoFuture<T[]> findAsync(Query q) {
+        return this.collection.findAsync(this.project(q), this.type);
+    }
+
+    /**
+     * With the near or off-heap cache a query on nothing but the index value
+     * returns the cached model when there is one.
+     * @param q
+     * @return
+     */
+    public MongoFuture<T> findOneAsync(Query q) {
+        final SegmentedLruCache<Object, T> cache = this.nearCache;
+        final OffHeapCache<Object> offHeap = this.offHeapCache;
+        final Object value = (cache == null && offHeap == null) || q.getProjection() != null ? null : this.indexValueOf(q);
+        if (value == null) {
+            return this.collection.findOneAsync(this.project(q), this.type);
+        }
+        T cached = cache == null ? null : cache.get(value);
+        if (cached != null) {
+            return MongoFutures.completed(cached);
+        }
+        T stored = offHeap == null ? null : offHeap.get(value, this.codec());
+        if (stored != null) {
+            return MongoFutures.completed(cache == null ? stored : keep(cache, value, stored));
+        }
+        return this.collection.findOneAsync(this.project(q), this.type).map(new Transformer<T, T>() {
+
+            @Override
+            public T apply(T loaded) {
+                if (loaded == null) {
+                    return null;
+                }
+                if (offHeap != null) {
+                    offHeap.put(value, loaded, MongoModelManager.this.codec());
+                }
+                return cache == null ? loaded : keep(cache, value, loaded);
+            }
+
+        });
+    }
+
+    /**
+     * @return the model cached already, another read may have cached it first, or the given one
+     */
+    private static <T> T keep(SegmentedLruCache<Object, T> cache, Object value, T loaded) {
+        T existing = cache.putIfAbsent(value, loaded);
+        return existing == null ? loaded : existing;
+    }
+
+    public MongoFuture<Document> findAndUpdateAsync(Query q, Update u) {
+        this.invalidate(q);
+        return this.invalidateAfter(q, this.collection.findAndUpdateAsync(q, u));
+    }
+
+    public MongoFuture<Document> insertAsync(Document obj) {
+        this.evictDocument(obj);
+        return this.collection.insertAsync(obj);
+    }
+
+    public MongoFuture<UpdateResult> updateOrInsertAsync(String key, Object value, Update set) {
+        Query q = Query.equals(key, value);
+        this.invalidate(q);
+        return this.invalidateAfter(q, this.collection.updateOrInsertAsync(key, value, set));
+    }
+
+    public MongoFuture<UpdateResult> updateAsync(Query q, Update u, boolean upsert, boolean multi) {
+        this.invalidate(q);
+        return this.invalidateAfter(q, this.collection.updateAsync(q, u, upsert, multi));
+    }
+
+    public MongoFuture<UpdateResult> updateAsync(Query q, Update u) {
+        this.invalidate(q);
+        return this.invalidateAfter(q, this.collection.updateAsync(q, u));
     }
 
 }
@@ -0,0 +1,29 @@
+package net.wouto.modelsync.mongo;
+
+/**
+ * An asynchronous operation handed to the {@link SimpleScheduler}.
+ * <br />
+ * The result or failure of {@link #execute()} is passed to {@link #done(Object, Exception)},
+ * which is also how an operation the scheduler refuses to queue reports back to its caller.
+ * @author Wouter
+ * @param <R> the result type
+ */
+abstract class MongoOperation<R> implements Runnable {
+
+    abstract R execute() throws Exception;
+
+    abstract void done(R result, Exception err);
+
+    @Override
+    public final void run() {
+        R result;
+        try {
+            result = this.execute();
+        } catch (Exception ex) {
+            this.done(null, ex);
+            return;
+        }
+        this.done(result, null);
+    }
+
+}
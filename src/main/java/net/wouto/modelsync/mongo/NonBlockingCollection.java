@@ -0,0 +1,487 @@
+package net.wouto.modelsync.mongo;
+
+import com.mongodb.async.AsyncBatchCursor;
+import com.mongodb.async.SingleResultCallback;
+import com.mongodb.async.client.FindIterable;
+import com.mongodb.async.client.MongoCollection;
+import com.mongodb.bulk.BulkWriteResult;
+import static com.mongodb.client.model.Filters.eq;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import net.wouto.modelsync.mongo.bulk.Bulk;
+import net.wouto.modelsync.mongo.bulk.BulkExecution;
+import net.wouto.modelsync.mongo.bulk.BulkReport;
+import net.wouto.modelsync.mongo.codec.ModelCodecProvider;
+import net.wouto.modelsync.mongo.future.FutureCallback;
+import net.wouto.modelsync.mongo.future.MongoFuture;
+import net.wouto.modelsync.mongo.future.Transformer;
+import net.wouto.modelsync.mongo.query.Query;
+import net.wouto.modelsync.mongo.stream.BatchSource;
+import net.wouto.modelsync.mongo.update.Update;
+import org.bson.Document;
+
+/**
+ * A {@link SimpleCollection} running its asynchronous operations on the
+ * asynchronous driver instead of scheduler threads.
+ * <br />
+ * Operations are sent right away and complete on the driver's threads, so
+ * callbacks and futures are completed there as well. Keep callbacks short
+ * or pass an executor to {@link MongoFuture#onComplete(net.wouto.modelsync.mongo.future.FutureCallback, java.util.concurrent.Executor)}.
+ * The *Sync methods and {@link #getHandle()} use the synchronous driver.
+ * @author Wouter
+ */
+public class NonBlockingCollection extends SimpleCollection {
+
+    private final MongoCollection<Document> async;
+    private final NonBlockingDriver driver;
+    private final ConcurrentMap<Class<?>, MongoCollection<?>> typedAsyncCollections;
+
+    NonBlockingCollection(SimpleScheduler scheduler, com.mongodb.client.MongoCollection<Document> blocking, MongoCollection<Document> async, NonBlockingDriver driver) {
+        super(scheduler, blocking);
+        this.async = async.withCodecRegistry(ModelCodecProvider.withModels(async.getCodecRegistry()));
+        this.driver = driver;
+        this.typedAsyncCollections = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public MongoFuture<UpdateResult> updateAsync(final Query q, final Update u) {
+        if (this.isJournaled()) {
+            return super.updateAsync(q, u);
+        }
+        return this.write(q.getQuery(), new Request<UpdateResult>() {
+
+            @Override
+            void send(SingleResultCallback<UpdateResult> callback) {
+                NonBlockingCollection.this.async.updateOne((Document) q.getQuery(), (Document) u.getUpdateQuery(), callback);
+            }
+
+        });
+    }
+
+    @Override
+    public MongoFuture<UpdateResult> updateAsync(final Query q, final Update u, final boolean upsert, final boolean multi) {
+        if (this.isJournaled()) {
+            return super.updateAsync(q, u, upsert, multi);
+        }
+        return this.write(q.getQuery(), new Request<UpdateResult>() {
+
+            @Override
+            void send(SingleResultCallback<UpdateResult> callback) {
+                UpdateOptions options = new UpdateOptions();
+                options.upsert(upsert);
+                if (multi) {
+                    NonBlockingCollection.this.async.updateMany((Document) q.getQuery(), (Document) u.getUpdateQuery(), options, callback);
+                } else {
+                    NonBlockingCollection.this.async.updateOne((Document) q.getQuery(), (Document) u.getUpdateQuery(), options, callback);
+                }
+            }
+
+        });
+    }
+
+    @Override
+    public MongoFuture<UpdateResult> updateOrInsertAsync(final String key, final Object value, final Update set) {
+        if (this.isJournaled()) {
+            return super.updateOrInsertAsync(key, value, set);
+        }
+        return this.write(new Document(key, value), new Request<UpdateResult>() {
+
+            @Override
+            void send(SingleResultCallback<UpdateResult> callback) {
+                UpdateOptions options = new UpdateOptions();
+                options.upsert(true);
+                NonBlockingCollection.this.async.replaceOne(eq(key, value), (Document) set.getUpdateQuery(), options, callback);
+            }
+
+        });
+    }
+
+    @Override
+    public MongoFuture<Document> insertAsync(final Document obj) {
+        if (this.isJournaled()) {
+            return super.insertAsync(obj);
+        }
+        return this.write(null, new Request<Document>() {
+
+            @Override
+            void send(final SingleResultCallback<Document> callback) {
+                NonBlockingCollection.this.async.insertOne(obj, new SingleResultCallback<Void>() {
+
+                    @Override
+                    public void onResult(Void result, Throwable t) {
+                        callback.onResult(t == null ? obj : null, t);
+                    }
+
+                });
+            }
+
+        });
+    }
+
+    @Override
+    MongoFuture<Document> sendFindOne(final Query q) {
+        return this.read(new Request<Document>() {
+
+            @Override
+            void send(SingleResultCallback<Document> callback) {
+                NonBlockingCollection.this.find(NonBlockingCollection.this.async, q).first(callback);
+            }
+
+        });
+    }
+
+    @Override
+    <T> MongoFuture<T> sendFindOne(final Query q, final Class<T> type) {
+        return this.read(new Request<T>() {
+
+            @Override
+            void send(SingleResultCallback<T> callback) {
+                NonBlockingCollection.this.find(NonBlockingCollection.this.getAsyncHandle(type), q).first(callback);
+            }
+
+        });
+    }
+
+    @Override
+    MongoFuture<List<Document>> sendFind(final Query q) {
+        return this.read(new Request<List<Document>>() {
+
+            @Override
+            void send(SingleResultCallback<List<Document>> callback) {
+                NonBlockingCollection.this.find(NonBlockingCollection.this.async, q).into(new ArrayList<Document>(), callback);
+            }
+
+        });
+    }
+
+    @Override
+    <T> MongoFuture<T[]> sendFind(final Query q, final Class<T> type) {
+        return this.read(new Request<List<T>>() {
+
+            @Override
+            void send(SingleResultCallback<List<T>> callback) {
+                NonBlockingCollection.this.find(NonBlockingCollection.this.getAsyncHandle(type), q).into(new ArrayList<T>(), callback);
+            }
+
+        }).map(new Transformer<List<T>, T[]>() {
+
+            @Override
+            public T[] apply(List<T> data) {
+                return data.toArray((T[]) Array.newInstance(type, data.size()));
+            }
+
+        });
+    }
+
+    @Override
+    public MongoFuture<Document> findAndRemoveAsync(final Query q) {
+        return this.write(q.getQuery(), new Request<Document>() {
+
+            @Override
+            void send(SingleResultCallback<Document> callback) {
+                NonBlockingCollection.this.async.findOneAndDelete((Document) q.getQuery(), deleteOptions(q), callback);
+            }
+
+        });
+    }
+
+    @Override
+    public <T> MongoFuture<T> findAndRemoveAsync(final Query q, final Class<T> type) {
+        return this.write(q.getQuery(), new Request<T>() {
+
+            @Override
+            void send(SingleResultCallback<T> callback) {
+                NonBlockingCollection.this.getAsyncHandle(type).findOneAndDelete((Document) q.getQuery(), deleteOptions(q), callback);
+            }
+
+        });
+    }
+
+    @Override
+    public MongoFuture<DeleteResult> removeAsync(final Query q) {
+        if (this.isJournaled()) {
+            return super.removeAsync(q);
+        }
+        return this.write(q.getQuery(), new Request<DeleteResult>() {
+
+            @Override
+            void send(SingleResultCallback<DeleteResult> callback) {
+                NonBlockingCollection.this.async.deleteMany((Document) q.getQuery(), callback);
+            }
+
+        });
+    }
+
+    @Override
+    public <T> MongoFuture<T[]> loadAllAsync(Class<T> c) {
+        return this.findAsync(Query.empty, c);
+    }
+
+    @Override
+    public MongoFuture<Document> findAndUpdateAsync(final Query q, final Update u) {
+        return this.write(q.getQuery(), new Request<Document>() {
+
+            @Override
+            void send(SingleResultCallback<Document> callback) {
+                NonBlockingCollection.this.async.findOneAndUpdate((Document) q.getQuery(), (Document) u.getUpdateQuery(), updateOptions(q), callback);
+            }
+
+        });
+    }
+
+    @Override
+    <T> BatchSource<T> openSource(Query q, Class<T> type) {
+        return new AsyncCursorSource<>(this.find(this.getAsyncHandle(type), q).batchSize(q.getBatchSize() > 0 ? q.getBatchSize() : STREAM_BATCH_SIZE));
+    }
+
+    @Override
+    public MongoFuture<BulkReport> bulkWriteAsync(Bulk bulk) {
+        if (this.isJournaled()) {
+            return super.bulkWriteAsync(bulk);
+        }
+        MongoFuture<BulkReport> future = new MongoFuture<>();
+        MongoFuture<BulkReport> done = new MongoFuture<>();
+        this.written(done);
+        this.send(new BulkExecution(bulk), future, done);
+        return future;
+    }
+
+    /**
+     * Sends the next chunk once the previous one is acknowledged, without
+     * holding a thread in between. No more chunks are sent once the future of
+     * the caller timed out or was cancelled.
+     * @param done completes once the last chunk sent is acknowledged
+     */
+    private void send(final BulkExecution execution, final MongoFuture<BulkReport> future, final MongoFuture<BulkReport> done) {
+        if (future.isDone()) {
+            done.complete(execution.report());
+            return;
+        }
+        if (!execution.hasNext()) {
+            BulkReport report = execution.report();
+            done.complete(report);
+            future.complete(report);
+            return;
+        }
+        try {
+            this.async.bulkWrite(execution.next(), execution.getOptions(), new SingleResultCallback<BulkWriteResult>() {
+
+                @Override
+                public void onResult(BulkWriteResult result, Throwable t) {
+                    if (t == null) {
+                        execution.completed(result);
+                    } else {
+                        execution.failed(asException(t));
+                    }
+                    NonBlockingCollection.this.send(execution, future, done);
+                }
+
+            });
+        } catch (RuntimeException ex) {
+            execution.failed(ex);
+            this.send(execution, future, done);
+        }
+    }
+
+    /**
+     * @return the asynchronous driver's collection
+     */
+    public MongoCollection<Document> getAsyncHandle() {
+        return this.async;
+    }
+
+    /**
+     * @param <T>
+     * @param type a {@link net.wouto.modelsync.mongo.annotations.DBSync} model
+     * @return the asynchronous driver's collection decoding documents straight into the given model
+     */
+    public <T> MongoCollection<T> getAsyncHandle(Class<T> type) {
+        MongoCollection<?> typed = this.typedAsyncCollections.get(type);
+        if (typed == null) {
+            typed = this.async.withDocumentClass(type);
+            this.typedAsyncCollections.put(type, typed);
+        }
+        return (MongoCollection<T>) typed;
+    }
+
+    private <T> FindIterable<T> find(MongoCollection<T> handle, Query q) {
+        FindIterable<T> find = handle.find((Document) q.getQuery());
+        if (q.getSkip() > 0) {
+            find.skip(q.getSkip());
+        }
+        if (q.getLimit() > 0) {
+            find.limit(q.getLimit());
+        }
+        if (q.getBatchSize() > 0) {
+            find.batchSize(q.getBatchSize());
+        }
+        if (q.getMaxTime(TimeUnit.MILLISECONDS) > 0) {
+            find.maxTime(q.getMaxTime(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+        }
+        if (q.getSort() != null) {
+            find.sort(q.getSort());
+        }
+        if (q.getProjection() != null) {
+            find.projection(q.getProjection());
+        }
+        if (q.getModifiers() != null) {
+            find.modifiers(q.getModifiers());
+        }
+        return find;
+    }
+
+    private <R> MongoFuture<R> read(Request<R> request) {
+        MongoFuture<R> future = new MongoFuture<>();
+        request.submit(future);
+        return future;
+    }
+
+    /**
+     * The caller gets a future of its own, as a timeout or cancel completes it
+     * before the driver answered. The lane and {@link #written(MongoFuture)}
+     * wait for the driver.
+     */
+    private <R> MongoFuture<R> write(Object key, final Request<R> request) {
+        final MongoFuture<R> future = new MongoFuture<>();
+        final MongoFuture<R> sent = new MongoFuture<>();
+        sent.onComplete(new FutureCallback<R>() {
+
+            @Override
+            public void onComplete(R result, Exception err) {
+                if (err != null) {
+                    future.fail(err);
+                } else {
+                    future.complete(result);
+                }
+            }
+
+        });
+        this.written(sent);
+        this.driver.ordered(key, sent, new Runnable() {
+
+            @Override
+            public void run() {
+                if (future.isDone()) {
+                    // timed out or cancelled while waiting for its lane, nothing is sent
+                    sent.complete(null);
+                    return;
+                }
+                request.submit(sent);
+            }
+
+        });
+        return future;
+    }
+
+    /**
+     * An operation on the asynchronous driver.
+     * @param <R> the result type
+     */
+    private abstract static class Request<R> {
+
+        abstract void send(SingleResultCallback<R> callback);
+
+        /**
+         * Sends the operation unless its future timed out or was cancelled already.
+         */
+        final void submit(final MongoFuture<R> future) {
+            if (future.isDone()) {
+                return;
+            }
+            try {
+                this.send(new SingleResultCallback<R>() {
+
+                    @Override
+                    public void onResult(R result, Throwable t) {
+                        if (t == null) {
+                            future.complete(result);
+                        } else {
+                            future.fail(asException(t));
+                        }
+                    }
+
+                });
+            } catch (Exception ex) {
+                future.fail(ex);
+            }
+        }
+
+    }
+
+    /**
+     * Reads batches from an asynchronous driver cursor without holding a thread.
+     * @param <T>
+     */
+    private static final class AsyncCursorSource<T> implements BatchSource<T> {
+
+        private final FindIterable<T> find;
+        private AsyncBatchCursor<T> cursor;
+        private boolean closed;
+
+        private AsyncCursorSource(FindIterable<T> find) {
+            this.find = find;
+        }
+
+        @Override
+        public void next(final FutureCallback<List<T>> callback) {
+            final SingleResultCallback<List<T>> batch = new SingleResultCallback<List<T>>() {
+
+                @Override
+                public void onResult(List<T> result, Throwable t) {
+                    callback.onComplete(result, t == null ? null : asException(t));
+                }
+
+            };
+            AsyncBatchCursor<T> c;
+            synchronized (this) {
+                c = this.cursor;
+            }
+            if (c != null) {
+                c.next(batch);
+                return;
+            }
+            this.find.batchCursor(new SingleResultCallback<AsyncBatchCursor<T>>() {
+
+                @Override
+                public void onResult(AsyncBatchCursor<T> result, Throwable t) {
+                    if (t != null) {
+                        callback.onComplete(null, asException(t));
+                        return;
+                    }
+                    synchronized (AsyncCursorSource.this) {
+                        AsyncCursorSource.this.cursor = result;
+                        if (AsyncCursorSource.this.closed) {
+                            result.close();
+                            callback.onComplete(null, null);
+                            return;
+                        }
+                    }
+                    result.next(batch);
+                }
+
+            });
+        }
+
+        @Override
+        public synchronized void close() {
+            this.closed = true;
+            if (this.cursor != null) {
+                this.cursor.close();
+            }
+        }
+
+    }
+
+    private static Exception asException(Throwable t) {
+        return t instanceof Exception ? (Exception) t : new ExecutionException(t);
+    }
+
+}
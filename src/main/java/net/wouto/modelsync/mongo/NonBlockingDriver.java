@@ -0,0 +1,130 @@
+package net.wouto.modelsync.mongo;
+
+import com.mongodb.ConnectionString;
+import com.mongodb.async.client.MongoClient;
+import com.mongodb.async.client.MongoClientSettings;
+import com.mongodb.async.client.MongoClients;
+import com.mongodb.async.client.MongoCollection;
+import com.mongodb.connection.ClusterSettings;
+import com.mongodb.connection.ConnectionPoolSettings;
+import com.mongodb.connection.ServerSettings;
+import com.mongodb.connection.SocketSettings;
+import com.mongodb.connection.SslSettings;
+import net.wouto.modelsync.mongo.future.FutureCallback;
+import net.wouto.modelsync.mongo.future.MongoFuture;
+import net.wouto.modelsync.mongo.memory.InMemoryAsyncCollection;
+import net.wouto.modelsync.mongo.memory.InMemoryMongo;
+import org.bson.Document;
+
+/**
+ * The asynchronous driver behind a {@link SimpleConnection} using {@link Engine#NON_BLOCKING}.
+ * <br />
+ * Kept apart from the connection so the asynchronous driver, which is an
+ * optional dependency, is only loaded when that engine is chosen.
+ * Writes are ordered per document the same way the scheduler's write lanes
+ * order them, by chaining each keyed write to the previous one on its lane.
+ * @author Wouter
+ */
+final class NonBlockingDriver {
+
+    private final MongoClient client;
+    private final InMemoryMongo memory;
+    private final Object[] locks;
+    private final MongoFuture<?>[] tails;
+
+    private NonBlockingDriver(MongoClient client, InMemoryMongo memory, SchedulerOptions options) {
+        this.client = client;
+        this.memory = memory;
+        this.locks = new Object[options.getWriteThreads() * 4];
+        this.tails = new MongoFuture<?>[this.locks.length];
+        for (int i = 0; i < this.locks.length; i++) {
+            this.locks[i] = new Object();
+        }
+    }
+
+    /**
+     * @param uri
+     * @param options the queue sizes bound how many operations may wait for a connection
+     */
+    static NonBlockingDriver connect(String uri, SchedulerOptions options) {
+        ConnectionString connectionString = new ConnectionString(uri);
+        MongoClientSettings settings = MongoClientSettings.builder()
+                .clusterSettings(ClusterSettings.builder().applyConnectionString(connectionString).build())
+                .connectionPoolSettings(ConnectionPoolSettings.builder().applyConnectionString(connectionString)
+                        .maxWaitQueueSize(options.getReadQueueSize() + options.getWriteQueueSize()).build())
+                .serverSettings(ServerSettings.builder().build())
+                .socketSettings(SocketSettings.builder().applyConnectionString(connectionString).build())
+                .heartbeatSocketSettings(SocketSettings.builder().applyConnectionString(connectionString).build())
+                .sslSettings(SslSettings.builder().applyConnectionString(connectionString).build())
+                .credentialList(connectionString.getCredentialList())
+                .build();
+        return new NonBlockingDriver(MongoClients.create(settings), null, options);
+    }
+
+    static NonBlockingDriver inMemory(InMemoryMongo memory, SchedulerOptions options) {
+        return new NonBlockingDriver(null, memory, options);
+    }
+
+    SimpleCollection getCollection(SimpleScheduler scheduler, com.mongodb.client.MongoCollection<Document> blocking, String db, String collection) {
+        MongoCollection<Document> async;
+        if (this.memory != null) {
+            async = InMemoryAsyncCollection.open(this.memory, db, collection);
+        } else {
+            async = this.client.getDatabase(db).getCollection(collection);
+        }
+        return new NonBlockingCollection(scheduler, blocking, async, this);
+    }
+
+    /**
+     * Sends a write once every earlier write with an equal key has completed.
+     * @param key the document the write targets, null when it does not need ordering
+     * @param future completes once the driver answered the write, never early
+     * by a timeout or cancel as the next write on the lane waits for it
+     * @param send sends the write
+     */
+    void ordered(Object key, final MongoFuture<?> future, final Runnable send) {
+        if (key == null) {
+            send.run();
+            return;
+        }
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        final int lane = (h & Integer.MAX_VALUE) % this.locks.length;
+        MongoFuture<?> previous;
+        synchronized (this.locks[lane]) {
+            previous = this.tails[lane];
+            this.tails[lane] = future;
+        }
+        future.onComplete(new FutureCallback<Object>() {
+
+            @Override
+            public void onComplete(Object result, Exception err) {
+                synchronized (NonBlockingDriver.this.locks[lane]) {
+                    if (NonBlockingDriver.this.tails[lane] == future) {
+                        NonBlockingDriver.this.tails[lane] = null;
+                    }
+                }
+            }
+
+        });
+        if (previous == null) {
+            send.run();
+            return;
+        }
+        previous.onComplete(new FutureCallback<Object>() {
+
+            @Override
+            public void onComplete(Object result, Exception err) {
+                send.run();
+            }
+
+        });
+    }
+
+    void close() {
+        if (this.client != null) {
+            this.client.close();
+        }
+    }
+
+}
@@ -0,0 +1,194 @@
+package net.wouto.modelsync.mongo;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import net.wouto.modelsync.mongo.cache.CacheOptions;
+import net.wouto.modelsync.mongo.cache.CacheStats;
+import net.wouto.modelsync.mongo.cache.SegmentedLruCache;
+import net.wouto.modelsync.mongo.cache.Weigher;
+import net.wouto.modelsync.mongo.query.Query;
+import net.wouto.modelsync.mongo.query.QueryKey;
+import net.wouto.modelsync.mongo.sync.ModelSnapshots;
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+
+/**
+ * Keeps the results of queries of a collection, see
+ * {@link SimpleCollection#enableQueryCache(CacheOptions)}.
+ * <br />
+ * Results are weighed by their size in BSON and kept for the time of their
+ * query, or the time of the options when the query does not set one. Any
+ * write through the collection drops every result, a read that was in flight
+ * during a write is not kept as it may not have seen it.
+ * <br />
+ * Typed results are kept per model type as the BSON their codec writes, and
+ * read back through the same codec, so a hit decodes like a typed find does.
+ * @author Wouter
+ */
+final class QueryCache {
+
+    private final SegmentedLruCache<Object, Result> cache;
+    private final Codec<Document> codec;
+    private final long defaultMillis;
+    private final AtomicLong writes;
+
+    QueryCache(CacheOptions options, Codec<Document> codec) {
+        this.cache = new SegmentedLruCache<>(options, new Weigher<Result>() {
+
+            @Override
+            public int weigh(Result result) {
+                return result.bytes;
+            }
+
+        });
+        this.codec = codec;
+        this.defaultMillis = options.getExpireAfterWrite(TimeUnit.MILLISECONDS);
+        this.writes = new AtomicLong();
+    }
+
+    /**
+     * @return the number of writes so far, to pass to {@link #put(QueryKey, long, List, Query)}
+     */
+    long generation() {
+        return this.writes.get();
+    }
+
+    /**
+     * @param key
+     * @return a copy of the cached result, null when it is not cached
+     */
+    List<Document> get(QueryKey key) {
+        Result result = this.cache.get(key);
+        return result == null ? null : copy((List<Document>) result.documents);
+    }
+
+    /**
+     * @param <T>
+     * @param key
+     * @param type
+     * @param codec the codec of the type, as used by typed finds
+     * @return new models decoded from the cached result, null when it is not cached
+     */
+    <T> T[] get(QueryKey key, Class<T> type, Codec<T> codec) {
+        Result result = this.cache.get(Arrays.asList(key, type));
+        if (result == null) {
+            return null;
+        }
+        List<RawBsonDocument> documents = (List<RawBsonDocument>) result.documents;
+        T[] models = (T[]) Array.newInstance(type, documents.size());
+        for (int i = 0; i < models.length; i++) {
+            models[i] = documents.get(i).decode(codec);
+        }
+        return models;
+    }
+
+    /**
+     * Keeps a copy of the result, unless a write finished since the read started.
+     * @param key
+     * @param generation the {@link #generation()} from before the read started
+     * @param documents
+     * @param q the query, which may set how long its result is kept
+     */
+    void put(QueryKey key, long generation, List<Document> documents, Query q) {
+        if (this.writes.get() != generation) {
+            return;
+        }
+        this.put(key, generation, new Result(copy(documents), this.measure(documents)), q);
+    }
+
+    /**
+     * Keeps the models as BSON, unless a write finished since the read started.
+     * @param <T>
+     * @param key
+     * @param type
+     * @param codec the codec of the type, as used by typed finds
+     * @param generation the {@link #generation()} from before the read started
+     * @param models
+     * @param q the query, which may set how long its result is kept
+     */
+    <T> void put(QueryKey key, Class<T> type, Codec<T> codec, long generation, T[] models, Query q) {
+        if (this.writes.get() != generation) {
+            return;
+        }
+        List<RawBsonDocument> documents = new ArrayList<>(models.length);
+        long bytes = 0;
+        for (T model : models) {
+            byte[] encoded = encode(codec, model);
+            documents.add(new RawBsonDocument(encoded));
+            bytes += encoded.length;
+        }
+        this.put(Arrays.asList(key, type), generation, new Result(documents, (int) Math.min(Integer.MAX_VALUE, bytes)), q);
+    }
+
+    private void put(Object key, long generation, Result result, Query q) {
+        long millis = q.getCacheFor(TimeUnit.MILLISECONDS);
+        this.cache.put(key, result, millis < 0 ? this.defaultMillis : millis, TimeUnit.MILLISECONDS);
+        if (this.writes.get() != generation) {
+            // a write finished while it was put, and may have missed it when dropping the others
+            this.cache.invalidate(key);
+        }
+    }
+
+    /**
+     * Called once a write through the collection finished.
+     */
+    void written() {
+        this.writes.incrementAndGet();
+        this.cache.invalidateAll();
+    }
+
+    CacheStats getStats() {
+        return this.cache.getStats();
+    }
+
+    private int measure(List<Document> documents) {
+        long bytes = 0;
+        for (Document document : documents) {
+            bytes += encode(this.codec, document).length;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, bytes);
+    }
+
+    private static <T> byte[] encode(Codec<T> codec, T value) {
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        BsonBinaryWriter writer = new BsonBinaryWriter(buffer);
+        try {
+            codec.encode(writer, value, EncoderContext.builder().build());
+        } finally {
+            writer.close();
+        }
+        return buffer.toByteArray();
+    }
+
+    private static List<Document> copy(List<Document> documents) {
+        List<Document> copy = new ArrayList<>(documents.size());
+        for (Document document : documents) {
+            copy.add(ModelSnapshots.copy(document));
+        }
+        return copy;
+    }
+
+    private static final class Result {
+
+        /**
+         * Documents for untyped results, RawBsonDocuments for typed ones
+         */
+        private final List<?> documents;
+        private final int bytes;
+
+        private Result(List<?> documents, int bytes) {
+            this.documents = documents;
+            this.bytes = bytes;
+        }
+
+    }
+
+}
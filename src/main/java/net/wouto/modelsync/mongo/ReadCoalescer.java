@@ -0,0 +1,162 @@
+package net.wouto.modelsync.mongo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import net.wouto.modelsync.mongo.future.FutureCallback;
+import net.wouto.modelsync.mongo.future.MongoFuture;
+import net.wouto.modelsync.mongo.future.Transformer;
+
+/**
+ * Lets equal reads that run at the same time share a single round trip,
+ * see {@link SimpleCollection#setReadCoalescing(boolean)}.
+ * <br />
+ * The first read of a key is sent, reads of the same key arriving while it is
+ * in flight wait for it and get their own copy of its result. A read only
+ * joins one that started after the last write through the collection
+ * finished, so it always sees the writes that finished before it was made.
+ * @author Wouter
+ */
+final class ReadCoalescer {
+
+    private final ConcurrentMap<Object, Flight<?>> inflight;
+    private final AtomicLong writes;
+    private final AtomicLong sent;
+    private final AtomicLong coalesced;
+
+    ReadCoalescer() {
+        this.inflight = new ConcurrentHashMap<>();
+        this.writes = new AtomicLong();
+        this.sent = new AtomicLong();
+        this.coalesced = new AtomicLong();
+    }
+
+    /**
+     * Called once a write finished, reads in flight may not have seen it.
+     */
+    void written() {
+        this.writes.incrementAndGet();
+    }
+
+    /**
+     * @param <R>
+     * @param key equal for reads with the same result
+     * @param read sends the read
+     * @param copy gives every read joining another one a copy of its result
+     * @return
+     */
+    <R> MongoFuture<R> read(Object key, Callable<MongoFuture<R>> read, Transformer<R, R> copy) {
+        long epoch = this.writes.get();
+        Flight<R> flight = new Flight<>(epoch, copy);
+        for (;;) {
+            Flight<R> current = (Flight<R>) this.inflight.putIfAbsent(key, flight);
+            if (current == null) {
+                break;
+            }
+            if (current.epoch >= epoch) {
+                MongoFuture<R> waiter = current.join();
+                if (waiter != null) {
+                    this.coalesced.incrementAndGet();
+                    return waiter;
+                }
+            }
+            // landed already or older than a write, take its place
+            if (this.inflight.replace(key, current, flight)) {
+                break;
+            }
+        }
+        this.sent.incrementAndGet();
+        MongoFuture<R> result;
+        try {
+            result = read.call();
+        } catch (Exception ex) {
+            result = new MongoFuture<>();
+            result.fail(ex);
+        }
+        return this.land(key, flight, result);
+    }
+
+    private <R> MongoFuture<R> land(final Object key, final Flight<R> flight, MongoFuture<R> result) {
+        final MongoFuture<R> own = new MongoFuture<>();
+        result.onComplete(new FutureCallback<R>() {
+
+            @Override
+            public void onComplete(R value, Exception err) {
+                ReadCoalescer.this.inflight.remove(key, flight);
+                // copies are taken before the first reader gets the original to change
+                for (MongoFuture<R> waiter : flight.land()) {
+                    if (err != null) {
+                        waiter.fail(err);
+                        continue;
+                    }
+                    try {
+                        waiter.complete(value == null ? null : flight.copy.apply(value));
+                    } catch (Exception ex) {
+                        waiter.fail(ex);
+                    }
+                }
+                if (err != null) {
+                    own.fail(err);
+                } else {
+                    own.complete(value);
+                }
+            }
+
+        });
+        return own;
+    }
+
+    /**
+     * @return the number of reads sent to the server
+     */
+    long getSentReads() {
+        return this.sent.get();
+    }
+
+    /**
+     * @return the number of reads that shared the round trip of another one
+     */
+    long getCoalescedReads() {
+        return this.coalesced.get();
+    }
+
+    private static final class Flight<R> {
+
+        private final long epoch;
+        private final Transformer<R, R> copy;
+        private List<MongoFuture<R>> waiting;
+        private boolean landed;
+
+        private Flight(long epoch, Transformer<R, R> copy) {
+            this.epoch = epoch;
+            this.copy = copy;
+        }
+
+        /**
+         * @return a future completing with the result, null when it came in already
+         */
+        private synchronized MongoFuture<R> join() {
+            if (this.landed) {
+                return null;
+            }
+            if (this.waiting == null) {
+                this.waiting = new ArrayList<>(2);
+            }
+            MongoFuture<R> waiter = new MongoFuture<>();
+            this.waiting.add(waiter);
+            return waiter;
+        }
+
+        private synchronized List<MongoFuture<R>> land() {
+            this.landed = true;
+            List<MongoFuture<R>> waiters = this.waiting;
+            this.waiting = null;
+            return waiters == null ? new ArrayList<MongoFuture<R>>(0) : waiters;
+        }
+
+    }
+
+}
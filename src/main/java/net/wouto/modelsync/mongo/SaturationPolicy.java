@@ -0,0 +1,67 @@
+package net.wouto.modelsync.mongo;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * What the {@link SimpleScheduler} does with an operation when every thread
+ * of a pool is busy and its queue is full.
+ * @author Wouter
+ */
+public enum SaturationPolicy {
+
+    /**
+     * The calling thread waits until the queue has room again.
+     */
+    BLOCK {
+
+        @Override
+        RejectedExecutionHandler handler() {
+            return new RejectedExecutionHandler() {
+
+                @Override
+                public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                    if (executor.isShutdown()) {
+                        throw new RejectedExecutionException("Scheduler has been shut down");
+                    }
+                    try {
+                        executor.getQueue().put(r);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException("Interrupted while waiting for queue space", ex);
+                    }
+                }
+
+            };
+        }
+
+    },
+    /**
+     * The operation is not run, its callback receives a
+     * {@link RejectedExecutionException} right away on the calling thread.
+     */
+    REJECT {
+
+        @Override
+        RejectedExecutionHandler handler() {
+            return new ThreadPoolExecutor.AbortPolicy();
+        }
+
+    },
+    /**
+     * The calling thread runs the operation itself, which slows callers down
+     * as fast as the pool falls behind.
+     */
+    CALLER_RUNS {
+
+        @Override
+        RejectedExecutionHandler handler() {
+            return new ThreadPoolExecutor.CallerRunsPolicy();
+        }
+
+    };
+
+    abstract RejectedExecutionHandler handler();
+
+}
@@ -0,0 +1,197 @@
+package net.wouto.modelsync.mongo;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sizes of the read and write pools of a {@link SimpleScheduler}.
+ * <br />
+ * Every running operation holds at most one driver connection at a time, so the sum
+ * of read and write threads should stay below the connection pool size of the
+ * driver (100 by default) to keep operations from waiting on a connection.
+ * With {@link ExecutionMode#VIRTUAL} the thread counts limit running operations
+ * instead of sizing pools.
+ * <br />
+ * Full queues make callers wait by default, see {@link SaturationPolicy#BLOCK}.
+ * {@link SaturationPolicy#CALLER_RUNS} keeps callers busy instead, but runs
+ * reads on threads like event loops that must not do blocking I/O.
+ * @author Wouter
+ */
+public class SchedulerOptions {
+
+    private static final int defaultThreads = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+    private int readThreads = defaultThreads;
+    private int writeThreads = defaultThreads;
+    private int readQueueSize = 10000;
+    private int writeQueueSize = 10000;
+    private long keepAliveMillis = 60000;
+    private SaturationPolicy saturationPolicy = SaturationPolicy.BLOCK;
+    private ExecutionMode executionMode = ExecutionMode.POOLED;
+    private int writeBatchSize = 1;
+    private long writeBatchDelayMillis = 0;
+    private int loadBatchSize = 1;
+    private long loadBatchDelayMillis = 0;
+
+    private static int positive(String name, int value) {
+        if (value < 1) {
+            throw new IllegalArgumentException(name + " must be at least 1, got " + value);
+        }
+        return value;
+    }
+
+    public int getReadThreads() {
+        return this.readThreads;
+    }
+
+    /**
+     * @param readThreads the maximum number of threads running reads
+     * @return this
+     */
+    public SchedulerOptions readThreads(int readThreads) {
+        this.readThreads = positive("readThreads", readThreads);
+        return this;
+    }
+
+    public int getWriteThreads() {
+        return this.writeThreads;
+    }
+
+    /**
+     * @param writeThreads the maximum number of threads running writes
+     * @return this
+     */
+    public SchedulerOptions writeThreads(int writeThreads) {
+        this.writeThreads = positive("writeThreads", writeThreads);
+        return this;
+    }
+
+    public int getReadQueueSize() {
+        return this.readQueueSize;
+    }
+
+    /**
+     * @param readQueueSize how many reads may wait for a thread before the saturation policy applies
+     * @return this
+     */
+    public SchedulerOptions readQueueSize(int readQueueSize) {
+        this.readQueueSize = positive("readQueueSize", readQueueSize);
+        return this;
+    }
+
+    public int getWriteQueueSize() {
+        return this.writeQueueSize;
+    }
+
+    /**
+     * @param writeQueueSize how many writes may wait for a thread before the saturation policy applies
+     * @return this
+     */
+    public SchedulerOptions writeQueueSize(int writeQueueSize) {
+        this.writeQueueSize = positive("writeQueueSize", writeQueueSize);
+        return this;
+    }
+
+    public long getKeepAlive(TimeUnit unit) {
+        return unit.convert(this.keepAliveMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param keepAlive how long an idle thread is kept before it stops
+     * @param unit
+     * @return this
+     */
+    public SchedulerOptions keepAlive(long keepAlive, TimeUnit unit) {
+        if (keepAlive < 1) {
+            throw new IllegalArgumentException("keepAlive must be positive, got " + keepAlive);
+        }
+        this.keepAliveMillis = unit.toMillis(keepAlive);
+        return this;
+    }
+
+    public SaturationPolicy getSaturationPolicy() {
+        return this.saturationPolicy;
+    }
+
+    /**
+     * @param saturationPolicy what happens to operations submitted while a pool and its queue are full,
+     * {@link SaturationPolicy#BLOCK} by default
+     * @return this
+     */
+    public SchedulerOptions saturationPolicy(SaturationPolicy saturationPolicy) {
+        if (saturationPolicy == null) {
+            throw new IllegalArgumentException("saturationPolicy can not be null");
+        }
+        this.saturationPolicy = saturationPolicy;
+        return this;
+    }
+
+    public ExecutionMode getExecutionMode() {
+        return this.executionMode;
+    }
+
+    /**
+     * @param executionMode whether operations run on pooled platform threads or on virtual threads
+     * @return this
+     */
+    public SchedulerOptions executionMode(ExecutionMode executionMode) {
+        if (executionMode == null) {
+            throw new IllegalArgumentException("executionMode can not be null");
+        }
+        this.executionMode = executionMode;
+        return this;
+    }
+
+    public int getWriteBatchSize() {
+        return this.writeBatchSize;
+    }
+
+    public long getWriteBatchDelay(TimeUnit unit) {
+        return unit.convert(this.writeBatchDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Collects asynchronous inserts and upserts per collection and sends them
+     * as one bulk write once enough are waiting or the first has waited long enough.
+     * Every write still completes its own callback or future. Off by default.
+     * @param size the number of waiting writes that triggers a bulk write, 1 turns batching off
+     * @param delay how long a write may wait for others
+     * @param unit
+     * @return this
+     */
+    public SchedulerOptions writeBatching(int size, long delay, TimeUnit unit) {
+        if (delay < 0) {
+            throw new IllegalArgumentException("delay can not be negative, got " + delay);
+        }
+        this.writeBatchSize = positive("size", size);
+        this.writeBatchDelayMillis = unit.toMillis(delay);
+        return this;
+    }
+
+    public int getLoadBatchSize() {
+        return this.loadBatchSize;
+    }
+
+    public long getLoadBatchDelay(TimeUnit unit) {
+        return unit.convert(this.loadBatchDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Collects asynchronous model loads per collection and model class and
+     * reads them with one $in query on the index once enough are waiting or
+     * the first has waited long enough. Every load still completes its own
+     * callback or future. Off by default.
+     * @param size the number of waiting loads that triggers a read, 1 turns batching off
+     * @param delay how long a load may wait for others
+     * @param unit
+     * @return this
+     */
+    public SchedulerOptions loadBatching(int size, long delay, TimeUnit unit) {
+        if (delay < 0) {
+            throw new IllegalArgumentException("delay can not be negative, got " + delay);
+        }
+        this.loadBatchSize = positive("size", size);
+        this.loadBatchDelayMillis = unit.toMillis(delay);
+        return this;
+    }
+
+}
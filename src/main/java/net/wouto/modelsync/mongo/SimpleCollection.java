@@ -1,51 +1,130 @@
 package net.wouto.modelsync.mongo;
 
+import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
 import static com.mongodb.client.model.Filters.eq;
+import com.mongodb.client.model.FindOneAndDeleteOptions;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.UpdateOneModel;
 import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
 import com.mongodb.client.result.DeleteResult;
 import com.mongodb.client.result.UpdateResult;
-import com.mongodb.util.JSON;
-import java.lang.annotation.Annotation;
 import java.lang.reflect.Array;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.ParameterizedType;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Set;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import net.wouto.modelsync.mongo.annotations.DBSync;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import net.wouto.modelsync.mongo.bulk.Bulk;
+import net.wouto.modelsync.mongo.bulk.BulkExecution;
+import net.wouto.modelsync.mongo.bulk.BulkReport;
+import net.wouto.modelsync.mongo.cache.CacheOptions;
+import net.wouto.modelsync.mongo.cache.CacheStats;
+import net.wouto.modelsync.mongo.callbacks.BulkCallback;
 import net.wouto.modelsync.mongo.callbacks.DeleteCallback;
 import net.wouto.modelsync.mongo.callbacks.DocumentWriteCallback;
 import net.wouto.modelsync.mongo.callbacks.FindAndUpdateCallback;
 import net.wouto.modelsync.mongo.callbacks.LoadMultiCallback;
+import net.wouto.modelsync.mongo.callbacks.LoadOneCallback;
 import net.wouto.modelsync.mongo.callbacks.MultiReadCallback;
 import net.wouto.modelsync.mongo.callbacks.ReadCallback;
+import net.wouto.modelsync.mongo.callbacks.SaveCallback;
+import net.wouto.modelsync.mongo.callbacks.StreamCallback;
 import net.wouto.modelsync.mongo.callbacks.UpdateCallback;
+import net.wouto.modelsync.mongo.codec.ModelCodecProvider;
+import net.wouto.modelsync.mongo.future.AsyncTransformer;
+import net.wouto.modelsync.mongo.future.FutureCallback;
+import net.wouto.modelsync.mongo.future.MongoFuture;
+import net.wouto.modelsync.mongo.future.MongoFutures;
+import net.wouto.modelsync.mongo.future.Transformer;
+import net.wouto.modelsync.mongo.journal.WriteRecords;
 import net.wouto.modelsync.mongo.query.Query;
+import net.wouto.modelsync.mongo.query.QueryKey;
+import net.wouto.modelsync.mongo.stream.BatchPublisher;
+import net.wouto.modelsync.mongo.stream.BatchSource;
+import net.wouto.modelsync.mongo.sync.ModelMapper;
+import net.wouto.modelsync.mongo.sync.ModelMappers;
+import net.wouto.modelsync.mongo.sync.ModelSnapshots;
 import net.wouto.modelsync.mongo.sync.ObjectLoadedCallback;
+import net.wouto.modelsync.mongo.sync.SaveResult;
 import net.wouto.modelsync.mongo.update.Update;
-import org.apache.commons.lang.ClassUtils;
 import org.bson.Document;
+import org.bson.codecs.Codec;
+import org.bson.types.ObjectId;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
 
 public class SimpleCollection {
 
+    static final int STREAM_BATCH_SIZE = 100;
+
+    private static final Transformer<Document, Document> COPY_DOCUMENT = new Transformer<Document, Document>() {
+
+        @Override
+        public Document apply(Document document) {
+            return ModelSnapshots.copy(document);
+        }
+
+    };
+
     private SimpleScheduler scheduler;
     private MongoCollection collection;
+    private final ConcurrentMap<Class<?>, MongoCollection<?>> typedCollections;
+    private final WriteBatcher batcher;
+    private volatile boolean dirtyTracking;
+    private final Object snapshotOwner;
+    private final ReadCoalescer coalescer;
+    private final FutureCallback<Object> writeDone;
+    private volatile boolean readCoalescing;
+    private final LoadBatcher loadBatcher;
+    private volatile QueryCache queryCache;
 
     public SimpleCollection(SimpleScheduler scheduler, MongoCollection collection) {
         this.scheduler = scheduler;
-        this.collection = collection;
+        this.collection = collection.withCodecRegistry(ModelCodecProvider.withModels(collection.getCodecRegistry()));
+        this.typedCollections = new ConcurrentHashMap<>();
+        this.batcher = scheduler.getOptions().getWriteBatchSize() > 1 ? new WriteBatcher(scheduler, this.getHandle(Document.class)) : null;
+        this.dirtyTracking = false;
+        // collections are opened anew for every call, equal for the same collection of a connection
+        this.snapshotOwner = Arrays.asList(scheduler, this.collection.getNamespace().getFullName());
+        this.coalescer = new ReadCoalescer();
+        this.writeDone = new FutureCallback<Object>() {
+
+            @Override
+            public void onComplete(Object result, Exception err) {
+                SimpleCollection.this.changed();
+            }
+
+        };
+        this.loadBatcher = scheduler.getOptions().getLoadBatchSize() > 1 ? new LoadBatcher(scheduler, this) : null;
+    }
+
+    SimpleScheduler getScheduler() {
+        return this.scheduler;
+    }
+
+    /**
+     * @return whether asynchronous writes go through the journal of the connection,
+     * they are not batched then and run on the write lanes on either engine
+     */
+    boolean isJournaled() {
+        return this.scheduler.getJournal() != null;
     }
 
     public UpdateResult updateSync(Query q, Update u) throws Exception {
-        return this.collection.updateOne((Document) q.getQuery(), (Document) u.getUpdateQuery());
+        try {
+            return this.collection.updateOne((Document) q.getQuery(), (Document) u.getUpdateQuery());
+        } finally {
+            this.changed();
+        }
     }
 
     public void update(Query q, Update u) {
@@ -53,32 +132,43 @@ public class SimpleCollection {
     }
 
     public void update(final Query q, final Update u, final UpdateCallback callback) {
-        this.scheduler.doWrite(new Runnable() {
+        this.updateAsync(q, u).onComplete(new FutureCallback<UpdateResult>() {
 
             @Override
-            public void run() {
-                try {
-                    UpdateResult wr = SimpleCollection.this.updateSync(q, u);
-                    if (callback != null) {
-                        callback.onQueryDone(wr, null);
-                    }
-                } catch (Exception ex) {
-                    if (callback != null) {
-                        callback.onQueryDone(null, ex);
-                    }
+            public void onComplete(UpdateResult result, Exception err) {
+                if (callback != null) {
+                    callback.onQueryDone(result, err);
                 }
             }
 
         });
     }
 
+    public MongoFuture<UpdateResult> updateAsync(final Query q, final Update u) {
+        if (this.isJournaled()) {
+            return this.journal(q.getQuery(), WriteRecords.update((Document) q.getQuery(), (Document) u.getUpdateQuery(), false, false));
+        }
+        return this.write(q.getQuery(), new FutureOperation<UpdateResult>() {
+
+            @Override
+            UpdateResult call() throws Exception {
+                return SimpleCollection.this.updateSync(q, u);
+            }
+
+        });
+    }
+
     public UpdateResult updateSync(Query q, Update u, boolean upsert, boolean multi) throws Exception {
         UpdateOptions options = new UpdateOptions();
         options.upsert(upsert);
-        if (multi) {
-            return this.collection.updateMany((Document) q.getQuery(), (Document) u.getUpdateQuery(), options);
-        } else {
-            return this.collection.updateOne((Document) q.getQuery(), (Document) u.getUpdateQuery(), options);
+        try {
+            if (multi) {
+                return this.collection.updateMany((Document) q.getQuery(), (Document) u.getUpdateQuery(), options);
+            } else {
+                return this.collection.updateOne((Document) q.getQuery(), (Document) u.getUpdateQuery(), options);
+            }
+        } finally {
+            this.changed();
         }
     }
 
@@ -87,29 +177,45 @@ public class SimpleCollection {
     }
 
     public void update(final Query q, final Update u, final boolean upsert, final boolean multi, final UpdateCallback callback) {
-        this.scheduler.doWrite(new Runnable() {
+        this.updateAsync(q, u, upsert, multi).onComplete(new FutureCallback<UpdateResult>() {
 
             @Override
-            public void run() {
-                try {
-                    UpdateResult wr = SimpleCollection.this.updateSync(q, u, upsert, multi);
-                    if (callback != null) {
-                        callback.onQueryDone(wr, null);
-                    }
-                } catch (Exception ex) {
-                    if (callback != null) {
-                        callback.onQueryDone(null, ex);
-                    }
+            public void onComplete(UpdateResult result, Exception err) {
+                if (callback != null) {
+                    callback.onQueryDone(result, err);
                 }
             }
 
         });
     }
 
+    public MongoFuture<UpdateResult> updateAsync(final Query q, final Update u, final boolean upsert, final boolean multi) {
+        if (this.isJournaled()) {
+            return this.journal(q.getQuery(), WriteRecords.update((Document) q.getQuery(), (Document) u.getUpdateQuery(), upsert, multi));
+        }
+        if (this.batcher != null && upsert && !multi) {
+            UpdateOptions options = new UpdateOptions();
+            options.upsert(true);
+            return this.written(this.batcher.upsert(q.getQuery(), new UpdateOneModel<Document>((Document) q.getQuery(), (Document) u.getUpdateQuery(), options)));
+        }
+        return this.write(q.getQuery(), new FutureOperation<UpdateResult>() {
+
+            @Override
+            UpdateResult call() throws Exception {
+                return SimpleCollection.this.updateSync(q, u, upsert, multi);
+            }
+
+        });
+    }
+
     public UpdateResult updateOrInsertSync(String key, Object value, Update set) throws Exception {
         UpdateOptions u = new UpdateOptions();
         u.upsert(true);
-        return this.collection.replaceOne(eq(key, value), (Document) set.getUpdateQuery(), u);
+        try {
+            return this.collection.replaceOne(eq(key, value), (Document) set.getUpdateQuery(), u);
+        } finally {
+            this.changed();
+        }
     }
 
     public void updateOrInsert(String key, Object value, Update set) {
@@ -117,27 +223,43 @@ public class SimpleCollection {
     }
 
     public void updateOrInsert(final String key, final Object value, final Update set, final UpdateCallback callback) {
-        this.scheduler.doWrite(new Runnable() {
+        this.updateOrInsertAsync(key, value, set).onComplete(new FutureCallback<UpdateResult>() {
 
             @Override
-            public void run() {
-                try {
-                    UpdateResult wr = SimpleCollection.this.updateOrInsertSync(key, value, set);
-                    if (callback != null) {
-                        callback.onQueryDone(wr, null);
-                    }
-                } catch (Exception ex) {
-                    if (callback != null) {
-                        callback.onQueryDone(null, ex);
-                    }
+            public void onComplete(UpdateResult result, Exception err) {
+                if (callback != null) {
+                    callback.onQueryDone(result, err);
                 }
             }
 
         });
     }
 
+    public MongoFuture<UpdateResult> updateOrInsertAsync(final String key, final Object value, final Update set) {
+        if (this.isJournaled()) {
+            return this.journal(new Document(key, value), WriteRecords.replace(new Document(key, value), (Document) set.getUpdateQuery(), true));
+        }
+        if (this.batcher != null) {
+            UpdateOptions options = new UpdateOptions();
+            options.upsert(true);
+            return this.written(this.batcher.upsert(new Document(key, value), new ReplaceOneModel<>(new Document(key, value), (Document) set.getUpdateQuery(), options)));
+        }
+        return this.write(new Document(key, value), new FutureOperation<UpdateResult>() {
+
+            @Override
+            UpdateResult call() throws Exception {
+                return SimpleCollection.this.updateOrInsertSync(key, value, set);
+            }
+
+        });
+    }
+
     public void insertSync(Document obj) throws Exception {
-        this.collection.insertOne(obj);
+        try {
+            this.collection.insertOne(obj);
+        } finally {
+            this.changed();
+        }
     }
 
     public void insert(Document obj) {
@@ -145,28 +267,42 @@ public class SimpleCollection {
     }
 
     public void insert(final Document obj, final DocumentWriteCallback callback) {
-        this.scheduler.doWrite(new Runnable() {
+        this.insertAsync(obj).onComplete(new FutureCallback<Document>() {
 
             @Override
-            public void run() {
-                try {
-                    SimpleCollection.this.insertSync(obj);
-                    if (callback != null) {
-                        callback.onQueryDone(obj, null);
-                    }
-                } catch (Exception ex) {
-                    if (callback != null) {
-                        callback.onQueryDone(null, ex);
-                    }
+            public void onComplete(Document result, Exception err) {
+                if (callback != null) {
+                    callback.onQueryDone(result, err);
                 }
             }
 
         });
     }
 
+    public MongoFuture<Document> insertAsync(final Document obj) {
+        if (this.isJournaled()) {
+            if (!obj.containsKey("_id")) {
+                // set before it is journaled, so sending it again can tell it was inserted already
+                obj.put("_id", new ObjectId());
+            }
+            return this.journal(null, WriteRecords.insert(obj));
+        }
+        if (this.batcher != null) {
+            return this.written(this.batcher.insert(obj));
+        }
+        return this.write(null, new FutureOperation<Document>() {
+
+            @Override
+            Document call() throws Exception {
+                SimpleCollection.this.insertSync(obj);
+                return obj;
+            }
+
+        });
+    }
+
     public Document findOneSync(Query q) throws Exception {
-        MongoCursor cursor = this.collection.find((Document) q.getQuery()).iterator();
-        Object o = cursor.next();
+        Object o = this.find(this.getHandle(Document.class), q).first();
         if (o == null) {
             return null;
         }
@@ -174,83 +310,355 @@ public class SimpleCollection {
     }
 
     public void findOne(final Query q, final ReadCallback callback) {
-        this.scheduler.doRead(new Runnable() {
+        this.findOneAsync(q).onComplete(new FutureCallback<Document>() {
 
             @Override
-            public void run() {
-                try {
-                    Document d = SimpleCollection.this.findOneSync(q);
-                    if (callback != null) {
-                        callback.onQueryDone(d, null);
-                    }
-                } catch (Exception ex) {
-                    if (callback != null) {
-                        callback.onQueryDone(null, ex);
-                    }
+            public void onComplete(Document result, Exception err) {
+                if (callback != null) {
+                    callback.onQueryDone(result, err);
                 }
             }
 
         });
     }
 
+    /**
+     * Joins an equal read already in flight when read coalescing is on.
+     * @param q
+     * @return
+     */
+    public MongoFuture<Document> findOneAsync(final Query q) {
+        if (!this.readCoalescing) {
+            return this.sendFindOne(q);
+        }
+        return this.coalescer.read(Arrays.asList(QueryKey.of(q), Document.class), new Callable<MongoFuture<Document>>() {
+
+            @Override
+            public MongoFuture<Document> call() {
+                return SimpleCollection.this.sendFindOne(q);
+            }
+
+        }, COPY_DOCUMENT);
+    }
+
+    MongoFuture<Document> sendFindOne(final Query q) {
+        return this.read(new FutureOperation<Document>() {
+
+            @Override
+            Document call() throws Exception {
+                return SimpleCollection.this.findOneSync(q);
+            }
+
+        });
+    }
+
+    public <T> T findOneSync(Query q, Class<T> type) throws Exception {
+        return this.find(this.getHandle(type), q).first();
+    }
+
+    public <T> void findOne(final Query q, final Class<T> type, final LoadOneCallback<T> callback) {
+        this.findOneAsync(q, type).onComplete(new FutureCallback<T>() {
+
+            @Override
+            public void onComplete(T result, Exception err) {
+                if (callback != null) {
+                    callback.onQueryDone(result, err);
+                }
+            }
+
+        });
+    }
+
+    /**
+     * Joins an equal read already in flight when read coalescing is on.
+     * @param <T>
+     * @param q
+     * @param type
+     * @return
+     */
+    public <T> MongoFuture<T> findOneAsync(final Query q, final Class<T> type) {
+        if (!this.readCoalescing) {
+            return this.sendFindOne(q, type);
+        }
+        return this.coalescer.read(Arrays.asList(QueryKey.of(q), type), new Callable<MongoFuture<T>>() {
+
+            @Override
+            public MongoFuture<T> call() {
+                return SimpleCollection.this.sendFindOne(q, type);
+            }
+
+        }, new Transformer<T, T>() {
+
+            @Override
+            public T apply(T model) throws Exception {
+                // through the mapper itself, ModelMappers.decode would turn a failure into no document
+                ModelMapper<T> mapper = ModelMappers.forClass(type);
+                return mapper.decode(mapper.newInstance(), mapper.encode(model));
+            }
+
+        });
+    }
+
+    <T> MongoFuture<T> sendFindOne(final Query q, final Class<T> type) {
+        return this.read(new FutureOperation<T>() {
+
+            @Override
+            T call() throws Exception {
+                return SimpleCollection.this.findOneSync(q, type);
+            }
+
+        });
+    }
+
     public MongoCursor findSync(Query q) throws Exception {
-        return this.collection.find((Document) q.getQuery()).iterator();
+        return this.find(this.getHandle(Document.class), q).iterator();
     }
 
     public void find(final Query q, final MultiReadCallback callback) {
-        this.scheduler.doRead(new Runnable() {
+        this.findAsync(q).onComplete(new FutureCallback<List<Document>>() {
+
+            @Override
+            public void onComplete(List<Document> result, Exception err) {
+                if (callback != null) {
+                    callback.onQueryDone(result == null ? null : result.toArray(new Document[result.size()]), err);
+                }
+            }
+
+        });
+    }
+
+    /**
+     * Serves the result from the query cache when it is enabled and holds it.
+     * @param q
+     * @return
+     */
+    public MongoFuture<List<Document>> findAsync(final Query q) {
+        final QueryCache cache = this.queryCache;
+        if (cache == null) {
+            return this.sendFind(q);
+        }
+        final QueryKey key = QueryKey.of(q);
+        List<Document> cached = cache.get(key);
+        if (cached != null) {
+            return MongoFutures.completed(cached);
+        }
+        final long generation = cache.generation();
+        return this.sendFind(q).map(new Transformer<List<Document>, List<Document>>() {
+
+            @Override
+            public List<Document> apply(List<Document> result) {
+                cache.put(key, generation, result, q);
+                return result;
+            }
+
+        });
+    }
+
+    MongoFuture<List<Document>> sendFind(final Query q) {
+        return this.read(new FutureOperation<List<Document>>() {
 
             @Override
-            public void run() {
+            List<Document> call() throws Exception {
+                MongoCursor c = SimpleCollection.this.findSync(q);
+                List<Document> data = new ArrayList();
                 try {
-                    MongoCursor c = SimpleCollection.this.findSync(q);
-                    List<Document> data = new ArrayList();
                     while (c.hasNext()) {
                         data.add((Document) c.next());
                     }
-                    if (callback != null) {
-                        callback.onQueryDone(data.toArray(new Document[data.size()]), null);
-                    }
-                } catch (Exception ex) {
-                    if (callback != null) {
-                        callback.onQueryDone(null, ex);
-                    }
+                } finally {
+                    c.close();
+                }
+                return data;
+            }
+
+        });
+    }
+
+    public <T> MongoCursor<T> findSync(Query q, Class<T> type) throws Exception {
+        return this.find(this.getHandle(type), q).iterator();
+    }
+
+    public <T> T[] findAllSync(Query q, Class<T> type) throws Exception {
+        MongoCursor<T> cursor = this.findSync(q, type);
+        List<T> data = new ArrayList();
+        try {
+            while (cursor.hasNext()) {
+                data.add(cursor.next());
+            }
+        } finally {
+            cursor.close();
+        }
+        return data.toArray((T[]) Array.newInstance(type, data.size()));
+    }
+
+    public <T> void find(final Query q, final Class<T> type, final LoadMultiCallback<T> callback) {
+        this.findAsync(q, type).onComplete(new FutureCallback<T[]>() {
+
+            @Override
+            public void onComplete(T[] result, Exception err) {
+                if (callback != null) {
+                    callback.onQueryDone(result, err);
                 }
             }
 
         });
     }
 
+    /**
+     * Serves the result from the query cache when it is enabled and holds it
+     * for this type. Cached models are decoded again by the codec of the type
+     * for every call.
+     * @param <T>
+     * @param q
+     * @param type
+     * @return
+     */
+    public <T> MongoFuture<T[]> findAsync(final Query q, final Class<T> type) {
+        final QueryCache cache = this.queryCache;
+        if (cache == null) {
+            return this.sendFind(q, type);
+        }
+        final QueryKey key = QueryKey.of(q);
+        final Codec<T> codec = this.getHandle(type).getCodecRegistry().get(type);
+        T[] cached = cache.get(key, type, codec);
+        if (cached != null) {
+            return MongoFutures.completed(cached);
+        }
+        final long generation = cache.generation();
+        return this.sendFind(q, type).map(new Transformer<T[], T[]>() {
+
+            @Override
+            public T[] apply(T[] result) {
+                cache.put(key, type, codec, generation, result, q);
+                return result;
+            }
+
+        });
+    }
+
+    <T> MongoFuture<T[]> sendFind(final Query q, final Class<T> type) {
+        return this.read(new FutureOperation<T[]>() {
+
+            @Override
+            T[] call() throws Exception {
+                return SimpleCollection.this.findAllSync(q, type);
+            }
+
+        });
+    }
+
+    public void findStream(Query q, StreamCallback<Document> callback) {
+        this.findStream(q, Document.class, callback);
+    }
+
+    /**
+     * Passes the results to the callback one at a time while reading the
+     * cursor, so any number of results is read in constant memory.
+     * @param <T>
+     * @param q
+     * @param type
+     * @param callback
+     */
+    public <T> void findStream(Query q, Class<T> type, StreamCallback<T> callback) {
+        this.findPublisher(q, type).subscribe(new StreamSubscriber<>(callback));
+    }
+
+    public Publisher<Document> findPublisher(Query q) {
+        return this.findPublisher(q, Document.class);
+    }
+
+    /**
+     * @param <T>
+     * @param q
+     * @param type
+     * @return a publisher running the query for every subscriber, reading
+     * batches from the cursor as the subscriber requests results
+     */
+    public <T> Publisher<T> findPublisher(final Query q, final Class<T> type) {
+        return new BatchPublisher<T>() {
+
+            @Override
+            protected BatchSource<T> open() {
+                return SimpleCollection.this.openSource(q, type);
+            }
+
+        };
+    }
+
+    <T> BatchSource<T> openSource(Query q, Class<T> type) {
+        return new CursorSource<>(this.scheduler, this.find(this.getHandle(type), q), q.getBatchSize() > 0 ? q.getBatchSize() : STREAM_BATCH_SIZE);
+    }
+
     public Document findOneAndRemoveSync(Query q) throws Exception {
-        Object o = this.collection.findOneAndDelete((Document) q.getQuery());
-        if (o == null) {
-            return null;
+        try {
+            return (Document) this.collection.findOneAndDelete((Document) q.getQuery(), deleteOptions(q));
+        } finally {
+            this.changed();
         }
-        return (Document) o;
     }
 
     public void findAndRemove(final Query q, final ReadCallback callback) {
-        this.scheduler.doWrite(new Runnable() {
+        this.findAndRemoveAsync(q).onComplete(new FutureCallback<Document>() {
 
             @Override
-            public void run() {
-                try {
-                    Document obj = SimpleCollection.this.findOneAndRemoveSync(q);
-                    if (callback != null) {
-                        callback.onQueryDone(obj, null);
-                    }
-                } catch (Exception ex) {
-                    if (callback != null) {
-                        callback.onQueryDone(null, ex);
-                    }
+            public void onComplete(Document result, Exception err) {
+                if (callback != null) {
+                    callback.onQueryDone(result, err);
+                }
+            }
+
+        });
+    }
+
+    public MongoFuture<Document> findAndRemoveAsync(final Query q) {
+        return this.write(q.getQuery(), new FutureOperation<Document>() {
+
+            @Override
+            Document call() throws Exception {
+                return SimpleCollection.this.findOneAndRemoveSync(q);
+            }
+
+        });
+    }
+
+    public <T> T findOneAndRemoveSync(Query q, Class<T> type) throws Exception {
+        try {
+            return this.getHandle(type).findOneAndDelete((Document) q.getQuery(), deleteOptions(q));
+        } finally {
+            this.changed();
+        }
+    }
+
+    public <T> void findAndRemove(final Query q, final Class<T> type, final LoadOneCallback<T> callback) {
+        this.findAndRemoveAsync(q, type).onComplete(new FutureCallback<T>() {
+
+            @Override
+            public void onComplete(T result, Exception err) {
+                if (callback != null) {
+                    callback.onQueryDone(result, err);
                 }
             }
 
         });
     }
 
+    public <T> MongoFuture<T> findAndRemoveAsync(final Query q, final Class<T> type) {
+        return this.write(q.getQuery(), new FutureOperation<T>() {
+
+            @Override
+            T call() throws Exception {
+                return SimpleCollection.this.findOneAndRemoveSync(q, type);
+            }
+
+        });
+    }
+
     public DeleteResult removeSync(Query q) throws Exception {
-        return this.collection.deleteMany((Document) q.getQuery());
+        try {
+            return this.collection.deleteMany((Document) q.getQuery());
+        } finally {
+            this.changed();
+        }
     }
 
     public void remove(Query q) {
@@ -258,357 +666,367 @@ public class SimpleCollection {
     }
 
     public void remove(final Query q, final DeleteCallback callback) {
-        this.scheduler.doWrite(new Runnable() {
+        this.removeAsync(q).onComplete(new FutureCallback<DeleteResult>() {
 
             @Override
-            public void run() {
-                try {
-                    DeleteResult wr = SimpleCollection.this.removeSync(q);
-                    if (callback != null) {
-                        callback.onQueryDone(wr, null);
-                    }
-                } catch (Exception ex) {
-                    if (callback != null) {
-                        callback.onQueryDone(null, ex);
-                    }
+            public void onComplete(DeleteResult result, Exception err) {
+                if (callback != null) {
+                    callback.onQueryDone(result, err);
                 }
             }
 
         });
     }
 
-    public <T> T[] loadAllSync(Class<T> c) throws Exception {
-        Constructor constructor = c.getDeclaredConstructor();
-        boolean cAccess = constructor.isAccessible();
-        if (!cAccess) {
-            constructor.setAccessible(true);
+    public MongoFuture<DeleteResult> removeAsync(final Query q) {
+        if (this.isJournaled()) {
+            return this.journal(q.getQuery(), WriteRecords.remove((Document) q.getQuery(), true));
         }
-        MongoCursor cursor = this.findSync(Query.empty);
-        ArrayList<T> data = new ArrayList();
-        while (cursor.hasNext()) {
-            Document obj = (Document) JSON.parse(((Document) cursor.next()).toJson());
-            T instance = (T) constructor.newInstance();
-            SimpleCollection.this.fromDBObject(instance, obj);
-            data.add(instance);
+        return this.write(q.getQuery(), new FutureOperation<DeleteResult>() {
+
+            @Override
+            DeleteResult call() throws Exception {
+                return SimpleCollection.this.removeSync(q);
+            }
+
+        });
+    }
+
+    /**
+     * Sends the writes of a bulk chunk by chunk, one round trip per chunk.
+     * Writes that fail are reported per write instead of thrown.
+     * @param bulk
+     * @return
+     */
+    public BulkReport bulkWriteSync(Bulk bulk) {
+        BulkExecution execution = new BulkExecution(bulk);
+        while (execution.hasNext()) {
+            List<WriteModel<Document>> chunk = execution.next();
+            try {
+                execution.completed(this.getHandle(Document.class).bulkWrite(chunk, execution.getOptions()));
+            } catch (RuntimeException ex) {
+                execution.failed(ex);
+            }
         }
-        constructor.setAccessible(cAccess);
-        return (T[]) data.toArray((T[]) Array.newInstance(c, data.size()));
+        this.changed();
+        return execution.report();
     }
 
-    public <T> void loadAll(final Class<T> c, final LoadMultiCallback callback) {
-        this.scheduler.doRead(new Runnable() {
+    public void bulkWrite(Bulk bulk) {
+        this.bulkWrite(bulk, null);
+    }
+
+    public void bulkWrite(final Bulk bulk, final BulkCallback callback) {
+        this.bulkWriteAsync(bulk).onComplete(new FutureCallback<BulkReport>() {
+
             @Override
-            public void run() {
-                try {
-                    T[] t = SimpleCollection.this.loadAllSync(c);
-                    if (callback != null) {
-                        callback.onQueryDone(t, null);
-                    }
-                } catch (Exception ex) {
-                    if (callback != null) {
-                        callback.onQueryDone(null, ex);
-                    }
+            public void onComplete(BulkReport result, Exception err) {
+                if (callback != null) {
+                    callback.onQueryDone(result, err);
                 }
             }
+
         });
     }
 
-    private static Collection<Field> getAnnotationFields(Class<?> clazz, Class<? extends Annotation> a) {
-        List<Field> fields = new ArrayList();
-        while (clazz != null && clazz != Object.class) {
-            Field[] fs = clazz.getDeclaredFields();
-            for (Field f : fs) {
-                if (f.isAnnotationPresent(a)) {
-                    fields.add(f);
+    /**
+     * The bulk is not ordered with other writes to the same documents, it
+     * runs on a single write thread from start to end.
+     * @param bulk
+     * @return
+     */
+    public MongoFuture<BulkReport> bulkWriteAsync(final Bulk bulk) {
+        if (this.isJournaled()) {
+            for (WriteModel<Document> request : bulk.getRequests()) {
+                if (request instanceof InsertOneModel && !((InsertOneModel<Document>) request).getDocument().containsKey("_id")) {
+                    // like insertAsync, so sending it again can tell it was inserted already
+                    ((InsertOneModel<Document>) request).getDocument().put("_id", new ObjectId());
                 }
             }
-            clazz = clazz.getSuperclass();
+            try {
+                return this.journal(null, WriteRecords.bulk(bulk));
+            } catch (IllegalArgumentException ex) {
+                return MongoFutures.failed(ex);
+            }
         }
-        return fields;
-    }
+        return this.write(null, new FutureOperation<BulkReport>() {
 
-    private static final Set<Class<?>> primitives = new HashSet<Class<?>>() {
-        {
-            add(Boolean.class);
-            add(Character.class);
-            add(Byte.class);
-            add(Short.class);
-            add(Integer.class);
-            add(Long.class);
-            add(Float.class);
-            add(Double.class);
-            add(Object.class);
-            add(String.class);
-        }
-    };
+            @Override
+            BulkReport call() throws Exception {
+                return SimpleCollection.this.bulkWriteSync(bulk);
+            }
 
-    private static Class<?> getCollectionType(Field f) {
-        return (Class<?>) ((ParameterizedType) f.getGenericType()).getActualTypeArguments()[0];
+        });
     }
 
-    private static Class<?> getArrayType(Field f) {
-        return f.getType().getComponentType();
+    /**
+     * Creates an aggregator summing increments in memory, for counters
+     * incremented far more often than they have to be written.
+     * @param interval how often the summed increments are sent
+     * @param unit
+     * @param maxCounters the number of (filter, field) counters that makes it send early
+     * @return a new aggregator, flushed by {@link SimpleScheduler#flushWrites()} and before the connection closes
+     * @throws IllegalStateException when the connection has a journal, which does not take increments
+     */
+    public IncrementAggregator aggregateIncrements(long interval, TimeUnit unit, int maxCounters) {
+        return this.aggregateIncrements(interval, unit, maxCounters, false);
     }
 
-    private static boolean isSerializeAble(Field f) {
-        Class<?> type = f.getType();
-        if (type.isArray()) {
-            type = type.getComponentType();
-        }
-        if (Collection.class.isAssignableFrom(f.getType())) {
-            type = getCollectionType(f);
+    /**
+     * @param interval
+     * @param unit
+     * @param maxCounters
+     * @param upsert whether a summed increment inserts the document when the filter matches none
+     * @return
+     * @see #aggregateIncrements(long, TimeUnit, int)
+     */
+    public IncrementAggregator aggregateIncrements(long interval, TimeUnit unit, int maxCounters, boolean upsert) {
+        if (this.isJournaled()) {
+            throw new IllegalStateException("Increments can not be journaled, they may be applied twice");
         }
-        if (isPrimitive(type)) {
-            return true;
-        }
-        return (!getAnnotationFields(type, DBSync.class).isEmpty());
+        return new IncrementAggregator(this, interval, unit, maxCounters, upsert);
     }
 
-    private static boolean isPrimitive(Class<?> type) {
-        if (type.isPrimitive()) {
-            return true;
-        }
-        for (Class<?> p : primitives) {
-            if (type.isAssignableFrom(p)) {
-                return true;
-            }
-        }
-        return false;
+    public <T> T[] loadAllSync(Class<T> c) throws Exception {
+        return this.findAllSync(Query.empty, c);
     }
 
-    public static <T> Document asDBObject(T instance) {
-        Document b = new Document();
-        Collection<Field> fieldMap = getAnnotationFields(instance.getClass(), DBSync.class);
-        for (Field f : fieldMap) {
-            try {
-                DBSync saveData = f.getAnnotation(DBSync.class);
-                if (saveData == null) {
-                    continue;
-                }
-                if (!isSerializeAble(f)) {
-                    continue;
-                }
-                boolean hadAccess = f.isAccessible();
-                if (!hadAccess) {
-                    f.setAccessible(true);
-                }
-                String fieldName = f.getName();
-                if (!saveData.value().isEmpty()) {
-                    fieldName = saveData.value();
-                }
-                if (f.getType().isArray()) { // array
-                    Object[] arrayData = (Object[]) f.get(instance);
-                    Class<?> arrayType = getArrayType(f);
-                    if (isPrimitive(arrayType)) {
-                        b.put(fieldName, f.get(instance));
-                        f.setAccessible(hadAccess);
-                        continue;
-                    } else {
-                        ArrayList list = new ArrayList();
-                        for (Object arrayObject : arrayData) {
-                            list.add(asDBObject(arrayObject));
-                        }
-                        b.put(fieldName, list);
-                        f.setAccessible(hadAccess);
-                        continue;
-                    }
-                } else if (Collection.class.isAssignableFrom(f.getType())) { // Collection
-                    Collection collectionData = (Collection) f.get(instance);
-                    Class<?> collectionType = getCollectionType(f);
-                    if (isPrimitive(collectionType)) {
-                        b.put(fieldName, f.get(instance));
-                        f.setAccessible(hadAccess);
-                        continue;
-                    } else {
-                        ArrayList list = new ArrayList();
-                        for (Object collectionObject : collectionData) {
-                            Document collectionDBObject = asDBObject(collectionType.cast(collectionObject));
-                            list.add(collectionDBObject);
-                        }
-                        b.put(fieldName, list);
-                        f.setAccessible(hadAccess);
-                        continue;
-                    }
-                } else if (!isPrimitive(f.getType())) {
-                    Document data = asDBObject(f.get(instance));
-                    b.put(fieldName, data);
-                    f.setAccessible(hadAccess);
-                    continue;
+    public <T> void loadAll(final Class<T> c, final LoadMultiCallback callback) {
+        this.loadAllAsync(c).onComplete(new FutureCallback<T[]>() {
+
+            @Override
+            public void onComplete(T[] result, Exception err) {
+                if (callback != null) {
+                    callback.onQueryDone(result, err);
                 }
-                Object o = f.get(instance);
-                f.setAccessible(hadAccess);
-                b.put(fieldName, o);
-            } catch (IllegalAccessException | IllegalArgumentException ex) {
-                ex.printStackTrace();
             }
-        }
-        return b;
+
+        });
+    }
+
+    public <T> MongoFuture<T[]> loadAllAsync(final Class<T> c) {
+        return this.read(new FutureOperation<T[]>() {
+
+            @Override
+            T[] call() throws Exception {
+                return SimpleCollection.this.loadAllSync(c);
+            }
+
+        });
+    }
+
+    public static <T> Document asDBObject(T instance) {
+        return ModelMappers.forClass((Class<T>) instance.getClass()).encode(instance);
+    }
+
+    /**
+     * Models loaded through {@link #load(Object)} or {@link #fromDBObject(Object, Document)}
+     * and saved models are remembered, so saving them again only sends the
+     * fields that changed, and nothing when nothing changed. Disabled by
+     * default, every save then replaces the whole document with an upsert.
+     * <br />
+     * The remembered state is not updated by other writes, a document removed
+     * by another writer is not put back by saving an unchanged model. Only
+     * turn this on when this collection is the only writer of its documents.
+     * @param dirtyTracking true to only send the changed fields
+     */
+    public void setDirtyTracking(boolean dirtyTracking) {
+        this.dirtyTracking = dirtyTracking;
+    }
+
+    public boolean isDirtyTracking() {
+        return this.dirtyTracking;
+    }
+
+    /**
+     * Lets a findOne share the round trip of an equal findOne that is still in
+     * flight, instead of sending its own. Every caller gets its own copy of
+     * the result. A read only joins one that started after the last write
+     * through this collection finished. Disabled by default.
+     * @param readCoalescing true to share equal reads in flight
+     */
+    public void setReadCoalescing(boolean readCoalescing) {
+        this.readCoalescing = readCoalescing;
+    }
+
+    public boolean isReadCoalescing() {
+        return this.readCoalescing;
+    }
+
+    /**
+     * @return the number of coalesced reads sent to the server
+     */
+    public long getSentReads() {
+        return this.coalescer.getSentReads();
+    }
+
+    /**
+     * @return the number of reads that joined another read instead of making a round trip
+     */
+    public long getCoalescedReads() {
+        return this.coalescer.getCoalescedReads();
+    }
+
+    /**
+     * Keeps the results of {@link #findAsync(Query)} and {@link #findAsync(Query, Class)}
+     * to answer equal queries without a round trip. A result is kept for the
+     * time set with {@link Query#cacheFor(long, TimeUnit)}, or the expire time
+     * of the options when the query does not set one, and until any write
+     * through this collection finishes. Writes by others are only seen once
+     * the results expire.
+     * @param options the maximum weight is the total size of the results in BSON bytes
+     */
+    public void enableQueryCache(CacheOptions options) {
+        this.queryCache = new QueryCache(options, (Codec<Document>) this.collection.getCodecRegistry().get(Document.class));
+    }
+
+    public void disableQueryCache() {
+        this.queryCache = null;
+    }
+
+    public boolean isQueryCache() {
+        return this.queryCache != null;
+    }
+
+    /**
+     * @return the counters of the query cache, null when it is not enabled
+     */
+    public CacheStats getQueryCacheStats() {
+        QueryCache cache = this.queryCache;
+        return cache == null ? null : cache.getStats();
     }
 
     public final <T> void save(T instance) {
-        Document obj = asDBObject(instance);
-        Collection<Field> fields = getAnnotationFields(instance.getClass(), DBSync.class);
-        String key = null;
-        Object value = null;
-        for (Field f : fields) {
-            if (f.getAnnotation(DBSync.class).index()) {
-                key = f.getName();
-                value = obj.get(f.getName());
-                break;
-            }
-        }
-        if (key == null && value == null) {
-            System.out.println("Cannot save object: " + instance.getClass().getName());
-            return;
-        }
-        Update update = new Update(obj);
-        this.updateOrInsert(key, value, update, new UpdateCallback() {
+        this.save(instance, new SaveCallback() {
 
             @Override
-            public void onQueryDone(UpdateResult result, Exception err) {
+            public void onQueryDone(SaveResult result, Exception err) {
                 if (err != null) {
                     err.printStackTrace();
                 }
             }
-            
+
         });
     }
 
-    private <T> T instantiate(Class<T> cls) throws Exception {
-        final Constructor<T> constr = (Constructor<T>) cls.getConstructors()[0];
-        boolean a = constr.isAccessible();
-        if (!a) {
-            constr.setAccessible(true);
-        }
-        final List<Object> params = new ArrayList();
-        for (Class<?> pType : constr.getParameterTypes()) {
-            if (pType.isPrimitive() || primitives.contains(pType)) {
-                if (pType.isPrimitive()) {
-                    pType = ClassUtils.primitiveToWrapper(pType);
-                }
-                if (pType == Integer.class || 
-                        pType == Long.class || 
-                        pType == Short.class || 
-                        pType == Byte.class) {
-                    params.add(pType.cast(0));
-                } else if (pType == Character.class) {
-                    params.add('\0');
-                } else if (pType == Boolean.class) {
-                    params.add(false);
-                } else if (pType == Float.class || pType == Double.class) {
-                    params.add(pType.cast(0.0));
-                } else if (pType == Object.class || pType == String.class) {
-                    params.add(null);
+    public final <T> void save(T instance, final SaveCallback callback) {
+        this.saveChangesAsync(instance).onComplete(new FutureCallback<SaveResult>() {
+
+            @Override
+            public void onComplete(SaveResult result, Exception err) {
+                if (callback != null) {
+                    callback.onQueryDone(result, err);
                 }
-            } else {
-                params.add(null);
             }
-        }
-        final T instance = constr.newInstance(params.toArray());
-        constr.setAccessible(a);
-        return instance;
+
+        });
     }
 
-    public <T> T fromDBObject(Class<T> type, Document data) {
-        try {
-            T obj = (T) instantiate(type);
-            return fromDBObject(obj, data);
-        } catch (NoSuchMethodException | SecurityException | InstantiationException | IllegalAccessException | IllegalArgumentException | InvocationTargetException ex) {
-            Logger.getLogger(SimpleCollection.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (Exception ex) {
-            Logger.getLogger(SimpleCollection.class.getName()).log(Level.SEVERE, null, ex);
-        }
-        return null;
+    /**
+     * @param <T>
+     * @param instance
+     * @return a future failing with an {@link IllegalArgumentException} when
+     * the model has no index to save it by, completing with null when dirty
+     * tracking is on and nothing changed
+     */
+    public final <T> MongoFuture<UpdateResult> saveAsync(T instance) {
+        return this.saveChangesAsync(instance).map(new Transformer<SaveResult, UpdateResult>() {
+
+            @Override
+            public UpdateResult apply(SaveResult result) {
+                return result.getUpdateResult();
+            }
+
+        });
     }
 
-    public <T> T fromDBObject(T instance, Document data) {
-        Collection<Field> fields = getAnnotationFields(instance.getClass(), DBSync.class);
-        for (Field f : fields) {
-            DBSync load = f.getAnnotation(DBSync.class);
-            if (load == null) {
-                continue;
-            }
-            String varName = f.getName();
-            if (!load.value().isEmpty()) {
-                varName = load.value();
-            }
-            if (!data.containsKey(varName)) {
-                continue;
-            }
-            boolean accessible = f.isAccessible();
-            if (!accessible) {
-                f.setAccessible(true);
-            }
-            if (f.getType().isArray()) { // array
-                // unsupported? ;s - reflection doesn't allow this
-                /*
-                Class<?> arrayType = getArrayType(f);
-                if (isPrimitive(arrayType)) {
-                    try {
-                        f.set(instance, data.get(varName));
-                    } catch (IllegalArgumentException | IllegalAccessException ex) {
-                        Logger.getLogger(SimpleCollection.class.getName()).log(Level.SEVERE, null, ex);
-                    }
+    /**
+     * Saves a model by its index, replacing or inserting its document as a
+     * whole. With {@link #setDirtyTracking(boolean)} on and the model loaded
+     * from or saved to this collection before, only the changed fields are
+     * sent as $set and $unset, and nothing when nothing changed. The update
+     * result is null then. New models, models whose index value changed and
+     * models whose document is gone are still replaced, or inserted, as a whole.
+     * @param <T>
+     * @param instance
+     * @return a future failing with an {@link IllegalArgumentException} when
+     * the model has no index to save it by
+     */
+    public final <T> MongoFuture<SaveResult> saveChangesAsync(final T instance) {
+        ModelMapper<T> mapper = ModelMappers.forClass((Class<T>) instance.getClass());
+        final String key = mapper.getIndexKey();
+        if (key == null) {
+            return MongoFutures.failed(new IllegalArgumentException("Cannot save object: " + instance.getClass().getName()));
+        }
+        final Document obj = mapper.encode(instance);
+        final Object value = obj.get(key);
+        Document before = this.dirtyTracking ? ModelSnapshots.get(this.snapshotOwner, instance) : null;
+        if (before == null || !ModelSnapshots.equal(before.get(key), value)) {
+            return this.replace(instance, key, value, obj);
+        }
+        final Document after = ModelSnapshots.copy(obj);
+        final Document changes = ModelSnapshots.diff(before, after);
+        if (changes.isEmpty()) {
+            // nothing was sent, so there is no result of the server to report
+            return MongoFutures.completed(new SaveResult(null, obj, null, true, this.collection.getCodecRegistry()));
+        }
+        final MongoFuture<SaveResult> future = new MongoFuture<>();
+        this.updateAsync(Query.equals(key, value), new Update(changes), false, false).flatMap(new AsyncTransformer<UpdateResult, SaveResult>() {
 
-                    f.setAccessible(accessible);
-                    continue;
-                }
-                ArrayList arrayData = (ArrayList) data.get(varName);
-                Collection arrayResult = new ArrayList();
-                for (Object arrayObject : arrayData) {
-                    Document arrayObjectDB = (Document) arrayObject;
-                    Object arrayObjectOutput = fromDBObject(arrayType, arrayObjectDB);
-                    arrayResult.add(arrayObjectOutput);
-                }
-                try {
-                    f.set(instance, arrayResult.toArray((f.getType().cast(Array.newInstance(f.getType(), arrayResult.size()))));
-                } catch (IllegalArgumentException | IllegalAccessException ex) {
-                    Logger.getLogger(SimpleCollection.class.getName()).log(Level.SEVERE, null, ex);
-                }
-                f.setAccessible(accessible); */
-                continue;
-            } else if (Collection.class.isAssignableFrom(f.getType())) { // collection
-                Class<?> collectionType = getCollectionType(f);
-                if (isPrimitive(collectionType)) {
-                    try {
-                        f.set(instance, data.get(varName));
-                    } catch (IllegalArgumentException | IllegalAccessException ex) {
-                        Logger.getLogger(SimpleCollection.class.getName()).log(Level.SEVERE, null, ex);
-                    }
-                    f.setAccessible(accessible);
-                    continue;
-                }
-                ArrayList collectionData = (ArrayList) data.get(varName);
-                Collection collectionResult = new ArrayList();
-                for (Object collectionObject : collectionData) {
-                    Document collectionObjectDB = (Document) collectionObject;
-                    Object collectionObjectOutput = fromDBObject(collectionType, collectionObjectDB);
-                    collectionResult.add(collectionObjectOutput);
-                }
-                try {
-                    f.set(instance, collectionResult);
-                } catch (IllegalArgumentException | IllegalAccessException ex) {
-                    Logger.getLogger(SimpleCollection.class.getName()).log(Level.SEVERE, null, ex);
+            @Override
+            public MongoFuture<SaveResult> apply(UpdateResult result) {
+                if (result.wasAcknowledged() && result.getMatchedCount() == 0) {
+                    // removed since it was loaded, put it back as a whole
+                    return SimpleCollection.this.replace(instance, key, value, obj);
                 }
-                f.setAccessible(accessible);
-                continue;
-            } else if (!isPrimitive(f.getType())) {
-                Object o = fromDBObject(f.getType(), (Document) data.get(varName));
-                try {
-                    f.set(instance, o);
-                } catch (IllegalArgumentException | IllegalAccessException ex) {
-                    Logger.getLogger(SimpleCollection.class.getName()).log(Level.SEVERE, null, ex);
+                ModelSnapshots.trackCopy(SimpleCollection.this.snapshotOwner, instance, after);
+                return MongoFutures.completed(new SaveResult(result, obj, changes, true, SimpleCollection.this.collection.getCodecRegistry()));
+            }
+
+        }).onComplete(new FutureCallback<SaveResult>() {
+
+            @Override
+            public void onComplete(SaveResult result, Exception err) {
+                if (err != null) {
+                    // whether it was applied is not known, the next save replaces it as a whole
+                    ModelSnapshots.forget(SimpleCollection.this.snapshotOwner, instance);
+                    future.fail(err);
+                } else {
+                    future.complete(result);
                 }
-                f.setAccessible(accessible);
-                continue;
             }
-            Object o = data.get(varName);
-            try {
-                f.set(instance, o);
-            } catch (IllegalAccessException | IllegalArgumentException ex) {
-                Logger.getLogger(SimpleCollection.class.getName()).log(Level.SEVERE, null, ex);
+
+        });
+        return future;
+    }
+
+    private <T> MongoFuture<SaveResult> replace(final T instance, String key, Object value, final Document obj) {
+        // copied before sending, the model may change while the write is queued
+        final Document after = this.dirtyTracking ? ModelSnapshots.copy(obj) : null;
+        return this.updateOrInsertAsync(key, value, new Update(obj)).map(new Transformer<UpdateResult, SaveResult>() {
+
+            @Override
+            public SaveResult apply(UpdateResult result) {
+                if (after != null) {
+                    ModelSnapshots.trackCopy(SimpleCollection.this.snapshotOwner, instance, after);
+                }
+                return new SaveResult(result, obj, obj, false, SimpleCollection.this.collection.getCodecRegistry());
             }
-            f.setAccessible(accessible);
+
+        });
+    }
+
+    public <T> T fromDBObject(Class<T> type, Document data) {
+        return this.track(ModelMappers.decode(type, data));
+    }
+
+    public <T> T fromDBObject(T instance, Document data) {
+        return this.track(ModelMappers.forClass((Class<T>) instance.getClass()).decode(instance, data));
+    }
+
+    private <T> T track(T instance) {
+        if (this.dirtyTracking && instance != null) {
+            ModelSnapshots.track(this.snapshotOwner, instance, asDBObject(instance));
         }
         return instance;
     }
@@ -618,42 +1036,37 @@ public class SimpleCollection {
     }
 
     public final <T> void load(final T instance, final ObjectLoadedCallback callback) {
-        Field[] fields = instance.getClass().getDeclaredFields();
-        Query q = new Query();
         final Class<?> cast = instance.getClass();
-        boolean exc = true;
-        for (Field f : fields) {
-            try {
-                if (!f.isAnnotationPresent(DBSync.class)) {
-                    continue;
-                }
-                DBSync saveData = f.getAnnotation(DBSync.class);
-                boolean access = f.isAccessible();
-                if (!access) {
-                    f.setAccessible(access);
-                }
-                String varName = f.getName();
-                if (!saveData.value().isEmpty()) {
-                    varName = saveData.value();
-                }
-                if (saveData.index()) {
-                    Object value = f.get(instance);
-                    if (varName != null && value != null) {
-                        q.append(Query.equals(varName, value));
-                        exc = false;
-                    }
-                }
-                f.setAccessible(access);
-            } catch (IllegalAccessException | IllegalArgumentException ex) {
-                ex.printStackTrace();
+        ModelMapper<T> mapper = ModelMappers.forClass((Class<T>) cast);
+        final String key = mapper.getIndexKey();
+        final Object value = key == null ? null : mapper.getIndexValue(instance);
+        if (value == null) {
+            System.out.println("No indexes set to query instance of " + instance.getClass().getName());
+            if (callback != null) {
+                callback.onObjectLoaded(cast.cast(instance));
             }
+            return;
         }
-        if (exc) {
-            System.out.println("No indexes set to query instance of " + instance.getClass().getName());
-            callback.onObjectLoaded(cast.cast(instance));
+        if (this.loadBatcher != null) {
+            this.loadBatcher.load(instance, key, value).onComplete(new FutureCallback<T>() {
+
+                @Override
+                public void onComplete(T result, Exception err) {
+                    if (err != null) {
+                        err.printStackTrace();
+                    } else if (result != null) {
+                        if (callback != null) {
+                            callback.onObjectLoaded(cast.cast(instance));
+                        }
+                    } else {
+                        System.out.println("Failed loading data for " + instance.getClass().getName() + " with " + key + " = " + value);
+                    }
+                }
+
+            });
             return;
         }
-        this.findOne(q, new ReadCallback() {
+        this.findOne(Query.equals(key, value), new ReadCallback() {
 
             @Override
             public void onQueryDone(Document result, Exception err) {
@@ -661,7 +1074,9 @@ public class SimpleCollection {
                     err.printStackTrace();
                 } else if (result != null) {
                     SimpleCollection.this.fromDBObject(instance, result);
-                    callback.onObjectLoaded(cast.cast(instance));
+                    if (callback != null) {
+                        callback.onObjectLoaded(cast.cast(instance));
+                    }
                 } else {
                     System.out.println("Failed loading data for " + instance.getClass().getName());
                 }
@@ -670,33 +1085,203 @@ public class SimpleCollection {
         });
     }
 
+    /**
+     * With {@link SchedulerOptions#loadBatching(int, long, TimeUnit)} set the
+     * load waits to be read together with others of the same class.
+     * @param <T>
+     * @param instance
+     * @return a future of the loaded instance, completing with null when no
+     * document matches its index and failing with an {@link IllegalArgumentException}
+     * when the index is not set
+     */
+    public final <T> MongoFuture<T> loadAsync(final T instance) {
+        ModelMapper<T> mapper = ModelMappers.forClass((Class<T>) instance.getClass());
+        String key = mapper.getIndexKey();
+        Object value = key == null ? null : mapper.getIndexValue(instance);
+        if (value == null) {
+            return MongoFutures.failed(new IllegalArgumentException("No indexes set to query instance of " + instance.getClass().getName()));
+        }
+        if (this.loadBatcher != null) {
+            return this.loadBatcher.load(instance, key, value);
+        }
+        return this.findOneAsync(Query.equals(key, value)).map(new Transformer<Document, T>() {
+
+            @Override
+            public T apply(Document result) {
+                return result == null ? null : SimpleCollection.this.fromDBObject(instance, result);
+            }
+
+        });
+    }
+
     public Document findAndUpdateSync(Query q, Update u) {
-        Document result = (Document) this.collection.findOneAndUpdate((Document) q.getQuery(), (Document) u.getUpdateQuery());
-        return result;
+        try {
+            return (Document) this.collection.findOneAndUpdate((Document) q.getQuery(), (Document) u.getUpdateQuery(), updateOptions(q));
+        } finally {
+            this.changed();
+        }
     }
 
     public void findAndUpdate(final Query q, final Update u, final FindAndUpdateCallback callback) {
-        this.scheduler.doWrite(new Runnable() {
+        this.findAndUpdateAsync(q, u).onComplete(new FutureCallback<Document>() {
 
             @Override
-            public void run() {
-                try {
-                    Document d = SimpleCollection.this.findAndUpdateSync(q, u);
-                    if (callback != null) {
-                        callback.onQueryDone(d, null);
-                    }
-                } catch (Exception ex) {
-                    if (callback != null) {
-                        callback.onQueryDone(null, ex);
-                    }
+            public void onComplete(Document result, Exception err) {
+                if (callback != null) {
+                    callback.onQueryDone(result, err);
                 }
             }
 
         });
     }
 
+    public MongoFuture<Document> findAndUpdateAsync(final Query q, final Update u) {
+        return this.write(q.getQuery(), new FutureOperation<Document>() {
+
+            @Override
+            Document call() throws Exception {
+                return SimpleCollection.this.findAndUpdateSync(q, u);
+            }
+
+        });
+    }
+
+    private <R> MongoFuture<R> read(FutureOperation<R> op) {
+        this.scheduler.doRead(op);
+        return op.future;
+    }
+
+    /**
+     * Sends a write through the journal of the connection.
+     */
+    private <R> MongoFuture<R> journal(Object key, Document record) {
+        return this.written(this.scheduler.getJournal().<R>submit(this, key, record));
+    }
+
+    /**
+     * Called once a write through this collection finished, reads started
+     * before may not have seen it.
+     */
+    private void changed() {
+        this.coalescer.written();
+        QueryCache cache = this.queryCache;
+        if (cache != null) {
+            cache.written();
+        }
+    }
+
+    /**
+     * Keeps reads from joining reads that started before the write finished,
+     * for writes not sent through the synchronous methods.
+     * @param write
+     * @return the write
+     */
+    <R> MongoFuture<R> written(MongoFuture<R> write) {
+        return write.onComplete(this.writeDone);
+    }
+
+    private <R> MongoFuture<R> write(Object key, FutureOperation<R> op) {
+        int lane = this.scheduler.laneOf(key);
+        if (this.batcher != null) {
+            this.batcher.flush(lane);
+        }
+        this.scheduler.doWrite(lane, op);
+        return op.future;
+    }
+
     public MongoCollection getHandle() {
         return this.collection;
     }
 
+    /**
+     * @param <T>
+     * @param type a {@link net.wouto.modelsync.mongo.annotations.DBSync} model
+     * @return the collection decoding documents straight into the given model
+     */
+    public <T> MongoCollection<T> getHandle(Class<T> type) {
+        MongoCollection<?> typed = this.typedCollections.get(type);
+        if (typed == null) {
+            typed = this.collection.withDocumentClass(type);
+            this.typedCollections.put(type, typed);
+        }
+        return (MongoCollection<T>) typed;
+    }
+
+    private <T> FindIterable<T> find(MongoCollection<T> handle, Query q) {
+        FindIterable<T> find = handle.find((Document) q.getQuery());
+        if (q.getSkip() > 0) {
+            find.skip(q.getSkip());
+        }
+        if (q.getLimit() > 0) {
+            find.limit(q.getLimit());
+        }
+        if (q.getBatchSize() > 0) {
+            find.batchSize(q.getBatchSize());
+        }
+        if (q.getMaxTime(TimeUnit.MILLISECONDS) > 0) {
+            find.maxTime(q.getMaxTime(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+        }
+        if (q.getSort() != null) {
+            find.sort(q.getSort());
+        }
+        if (q.getProjection() != null) {
+            find.projection(q.getProjection());
+        }
+        if (q.getModifiers() != null) {
+            find.modifiers(q.getModifiers());
+        }
+        return find;
+    }
+
+    static FindOneAndDeleteOptions deleteOptions(Query q) {
+        return new FindOneAndDeleteOptions()
+                .sort(q.getSort())
+                .projection(q.getProjection())
+                .maxTime(q.getMaxTime(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+    }
+
+    static FindOneAndUpdateOptions updateOptions(Query q) {
+        return new FindOneAndUpdateOptions()
+                .sort(q.getSort())
+                .projection(q.getProjection())
+                .maxTime(q.getMaxTime(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+    }
+
+    private static final class StreamSubscriber<T> implements Subscriber<T> {
+
+        private final StreamCallback<T> callback;
+        private Subscription subscription;
+        private long count;
+
+        private StreamSubscriber(StreamCallback<T> callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            this.subscription = s;
+            s.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(T t) {
+            this.count++;
+            if (!this.callback.onNext(t)) {
+                this.subscription.cancel();
+                this.callback.onComplete(this.count, null);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            this.callback.onComplete(this.count, t instanceof Exception ? (Exception) t : new ExecutionException(t));
+        }
+
+        @Override
+        public void onComplete() {
+            this.callback.onComplete(this.count, null);
+        }
+
+    }
+
 }
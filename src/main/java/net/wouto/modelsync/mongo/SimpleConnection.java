@@ -3,15 +3,28 @@ package net.wouto.modelsync.mongo;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoClientURI;
 import com.mongodb.MongoCredential;
+import com.mongodb.client.MongoCollection;
 import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+import net.wouto.modelsync.mongo.journal.WriteJournal;
+import net.wouto.modelsync.mongo.memory.InMemoryMongo;
+import org.bson.Document;
 
 public class SimpleConnection {
+
+    /**
+     * How long {@link #disconnect()} waits for write-behind managers to write what they hold.
+     */
+    private static final long DRAIN_TIMEOUT_SECONDS = 30;
     
     private String ip;
     private int port;
     
     private MongoClient client;
+    private InMemoryMongo memory;
+    private NonBlockingDriver nonBlocking;
     private SimpleScheduler scheduler;
+    private Engine engine;
     
     private String username;
     private String password;
@@ -26,9 +39,19 @@ public class SimpleConnection {
     }
     
     public SimpleConnection(String ip, int port) {
+        this(ip, port, new SchedulerOptions());
+    }
+    
+    /**
+     * @param ip
+     * @param port
+     * @param options the sizes of the read and write pools
+     */
+    public SimpleConnection(String ip, int port, SchedulerOptions options) {
         this.ip = ip;
         this.port = port;
-        this.scheduler = new SimpleScheduler(this);
+        this.scheduler = new SimpleScheduler(this, options);
+        this.engine = Engine.BLOCKING;
         this.username = null;
         this.password = null;
         this.authDB = null;
@@ -40,6 +63,56 @@ public class SimpleConnection {
         this.authDB = database;
     }
     
+    /**
+     * Chooses the driver asynchronous operations run on, takes effect on the next connect.
+     * @param engine
+     * @throws IllegalStateException when the driver for the engine is not on the classpath
+     */
+    public void setEngine(Engine engine) {
+        if (!engine.isAvailable()) {
+            throw new IllegalStateException(engine + " requires org.mongodb:mongodb-driver-async on the classpath");
+        }
+        this.engine = engine;
+    }
+
+    public Engine getEngine() {
+        return this.engine;
+    }
+    
+    /**
+     * Appends every asynchronous write to a journal before it is sent, so
+     * writes made while the server can not be reached are kept on disk and
+     * sent once it is back, and writes left in the journal by an earlier run
+     * are sent on connect. Set it before connecting, the journal is not
+     * closed by {@link #disconnect()}.
+     * <br />
+     * Writes are delivered at least once: a write that was in flight when the
+     * server was lost is sent again, even though it may have been applied.
+     * Updates using $inc, $push or another operator that applies again are
+     * refused with an IllegalArgumentException, see
+     * {@link net.wouto.modelsync.mongo.journal.WriteRecords#isIdempotent(Document)}.
+     * @param journal null to send writes directly
+     */
+    public void setJournal(WriteJournal journal) {
+        JournaledWrites current = this.scheduler.getJournal();
+        if (current != null) {
+            current.stop();
+        }
+        this.scheduler.setJournal(journal == null ? null : new JournaledWrites(this, this.scheduler, journal));
+    }
+
+    public WriteJournal getJournal() {
+        JournaledWrites current = this.scheduler.getJournal();
+        return current == null ? null : current.getJournal();
+    }
+
+    private void startJournal() {
+        JournaledWrites current = this.scheduler.getJournal();
+        if (current != null) {
+            current.start();
+        }
+    }
+    
     public void connect() throws UnknownHostException {
         if (this.ip.endsWith("/")) {
             this.ip = this.ip.substring(0, this.ip.length() - 1);
@@ -51,11 +124,48 @@ public class SimpleConnection {
             uri = new MongoClientURI("mongodb://" + this.ip + ":" + this.port + "/");
         }
         this.client = new MongoClient(uri);
+        if (this.engine == Engine.NON_BLOCKING) {
+            this.nonBlocking = NonBlockingDriver.connect(uri.getURI(), this.scheduler.getOptions());
+        }
+        this.startJournal();
+    }
+    
+    /**
+     * Connects to a fresh {@link InMemoryMongo} instead of a server.
+     */
+    public void connectInMemory() {
+        this.connectInMemory(new InMemoryMongo());
+    }
+    
+    /**
+     * Connects to an embedded in-memory store instead of a server, for load
+     * tests and benchmarks without any network involved.
+     * @param memory the store, may be shared between connections
+     */
+    public void connectInMemory(InMemoryMongo memory) {
+        this.memory = memory;
+        if (this.engine == Engine.NON_BLOCKING) {
+            this.nonBlocking = NonBlockingDriver.inMemory(memory, this.scheduler.getOptions());
+        }
+        this.startJournal();
     }
     
     public void disconnect() {
-        this.client.close();
+        this.scheduler.drainWrites(DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        JournaledWrites journal = this.scheduler.getJournal();
+        if (journal != null) {
+            // what was not sent yet stays in the journal for the next connect
+            journal.stop();
+        }
+        if (this.client != null) {
+            this.client.close();
+        }
+        if (this.nonBlocking != null) {
+            this.nonBlocking.close();
+        }
         this.client = null;
+        this.nonBlocking = null;
+        this.memory = null;
     }
     
     public SimpleScheduler getScheduler() {
@@ -63,12 +173,27 @@ public class SimpleConnection {
     }
     
     public SimpleCollection getCollection(String database, String collection) {
-        if (this.client == null) {
+        if (!this.isConnected()) {
             return null;
         }
         return this.scheduler.getCollection(database, collection);
     }
     
+    SimpleCollection createCollection(String database, String collection) {
+        MongoCollection<Document> blocking = this.openCollection(database, collection);
+        if (this.nonBlocking != null) {
+            return this.nonBlocking.getCollection(this.scheduler, blocking, database, collection);
+        }
+        return new SimpleCollection(this.scheduler, blocking);
+    }
+    
+    MongoCollection<Document> openCollection(String database, String collection) {
+        if (this.memory != null) {
+            return this.memory.getCollection(database, collection);
+        }
+        return this.client.getDatabase(database).getCollection(collection);
+    }
+    
     public String getIp() {
         return this.ip;
     }
@@ -81,8 +206,15 @@ public class SimpleConnection {
         return this.client;
     }
     
+    /**
+     * @return the in-memory store when connected through {@link #connectInMemory(InMemoryMongo)}, null otherwise
+     */
+    public InMemoryMongo getInMemory() {
+        return this.memory;
+    }
+    
     public boolean isConnected() {
-        return (this.client != null);
+        return (this.client != null || this.memory != null);
     }
     
     
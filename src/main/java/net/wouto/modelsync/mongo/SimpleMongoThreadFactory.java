@@ -1,20 +1,21 @@
 package net.wouto.modelsync.mongo;
 
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class SimpleMongoThreadFactory implements ThreadFactory {
     
     private final String prefix;
-    private int counter;
+    private final AtomicInteger counter;
     
     public SimpleMongoThreadFactory(String prefix) {
         this.prefix = prefix;
-        this.counter = 0;
+        this.counter = new AtomicInteger();
     }
 
     @Override
     public Thread newThread(Runnable r) {
-        return new Thread(r, prefix + "-" + counter++);
+        return new Thread(r, prefix + "-" + counter.getAndIncrement());
     }
     
 }
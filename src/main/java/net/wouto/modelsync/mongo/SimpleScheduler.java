@@ -1,35 +1,382 @@
 package net.wouto.modelsync.mongo;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.wouto.modelsync.mongo.future.MongoFuture;
+import net.wouto.modelsync.mongo.future.MongoFutures;
 
 public class SimpleScheduler {
-    
+
     private final SimpleConnection connection;
-    
-    private final ExecutorService writeThreads;
-    private final ExecutorService readThreads;
-    
+    private final SchedulerOptions options;
+
+    private final ExecutionMode executionMode;
+    private final Executor[] writeLanes;
+    private final Executor unorderedWrites;
+    private final AtomicInteger nextLane;
+    private final Executor readThreads;
+
+    private final AtomicLong rejectedWrites;
+    private final AtomicLong rejectedReads;
+
+    private ScheduledExecutorService timer;
+    private final Set<WriteBatcher> batchers;
+    private final Set<HeldWrites> held;
+    private volatile JournaledWrites journal;
+
     SimpleScheduler(SimpleConnection connection) {
-        this.writeThreads = Executors.newCachedThreadPool(new SimpleMongoThreadFactory("SimpleMongo-Write"));
-        this.readThreads = Executors.newCachedThreadPool(new SimpleMongoThreadFactory("SimpleMongo-Read"));
+        this(connection, new SchedulerOptions());
+    }
+
+    SimpleScheduler(SimpleConnection connection, SchedulerOptions options) {
+        ThreadFactory readFactory = null;
+        ThreadFactory writeFactory = null;
+        if (options.getExecutionMode() == ExecutionMode.VIRTUAL) {
+            readFactory = VirtualThreadExecutor.virtualThreadFactory("SimpleMongo-Read");
+            writeFactory = VirtualThreadExecutor.virtualThreadFactory("SimpleMongo-Write");
+            if (readFactory == null || writeFactory == null) {
+                Logger.getLogger(SimpleScheduler.class.getName()).log(Level.WARNING,
+                        "Virtual threads are not available on Java {0}, using pooled threads instead", System.getProperty("java.version"));
+            }
+        }
+        if (readFactory != null && writeFactory != null) {
+            this.executionMode = ExecutionMode.VIRTUAL;
+            VirtualThreadExecutor writes = new VirtualThreadExecutor(writeFactory, options.getWriteThreads(), options.getWriteQueueSize(), options.getSaturationPolicy());
+            this.writeLanes = new Executor[options.getWriteThreads() * 4];
+            for (int i = 0; i < this.writeLanes.length; i++) {
+                this.writeLanes[i] = writes.newLane();
+            }
+            this.unorderedWrites = writes;
+            this.readThreads = new VirtualThreadExecutor(readFactory, options.getReadThreads(), options.getReadQueueSize(), options.getSaturationPolicy());
+        } else {
+            this.executionMode = ExecutionMode.POOLED;
+            this.writeLanes = createLanes("SimpleMongo-Write", options);
+            this.unorderedWrites = null;
+            this.readThreads = createPool("SimpleMongo-Read", options.getReadThreads(), options.getReadQueueSize(), options.getSaturationPolicy(), options);
+        }
+        this.nextLane = new AtomicInteger();
+        this.rejectedWrites = new AtomicLong();
+        this.rejectedReads = new AtomicLong();
         this.connection = connection;
+        this.options = options;
+        this.batchers = Collections.newSetFromMap(new WeakHashMap<WriteBatcher, Boolean>());
+        this.held = Collections.newSetFromMap(new WeakHashMap<HeldWrites, Boolean>());
+    }
+
+    private static ThreadPoolExecutor createPool(String name, int threads, int queueSize, SaturationPolicy policy, SchedulerOptions options) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+                options.getKeepAlive(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                new SimpleMongoThreadFactory(name),
+                policy.handler());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
     }
-    
+
+    /**
+     * Creates one single threaded pool per write thread, each with its share of the write queue.
+     * Running a write on the calling thread would overtake the writes queued
+     * before it, so {@link SaturationPolicy#CALLER_RUNS} blocks the caller instead.
+     */
+    private static ThreadPoolExecutor[] createLanes(String name, SchedulerOptions options) {
+        SaturationPolicy policy = options.getSaturationPolicy();
+        if (policy == SaturationPolicy.CALLER_RUNS) {
+            policy = SaturationPolicy.BLOCK;
+        }
+        ThreadPoolExecutor[] lanes = new ThreadPoolExecutor[options.getWriteThreads()];
+        int queueSize = Math.max(1, options.getWriteQueueSize() / lanes.length);
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = createPool(name + "-" + i, 1, queueSize, policy, options);
+        }
+        return lanes;
+    }
+
     public SimpleConnection getConnection() {
         return this.connection;
     }
-    
+
+    public SchedulerOptions getOptions() {
+        return this.options;
+    }
+
+    /**
+     * @return the mode in use, which is {@link ExecutionMode#POOLED} when
+     * virtual threads were requested but are not available
+     */
+    public ExecutionMode getExecutionMode() {
+        return this.executionMode;
+    }
+
     public SimpleCollection getCollection(String db, String collection) {
-        return new SimpleCollection(this, this.connection.getConnection().getDatabase(db).getCollection(collection));
+        return this.connection.createCollection(db, collection);
     }
-    
+
+    /**
+     * Queues a write that does not need to be ordered against other writes.
+     * @param r
+     */
     public void doWrite(Runnable r) {
-        this.writeThreads.execute(r);
+        this.doWrite(null, r);
+    }
+
+    /**
+     * Queues a write behind every earlier write submitted with an equal key.
+     * Writes with different keys are spread over all write threads and run in parallel.
+     * @param key the document the write targets, usually its index value or the
+     * filter document, null when the write does not need ordering
+     * @param r
+     */
+    public void doWrite(Object key, Runnable r) {
+        this.doWrite(this.laneOf(key), r);
+    }
+
+    /**
+     * @param lane a lane from {@link #laneOf(Object)}, -1 for a write that does not need ordering
+     * @param r
+     */
+    void doWrite(int lane, Runnable r) {
+        Executor executor;
+        if (lane >= 0) {
+            executor = this.writeLanes[lane];
+        } else if (this.unorderedWrites != null) {
+            executor = this.unorderedWrites;
+        } else {
+            executor = this.writeLanes[(this.nextLane.getAndIncrement() & Integer.MAX_VALUE) % this.writeLanes.length];
+        }
+        this.submit(executor, this.rejectedWrites, r);
+    }
+
+    /**
+     * @param key
+     * @return the lane writes with this key are queued on, -1 for a null key
+     */
+    int laneOf(Object key) {
+        if (key == null) {
+            return -1;
+        }
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return (h & Integer.MAX_VALUE) % this.writeLanes.length;
+    }
+
+    int getLaneCount() {
+        return this.writeLanes.length;
+    }
+
+    /**
+     * @return the timer flushing write batches and held back writes, started on first use
+     */
+    synchronized ScheduledExecutorService getTimer() {
+        if (this.timer == null) {
+            ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new SimpleMongoThreadFactory("SimpleMongo-Timer"));
+            timer.setRemoveOnCancelPolicy(true);
+            timer.setKeepAliveTime(this.options.getKeepAlive(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+            timer.allowCoreThreadTimeOut(true);
+            this.timer = timer;
+        }
+        return this.timer;
+    }
+
+    /**
+     * @return the journal asynchronous writes go through, null when there is none
+     */
+    JournaledWrites getJournal() {
+        return this.journal;
+    }
+
+    void setJournal(JournaledWrites journal) {
+        this.journal = journal;
+    }
+
+    void register(WriteBatcher batcher) {
+        synchronized (this.batchers) {
+            this.batchers.add(batcher);
+        }
+    }
+
+    void register(HeldWrites writes) {
+        synchronized (this.held) {
+            this.held.add(writes);
+        }
     }
-    
+
+    void unregister(HeldWrites writes) {
+        synchronized (this.held) {
+            this.held.remove(writes);
+        }
+    }
+
+    /**
+     * Queues every write still waiting in a batch, held back by a
+     * write-behind manager or summed by an increment aggregator right away,
+     * instead of when its batch fills up or its delay passes.
+     */
+    public void flushWrites() {
+        this.flushHeldWrites();
+    }
+
+    private List<MongoFuture<?>> flushHeldWrites() {
+        List<HeldWrites> managers;
+        synchronized (this.held) {
+            managers = new ArrayList<>(this.held);
+        }
+        List<MongoFuture<?>> flushes = new ArrayList<>(managers.size());
+        for (HeldWrites writes : managers) {
+            flushes.add(writes.flush());
+        }
+        List<WriteBatcher> pending;
+        synchronized (this.batchers) {
+            pending = new ArrayList<>(this.batchers);
+        }
+        for (WriteBatcher batcher : pending) {
+            batcher.flush();
+        }
+        return flushes;
+    }
+
+    /**
+     * Flushes held back writes and waits for the write-behind managers and
+     * increment aggregators to finish writing, used before the connection closes.
+     * @param timeout
+     * @param unit
+     */
+    void drainWrites(long timeout, TimeUnit unit) {
+        List<MongoFuture<?>> flushes = this.flushHeldWrites();
+        if (flushes.isEmpty()) {
+            return;
+        }
+        try {
+            MongoFutures.allOf(flushes).get(timeout, unit);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            // already reported by whoever held the writes
+        } catch (TimeoutException ex) {
+            Logger.getLogger(SimpleScheduler.class.getName()).log(Level.WARNING,
+                    "Held back writes did not finish within {0} {1}", new Object[]{timeout, unit});
+        }
+    }
+
     public void doRead(Runnable r) {
-        this.readThreads.execute(r);
+        this.submit(this.readThreads, this.rejectedReads, r);
+    }
+
+    /**
+     * Queues a task. When the pool refuses it, an operation gets the
+     * {@link RejectedExecutionException} through its callback, any other
+     * runnable has it thrown to the caller.
+     */
+    private void submit(Executor pool, AtomicLong rejected, Runnable r) {
+        try {
+            pool.execute(r);
+        } catch (RejectedExecutionException ex) {
+            rejected.incrementAndGet();
+            if (!(r instanceof MongoOperation)) {
+                throw ex;
+            }
+            ((MongoOperation) r).done(null, ex);
+        }
+    }
+
+    private Executor[] writeExecutors() {
+        return this.unorderedWrites == null ? this.writeLanes : new Executor[]{this.unorderedWrites};
+    }
+
+    private static int queueDepth(Executor... executors) {
+        int depth = 0;
+        for (Executor e : executors) {
+            depth += e instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) e).getQueue().size() : ((VirtualThreadExecutor) e).getQueueDepth();
+        }
+        return depth;
+    }
+
+    private static int activeCount(Executor... executors) {
+        int active = 0;
+        for (Executor e : executors) {
+            active += e instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) e).getActiveCount() : ((VirtualThreadExecutor) e).getActiveCount();
+        }
+        return active;
+    }
+
+    private static int threadCount(Executor... executors) {
+        int size = 0;
+        for (Executor e : executors) {
+            size += e instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) e).getPoolSize() : ((VirtualThreadExecutor) e).getThreadCount();
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of writes waiting for a thread
+     */
+    public int getWriteQueueDepth() {
+        return queueDepth(this.writeExecutors());
+    }
+
+    /**
+     * @return the number of reads waiting for a thread
+     */
+    public int getReadQueueDepth() {
+        return queueDepth(this.readThreads);
+    }
+
+    /**
+     * @return the number of threads currently running a write
+     */
+    public int getActiveWriteThreads() {
+        return activeCount(this.writeExecutors());
+    }
+
+    /**
+     * @return the number of threads currently running a read
+     */
+    public int getActiveReadThreads() {
+        return activeCount(this.readThreads);
     }
-    
+
+    /**
+     * @return the number of write threads alive, busy or idle
+     */
+    public int getWritePoolSize() {
+        return threadCount(this.writeExecutors());
+    }
+
+    /**
+     * @return the number of read threads alive, busy or idle
+     */
+    public int getReadPoolSize() {
+        return threadCount(this.readThreads);
+    }
+
+    /**
+     * @return the number of writes refused since this scheduler started
+     */
+    public long getRejectedWrites() {
+        return this.rejectedWrites.get();
+    }
+
+    /**
+     * @return the number of reads refused since this scheduler started
+     */
+    public long getRejectedReads() {
+        return this.rejectedReads.get();
+    }
+
 }
@@ -0,0 +1,196 @@
+package net.wouto.modelsync.mongo;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Starts a new thread for every task, normally a virtual thread, and limits
+ * how many tasks run at the same time.
+ * <br />
+ * A task that is accepted gets its thread right away and waits on that thread
+ * for one of the running permits, so waiting costs no platform thread. The
+ * number of accepted but unfinished tasks is bounded as well, the
+ * {@link SaturationPolicy} decides what happens beyond that bound.
+ * @author Wouter
+ */
+final class VirtualThreadExecutor implements Executor {
+
+    private final ThreadFactory factory;
+    private final SaturationPolicy policy;
+    private final int maxInFlight;
+    private final Semaphore running;
+    private final Semaphore inFlight;
+    private final AtomicInteger waiting;
+    private final AtomicInteger active;
+
+    /**
+     * @param factory creates the thread of every task
+     * @param concurrency how many tasks may run at the same time
+     * @param queueSize how many accepted tasks may wait for a running permit
+     * @param policy what happens to tasks submitted beyond that
+     */
+    VirtualThreadExecutor(ThreadFactory factory, int concurrency, int queueSize, SaturationPolicy policy) {
+        this.factory = factory;
+        this.policy = policy;
+        this.maxInFlight = concurrency + queueSize;
+        this.running = new Semaphore(concurrency);
+        this.inFlight = new Semaphore(this.maxInFlight);
+        this.waiting = new AtomicInteger();
+        this.active = new AtomicInteger();
+    }
+
+    /**
+     * @param prefix the name prefix of the created threads
+     * @return a factory creating virtual threads, null when the running JVM has none
+     */
+    static ThreadFactory virtualThreadFactory(String prefix) {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Object builder = ofVirtual.invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix + "-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (Exception | LinkageError ex) {
+            // Older JVMs, or preview versions started without --enable-preview
+            return null;
+        }
+    }
+
+    @Override
+    public void execute(Runnable r) {
+        if (this.admit(r, this.policy)) {
+            this.start(r);
+        }
+    }
+
+    /**
+     * Takes an in-flight permit for a task.
+     * @return false when the policy ran the task on the calling thread instead
+     */
+    private boolean admit(Runnable r, SaturationPolicy policy) {
+        if (this.inFlight.tryAcquire()) {
+            return true;
+        }
+        switch (policy) {
+            case BLOCK:
+                try {
+                    this.inFlight.acquire();
+                    return true;
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException("Interrupted while waiting for an in-flight slot", ex);
+                }
+            case CALLER_RUNS:
+                r.run();
+                return false;
+            default:
+                throw new RejectedExecutionException("Task " + r + " rejected, " + this.maxInFlight + " tasks in flight");
+        }
+    }
+
+    /**
+     * Runs an admitted task on a thread of its own.
+     */
+    private void start(final Runnable r) {
+        Thread thread = this.factory.newThread(new Runnable() {
+
+            @Override
+            public void run() {
+                VirtualThreadExecutor.this.waiting.incrementAndGet();
+                VirtualThreadExecutor.this.running.acquireUninterruptibly();
+                VirtualThreadExecutor.this.waiting.decrementAndGet();
+                VirtualThreadExecutor.this.active.incrementAndGet();
+                try {
+                    r.run();
+                } finally {
+                    VirtualThreadExecutor.this.active.decrementAndGet();
+                    VirtualThreadExecutor.this.running.release();
+                    VirtualThreadExecutor.this.inFlight.release();
+                }
+            }
+
+        });
+        thread.start();
+    }
+
+    /**
+     * @return an executor running its tasks one at a time in submission order,
+     * each on a thread of this executor
+     */
+    Executor newLane() {
+        return new Lane();
+    }
+
+    /**
+     * @return the number of accepted tasks waiting to run
+     */
+    int getQueueDepth() {
+        return this.maxInFlight - this.inFlight.availablePermits() - this.active.get();
+    }
+
+    /**
+     * @return the number of tasks running
+     */
+    int getActiveCount() {
+        return this.active.get();
+    }
+
+    /**
+     * @return the number of threads started and not finished, running or waiting for a permit
+     */
+    int getThreadCount() {
+        return this.active.get() + this.waiting.get();
+    }
+
+    private final class Lane implements Executor {
+
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        private boolean scheduled;
+
+        @Override
+        public void execute(Runnable r) {
+            // Running on the caller could overtake queued tasks
+            if (!VirtualThreadExecutor.this.admit(r, VirtualThreadExecutor.this.policy == SaturationPolicy.CALLER_RUNS ? SaturationPolicy.BLOCK : VirtualThreadExecutor.this.policy)) {
+                return;
+            }
+            synchronized (this) {
+                this.tasks.add(r);
+                if (this.scheduled) {
+                    return;
+                }
+                this.scheduled = true;
+            }
+            this.next();
+        }
+
+        private void next() {
+            final Runnable r;
+            synchronized (this) {
+                r = this.tasks.poll();
+                if (r == null) {
+                    this.scheduled = false;
+                    return;
+                }
+            }
+            VirtualThreadExecutor.this.start(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        r.run();
+                    } finally {
+                        Lane.this.next();
+                    }
+                }
+
+            });
+        }
+
+    }
+
+}
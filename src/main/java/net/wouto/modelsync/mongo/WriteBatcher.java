@@ -0,0 +1,279 @@
+package net.wouto.modelsync.mongo;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.WriteError;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.BulkWriteUpsert;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.UpdateResult;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import net.wouto.modelsync.mongo.future.MongoFuture;
+import org.bson.BsonValue;
+import org.bson.Document;
+
+/**
+ * Collects the asynchronous inserts and upserts of a collection and sends
+ * them as bulk writes, see {@link SchedulerOptions#writeBatching(int, long, TimeUnit)}.
+ * <br />
+ * Upserts wait in a batch per write lane and are sent on that lane, so they
+ * stay ordered with the other writes to the same document. Inserts are not
+ * ordered and share a batch of their own. Only writes whose own result can
+ * be told from the combined result are batched, for an update without upsert
+ * or a remove the server only reports totals.
+ * @author Wouter
+ */
+final class WriteBatcher {
+
+    private final SimpleScheduler scheduler;
+    private final MongoCollection<Document> collection;
+    private final int size;
+    private final long delayMillis;
+    private final Batch[] batches;
+
+    WriteBatcher(SimpleScheduler scheduler, MongoCollection<Document> collection) {
+        this.scheduler = scheduler;
+        this.collection = collection;
+        this.size = scheduler.getOptions().getWriteBatchSize();
+        this.delayMillis = scheduler.getOptions().getWriteBatchDelay(TimeUnit.MILLISECONDS);
+        this.batches = new Batch[scheduler.getLaneCount() + 1];
+        for (int i = 0; i < this.batches.length; i++) {
+            this.batches[i] = new Batch(i < scheduler.getLaneCount() ? i : -1);
+        }
+        scheduler.register(this);
+    }
+
+    MongoFuture<Document> insert(final Document obj) {
+        return this.add(this.batches[this.batches.length - 1], new Pending<Document>(new InsertOneModel<>(obj)) {
+
+            @Override
+            Document result(BsonValue upsertedId, Long modified, boolean acknowledged) {
+                return obj;
+            }
+
+        });
+    }
+
+    /**
+     * @param key the document the write targets, as passed to {@link SimpleScheduler#doWrite(Object, Runnable)}
+     * @param model a replace or update of a single document with upsert
+     * @return
+     */
+    MongoFuture<UpdateResult> upsert(Object key, WriteModel<Document> model) {
+        return this.add(this.batches[this.scheduler.laneOf(key)], new Pending<UpdateResult>(model) {
+
+            @Override
+            UpdateResult result(BsonValue upsertedId, Long modified, boolean acknowledged) {
+                if (!acknowledged) {
+                    return UpdateResult.unacknowledged();
+                }
+                // an upsert matches the one document it targets unless it inserted it
+                return upsertedId == null ? UpdateResult.acknowledged(1, modified, null) : UpdateResult.acknowledged(0, 0L, upsertedId);
+            }
+
+        });
+    }
+
+    private <R> MongoFuture<R> add(final Batch batch, Pending<R> write) {
+        boolean full;
+        synchronized (batch) {
+            batch.writes.add(write);
+            full = batch.writes.size() >= this.size;
+            if (!full && batch.timer == null) {
+                batch.timer = this.scheduler.getTimer().schedule(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        WriteBatcher.this.send(batch);
+                    }
+
+                }, this.delayMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (full) {
+            this.send(batch);
+        }
+        return write.future;
+    }
+
+    /**
+     * Sends what is waiting on a lane, so a write that is not batched does not overtake it.
+     * @param lane a lane from {@link SimpleScheduler#laneOf(Object)}, nothing happens for -1
+     */
+    void flush(int lane) {
+        if (lane < 0) {
+            return;
+        }
+        this.send(this.batches[lane]);
+    }
+
+    void flush() {
+        for (Batch batch : this.batches) {
+            this.send(batch);
+        }
+    }
+
+    /**
+     * Takes the waiting writes and queues them. Queueing may wait for room on
+     * the lane, so it happens outside of the batch's lock and writes can be
+     * added meanwhile. Taking and queueing hold the batch's send lock, so
+     * batches of the same lane reach it in the order they were filled.
+     */
+    private void send(Batch batch) {
+        synchronized (batch.sending) {
+            List<Pending<?>> writes;
+            synchronized (batch) {
+                if (batch.timer != null) {
+                    batch.timer.cancel(false);
+                    batch.timer = null;
+                }
+                if (batch.writes.isEmpty()) {
+                    return;
+                }
+                writes = batch.writes;
+                batch.writes = new ArrayList<>();
+            }
+            this.scheduler.doWrite(batch.lane, new BatchOperation(writes));
+        }
+    }
+
+    private static final class Batch {
+
+        private final int lane;
+        private final Object sending;
+        private List<Pending<?>> writes;
+        private ScheduledFuture<?> timer;
+
+        private Batch(int lane) {
+            this.lane = lane;
+            this.sending = new Object();
+            this.writes = new ArrayList<>();
+        }
+
+    }
+
+    /**
+     * Splits the number of documents a bulk write changed over the writes
+     * that matched a document. Exact when all or none of them changed their
+     * document, otherwise the total is right but which write changed its
+     * document is not known, the first ones are counted.
+     * @param matched the number of writes that matched a document
+     * @param modified the number of documents changed, -1 when the server does not tell
+     * @return the number of documents every matched write changed, null when not known
+     */
+    static Long[] modifiedEach(int matched, long modified) {
+        Long[] each = new Long[Math.max(0, matched)];
+        for (int i = 0; i < each.length; i++) {
+            each[i] = modified < 0 ? null : Long.valueOf(i < modified ? 1 : 0);
+        }
+        return each;
+    }
+
+    /**
+     * A batched write and the future its caller waits on.
+     * @param <R>
+     */
+    private abstract static class Pending<R> {
+
+        private final WriteModel<Document> model;
+        private final MongoFuture<R> future;
+
+        private Pending(WriteModel<Document> model) {
+            this.model = model;
+            this.future = new MongoFuture<>();
+        }
+
+        /**
+         * @param upsertedId the _id of the document the write inserted, null when it did not
+         * @param modified the number of documents it changed, null when the server does not tell
+         * @param acknowledged
+         */
+        abstract R result(BsonValue upsertedId, Long modified, boolean acknowledged);
+
+        private void complete(BsonValue upsertedId, Long modified, boolean acknowledged) {
+            this.future.complete(this.result(upsertedId, modified, acknowledged));
+        }
+
+    }
+
+    /**
+     * Sends a batch as ordered bulk writes. A write the server rejects fails
+     * on its own, the writes after it are sent again in a new bulk write as
+     * they would have been without batching.
+     */
+    private final class BatchOperation extends MongoOperation<Void> {
+
+        private final List<Pending<?>> writes;
+
+        private BatchOperation(List<Pending<?>> writes) {
+            this.writes = writes;
+        }
+
+        @Override
+        Void execute() throws Exception {
+            List<Pending<?>> remaining = new ArrayList<>(this.writes.size());
+            for (Pending<?> p : this.writes) {
+                if (!p.future.isDone()) {
+                    remaining.add(p);
+                }
+            }
+            while (!remaining.isEmpty()) {
+                List<WriteModel<Document>> models = new ArrayList<>(remaining.size());
+                for (Pending<?> p : remaining) {
+                    models.add(p.model);
+                }
+                try {
+                    BulkWriteResult result = WriteBatcher.this.collection.bulkWrite(models, new BulkWriteOptions().ordered(true));
+                    this.complete(remaining, result, remaining.size());
+                    return null;
+                } catch (MongoBulkWriteException ex) {
+                    if (ex.getWriteErrors().isEmpty()) {
+                        throw ex;
+                    }
+                    BulkWriteError error = ex.getWriteErrors().get(0);
+                    this.complete(remaining, ex.getWriteResult(), error.getIndex());
+                    remaining.get(error.getIndex()).future.fail(new MongoWriteException(new WriteError(error), ex.getServerAddress()));
+                    remaining = remaining.subList(error.getIndex() + 1, remaining.size());
+                }
+            }
+            return null;
+        }
+
+        private void complete(List<Pending<?>> writes, BulkWriteResult result, int count) {
+            Map<Integer, BsonValue> upserts = new HashMap<>();
+            if (result.wasAcknowledged()) {
+                for (BulkWriteUpsert upsert : result.getUpserts()) {
+                    upserts.put(upsert.getIndex(), upsert.getId());
+                }
+            }
+            boolean counted = result.wasAcknowledged() && result.isModifiedCountAvailable();
+            Long[] modified = modifiedEach(count - upserts.size(), counted ? result.getModifiedCount() : -1);
+            int matched = 0;
+            for (int i = 0; i < count; i++) {
+                BsonValue upsertedId = upserts.get(i);
+                writes.get(i).complete(upsertedId, upsertedId == null ? modified[matched++] : Long.valueOf(0), result.wasAcknowledged());
+            }
+        }
+
+        @Override
+        void done(Void result, Exception err) {
+            if (err == null) {
+                return;
+            }
+            for (Pending<?> p : this.writes) {
+                p.future.fail(err);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,302 @@
+package net.wouto.modelsync.mongo;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.result.UpdateResult;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import net.wouto.modelsync.mongo.bulk.Bulk;
+import net.wouto.modelsync.mongo.bulk.BulkExecution;
+import net.wouto.modelsync.mongo.bulk.BulkItemResult;
+import net.wouto.modelsync.mongo.bulk.BulkReport;
+import net.wouto.modelsync.mongo.future.FutureCallback;
+import net.wouto.modelsync.mongo.future.MongoFuture;
+import net.wouto.modelsync.mongo.future.MongoFutures;
+import net.wouto.modelsync.mongo.sync.ModelMapper;
+import net.wouto.modelsync.mongo.sync.ModelMappers;
+
+/**
+ * Holds saved models back and writes the latest state of each one at an
+ * interval, see {@link MongoModelManager#enableWriteBehind(long, TimeUnit, int, SaturationPolicy)}.
+ * <br />
+ * Models are kept by their index value, saving a model again before it is
+ * written only replaces what will be written. A flush takes every dirty model
+ * and sends them as one unordered bulk write, flushes run one after the other
+ * so an older state never overtakes a newer one.
+ * @author Wouter
+ */
+final class WriteBehind<T> implements HeldWrites {
+
+    private final SimpleCollection collection;
+    private final SimpleScheduler scheduler;
+    private final int maxDirty;
+    private final SaturationPolicy policy;
+    private final ReentrantLock lock;
+    private final Condition notFull;
+    private final ScheduledFuture<?> timer;
+
+    private Map<Object, Dirty<T>> dirty;
+    private MongoFuture<BulkReport> last;
+    private boolean flushQueued;
+    private boolean closed;
+
+    WriteBehind(SimpleCollection collection, long interval, TimeUnit unit, int maxDirty, SaturationPolicy policy) {
+        this.collection = collection;
+        this.scheduler = collection.getScheduler();
+        this.maxDirty = maxDirty;
+        this.policy = policy;
+        this.lock = new ReentrantLock();
+        this.notFull = this.lock.newCondition();
+        this.dirty = new LinkedHashMap<>();
+        this.last = MongoFutures.completed(null);
+        this.timer = this.scheduler.getTimer().scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                WriteBehind.this.requestFlush();
+            }
+
+        }, interval, interval, unit);
+        this.scheduler.register(this);
+    }
+
+    /**
+     * @param object
+     * @param result completed once the object is written, may be null
+     * @return false when the write-behind is closed and the object has to be saved directly
+     */
+    boolean save(T object, MongoFuture<UpdateResult> result) {
+        ModelMapper<T> mapper = ModelMappers.forClass((Class<T>) object.getClass());
+        Object value = mapper.getIndexKey() == null ? null : mapper.getIndexValue(object);
+        if (value == null) {
+            return false;
+        }
+        this.lock.lock();
+        try {
+            if (this.closed) {
+                return false;
+            }
+            Dirty<T> entry = this.dirty.get(value);
+            if (entry == null) {
+                while (this.dirty.size() >= this.maxDirty) {
+                    if (this.policy == SaturationPolicy.REJECT) {
+                        RejectedExecutionException ex = new RejectedExecutionException("Write-behind of " + object.getClass().getName() + " holds " + this.maxDirty + " dirty objects");
+                        if (result != null) {
+                            result.fail(ex);
+                        } else {
+                            System.out.println("Cannot save object: " + ex.getMessage());
+                        }
+                        return true;
+                    }
+                    // saving directly could overtake an older state in flight, so CALLER_RUNS waits as well
+                    this.requestFlush();
+                    if (this.dirty.size() < this.maxDirty) {
+                        // the flush ran right away and made room
+                        break;
+                    }
+                    this.notFull.await();
+                    if (this.closed) {
+                        return false;
+                    }
+                }
+                entry = new Dirty<>();
+                this.dirty.put(value, entry);
+            }
+            entry.object = object;
+            if (result != null) {
+                entry.waiting.add(result);
+            }
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            if (result != null) {
+                result.fail(ex);
+            }
+            return true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    int getDirtyCount() {
+        this.lock.lock();
+        try {
+            return this.dirty.size();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void requestFlush() {
+        this.lock.lock();
+        try {
+            if (this.flushQueued) {
+                return;
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        this.flush();
+    }
+
+    /**
+     * Writes every dirty object once the flush before it is done.
+     * @return the report of the bulk write, empty when nothing was dirty
+     */
+    @Override
+    public MongoFuture<BulkReport> flush() {
+        final MongoFuture<BulkReport> result = new MongoFuture<>();
+        MongoFuture<BulkReport> previous;
+        this.lock.lock();
+        try {
+            previous = this.last;
+            this.last = result;
+            this.flushQueued = true;
+        } finally {
+            this.lock.unlock();
+        }
+        previous.onComplete(new FutureCallback<BulkReport>() {
+
+            @Override
+            public void onComplete(BulkReport ignored, Exception err) {
+                WriteBehind.this.send(result);
+            }
+
+        });
+        return result;
+    }
+
+    /**
+     * Stops the timer and writes what is still dirty, later saves are sent directly.
+     */
+    MongoFuture<BulkReport> close() {
+        this.timer.cancel(false);
+        this.scheduler.unregister(this);
+        this.lock.lock();
+        try {
+            this.closed = true;
+            this.notFull.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+        return this.flush();
+    }
+
+    private void send(final MongoFuture<BulkReport> result) {
+        final List<Dirty<T>> entries;
+        this.lock.lock();
+        try {
+            entries = new ArrayList<>(this.dirty.values());
+            this.dirty = new LinkedHashMap<>();
+            this.flushQueued = false;
+            this.notFull.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+        Bulk bulk = new Bulk().ordered(false);
+        for (Dirty<T> entry : entries) {
+            bulk.save(entry.object);
+        }
+        if (entries.isEmpty()) {
+            result.complete(new BulkExecution(bulk).report());
+            return;
+        }
+        this.collection.bulkWriteAsync(bulk).onComplete(new FutureCallback<BulkReport>() {
+
+            @Override
+            public void onComplete(BulkReport report, Exception err) {
+                if (err != null) {
+                    err.printStackTrace();
+                    WriteBehind.this.retry(entries, err);
+                    result.fail(err);
+                    return;
+                }
+                List<Dirty<T>> unsent = new ArrayList<>();
+                Exception unreachable = null;
+                int matched = 0;
+                for (int i = 0; i < entries.size(); i++) {
+                    BulkItemResult item = report.getResult(i);
+                    if (item.isApplied() && item.getUpsertedId() == null) {
+                        matched++;
+                    }
+                }
+                Long[] modified = WriteBatcher.modifiedEach(matched, report.getModifiedCount());
+                matched = 0;
+                for (int i = 0; i < entries.size(); i++) {
+                    BulkItemResult item = report.getResult(i);
+                    if (item.getStatus() == BulkItemResult.Status.FAILED) {
+                        if (item.getError() != null && JournaledWrites.isUnreachable(item.getError())) {
+                            // never reached the server, write it again with the next flush
+                            unsent.add(entries.get(i));
+                            unreachable = item.getError();
+                            continue;
+                        }
+                        System.out.println("Cannot save object: " + item);
+                        entries.get(i).fail(new MongoException(item.getCode(), item.getMessage()));
+                    } else if (item.getUpsertedId() != null) {
+                        entries.get(i).complete(UpdateResult.acknowledged(0, 0L, item.getUpsertedId()));
+                    } else {
+                        entries.get(i).complete(UpdateResult.acknowledged(1, modified[matched++], null));
+                    }
+                }
+                if (unreachable != null) {
+                    unreachable.printStackTrace();
+                    WriteBehind.this.retry(unsent, unreachable);
+                }
+                result.complete(report);
+            }
+
+        });
+    }
+
+    /**
+     * Marks the objects of a bulk write that failed as a whole, or that could
+     * not reach the server, dirty again unless they were saved again in the
+     * meantime. The server rejecting a single object is not retried.
+     */
+    private void retry(List<Dirty<T>> entries, Exception err) {
+        this.lock.lock();
+        try {
+            for (Dirty<T> entry : entries) {
+                entry.fail(err);
+                if (this.closed) {
+                    continue;
+                }
+                Object value = ModelMappers.forClass((Class<T>) entry.object.getClass()).getIndexValue(entry.object);
+                if (!this.dirty.containsKey(value)) {
+                    Dirty<T> again = new Dirty<>();
+                    again.object = entry.object;
+                    this.dirty.put(value, again);
+                }
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private static final class Dirty<T> {
+
+        private final List<MongoFuture<UpdateResult>> waiting = new ArrayList<>(1);
+        private T object;
+
+        private void complete(UpdateResult result) {
+            for (MongoFuture<UpdateResult> f : this.waiting) {
+                f.complete(result);
+            }
+        }
+
+        private void fail(Exception err) {
+            for (MongoFuture<UpdateResult> f : this.waiting) {
+                f.fail(err);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,159 @@
+package net.wouto.modelsync.mongo.bulk;
+
+import com.mongodb.client.model.DeleteManyModel;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.UpdateManyModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import net.wouto.modelsync.mongo.query.Query;
+import net.wouto.modelsync.mongo.sync.ModelMapper;
+import net.wouto.modelsync.mongo.sync.ModelMappers;
+import net.wouto.modelsync.mongo.sync.ModelSnapshots;
+import net.wouto.modelsync.mongo.update.Update;
+import org.bson.Document;
+
+/**
+ * A list of writes sent to the server in as few round trips as possible.
+ * <br />
+ * The writes are sent in chunks of {@link #chunkSize(int)} requests, one
+ * round trip each. An ordered bulk applies them in order and stops at the
+ * first failure, skipping the rest. An unordered bulk lets the server apply
+ * them in any order and carries on past failures.
+ * Models are encoded when they are added, later changes to them are not written.
+ * @author Wouter
+ */
+public class Bulk {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1000;
+
+    private final List<WriteModel<Document>> requests;
+    private boolean ordered;
+    private int chunkSize;
+
+    public Bulk() {
+        this.requests = new ArrayList<>();
+        this.ordered = true;
+        this.chunkSize = DEFAULT_CHUNK_SIZE;
+    }
+
+    /**
+     * @param ordered false to let the server apply the writes in any order and
+     * continue past failures, true by default
+     * @return this
+     */
+    public Bulk ordered(boolean ordered) {
+        this.ordered = ordered;
+        return this;
+    }
+
+    /**
+     * @param chunkSize the number of writes sent per round trip, {@value #DEFAULT_CHUNK_SIZE} by default
+     * @return this
+     */
+    public Bulk chunkSize(int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize must be at least 1, got " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    public Bulk insert(Document document) {
+        this.requests.add(new InsertOneModel<>(document));
+        return this;
+    }
+
+    /**
+     * @param instance a {@link net.wouto.modelsync.mongo.annotations.DBSync} model
+     * @return this
+     */
+    public Bulk insertModel(Object instance) {
+        return this.insert(ModelMappers.encode(instance));
+    }
+
+    /**
+     * Replaces the document with the model's index value, inserting it when there is none.
+     * @param <T>
+     * @param instance a {@link net.wouto.modelsync.mongo.annotations.DBSync} model with an index field
+     * @return this
+     * @throws IllegalArgumentException when the model has no index field
+     */
+    public <T> Bulk save(T instance) {
+        ModelMapper<T> mapper = ModelMappers.forClass((Class<T>) instance.getClass());
+        String key = mapper.getIndexKey();
+        if (key == null) {
+            throw new IllegalArgumentException("Cannot save object: " + instance.getClass().getName());
+        }
+        Document obj = mapper.encode(instance);
+        // the whole document is replaced, its remembered state no longer holds
+        ModelSnapshots.forget(instance);
+        return this.updateOrInsert(key, obj.get(key), new Update(obj));
+    }
+
+    public Bulk updateOrInsert(String key, Object value, Update set) {
+        UpdateOptions options = new UpdateOptions();
+        options.upsert(true);
+        this.requests.add(new ReplaceOneModel<>(new Document(key, value), (Document) set.getUpdateQuery(), options));
+        return this;
+    }
+
+    public Bulk update(Query q, Update u) {
+        return this.update(q, u, false, false);
+    }
+
+    public Bulk update(Query q, Update u, boolean upsert, boolean multi) {
+        UpdateOptions options = new UpdateOptions();
+        options.upsert(upsert);
+        if (multi) {
+            this.requests.add(new UpdateManyModel<Document>((Document) q.getQuery(), (Document) u.getUpdateQuery(), options));
+        } else {
+            this.requests.add(new UpdateOneModel<Document>((Document) q.getQuery(), (Document) u.getUpdateQuery(), options));
+        }
+        return this;
+    }
+
+    /**
+     * Removes every document matching the query.
+     * @param q
+     * @return this
+     */
+    public Bulk remove(Query q) {
+        this.requests.add(new DeleteManyModel<Document>((Document) q.getQuery()));
+        return this;
+    }
+
+    /**
+     * @param request a write built with the driver's own models
+     * @return this
+     */
+    public Bulk add(WriteModel<Document> request) {
+        this.requests.add(request);
+        return this;
+    }
+
+    public boolean isOrdered() {
+        return this.ordered;
+    }
+
+    public int getChunkSize() {
+        return this.chunkSize;
+    }
+
+    public int size() {
+        return this.requests.size();
+    }
+
+    /**
+     * @return the writes in the order they were added, the index of a write
+     * in this list is its index in the {@link BulkReport}
+     */
+    public List<WriteModel<Document>> getRequests() {
+        return Collections.unmodifiableList(this.requests);
+    }
+
+}
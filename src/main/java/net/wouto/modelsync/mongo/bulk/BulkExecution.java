@@ -0,0 +1,164 @@
+package net.wouto.modelsync.mongo.bulk;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.BulkWriteUpsert;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.WriteModel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import org.bson.BsonValue;
+import org.bson.Document;
+
+/**
+ * Walks a {@link Bulk} chunk by chunk and collects what the server reports
+ * into a {@link BulkReport}.
+ * <br />
+ * A collection takes the chunks from {@link #next()}, sends each with
+ * {@link #getOptions()}, and passes the outcome to {@link #completed(BulkWriteResult)}
+ * or {@link #failed(Exception)} before asking for the next one.
+ * Not thread safe, chunks are sent one after the other.
+ * @author Wouter
+ */
+public final class BulkExecution {
+
+    private final List<WriteModel<Document>> requests;
+    private final boolean ordered;
+    private final int chunkSize;
+
+    private final SortedMap<Integer, BulkItemResult> failures;
+    private final Map<Integer, BsonValue> upserts;
+    private int offset;
+    private int end;
+    private int roundTrips;
+    private int skippedFrom;
+    private boolean replayed;
+    private long inserted;
+    private long matched;
+    private long modified;
+    private long removed;
+
+    public BulkExecution(Bulk bulk) {
+        this.requests = new ArrayList<>(bulk.getRequests());
+        this.ordered = bulk.isOrdered();
+        this.chunkSize = bulk.getChunkSize();
+        this.failures = new TreeMap<>();
+        this.upserts = new HashMap<>();
+        this.skippedFrom = this.requests.size();
+    }
+
+    /**
+     * Marks the bulk as sent before, when it may have been applied in part.
+     * An insert then failing on a duplicate key counts as applied, and an
+     * ordered bulk goes on with the writes after it.
+     */
+    public void replayed() {
+        this.replayed = true;
+    }
+
+    public BulkWriteOptions getOptions() {
+        return new BulkWriteOptions().ordered(this.ordered);
+    }
+
+    /**
+     * @return whether there is a chunk left to send, false once an ordered bulk failed
+     */
+    public boolean hasNext() {
+        return this.end < this.skippedFrom;
+    }
+
+    /**
+     * @return the next chunk of writes
+     */
+    public List<WriteModel<Document>> next() {
+        if (!this.hasNext()) {
+            throw new NoSuchElementException();
+        }
+        this.offset = this.end;
+        this.end = Math.min(this.offset + this.chunkSize, this.requests.size());
+        return this.requests.subList(this.offset, this.end);
+    }
+
+    /**
+     * Records a chunk the server applied completely.
+     * @param result
+     */
+    public void completed(BulkWriteResult result) {
+        this.roundTrips++;
+        this.count(result);
+    }
+
+    /**
+     * Records a chunk the server rejected in part, or that could not be sent at all.
+     * @param err
+     */
+    public void failed(Exception err) {
+        this.roundTrips++;
+        if (err instanceof MongoBulkWriteException) {
+            MongoBulkWriteException ex = (MongoBulkWriteException) err;
+            this.count(ex.getWriteResult());
+            int first = -1;
+            int resume = -1;
+            for (BulkWriteError e : ex.getWriteErrors()) {
+                int index = this.offset + e.getIndex();
+                if (this.replayed && e.getCode() == 11000 && this.requests.get(index) instanceof InsertOneModel) {
+                    // inserted when the bulk was sent before
+                    this.inserted++;
+                    resume = Math.max(resume, index + 1);
+                    continue;
+                }
+                this.failures.put(index, new BulkItemResult(index, BulkItemResult.Status.FAILED, e.getCode(), e.getMessage(), null));
+                if (first == -1 || index < first) {
+                    first = index;
+                }
+            }
+            if (this.ordered && first != -1) {
+                this.skippedFrom = first + 1;
+            } else if (this.ordered && resume != -1) {
+                // the server stopped at the duplicate, the next chunk starts right after it
+                this.end = resume;
+            }
+            if (first != -1 || ex.getWriteConcernError() == null) {
+                return;
+            }
+            // applied, but not as durably as asked for: treat the whole chunk as failed
+            err = new MongoException(ex.getWriteConcernError().getCode(), ex.getWriteConcernError().getMessage());
+        }
+        int code = err instanceof MongoException ? ((MongoException) err).getCode() : -1;
+        for (int i = this.offset; i < this.end; i++) {
+            this.failures.put(i, new BulkItemResult(i, BulkItemResult.Status.FAILED, code, err.getMessage(), null, err));
+        }
+        if (this.ordered) {
+            this.skippedFrom = this.end;
+        }
+    }
+
+    private void count(BulkWriteResult result) {
+        if (result == null || !result.wasAcknowledged()) {
+            return;
+        }
+        this.inserted += result.getInsertedCount();
+        this.matched += result.getMatchedCount();
+        this.removed += result.getDeletedCount();
+        if (result.isModifiedCountAvailable()) {
+            this.modified += result.getModifiedCount();
+        }
+        for (BulkWriteUpsert upsert : result.getUpserts()) {
+            this.upserts.put(this.offset + upsert.getIndex(), upsert.getId());
+        }
+    }
+
+    public BulkReport report() {
+        return new BulkReport(this.requests.size(), this.roundTrips, this.inserted, this.matched, this.modified, this.removed,
+                new TreeMap<>(this.failures), new HashMap<>(this.upserts), this.skippedFrom);
+    }
+
+}
@@ -0,0 +1,96 @@
+package net.wouto.modelsync.mongo.bulk;
+
+import org.bson.BsonValue;
+
+/**
+ * The outcome of a single write in a {@link Bulk}.
+ * @author Wouter
+ */
+public final class BulkItemResult {
+
+    public enum Status {
+        /**
+         * The write was applied.
+         */
+        APPLIED,
+        /**
+         * The write was rejected, or its chunk could not be sent.
+         */
+        FAILED,
+        /**
+         * An earlier write of an ordered bulk failed, so this one was never sent.
+         */
+        SKIPPED
+    }
+
+    private final int index;
+    private final Status status;
+    private final int code;
+    private final String message;
+    private final BsonValue upsertedId;
+    private final Exception error;
+
+    BulkItemResult(int index, Status status, int code, String message, BsonValue upsertedId) {
+        this(index, status, code, message, upsertedId, null);
+    }
+
+    BulkItemResult(int index, Status status, int code, String message, BsonValue upsertedId, Exception error) {
+        this.index = index;
+        this.status = status;
+        this.code = code;
+        this.message = message;
+        this.upsertedId = upsertedId;
+        this.error = error;
+    }
+
+    /**
+     * @return the position of the write in the bulk
+     */
+    public int getIndex() {
+        return this.index;
+    }
+
+    public Status getStatus() {
+        return this.status;
+    }
+
+    public boolean isApplied() {
+        return this.status == Status.APPLIED;
+    }
+
+    /**
+     * @return the server's error code of a failed write, -1 when there is none
+     */
+    public int getCode() {
+        return this.code;
+    }
+
+    /**
+     * @return why the write failed, null when it did not
+     */
+    public String getMessage() {
+        return this.message;
+    }
+
+    /**
+     * @return the exception the chunk of this write failed with as a whole,
+     * like a network error, null when the server rejected the write itself
+     */
+    public Exception getError() {
+        return this.error;
+    }
+
+    /**
+     * @return the _id of the document an upsert inserted, null otherwise
+     */
+    public BsonValue getUpsertedId() {
+        return this.upsertedId;
+    }
+
+    @Override
+    public String toString() {
+        return "BulkItemResult{" + "index=" + this.index + ", status=" + this.status
+                + (this.message == null ? "" : ", code=" + this.code + ", message=" + this.message) + '}';
+    }
+
+}
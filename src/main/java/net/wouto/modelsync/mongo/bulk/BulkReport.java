@@ -0,0 +1,125 @@
+package net.wouto.modelsync.mongo.bulk;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import org.bson.BsonValue;
+
+/**
+ * The combined result of every chunk of a {@link Bulk}.
+ * <br />
+ * Only failures and upserts are kept per write, every other write in front
+ * of {@link #getSkippedCount()} was applied.
+ * @author Wouter
+ */
+public final class BulkReport {
+
+    private final int size;
+    private final int roundTrips;
+    private final long inserted;
+    private final long matched;
+    private final long modified;
+    private final long removed;
+    private final SortedMap<Integer, BulkItemResult> failures;
+    private final Map<Integer, BsonValue> upserts;
+    private final int skippedFrom;
+
+    BulkReport(int size, int roundTrips, long inserted, long matched, long modified, long removed,
+            SortedMap<Integer, BulkItemResult> failures, Map<Integer, BsonValue> upserts, int skippedFrom) {
+        this.size = size;
+        this.roundTrips = roundTrips;
+        this.inserted = inserted;
+        this.matched = matched;
+        this.modified = modified;
+        this.removed = removed;
+        this.failures = failures;
+        this.upserts = upserts;
+        this.skippedFrom = skippedFrom;
+    }
+
+    /**
+     * @return the number of writes in the bulk
+     */
+    public int getSize() {
+        return this.size;
+    }
+
+    /**
+     * @return the number of chunks sent to the server
+     */
+    public int getRoundTrips() {
+        return this.roundTrips;
+    }
+
+    public long getInsertedCount() {
+        return this.inserted;
+    }
+
+    public long getMatchedCount() {
+        return this.matched;
+    }
+
+    public long getModifiedCount() {
+        return this.modified;
+    }
+
+    public long getRemovedCount() {
+        return this.removed;
+    }
+
+    public int getUpsertedCount() {
+        return this.upserts.size();
+    }
+
+    public int getFailedCount() {
+        return this.failures.size();
+    }
+
+    /**
+     * @return the number of writes never sent because an ordered bulk stopped early
+     */
+    public int getSkippedCount() {
+        return this.size - this.skippedFrom;
+    }
+
+    /**
+     * @return whether every write was applied
+     */
+    public boolean isSuccessful() {
+        return this.failures.isEmpty() && this.skippedFrom == this.size;
+    }
+
+    /**
+     * @return the failed writes in bulk order
+     */
+    public List<BulkItemResult> getErrors() {
+        return new ArrayList<>(this.failures.values());
+    }
+
+    /**
+     * @param index the position of the write in the bulk
+     * @return the outcome of that write
+     */
+    public BulkItemResult getResult(int index) {
+        if (index < 0 || index >= this.size) {
+            throw new IndexOutOfBoundsException("Index " + index + " is out of range for a bulk of " + this.size);
+        }
+        BulkItemResult failure = this.failures.get(index);
+        if (failure != null) {
+            return failure;
+        }
+        if (index >= this.skippedFrom) {
+            return new BulkItemResult(index, BulkItemResult.Status.SKIPPED, -1, null, null);
+        }
+        return new BulkItemResult(index, BulkItemResult.Status.APPLIED, -1, null, this.upserts.get(index));
+    }
+
+    @Override
+    public String toString() {
+        return "BulkReport{" + "size=" + this.size + ", roundTrips=" + this.roundTrips + ", inserted=" + this.inserted
+                + ", matched=" + this.matched + ", modified=" + this.modified + ", removed=" + this.removed
+                + ", upserted=" + this.upserts.size() + ", failed=" + this.failures.size() + ", skipped=" + this.getSkippedCount() + '}';
+    }
+
+}
@@ -0,0 +1,86 @@
+package net.wouto.modelsync.mongo.cache;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits of a {@link SegmentedLruCache}.
+ * <br />
+ * A cache evicts once it holds more than the maximum size of entries or,
+ * when a {@link Weigher} is given, more than the maximum weight. Entries
+ * expire the given time after they were put, 0 keeps them until evicted.
+ * @author Wouter
+ */
+public class CacheOptions {
+
+    private int maximumSize = 10000;
+    private long maximumWeight = Long.MAX_VALUE;
+    private long expireAfterWriteNanos = 0;
+    private int protectedPercentage = 80;
+
+    public int getMaximumSize() {
+        return this.maximumSize;
+    }
+
+    /**
+     * @param maximumSize the number of entries kept
+     * @return this
+     */
+    public CacheOptions maximumSize(int maximumSize) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("maximumSize must be at least 1, got " + maximumSize);
+        }
+        this.maximumSize = maximumSize;
+        return this;
+    }
+
+    public long getMaximumWeight() {
+        return this.maximumWeight;
+    }
+
+    /**
+     * @param maximumWeight the total weight of the entries kept, as told by the weigher of the cache
+     * @return this
+     */
+    public CacheOptions maximumWeight(long maximumWeight) {
+        if (maximumWeight < 1) {
+            throw new IllegalArgumentException("maximumWeight must be at least 1, got " + maximumWeight);
+        }
+        this.maximumWeight = maximumWeight;
+        return this;
+    }
+
+    public long getExpireAfterWrite(TimeUnit unit) {
+        return unit.convert(this.expireAfterWriteNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param duration how long an entry is used after it was put, 0 for no limit
+     * @param unit
+     * @return this
+     */
+    public CacheOptions expireAfterWrite(long duration, TimeUnit unit) {
+        if (duration < 0) {
+            throw new IllegalArgumentException("duration can not be negative, got " + duration);
+        }
+        this.expireAfterWriteNanos = unit.toNanos(duration);
+        return this;
+    }
+
+    public int getProtectedPercentage() {
+        return this.protectedPercentage;
+    }
+
+    /**
+     * @param protectedPercentage the share of the cache kept for entries read
+     * more than once, the rest holds new entries until they are read again
+     * @return this
+     */
+    public CacheOptions protectedPercentage(int protectedPercentage) {
+        if (protectedPercentage < 0 || protectedPercentage > 100) {
+            throw new IllegalArgumentException("protectedPercentage must be between 0 and 100, got " + protectedPercentage);
+        }
+        this.protectedPercentage = protectedPercentage;
+        return this;
+    }
+
+}
@@ -0,0 +1,79 @@
+package net.wouto.modelsync.mongo.cache;
+
+/**
+ * Counters of a cache at one point in time.
+ * @author Wouter
+ */
+public final class CacheStats {
+
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final long expirations;
+    private final long invalidations;
+    private final int size;
+    private final long weight;
+
+    public CacheStats(long hits, long misses, long evictions, long expirations, long invalidations, int size, long weight) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.expirations = expirations;
+        this.invalidations = invalidations;
+        this.size = size;
+        this.weight = weight;
+    }
+
+    public long getHits() {
+        return this.hits;
+    }
+
+    public long getMisses() {
+        return this.misses;
+    }
+
+    /**
+     * @return the entries removed to stay within the size or weight limit
+     */
+    public long getEvictions() {
+        return this.evictions;
+    }
+
+    /**
+     * @return the entries removed because they were too old
+     */
+    public long getExpirations() {
+        return this.expirations;
+    }
+
+    /**
+     * @return the entries removed because of writes
+     */
+    public long getInvalidations() {
+        return this.invalidations;
+    }
+
+    public int getSize() {
+        return this.size;
+    }
+
+    public long getWeight() {
+        return this.weight;
+    }
+
+    /**
+     * @return the share of lookups that were hits, 0 when there were none
+     */
+    public double getHitRate() {
+        long lookups = this.hits + this.misses;
+        return lookups == 0 ? 0 : (double) this.hits / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{" + "hits=" + this.hits + ", misses=" + this.misses + ", evictions=" + this.evictions
+                + ", expirations=" + this.expirations + ", invalidations=" + this.invalidations
+                + ", size=" + this.size + ", weight=" + this.weight + '}';
+    }
+
+}
@@ -0,0 +1,292 @@
+package net.wouto.modelsync.mongo.cache;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.bson.BsonBinaryWriter;
+import org.bson.ByteBuf;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+
+/**
+ * A cache keeping documents as BSON outside of the heap, so the number of
+ * documents cached does not add to the work of the garbage collector.
+ * <br />
+ * The memory is split in segments of direct buffers that are filled one after
+ * the other. Once the last one is full the oldest segment is emptied as a
+ * whole and filled again, so the cache forgets the documents written longest
+ * ago first. A document is only decoded when it is read, with
+ * {@link #get(Object)} as a {@link RawBsonDocument} that decodes the fields
+ * it is asked for, or with {@link #get(Object, Codec)} by any codec.
+ * <br />
+ * The keys and the place of their document are kept in a map on the heap.
+ * @author Wouter
+ * @param <K>
+ */
+public final class OffHeapCache<K> {
+
+    private static final int MAX_SEGMENT_SIZE = 1 << 30;
+    private static final int HEADER = 8;
+
+    private final ConcurrentMap<K, Long> index;
+    private final Segment<K>[] segments;
+    private final int segmentSize;
+    private final long expireAfterWriteNanos;
+    private int current;
+
+    private final AtomicLong used;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong evictions;
+    private final AtomicLong expirations;
+    private final AtomicLong invalidations;
+
+    /**
+     * @param capacity the number of bytes to use at most, allocated as documents are put
+     */
+    public OffHeapCache(long capacity) {
+        this(capacity, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param capacity the number of bytes to use at most, allocated as documents are put
+     * @param expireAfterWrite how long a document is used after it was put, 0 for no limit
+     * @param unit
+     */
+    public OffHeapCache(long capacity, long expireAfterWrite, TimeUnit unit) {
+        if (capacity < 1024) {
+            throw new IllegalArgumentException("capacity must be at least 1024 bytes, got " + capacity);
+        }
+        if (expireAfterWrite < 0) {
+            throw new IllegalArgumentException("expireAfterWrite can not be negative, got " + expireAfterWrite);
+        }
+        // small enough to lose little at a time, at most 1GB for a single buffer
+        int count = (int) Math.max(16, (capacity + MAX_SEGMENT_SIZE - 1) / MAX_SEGMENT_SIZE);
+        this.segmentSize = (int) (capacity / count);
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            this.segments[i] = new Segment<>();
+        }
+        this.index = new ConcurrentHashMap<>();
+        this.expireAfterWriteNanos = unit.toNanos(expireAfterWrite);
+        this.used = new AtomicLong();
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.evictions = new AtomicLong();
+        this.expirations = new AtomicLong();
+        this.invalidations = new AtomicLong();
+    }
+
+    private static long location(int segment, int offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    /**
+     * @param <T>
+     * @param key
+     * @param value
+     * @param codec encodes the value as a document
+     * @return whether it was put, a document larger than a segment is not
+     */
+    public <T> boolean put(K key, T value, Codec<T> codec) {
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        BsonBinaryWriter writer = new BsonBinaryWriter(buffer);
+        try {
+            codec.encode(writer, value, EncoderContext.builder().build());
+        } finally {
+            writer.close();
+        }
+        return this.put(key, ByteBuffer.wrap(buffer.toByteArray()));
+    }
+
+    /**
+     * @param key
+     * @param document
+     * @return whether it was put, a document larger than a segment is not
+     */
+    public boolean put(K key, RawBsonDocument document) {
+        ByteBuf bytes = document.getByteBuffer();
+        return this.put(key, bytes.asNIO());
+    }
+
+    private synchronized boolean put(K key, ByteBuffer document) {
+        int length = document.remaining();
+        if (length + HEADER > this.segmentSize) {
+            this.invalidate(key);
+            return false;
+        }
+        Segment<K> segment = this.segments[this.current];
+        if (segment.position + length + HEADER > this.segmentSize) {
+            this.current = (this.current + 1) % this.segments.length;
+            segment = this.segments[this.current];
+            this.recycle(segment, this.current);
+        }
+        if (segment.buffer == null) {
+            segment.buffer = ByteBuffer.allocateDirect(this.segmentSize).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        int offset = segment.position;
+        // written through a duplicate, readers copy out of other parts of the buffer meanwhile
+        ByteBuffer target = segment.buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        target.position(offset);
+        target.putLong(this.expireAfterWriteNanos == 0 ? 0 : System.nanoTime());
+        target.put(document.duplicate());
+        segment.position = offset + length + HEADER;
+        segment.keys.add(key);
+        this.used.addAndGet(length + HEADER);
+        this.index.put(key, location(this.current, offset));
+        return true;
+    }
+
+    /**
+     * Drops the documents of a segment to fill it again, waiting for reads
+     * copying out of it.
+     */
+    private void recycle(Segment<K> segment, int number) {
+        segment.lock.writeLock().lock();
+        try {
+            for (K key : segment.keys) {
+                Long location = this.index.get(key);
+                if (location != null && (int) (location >>> 32) == number && this.index.remove(key, location)) {
+                    this.evictions.incrementAndGet();
+                }
+            }
+            segment.keys = new ArrayList<>();
+            this.used.addAndGet(-segment.position);
+            segment.position = 0;
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param key
+     * @return the document, decoding its fields as they are read, null when it is not cached or expired
+     */
+    public RawBsonDocument get(K key) {
+        byte[] bytes = this.read(key);
+        if (bytes == null) {
+            this.misses.incrementAndGet();
+            return null;
+        }
+        this.hits.incrementAndGet();
+        return new RawBsonDocument(bytes);
+    }
+
+    /**
+     * @param <T>
+     * @param key
+     * @param codec
+     * @return the document decoded by the codec, null when it is not cached or expired
+     */
+    public <T> T get(K key, Codec<T> codec) {
+        RawBsonDocument document = this.get(key);
+        return document == null ? null : document.decode(codec);
+    }
+
+    private byte[] read(K key) {
+        for (;;) {
+            Long location = this.index.get(key);
+            if (location == null) {
+                return null;
+            }
+            Segment<K> segment = this.segments[(int) (location >>> 32)];
+            int offset = (int) (long) location;
+            segment.lock.readLock().lock();
+            try {
+                // the segment may have been filled again before the lock was taken
+                if (!location.equals(this.index.get(key))) {
+                    continue;
+                }
+                ByteBuffer source = segment.buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+                if (this.expireAfterWriteNanos != 0 && System.nanoTime() - source.getLong(offset) >= this.expireAfterWriteNanos) {
+                    if (this.index.remove(key, location)) {
+                        this.expirations.incrementAndGet();
+                    }
+                    return null;
+                }
+                byte[] bytes = new byte[source.getInt(offset + HEADER)];
+                source.position(offset + HEADER);
+                source.get(bytes);
+                return bytes;
+            } finally {
+                segment.lock.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Forgets a document because it changed, its bytes are reused once its segment is.
+     * @param key
+     * @return whether it was cached
+     */
+    public boolean invalidate(K key) {
+        if (this.index.remove(key) != null) {
+            this.invalidations.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Forgets every document because an unknown set of them changed, and empties the segments.
+     */
+    public synchronized void invalidateAll() {
+        this.invalidations.addAndGet(this.index.size());
+        this.index.clear();
+        for (int i = 0; i < this.segments.length; i++) {
+            this.recycle(this.segments[i], i);
+        }
+        this.current = 0;
+    }
+
+    public int size() {
+        return this.index.size();
+    }
+
+    /**
+     * @return the bytes written to the segments, including those of documents replaced or invalidated since
+     */
+    public long used() {
+        return this.used.get();
+    }
+
+    public long capacity() {
+        return (long) this.segmentSize * this.segments.length;
+    }
+
+    /**
+     * @return the counters of the cache, its weight being the bytes in use
+     */
+    public CacheStats getStats() {
+        return new CacheStats(this.hits.get(), this.misses.get(), this.evictions.get(), this.expirations.get(),
+                this.invalidations.get(), this.size(), this.used());
+    }
+
+    @Override
+    public String toString() {
+        return "OffHeapCache{" + "capacity=" + this.capacity() + ", " + this.getStats() + '}';
+    }
+
+    private static final class Segment<K> {
+
+        private final ReentrantReadWriteLock lock;
+        private ByteBuffer buffer;
+        private int position;
+        private List<K> keys;
+
+        private Segment() {
+            this.lock = new ReentrantReadWriteLock();
+            this.keys = new ArrayList<>();
+        }
+
+    }
+
+}
@@ -0,0 +1,367 @@
+package net.wouto.modelsync.mongo.cache;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded in-process cache with segmented LRU eviction.
+ * <br />
+ * A new entry starts in the probation segment and moves to the protected
+ * segment once it is read again. When the protected segment is full its least
+ * recently used entry goes back to probation, and the cache evicts from the
+ * end of probation first. Entries read once, like those of a scan, so never
+ * push out entries that are read all the time.
+ * <br />
+ * Keys are spread over shards with a lock and a share of the size limit each,
+ * so threads reading different keys rarely wait on each other. The weight
+ * limit is kept for the whole cache, going over it evicts from the shards in turn.
+ * <br />
+ * Entries expire after the time of the options, or after a time of their own
+ * given to {@link #put(Object, Object, long, TimeUnit)}.
+ * @author Wouter
+ * @param <K>
+ * @param <V>
+ */
+public final class SegmentedLruCache<K, V> {
+
+    private final Shard<K, V>[] shards;
+    private final Weigher<? super V> weigher;
+    private final long expireAfterWriteNanos;
+    private final long maximumWeight;
+    private final AtomicLong weight;
+    private final AtomicInteger nextVictim;
+
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong evictions;
+    private final AtomicLong expirations;
+    private final AtomicLong invalidations;
+
+    public SegmentedLruCache(CacheOptions options) {
+        this(options, null);
+    }
+
+    /**
+     * @param options
+     * @param weigher the weight of every value, null to weigh every value as 1
+     */
+    public SegmentedLruCache(CacheOptions options, Weigher<? super V> weigher) {
+        int count = 1;
+        while (count < 16 && count * 64L <= options.getMaximumSize()) {
+            count <<= 1;
+        }
+        int size = (options.getMaximumSize() + count - 1) / count;
+        this.expireAfterWriteNanos = options.getExpireAfterWrite(TimeUnit.NANOSECONDS);
+        this.maximumWeight = options.getMaximumWeight();
+        this.weight = new AtomicLong();
+        this.nextVictim = new AtomicInteger();
+        this.shards = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            this.shards[i] = new Shard<>(this, size, Math.max(1, size * options.getProtectedPercentage() / 100));
+        }
+        this.weigher = weigher;
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.evictions = new AtomicLong();
+        this.expirations = new AtomicLong();
+        this.invalidations = new AtomicLong();
+    }
+
+    private Shard<K, V> shard(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return this.shards[h & (this.shards.length - 1)];
+    }
+
+    private int weigh(V value) {
+        return this.weigher == null ? 1 : Math.max(1, this.weigher.weigh(value));
+    }
+
+    /**
+     * @param key
+     * @return the cached value, null when it is not cached or expired
+     */
+    public V get(K key) {
+        Shard<K, V> shard = this.shard(key);
+        V value;
+        synchronized (shard) {
+            value = shard.get(key);
+        }
+        (value == null ? this.misses : this.hits).incrementAndGet();
+        return value;
+    }
+
+    /**
+     * @param key
+     * @return the cached value without counting a lookup or moving the entry
+     */
+    public V peek(K key) {
+        Shard<K, V> shard = this.shard(key);
+        synchronized (shard) {
+            Node<K, V> node = shard.map.get(key);
+            return node == null || shard.expired(node) ? null : node.value;
+        }
+    }
+
+    public void put(K key, V value) {
+        this.put(key, value, this.expireAfterWriteNanos);
+    }
+
+    /**
+     * @param key
+     * @param value
+     * @param expireAfterWrite how long the entry is used, 0 for no limit
+     * @param unit
+     */
+    public void put(K key, V value, long expireAfterWrite, TimeUnit unit) {
+        if (expireAfterWrite < 0) {
+            throw new IllegalArgumentException("expireAfterWrite can not be negative, got " + expireAfterWrite);
+        }
+        this.put(key, value, unit.toNanos(expireAfterWrite));
+    }
+
+    private void put(K key, V value, long expireNanos) {
+        int weight = this.weigh(value);
+        Shard<K, V> shard = this.shard(key);
+        synchronized (shard) {
+            shard.remove(key);
+            shard.put(key, value, weight, expireNanos);
+        }
+        this.evictOverweight();
+    }
+
+    /**
+     * Evicts an entry from every shard in turn until the cache is within its
+     * weight limit, taking a single shard lock at a time.
+     */
+    private void evictOverweight() {
+        while (this.weight.get() > this.maximumWeight) {
+            Shard<K, V> shard = this.shards[(this.nextVictim.getAndIncrement() & Integer.MAX_VALUE) % this.shards.length];
+            synchronized (shard) {
+                shard.evictOne();
+            }
+        }
+    }
+
+    /**
+     * @param key
+     * @param value
+     * @return the value already cached, which is kept, or null when the given value was put
+     */
+    public V putIfAbsent(K key, V value) {
+        int weight = this.weigh(value);
+        Shard<K, V> shard = this.shard(key);
+        synchronized (shard) {
+            Node<K, V> node = shard.map.get(key);
+            if (node != null) {
+                if (!shard.expired(node)) {
+                    return node.value;
+                }
+                shard.remove(key);
+                this.expirations.incrementAndGet();
+            }
+            shard.put(key, value, weight, this.expireAfterWriteNanos);
+        }
+        this.evictOverweight();
+        return null;
+    }
+
+    /**
+     * Removes an entry because it changed.
+     * @param key
+     * @return whether it was cached
+     */
+    public boolean invalidate(K key) {
+        Shard<K, V> shard = this.shard(key);
+        boolean removed;
+        synchronized (shard) {
+            removed = shard.remove(key) != null;
+        }
+        if (removed) {
+            this.invalidations.incrementAndGet();
+        }
+        return removed;
+    }
+
+    /**
+     * Removes every entry because an unknown set of them changed.
+     */
+    public void invalidateAll() {
+        for (Shard<K, V> shard : this.shards) {
+            int removed;
+            synchronized (shard) {
+                removed = shard.clear();
+            }
+            this.invalidations.addAndGet(removed);
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Shard<K, V> shard : this.shards) {
+            synchronized (shard) {
+                size += shard.map.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the total weight of the cached values, their count without a weigher
+     */
+    public long weight() {
+        return this.weight.get();
+    }
+
+    public CacheStats getStats() {
+        return new CacheStats(this.hits.get(), this.misses.get(), this.evictions.get(), this.expirations.get(),
+                this.invalidations.get(), this.size(), this.weight());
+    }
+
+    @Override
+    public String toString() {
+        return "SegmentedLruCache{" + this.getStats() + '}';
+    }
+
+    private static final class Node<K, V> {
+
+        private K key;
+        private V value;
+        private int weight;
+        private long written;
+        private long expireNanos;
+        private boolean protect;
+        private Node<K, V> prev;
+        private Node<K, V> next;
+
+        private Node() {
+            this.prev = this;
+            this.next = this;
+        }
+
+        private void unlink() {
+            this.prev.next = this.next;
+            this.next.prev = this.prev;
+        }
+
+        /**
+         * Links this node in at the front of the list of the given head.
+         */
+        private void linkAfter(Node<K, V> head) {
+            this.prev = head;
+            this.next = head.next;
+            head.next.prev = this;
+            head.next = this;
+        }
+
+    }
+
+    /**
+     * Two circular lists, most recently used after their head, and the map
+     * of their nodes. Only used while holding its lock.
+     */
+    private static final class Shard<K, V> {
+
+        private final SegmentedLruCache<K, V> cache;
+        private final Map<K, Node<K, V>> map;
+        private final Node<K, V> probation;
+        private final Node<K, V> protect;
+        private final int maxSize;
+        private final int maxProtected;
+        private int protectedSize;
+
+        private Shard(SegmentedLruCache<K, V> cache, int maxSize, int maxProtected) {
+            this.cache = cache;
+            this.map = new HashMap<>();
+            this.probation = new Node<>();
+            this.protect = new Node<>();
+            this.maxSize = maxSize;
+            this.maxProtected = maxProtected;
+        }
+
+        private boolean expired(Node<K, V> node) {
+            return node.expireNanos != 0 && System.nanoTime() - node.written >= node.expireNanos;
+        }
+
+        private V get(K key) {
+            Node<K, V> node = this.map.get(key);
+            if (node == null) {
+                return null;
+            }
+            if (this.expired(node)) {
+                this.remove(key);
+                this.cache.expirations.incrementAndGet();
+                return null;
+            }
+            node.unlink();
+            if (!node.protect) {
+                node.protect = true;
+                this.protectedSize++;
+            }
+            node.linkAfter(this.protect);
+            while (this.protectedSize > this.maxProtected) {
+                Node<K, V> demoted = this.protect.prev;
+                demoted.unlink();
+                demoted.protect = false;
+                this.protectedSize--;
+                demoted.linkAfter(this.probation);
+            }
+            return node.value;
+        }
+
+        private void put(K key, V value, int weight, long expireNanos) {
+            Node<K, V> node = new Node<>();
+            node.key = key;
+            node.value = value;
+            node.weight = weight;
+            node.written = expireNanos == 0 ? 0 : System.nanoTime();
+            node.expireNanos = expireNanos;
+            node.linkAfter(this.probation);
+            this.map.put(key, node);
+            this.cache.weight.addAndGet(weight);
+            while (this.map.size() > this.maxSize) {
+                this.evictOne();
+            }
+        }
+
+        /**
+         * Evicts the least recently used entry of probation, or of the protected segment when probation is empty.
+         */
+        private void evictOne() {
+            Node<K, V> victim = this.probation.prev != this.probation ? this.probation.prev : this.protect.prev;
+            if (victim != this.protect) {
+                this.remove(victim.key);
+                this.cache.evictions.incrementAndGet();
+            }
+        }
+
+        private Node<K, V> remove(K key) {
+            Node<K, V> node = this.map.remove(key);
+            if (node != null) {
+                node.unlink();
+                this.cache.weight.addAndGet(-node.weight);
+                if (node.protect) {
+                    this.protectedSize--;
+                }
+            }
+            return node;
+        }
+
+        private int clear() {
+            int size = this.map.size();
+            for (Node<K, V> node : this.map.values()) {
+                this.cache.weight.addAndGet(-node.weight);
+            }
+            this.map.clear();
+            this.probation.prev = this.probation.next = this.probation;
+            this.protect.prev = this.protect.next = this.protect;
+            this.protectedSize = 0;
+            return size;
+        }
+
+    }
+
+}
@@ -0,0 +1,16 @@
+package net.wouto.modelsync.mongo.cache;
+
+/**
+ * Tells how much of the weight limit of a cache an entry takes.
+ * @author Wouter
+ * @param <V> the cached values
+ */
+public interface Weigher<V> {
+
+    /**
+     * @param value
+     * @return the weight of the value, at least 1
+     */
+    public int weigh(V value);
+
+}
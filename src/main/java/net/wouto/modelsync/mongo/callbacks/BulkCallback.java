@@ -0,0 +1,9 @@
+package net.wouto.modelsync.mongo.callbacks;
+
+import net.wouto.modelsync.mongo.bulk.BulkReport;
+
+public interface BulkCallback {
+
+    public void onQueryDone(BulkReport report, Exception err);
+    
+}
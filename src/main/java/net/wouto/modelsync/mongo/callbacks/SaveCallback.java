@@ -0,0 +1,9 @@
+package net.wouto.modelsync.mongo.callbacks;
+
+import net.wouto.modelsync.mongo.sync.SaveResult;
+
+public interface SaveCallback {
+
+    public void onQueryDone(SaveResult result, Exception err);
+
+}
@@ -0,0 +1,22 @@
+package net.wouto.modelsync.mongo.callbacks;
+
+/**
+ * Receives the results of a query one at a time, as they are read from the cursor.
+ * @param <T> the result type
+ */
+public interface StreamCallback<T> {
+
+    /**
+     * @param result the next result
+     * @return false to stop reading and close the cursor
+     */
+    public boolean onNext(T result);
+
+    /**
+     * Called once after the last result, when reading was stopped, or when it failed.
+     * @param count the number of results passed to {@link #onNext(Object)}
+     * @param err the failure, null when the results were read completely or reading was stopped
+     */
+    public void onComplete(long count, Exception err);
+
+}
@@ -0,0 +1,302 @@
+package net.wouto.modelsync.mongo.codec;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.wouto.modelsync.mongo.annotations.DBSync;
+import net.wouto.modelsync.mongo.sync.FieldAccessor;
+import net.wouto.modelsync.mongo.sync.FieldMetadata;
+import net.wouto.modelsync.mongo.sync.ModelMetadata;
+import org.bson.BSONException;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.BsonTypeClassMap;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+
+/**
+ * Streams a {@link DBSync} model straight from and to BSON, without building
+ * an intermediate {@link org.bson.Document}.
+ * <br />
+ * The mapping follows {@link net.wouto.modelsync.mongo.SimpleCollection#asDBObject(Object)}
+ * and {@link net.wouto.modelsync.mongo.SimpleCollection#fromDBObject(Object, org.bson.Document)}:
+ * unknown document keys are skipped and array fields are only written. A
+ * value that does not fit its field, like a string in an int field or 3.5 in
+ * a long field, is logged and skipped instead of failing the whole document.
+ * @author Wouter
+ * @param <T> the model type
+ */
+public class ModelCodec<T> implements Codec<T> {
+
+    private static final BsonTypeClassMap bsonTypes = new BsonTypeClassMap();
+
+    private final ModelMetadata<T> metadata;
+    private final CodecRegistry registry;
+    private final ConcurrentMap<Class<?>, Codec<?>> codecs;
+
+    public ModelCodec(ModelMetadata<T> metadata, CodecRegistry registry) {
+        this.metadata = metadata;
+        this.registry = registry;
+        this.codecs = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public Class<T> getEncoderClass() {
+        return this.metadata.getType();
+    }
+
+    private <V> Codec<V> codec(Class<V> type) {
+        Codec<?> c = this.codecs.get(type);
+        if (c == null) {
+            c = this.registry.get(type);
+            this.codecs.put(type, c);
+        }
+        return (Codec<V>) c;
+    }
+
+    @Override
+    public void encode(BsonWriter writer, T value, EncoderContext encoderContext) {
+        writer.writeStartDocument();
+        try {
+            for (FieldMetadata f : this.metadata.getFields()) {
+                if (!f.isSerializable()) {
+                    continue;
+                }
+                writer.writeName(f.getDbName());
+                this.encodeField(writer, f, value, encoderContext);
+            }
+        } catch (IllegalAccessException ex) {
+            throw new BSONException("Cannot read field of " + this.metadata.getType().getName(), ex);
+        }
+        writer.writeEndDocument();
+    }
+
+    private void encodeField(BsonWriter writer, FieldMetadata f, T instance, EncoderContext ctx) throws IllegalAccessException {
+        FieldAccessor accessor = f.getAccessor();
+        Class<?> type = f.getType();
+        if (type == int.class) {
+            writer.writeInt32(accessor.getInt(instance));
+            return;
+        } else if (type == long.class) {
+            writer.writeInt64(accessor.getLong(instance));
+            return;
+        } else if (type == double.class) {
+            writer.writeDouble(accessor.getDouble(instance));
+            return;
+        } else if (type == boolean.class) {
+            writer.writeBoolean(accessor.getBoolean(instance));
+            return;
+        }
+        Object value = accessor.get(instance);
+        if (value == null) {
+            writer.writeNull();
+            return;
+        }
+        switch (f.getKind()) {
+            case VALUE_ARRAY:
+                if (value instanceof byte[]) {
+                    this.writeValue(writer, value, ctx);
+                } else {
+                    writer.writeStartArray();
+                    for (int i = 0, l = Array.getLength(value); i < l; i++) {
+                        this.writeValue(writer, Array.get(value, i), ctx);
+                    }
+                    writer.writeEndArray();
+                }
+                break;
+            case MODEL_ARRAY:
+                writer.writeStartArray();
+                for (Object o : (Object[]) value) {
+                    this.writeModel(writer, o, ctx);
+                }
+                writer.writeEndArray();
+                break;
+            case MODEL_COLLECTION:
+                writer.writeStartArray();
+                for (Object o : (Collection) value) {
+                    this.writeModel(writer, o, ctx);
+                }
+                writer.writeEndArray();
+                break;
+            case MODEL:
+                this.writeModel(writer, value, ctx);
+                break;
+            default:
+                this.writeValue(writer, value, ctx);
+                break;
+        }
+    }
+
+    private void writeModel(BsonWriter writer, Object value, EncoderContext ctx) {
+        if (value == null) {
+            writer.writeNull();
+            return;
+        }
+        Codec codec = this.codec(value.getClass());
+        ctx.encodeWithChildContext(codec, writer, value);
+    }
+
+    private void writeValue(BsonWriter writer, Object value, EncoderContext ctx) {
+        if (value == null) {
+            writer.writeNull();
+        } else if (value instanceof Iterable && !(value instanceof Map)) {
+            writer.writeStartArray();
+            for (Object o : (Iterable) value) {
+                this.writeValue(writer, o, ctx);
+            }
+            writer.writeEndArray();
+        } else {
+            Codec codec = this.codec(value.getClass());
+            ctx.encodeWithChildContext(codec, writer, value);
+        }
+    }
+
+    @Override
+    public T decode(BsonReader reader, DecoderContext decoderContext) {
+        T instance;
+        try {
+            instance = this.metadata.newInstance();
+        } catch (Exception ex) {
+            throw new BSONException("Cannot instantiate " + this.metadata.getType().getName(), ex);
+        }
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            FieldMetadata f = this.metadata.getField(reader.readName());
+            if (f == null || !f.isSerializable()) {
+                reader.skipValue();
+                continue;
+            }
+            try {
+                this.decodeField(reader, f, instance, decoderContext);
+            } catch (IllegalAccessException ex) {
+                throw new BSONException("Cannot write field " + f.getName() + " of " + this.metadata.getType().getName(), ex);
+            }
+        }
+        reader.readEndDocument();
+        return instance;
+    }
+
+    private void decodeField(BsonReader reader, FieldMetadata f, T instance, DecoderContext ctx) throws IllegalAccessException {
+        BsonType bsonType = reader.getCurrentBsonType();
+        Class<?> type = f.getType();
+        if (bsonType == BsonType.NULL) {
+            reader.readNull();
+            if (!type.isPrimitive()) {
+                f.getAccessor().set(instance, null);
+            }
+            return;
+        }
+        switch (f.getKind()) {
+            case VALUE_ARRAY:
+            case MODEL_ARRAY:
+                reader.skipValue();
+                return;
+            case MODEL:
+                if (bsonType != BsonType.DOCUMENT) {
+                    this.skip(reader, f, bsonType, type);
+                    return;
+                }
+                f.getAccessor().set(instance, this.codec(f.getElementType()).decode(reader, ctx));
+                return;
+            case MODEL_COLLECTION:
+                if (bsonType != BsonType.ARRAY) {
+                    this.skip(reader, f, bsonType, type);
+                    return;
+                }
+                List list = new ArrayList();
+                Codec<?> codec = this.codec(f.getElementType());
+                reader.readStartArray();
+                while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                    if (reader.getCurrentBsonType() == BsonType.NULL) {
+                        reader.readNull();
+                        list.add(null);
+                    } else if (reader.getCurrentBsonType() != BsonType.DOCUMENT) {
+                        this.skip(reader, f, reader.getCurrentBsonType(), f.getElementType());
+                    } else {
+                        list.add(codec.decode(reader, ctx));
+                    }
+                }
+                reader.readEndArray();
+                f.getAccessor().set(instance, list);
+                return;
+            default:
+                break;
+        }
+        // the value is read whole before it is set, so a value that does not fit leaves the reader at the next field
+        try {
+            if (type == int.class || type == long.class || type == double.class) {
+                switch (bsonType) {
+                    case INT32:
+                        setWhole(f.getAccessor(), type, instance, reader.readInt32());
+                        return;
+                    case INT64:
+                        setWhole(f.getAccessor(), type, instance, reader.readInt64());
+                        return;
+                    case DOUBLE:
+                        setReal(f.getAccessor(), type, instance, reader.readDouble());
+                        return;
+                    default:
+                        break;
+                }
+            } else if (type == boolean.class && bsonType == BsonType.BOOLEAN) {
+                f.getAccessor().setBoolean(instance, reader.readBoolean());
+                return;
+            }
+            f.set(instance, this.readValue(reader, ctx));
+        } catch (IllegalArgumentException | ClassCastException | ArithmeticException ex) {
+            Logger.getLogger(ModelCodec.class.getName()).log(Level.WARNING, "Skipping field " + f.getName() + " of " + this.metadata.getType().getName() + ": " + ex.getMessage());
+        }
+    }
+
+    private void skip(BsonReader reader, FieldMetadata f, BsonType found, Class<?> expected) {
+        Logger.getLogger(ModelCodec.class.getName()).log(Level.WARNING, "Skipping field " + f.getName() + " of " + this.metadata.getType().getName() + ": cannot read a " + found + " as " + expected.getName());
+        reader.skipValue();
+    }
+
+    private static void setWhole(FieldAccessor accessor, Class<?> type, Object instance, long value) throws IllegalAccessException {
+        if (type == int.class) {
+            accessor.setInt(instance, FieldMetadata.toInt(value));
+        } else if (type == long.class) {
+            accessor.setLong(instance, value);
+        } else {
+            accessor.setDouble(instance, FieldMetadata.toDouble(value));
+        }
+    }
+
+    private static void setReal(FieldAccessor accessor, Class<?> type, Object instance, double value) throws IllegalAccessException {
+        if (type == int.class) {
+            accessor.setInt(instance, FieldMetadata.toInt(value));
+        } else if (type == long.class) {
+            accessor.setLong(instance, FieldMetadata.toLong(value));
+        } else {
+            accessor.setDouble(instance, value);
+        }
+    }
+
+    private Object readValue(BsonReader reader, DecoderContext ctx) {
+        BsonType bsonType = reader.getCurrentBsonType();
+        if (bsonType == BsonType.NULL) {
+            reader.readNull();
+            return null;
+        } else if (bsonType == BsonType.ARRAY) {
+            List list = new ArrayList();
+            reader.readStartArray();
+            while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                list.add(this.readValue(reader, ctx));
+            }
+            reader.readEndArray();
+            return list;
+        }
+        return this.codec(bsonTypes.get(bsonType)).decode(reader, ctx);
+    }
+
+}
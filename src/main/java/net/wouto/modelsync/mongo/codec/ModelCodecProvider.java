@@ -0,0 +1,32 @@
+package net.wouto.modelsync.mongo.codec;
+
+import net.wouto.modelsync.mongo.annotations.DBSync;
+import net.wouto.modelsync.mongo.sync.ModelMetadata;
+import org.bson.codecs.Codec;
+import org.bson.codecs.configuration.CodecProvider;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
+
+/**
+ * Provides a {@link ModelCodec} for every class with {@link DBSync} fields.
+ * @author Wouter
+ */
+public class ModelCodecProvider implements CodecProvider {
+
+    @Override
+    public <T> Codec<T> get(Class<T> clazz, CodecRegistry registry) {
+        if (ModelMetadata.isPrimitive(clazz) || !ModelMetadata.isModel(clazz)) {
+            return null;
+        }
+        return new ModelCodec<>(ModelMetadata.of(clazz), registry);
+    }
+
+    /**
+     * @param registry
+     * @return a registry that resolves models first and everything else through the given registry
+     */
+    public static CodecRegistry withModels(CodecRegistry registry) {
+        return CodecRegistries.fromRegistries(CodecRegistries.fromProviders(new ModelCodecProvider()), registry);
+    }
+
+}
@@ -0,0 +1,13 @@
+package net.wouto.modelsync.mongo.future;
+
+/**
+ * Starts a dependent operation with the result of a {@link MongoFuture}.
+ * @author Wouter
+ * @param <T> the input type
+ * @param <R> the result type of the dependent operation
+ */
+public interface AsyncTransformer<T, R> {
+
+    public MongoFuture<R> apply(T value) throws Exception;
+
+}
@@ -0,0 +1,16 @@
+package net.wouto.modelsync.mongo.future;
+
+/**
+ * Receives the outcome of a {@link MongoFuture}.
+ * @author Wouter
+ * @param <T> the result type
+ */
+public interface FutureCallback<T> {
+
+    /**
+     * @param result the result, null when the future failed
+     * @param err the failure, null when the future completed
+     */
+    public void onComplete(T result, Exception err);
+
+}
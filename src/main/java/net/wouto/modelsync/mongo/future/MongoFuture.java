@@ -0,0 +1,345 @@
+package net.wouto.modelsync.mongo.future;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The result of an asynchronous operation that can be composed with others.
+ * <br />
+ * Callbacks and transformations run on the thread that completes the future,
+ * usually a scheduler thread, or on the executor passed along with them.
+ * When the future is already done they run right away on the calling thread.
+ * A future completes only once, later calls to {@link #complete(Object)},
+ * {@link #fail(Exception)} and {@link #cancel(boolean)} have no effect.
+ * @author Wouter
+ * @param <T> the result type
+ */
+public class MongoFuture<T> implements Future<T> {
+
+    private static final Logger logger = Logger.getLogger(MongoFuture.class.getName());
+
+    private final Object lock = new Object();
+    private boolean done;
+    private T result;
+    private Exception error;
+    private List<Runnable> listeners;
+    private ScheduledFuture<?> timeout;
+
+    /**
+     * @param result
+     * @return whether this call completed the future
+     */
+    public boolean complete(T result) {
+        return this.finish(result, null);
+    }
+
+    /**
+     * @param err
+     * @return whether this call completed the future
+     */
+    public boolean fail(Exception err) {
+        if (err == null) {
+            throw new IllegalArgumentException("err can not be null");
+        }
+        return this.finish(null, err);
+    }
+
+    private boolean finish(T result, Exception err) {
+        List<Runnable> run;
+        ScheduledFuture<?> timer;
+        synchronized (this.lock) {
+            if (this.done) {
+                return false;
+            }
+            this.done = true;
+            this.result = result;
+            this.error = err;
+            run = this.listeners;
+            timer = this.timeout;
+            this.listeners = null;
+            this.timeout = null;
+            this.lock.notifyAll();
+        }
+        if (timer != null) {
+            timer.cancel(false);
+        }
+        if (run != null) {
+            for (Runnable r : run) {
+                r.run();
+            }
+        }
+        return true;
+    }
+
+    private void listen(Runnable r) {
+        synchronized (this.lock) {
+            if (!this.done) {
+                if (this.listeners == null) {
+                    this.listeners = new ArrayList<>(2);
+                }
+                this.listeners.add(r);
+                return;
+            }
+        }
+        r.run();
+    }
+
+    /**
+     * Calls back once this future is done.
+     * @param callback
+     * @return this
+     */
+    public MongoFuture<T> onComplete(FutureCallback<? super T> callback) {
+        return this.onComplete(callback, null);
+    }
+
+    /**
+     * Calls back once this future is done, on the given executor.
+     * @param callback
+     * @param executor the executor running the callback, null for the completing thread
+     * @return this
+     */
+    public MongoFuture<T> onComplete(final FutureCallback<? super T> callback, final Executor executor) {
+        final Runnable notify = new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    callback.onComplete(MongoFuture.this.result, MongoFuture.this.error);
+                } catch (RuntimeException ex) {
+                    logger.log(Level.WARNING, "Future callback failed", ex);
+                }
+            }
+
+        };
+        this.listen(executor == null ? notify : new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    executor.execute(notify);
+                } catch (RejectedExecutionException ex) {
+                    notify.run();
+                }
+            }
+
+        });
+        return this;
+    }
+
+    /**
+     * @param <R>
+     * @param transformer applied to the result when this future completes
+     * @return a future of the transformed result, failing when this future
+     * or the transformer fails
+     */
+    public <R> MongoFuture<R> map(Transformer<? super T, ? extends R> transformer) {
+        return this.map(transformer, null);
+    }
+
+    /**
+     * @param <R>
+     * @param transformer applied to the result when this future completes
+     * @param executor the executor running the transformer, null for the completing thread
+     * @return a future of the transformed result
+     */
+    public <R> MongoFuture<R> map(final Transformer<? super T, ? extends R> transformer, Executor executor) {
+        final MongoFuture<R> next = new MongoFuture<>();
+        this.onComplete(new FutureCallback<T>() {
+
+            @Override
+            public void onComplete(T result, Exception err) {
+                if (err != null) {
+                    next.fail(err);
+                    return;
+                }
+                try {
+                    next.complete(transformer.apply(result));
+                } catch (Exception ex) {
+                    next.fail(ex);
+                }
+            }
+
+        }, executor);
+        return next;
+    }
+
+    /**
+     * Chains a dependent operation without blocking a thread in between.
+     * @param <R>
+     * @param transformer starts the next operation with the result of this one
+     * @return a future of the result of the next operation
+     */
+    public <R> MongoFuture<R> flatMap(AsyncTransformer<? super T, R> transformer) {
+        return this.flatMap(transformer, null);
+    }
+
+    /**
+     * @param <R>
+     * @param transformer starts the next operation with the result of this one
+     * @param executor the executor running the transformer, null for the completing thread
+     * @return a future of the result of the next operation
+     */
+    public <R> MongoFuture<R> flatMap(final AsyncTransformer<? super T, R> transformer, Executor executor) {
+        final MongoFuture<R> next = new MongoFuture<>();
+        this.onComplete(new FutureCallback<T>() {
+
+            @Override
+            public void onComplete(T result, Exception err) {
+                if (err != null) {
+                    next.fail(err);
+                    return;
+                }
+                try {
+                    MongoFuture<R> inner = transformer.apply(result);
+                    if (inner == null) {
+                        next.complete(null);
+                        return;
+                    }
+                    inner.onComplete(new FutureCallback<R>() {
+
+                        @Override
+                        public void onComplete(R result, Exception err) {
+                            next.finish(result, err);
+                        }
+
+                    });
+                } catch (Exception ex) {
+                    next.fail(ex);
+                }
+            }
+
+        }, executor);
+        return next;
+    }
+
+    /**
+     * @param transformer turns a failure into a result
+     * @return a future completing with the result of this one, or with the
+     * recovered value when this one fails
+     */
+    public MongoFuture<T> recover(final Transformer<? super Exception, ? extends T> transformer) {
+        final MongoFuture<T> next = new MongoFuture<>();
+        this.onComplete(new FutureCallback<T>() {
+
+            @Override
+            public void onComplete(T result, Exception err) {
+                if (err == null) {
+                    next.complete(result);
+                    return;
+                }
+                try {
+                    next.complete(transformer.apply(err));
+                } catch (Exception ex) {
+                    next.fail(ex);
+                }
+            }
+
+        });
+        return next;
+    }
+
+    /**
+     * Fails this future with a {@link TimeoutException} when it is not done in time.
+     * An operation that has not started yet by then is skipped, one that is
+     * running finishes but its result is dropped.
+     * @param timeout
+     * @param unit
+     * @return this
+     */
+    public MongoFuture<T> withTimeout(long timeout, TimeUnit unit) {
+        final long millis = unit.toMillis(timeout);
+        ScheduledFuture<?> timer = MongoFutures.timer().schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                MongoFuture.this.fail(new TimeoutException("Operation did not complete within " + millis + "ms"));
+            }
+
+        }, timeout, unit);
+        ScheduledFuture<?> previous;
+        synchronized (this.lock) {
+            if (this.done) {
+                previous = timer;
+            } else {
+                previous = this.timeout;
+                this.timeout = timer;
+            }
+        }
+        if (previous != null) {
+            previous.cancel(false);
+        }
+        return this;
+    }
+
+    /**
+     * Fails this future with a {@link CancellationException}.
+     * The operation itself is skipped when it has not started yet.
+     * @param mayInterruptIfRunning ignored, running operations are never interrupted
+     * @return whether this call cancelled the future
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return this.finish(null, new CancellationException());
+    }
+
+    @Override
+    public boolean isCancelled() {
+        synchronized (this.lock) {
+            return this.error instanceof CancellationException;
+        }
+    }
+
+    @Override
+    public boolean isDone() {
+        synchronized (this.lock) {
+            return this.done;
+        }
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        synchronized (this.lock) {
+            while (!this.done) {
+                this.lock.wait();
+            }
+            return this.report();
+        }
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (this.lock) {
+            while (!this.done) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new TimeoutException();
+                }
+                TimeUnit.NANOSECONDS.timedWait(this.lock, remaining);
+            }
+            return this.report();
+        }
+    }
+
+    private T report() throws ExecutionException {
+        if (this.error instanceof CancellationException) {
+            throw (CancellationException) this.error;
+        }
+        if (this.error != null) {
+            throw new ExecutionException(this.error);
+        }
+        return this.result;
+    }
+
+}
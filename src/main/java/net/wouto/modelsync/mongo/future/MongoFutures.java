@@ -0,0 +1,104 @@
+package net.wouto.modelsync.mongo.future;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factory methods for {@link MongoFuture}s.
+ * @author Wouter
+ */
+public final class MongoFutures {
+
+    private static volatile ScheduledExecutorService timer;
+
+    private MongoFutures() {
+    }
+
+    public static <T> MongoFuture<T> completed(T result) {
+        MongoFuture<T> future = new MongoFuture<>();
+        future.complete(result);
+        return future;
+    }
+
+    public static <T> MongoFuture<T> failed(Exception err) {
+        MongoFuture<T> future = new MongoFuture<>();
+        future.fail(err);
+        return future;
+    }
+
+    @SafeVarargs
+    public static <T> MongoFuture<List<T>> allOf(MongoFuture<? extends T>... futures) {
+        return allOf(Arrays.asList(futures));
+    }
+
+    /**
+     * @param <T>
+     * @param futures
+     * @return a future of all results in the order of the given futures,
+     * failing with the first failure among them
+     */
+    public static <T> MongoFuture<List<T>> allOf(List<? extends MongoFuture<? extends T>> futures) {
+        final MongoFuture<List<T>> all = new MongoFuture<>();
+        final int size = futures.size();
+        if (size == 0) {
+            all.complete(Collections.<T>emptyList());
+            return all;
+        }
+        final List<T> results = new ArrayList<>(Collections.<T>nCopies(size, null));
+        final AtomicInteger remaining = new AtomicInteger(size);
+        for (int i = 0; i < size; i++) {
+            final int index = i;
+            futures.get(i).onComplete(new FutureCallback<T>() {
+
+                @Override
+                public void onComplete(T result, Exception err) {
+                    if (err != null) {
+                        all.fail(err);
+                        return;
+                    }
+                    synchronized (results) {
+                        results.set(index, result);
+                    }
+                    if (remaining.decrementAndGet() == 0) {
+                        synchronized (results) {
+                            all.complete(results);
+                        }
+                    }
+                }
+
+            });
+        }
+        return all;
+    }
+
+    static ScheduledExecutorService timer() {
+        ScheduledExecutorService t = timer;
+        if (t == null) {
+            synchronized (MongoFutures.class) {
+                t = timer;
+                if (t == null) {
+                    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "SimpleMongo-Timeout");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+
+                    });
+                    executor.setRemoveOnCancelPolicy(true);
+                    timer = t = executor;
+                }
+            }
+        }
+        return t;
+    }
+
+}
@@ -0,0 +1,13 @@
+package net.wouto.modelsync.mongo.future;
+
+/**
+ * Turns the result of a {@link MongoFuture} into another value.
+ * @author Wouter
+ * @param <T> the input type
+ * @param <R> the output type
+ */
+public interface Transformer<T, R> {
+
+    public R apply(T value) throws Exception;
+
+}
@@ -0,0 +1,348 @@
+package net.wouto.modelsync.mongo.journal;
+
+import com.mongodb.MongoClient;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.io.BasicOutputBuffer;
+
+/**
+ * An append-only log of writes kept in memory-mapped segment files, so
+ * writes survive the process and can be sent again once the server is back.
+ * <br />
+ * Every write is appended as a BSON record with a sequence number before
+ * it is sent, and acknowledged with a small record of its own once the server
+ * applied it. Opening a journal reads the segments back, every write without
+ * an acknowledgement is pending again, in sequence order. A segment is
+ * deleted once it and every segment before it hold no pending write.
+ * <br />
+ * Records are in the page cache as soon as they are appended, which survives
+ * the process crashing. Pass force to also survive the machine going down, at
+ * the cost of a disk flush per record.
+ * @author Wouter
+ */
+public final class WriteJournal implements Closeable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final String SUFFIX = ".journal";
+    private static final byte ENTRY = 1;
+    private static final byte ACK = 2;
+    /**
+     * length of the payload plus one, so an empty record is not read as the zeroed end of a segment,
+     * crc of type, sequence and payload, type, sequence
+     */
+    private static final int HEADER = 4 + 4 + 1 + 8;
+
+    private final File directory;
+    private final int segmentSize;
+    private final boolean force;
+    private final CodecRegistry registry;
+    private final LinkedList<Segment> segments;
+    private final TreeMap<Long, Location> pending;
+    private Segment current;
+    private long nextSequence;
+    private long nextSegment;
+    private boolean closed;
+
+    public WriteJournal(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, false);
+    }
+
+    /**
+     * @param directory where the segment files are kept, created when missing
+     * @param segmentSize the size of a segment file, the largest record that fits
+     * @param force whether every record is flushed to disk before append returns
+     * @throws IOException when the directory or a segment can not be read
+     */
+    public WriteJournal(File directory, int segmentSize, boolean force) throws IOException {
+        if (segmentSize < 4096) {
+            throw new IllegalArgumentException("segmentSize must be at least 4096, got " + segmentSize);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create journal directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.force = force;
+        this.registry = MongoClient.getDefaultCodecRegistry();
+        this.segments = new LinkedList<>();
+        this.pending = new TreeMap<>();
+        this.recover();
+        this.current = this.createSegment();
+    }
+
+    private void recover() throws IOException {
+        File[] files = this.directory.listFiles(new FilenameFilter() {
+
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX);
+            }
+
+        });
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = file.getName();
+            try {
+                this.nextSegment = Math.max(this.nextSegment, Long.parseLong(name.substring(0, name.length() - SUFFIX.length())) + 1);
+            } catch (NumberFormatException ex) {
+                throw new IOException("Not a journal segment " + file, ex);
+            }
+            Segment segment = new Segment(file, map(file, file.length(), false));
+            this.segments.add(segment);
+            ByteBuffer buffer = segment.buffer;
+            while (buffer.remaining() >= HEADER) {
+                int start = buffer.position();
+                int length = buffer.getInt(start) - 1;
+                if (length < 0 || start + HEADER + length > buffer.limit()) {
+                    break;
+                }
+                byte type = buffer.get(start + 8);
+                long sequence = buffer.getLong(start + 9);
+                byte[] payload = new byte[length];
+                buffer.position(start + HEADER);
+                buffer.get(payload);
+                if (buffer.getInt(start + 4) != checksum(type, sequence, payload)) {
+                    // torn by a crash while it was being written, nothing follows it
+                    break;
+                }
+                if (type == ENTRY) {
+                    this.pending.put(sequence, new Location(segment, start, length));
+                    segment.pendingCount++;
+                } else {
+                    this.release(sequence);
+                }
+                this.nextSequence = Math.max(this.nextSequence, sequence + 1);
+            }
+        }
+        this.trim();
+        // a segment without records is of no use, a new one is created to append to
+        while (!this.segments.isEmpty() && (this.segments.getLast().buffer.capacity() < HEADER || this.segments.getLast().buffer.getInt(0) == 0)) {
+            Segment empty = this.segments.removeLast();
+            if (!empty.file.delete()) {
+                throw new IOException("Cannot delete empty journal segment " + empty.file);
+            }
+        }
+    }
+
+    /**
+     * Segments are numbered on their own, acknowledgements do not take a
+     * sequence number so a segment holding only those would leave it as is.
+     */
+    private Segment createSegment() throws IOException {
+        File file = new File(this.directory, String.format("%020d%s", this.nextSegment++, SUFFIX));
+        Segment segment = new Segment(file, map(file, this.segmentSize, true));
+        this.segments.add(segment);
+        return segment;
+    }
+
+    private static MappedByteBuffer map(File file, long size, boolean create) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (create) {
+                raf.setLength(size);
+            }
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static int checksum(byte type, long sequence, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (sequence >>> shift));
+        }
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * @param record
+     * @return the sequence number of the record
+     * @throws IOException when a new segment can not be created
+     */
+    public long append(Document record) throws IOException {
+        BasicOutputBuffer output = new BasicOutputBuffer();
+        BsonBinaryWriter writer = new BsonBinaryWriter(output);
+        try {
+            this.registry.get(Document.class).encode(writer, record, EncoderContext.builder().build());
+        } finally {
+            writer.close();
+        }
+        byte[] payload = output.toByteArray();
+        if (HEADER + payload.length > this.segmentSize) {
+            throw new IllegalArgumentException("Record of " + payload.length + " bytes does not fit a journal segment of " + this.segmentSize);
+        }
+        synchronized (this) {
+            long sequence = this.nextSequence;
+            this.write(ENTRY, sequence, payload);
+            this.nextSequence++;
+            this.pending.put(sequence, new Location(this.current, this.current.buffer.position() - HEADER - payload.length, payload.length));
+            this.current.pendingCount++;
+            return sequence;
+        }
+    }
+
+    /**
+     * Marks a write as applied, it is not pending anymore when the journal is opened again.
+     * @param sequence
+     * @throws IOException when a new segment can not be created
+     */
+    public synchronized void acknowledge(long sequence) throws IOException {
+        if (!this.pending.containsKey(sequence)) {
+            return;
+        }
+        this.write(ACK, sequence, new byte[0]);
+        this.release(sequence);
+        this.trim();
+    }
+
+    /**
+     * @param type
+     * @param sequence of the write, an acknowledgement carries the one of the write it acknowledges
+     * @param payload
+     */
+    private void write(byte type, long sequence, byte[] payload) throws IOException {
+        if (this.closed) {
+            throw new IOException("Journal is closed");
+        }
+        if (this.current.buffer.remaining() < HEADER + payload.length) {
+            this.current = this.createSegment();
+        }
+        MappedByteBuffer buffer = this.current.buffer;
+        int start = buffer.position();
+        buffer.position(start + 8);
+        buffer.put(type);
+        buffer.putLong(sequence);
+        buffer.put(payload);
+        buffer.putInt(start + 4, checksum(type, sequence, payload));
+        // the length goes in last, a record is not read back before it is complete
+        buffer.putInt(start, payload.length + 1);
+        if (this.force) {
+            buffer.force();
+        }
+    }
+
+    private void release(long sequence) {
+        Location location = this.pending.remove(sequence);
+        if (location != null) {
+            location.segment.pendingCount--;
+        }
+    }
+
+    /**
+     * Deletes the oldest segments as long as they hold no pending write. An
+     * acknowledgement may be in a later segment than its write, so segments
+     * only go from the front.
+     */
+    private void trim() {
+        while (!this.segments.isEmpty()) {
+            Segment first = this.segments.getFirst();
+            if (first == this.current || first.pendingCount > 0) {
+                return;
+            }
+            this.segments.removeFirst();
+            if (!first.file.delete()) {
+                first.file.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * @return the sequence numbers of every write not acknowledged yet, in order
+     */
+    public synchronized List<Long> getPending() {
+        return new ArrayList<>(this.pending.keySet());
+    }
+
+    public synchronized int getPendingCount() {
+        return this.pending.size();
+    }
+
+    public synchronized int getSegmentCount() {
+        return this.segments.size();
+    }
+
+    /**
+     * @param sequence
+     * @return the record of a pending write, null when it is not pending
+     */
+    public Document read(long sequence) {
+        byte[] payload;
+        synchronized (this) {
+            Location location = this.pending.get(sequence);
+            if (location == null) {
+                return null;
+            }
+            ByteBuffer buffer = location.segment.buffer.duplicate();
+            buffer.position(location.offset + HEADER);
+            payload = new byte[location.length];
+            buffer.get(payload);
+        }
+        return this.registry.get(Document.class).decode(new BsonBinaryReader(ByteBuffer.wrap(payload)), DecoderContext.builder().build());
+    }
+
+    @Override
+    public synchronized void close() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        for (Segment segment : this.segments) {
+            segment.buffer.force();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "WriteJournal{" + "directory=" + this.directory + ", pending=" + this.getPendingCount() + ", segments=" + this.getSegmentCount() + '}';
+    }
+
+    private static final class Segment {
+
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private int pendingCount;
+
+        private Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+    }
+
+    private static final class Location {
+
+        private final Segment segment;
+        private final int offset;
+        private final int length;
+
+        private Location(Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+    }
+
+}
@@ -0,0 +1,165 @@
+package net.wouto.modelsync.mongo.journal;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.model.DeleteManyModel;
+import com.mongodb.client.model.DeleteOneModel;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.UpdateManyModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import net.wouto.modelsync.mongo.bulk.Bulk;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+/**
+ * Turns writes into the documents a {@link WriteJournal} keeps, and back.
+ * <br />
+ * A record holds the type of a write next to its filter, update or document.
+ * A bulk write is a single record listing its writes, so it is sent again as
+ * a whole.
+ * @author Wouter
+ */
+public final class WriteRecords {
+
+    public static final String INSERT = "insert";
+    public static final String UPDATE = "update";
+    public static final String REPLACE = "replace";
+    public static final String REMOVE = "remove";
+    public static final String BULK = "bulk";
+
+    /**
+     * update operators that change a document again each time they are applied
+     */
+    private static final List<String> ACCUMULATING = Arrays.asList("$inc", "$mul", "$push", "$pushAll", "$pop", "$bit", "$currentDate");
+
+    private WriteRecords() {
+    }
+
+    public static Document insert(Document document) {
+        return new Document("type", INSERT).append("document", document);
+    }
+
+    public static Document update(Document filter, Document update, boolean upsert, boolean multi) {
+        return new Document("type", UPDATE).append("filter", filter).append("update", update).append("upsert", upsert).append("multi", multi);
+    }
+
+    public static Document replace(Document filter, Document document, boolean upsert) {
+        return new Document("type", REPLACE).append("filter", filter).append("document", document).append("upsert", upsert);
+    }
+
+    public static Document remove(Document filter, boolean multi) {
+        return new Document("type", REMOVE).append("filter", filter).append("multi", multi);
+    }
+
+    public static Document bulk(Bulk bulk) {
+        List<Document> writes = new ArrayList<>(bulk.size());
+        for (WriteModel<Document> request : bulk.getRequests()) {
+            writes.add(fromWriteModel(request));
+        }
+        return new Document("type", BULK).append("ordered", bulk.isOrdered()).append("chunkSize", bulk.getChunkSize()).append("writes", writes);
+    }
+
+    /**
+     * @param record a bulk record
+     * @return the bulk it was made of
+     */
+    public static Bulk toBulk(Document record) {
+        Bulk bulk = new Bulk().ordered(record.getBoolean("ordered")).chunkSize(record.getInteger("chunkSize"));
+        for (Document write : (List<Document>) record.get("writes")) {
+            bulk.add(toWriteModel(write));
+        }
+        return bulk;
+    }
+
+    public static Document fromWriteModel(WriteModel<Document> request) {
+        if (request instanceof InsertOneModel) {
+            return insert(((InsertOneModel<Document>) request).getDocument());
+        } else if (request instanceof ReplaceOneModel) {
+            ReplaceOneModel<Document> replace = (ReplaceOneModel<Document>) request;
+            return replace(toDocument(replace.getFilter()), replace.getReplacement(), replace.getOptions().isUpsert());
+        } else if (request instanceof UpdateOneModel) {
+            UpdateOneModel<Document> update = (UpdateOneModel<Document>) request;
+            return update(toDocument(update.getFilter()), toDocument(update.getUpdate()), update.getOptions().isUpsert(), false);
+        } else if (request instanceof UpdateManyModel) {
+            UpdateManyModel<Document> update = (UpdateManyModel<Document>) request;
+            return update(toDocument(update.getFilter()), toDocument(update.getUpdate()), update.getOptions().isUpsert(), true);
+        } else if (request instanceof DeleteOneModel) {
+            return remove(toDocument(((DeleteOneModel<Document>) request).getFilter()), false);
+        } else if (request instanceof DeleteManyModel) {
+            return remove(toDocument(((DeleteManyModel<Document>) request).getFilter()), true);
+        }
+        throw new IllegalArgumentException("Cannot journal " + request.getClass().getName());
+    }
+
+    /**
+     * An insert sent again fails on its _id, a remove or replace finds
+     * nothing left to do, an update is idempotent unless it uses an operator
+     * like $inc or $push.
+     * @param record
+     * @return whether applying the write twice leaves the same documents as applying it once
+     */
+    public static boolean isIdempotent(Document record) {
+        String type = record.getString("type");
+        if (BULK.equals(type)) {
+            for (Document write : (List<Document>) record.get("writes")) {
+                if (!isIdempotent(write)) {
+                    return false;
+                }
+            }
+        } else if (UPDATE.equals(type)) {
+            for (String operator : ((Document) record.get("update")).keySet()) {
+                if (ACCUMULATING.contains(operator)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param record any record but a bulk one
+     * @return the write as a model of the driver
+     */
+    public static WriteModel<Document> toWriteModel(Document record) {
+        String type = record.getString("type");
+        switch (type) {
+            case INSERT:
+                return new InsertOneModel<>((Document) record.get("document"));
+            case REPLACE:
+                return new ReplaceOneModel<>((Document) record.get("filter"), (Document) record.get("document"), upsert(record));
+            case UPDATE:
+                if (record.getBoolean("multi")) {
+                    return new UpdateManyModel<>((Document) record.get("filter"), (Document) record.get("update"), upsert(record));
+                }
+                return new UpdateOneModel<>((Document) record.get("filter"), (Document) record.get("update"), upsert(record));
+            case REMOVE:
+                if (record.getBoolean("multi")) {
+                    return new DeleteManyModel<>((Document) record.get("filter"));
+                }
+                return new DeleteOneModel<>((Document) record.get("filter"));
+            default:
+                throw new IllegalArgumentException("Not a single write: " + type);
+        }
+    }
+
+    private static UpdateOptions upsert(Document record) {
+        UpdateOptions options = new UpdateOptions();
+        options.upsert(record.getBoolean("upsert"));
+        return options;
+    }
+
+    private static Document toDocument(Bson bson) {
+        if (bson instanceof Document) {
+            return (Document) bson;
+        }
+        Document document = new Document();
+        document.putAll(bson.toBsonDocument(Document.class, MongoClient.getDefaultCodecRegistry()));
+        return document;
+    }
+
+}
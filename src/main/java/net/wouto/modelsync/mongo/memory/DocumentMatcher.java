@@ -0,0 +1,700 @@
+package net.wouto.modelsync.mongo.memory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.Code;
+import org.bson.types.MaxKey;
+import org.bson.types.MinKey;
+import org.bson.types.ObjectId;
+
+/**
+ * Evaluates query filters, the operators {@link net.wouto.modelsync.mongo.query.Query}
+ * builds, against stored documents. Also holds the value ordering used for sorting.
+ * @author Wouter
+ */
+final class DocumentMatcher {
+
+    private DocumentMatcher() {
+    }
+
+    /**
+     * A test applied to a single (leaf) value.
+     */
+    private interface ValueTest {
+
+        boolean test(Object value);
+
+    }
+
+    static boolean matches(Map<String, Object> document, Map<String, Object> filter) {
+        for (Map.Entry<String, Object> e : filter.entrySet()) {
+            String key = e.getKey();
+            Object condition = e.getValue();
+            if (key.startsWith("$")) {
+                if (!matchesTopLevel(document, key, condition)) {
+                    return false;
+                }
+            } else if (!matchesField(document, key, condition)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matchesTopLevel(Map<String, Object> document, String operator, Object condition) {
+        switch (operator) {
+            case "$and":
+                for (Object f : asList(operator, condition)) {
+                    if (!matches(document, asMap(operator, f))) {
+                        return false;
+                    }
+                }
+                return true;
+            case "$or":
+                for (Object f : asList(operator, condition)) {
+                    if (matches(document, asMap(operator, f))) {
+                        return true;
+                    }
+                }
+                return false;
+            case "$nor":
+                for (Object f : asList(operator, condition)) {
+                    if (matches(document, asMap(operator, f))) {
+                        return false;
+                    }
+                }
+                return true;
+            case "$comment":
+                return true;
+            case "$text":
+            case "$where":
+                throw new UnsupportedOperationException(operator + " is not supported by the in-memory backend");
+            default:
+                throw new IllegalArgumentException("unknown top level operator: " + operator);
+        }
+    }
+
+    static boolean isOperatorDocument(Object condition) {
+        if (!(condition instanceof Map) || ((Map) condition).isEmpty()) {
+            return false;
+        }
+        for (Object k : ((Map) condition).keySet()) {
+            if (!k.toString().startsWith("$")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matchesField(Map<String, Object> document, String path, Object condition) {
+        List<Object> values = new ArrayList<>();
+        resolve(document, path.split("\\."), 0, values);
+        if (isOperatorDocument(condition)) {
+            Map<String, Object> operators = (Map<String, Object>) condition;
+            for (Map.Entry<String, Object> op : operators.entrySet()) {
+                if (!evaluate(values, op.getKey(), op.getValue(), operators)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return evaluate(values, "$eq", condition, null);
+    }
+
+    /**
+     * Collects every value at a dotted path, descending into arrays of documents.
+     * @param current
+     * @param parts
+     * @param i
+     * @param out
+     */
+    static void resolve(Object current, String[] parts, int i, List<Object> out) {
+        if (i == parts.length) {
+            out.add(current);
+            return;
+        }
+        if (current instanceof Map) {
+            Map m = (Map) current;
+            if (m.containsKey(parts[i])) {
+                resolve(m.get(parts[i]), parts, i + 1, out);
+            }
+        } else if (current instanceof List) {
+            List list = (List) current;
+            if (isIndex(parts[i])) {
+                int index = Integer.parseInt(parts[i]);
+                if (index < list.size()) {
+                    resolve(list.get(index), parts, i + 1, out);
+                }
+                return;
+            }
+            for (Object element : list) {
+                if (element instanceof Map) {
+                    resolve(element, parts, i, out);
+                }
+            }
+        }
+    }
+
+    static boolean isIndex(String part) {
+        if (part.isEmpty() || part.length() > 9) {
+            return false;
+        }
+        for (int i = 0; i < part.length(); i++) {
+            if (!Character.isDigit(part.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean anyLeaf(List<Object> values, ValueTest test) {
+        for (Object v : values) {
+            if (test.test(v)) {
+                return true;
+            }
+            if (v instanceof List) {
+                for (Object element : (List) v) {
+                    if (test.test(element)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean evaluate(List<Object> values, String operator, final Object arg, Map<String, Object> siblings) {
+        switch (operator) {
+            case "$eq":
+                if (arg == null && values.isEmpty()) {
+                    return true;
+                }
+                return anyLeaf(values, new ValueTest() {
+
+                    @Override
+                    public boolean test(Object value) {
+                        return equalsOrMatches(value, arg);
+                    }
+
+                });
+            case "$ne":
+                return !evaluate(values, "$eq", arg, siblings);
+            case "$gt":
+            case "$gte":
+            case "$lt":
+            case "$lte":
+                final String op = operator;
+                return anyLeaf(values, new ValueTest() {
+
+                    @Override
+                    public boolean test(Object value) {
+                        Integer c = compareSameType(value, arg);
+                        if (c == null) {
+                            return false;
+                        }
+                        switch (op) {
+                            case "$gt":
+                                return c > 0;
+                            case "$gte":
+                                return c >= 0;
+                            case "$lt":
+                                return c < 0;
+                            default:
+                                return c <= 0;
+                        }
+                    }
+
+                });
+            case "$in":
+                for (Object candidate : asList(operator, arg)) {
+                    if (evaluate(values, "$eq", candidate, siblings)) {
+                        return true;
+                    }
+                }
+                return false;
+            case "$nin":
+                return !evaluate(values, "$in", arg, siblings);
+            case "$all":
+                List<Object> all = asList(operator, arg);
+                if (all.isEmpty()) {
+                    return false;
+                }
+                for (Object candidate : all) {
+                    if (candidate instanceof Map && ((Map) candidate).containsKey("$elemMatch")) {
+                        if (!evaluate(values, "$elemMatch", ((Map) candidate).get("$elemMatch"), siblings)) {
+                            return false;
+                        }
+                    } else if (!evaluate(values, "$eq", candidate, siblings)) {
+                        return false;
+                    }
+                }
+                return true;
+            case "$elemMatch":
+                final Map<String, Object> criteria = elemMatchCriteria(arg);
+                for (Object v : values) {
+                    if (!(v instanceof List)) {
+                        continue;
+                    }
+                    for (Object element : (List) v) {
+                        if (elementMatches(element, criteria)) {
+                            return true;
+                        }
+                    }
+                }
+                return false;
+            case "$exists":
+                return values.isEmpty() != isTruthy(arg);
+            case "$type":
+                return anyLeaf(values, new ValueTest() {
+
+                    @Override
+                    public boolean test(Object value) {
+                        return typeMatches(value, arg);
+                    }
+
+                });
+            case "$mod":
+                List<Object> mod = asList(operator, arg);
+                if (mod.size() != 2) {
+                    throw new IllegalArgumentException("malformed mod, needs to be an array of [divisor, remainder]");
+                }
+                final long divisor = ((Number) mod.get(0)).longValue();
+                final long remainder = ((Number) mod.get(1)).longValue();
+                if (divisor == 0) {
+                    throw new IllegalArgumentException("divisor cannot be 0");
+                }
+                return anyLeaf(values, new ValueTest() {
+
+                    @Override
+                    public boolean test(Object value) {
+                        return value instanceof Number && ((Number) value).longValue() % divisor == remainder;
+                    }
+
+                });
+            case "$regex":
+                final Pattern pattern = toPattern(arg, siblings == null ? null : siblings.get("$options"));
+                return anyLeaf(values, new ValueTest() {
+
+                    @Override
+                    public boolean test(Object value) {
+                        return value instanceof String && pattern.matcher((String) value).find();
+                    }
+
+                });
+            case "$options":
+                return true;
+            case "$size":
+                int size = ((Number) arg).intValue();
+                for (Object v : values) {
+                    if (v instanceof List && ((List) v).size() == size) {
+                        return true;
+                    }
+                }
+                return false;
+            case "$not":
+                if (arg instanceof Pattern) {
+                    return !evaluate(values, "$eq", arg, siblings);
+                }
+                if (!isOperatorDocument(arg)) {
+                    throw new IllegalArgumentException("$not needs a regex or a document");
+                }
+                Map<String, Object> inner = (Map<String, Object>) arg;
+                for (Map.Entry<String, Object> e : inner.entrySet()) {
+                    if (!evaluate(values, e.getKey(), e.getValue(), inner)) {
+                        return true;
+                    }
+                }
+                return false;
+            default:
+                throw new IllegalArgumentException("unknown operator: " + operator);
+        }
+    }
+
+    /**
+     * Query builds $elemMatch from a QueryList, which yields a list of criteria
+     * instead of a single document. Both forms are accepted here, the criteria
+     * of a list all have to hold for the same element.
+     */
+    private static Map<String, Object> elemMatchCriteria(Object arg) {
+        if (arg instanceof Map) {
+            return (Map<String, Object>) arg;
+        }
+        Document merged = new Document();
+        for (Object o : asList("$elemMatch", arg)) {
+            merged.putAll(asMap("$elemMatch", o));
+        }
+        return merged;
+    }
+
+    private static boolean elementMatches(Object element, Map<String, Object> criteria) {
+        if (isOperatorDocument(criteria)) {
+            List<Object> single = new ArrayList<>();
+            single.add(element);
+            for (Map.Entry<String, Object> e : criteria.entrySet()) {
+                if (!evaluate(single, e.getKey(), e.getValue(), criteria)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return element instanceof Map && matches((Map<String, Object>) element, criteria);
+    }
+
+    static boolean equalsOrMatches(Object value, Object arg) {
+        if (arg instanceof Pattern) {
+            if (value instanceof Pattern) {
+                return ((Pattern) arg).pattern().equals(((Pattern) value).pattern());
+            }
+            return value instanceof String && ((Pattern) arg).matcher((String) value).find();
+        }
+        return valuesEqual(value, arg);
+    }
+
+    static boolean valuesEqual(Object a, Object b) {
+        if (a == b) {
+            return true;
+        }
+        if (a == null || b == null) {
+            return false;
+        }
+        if (a instanceof Number && b instanceof Number) {
+            return compareNumbers((Number) a, (Number) b) == 0;
+        }
+        if (a instanceof Map && b instanceof Map) {
+            Map ma = (Map) a;
+            Map mb = (Map) b;
+            if (ma.size() != mb.size()) {
+                return false;
+            }
+            Iterator<Map.Entry> ia = ma.entrySet().iterator();
+            Iterator<Map.Entry> ib = mb.entrySet().iterator();
+            while (ia.hasNext()) {
+                Map.Entry ea = ia.next();
+                Map.Entry eb = ib.next();
+                if (!ea.getKey().equals(eb.getKey()) || !valuesEqual(ea.getValue(), eb.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (a instanceof List && b instanceof List) {
+            List la = (List) a;
+            List lb = (List) b;
+            if (la.size() != lb.size()) {
+                return false;
+            }
+            for (int i = 0; i < la.size(); i++) {
+                if (!valuesEqual(la.get(i), lb.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (a instanceof byte[] || b instanceof byte[]) {
+            return Arrays.equals(bytes(a), bytes(b));
+        }
+        return a.equals(b);
+    }
+
+    private static byte[] bytes(Object o) {
+        if (o instanceof byte[]) {
+            return (byte[]) o;
+        }
+        if (o instanceof Binary) {
+            return ((Binary) o).getData();
+        }
+        return null;
+    }
+
+    static int compareNumbers(Number a, Number b) {
+        boolean integral = !(a instanceof Double || a instanceof Float || b instanceof Double || b instanceof Float);
+        if (integral) {
+            long la = a.longValue();
+            long lb = b.longValue();
+            return la < lb ? -1 : (la == lb ? 0 : 1);
+        }
+        return Double.compare(a.doubleValue(), b.doubleValue());
+    }
+
+    /**
+     * @return the comparison of two values of the same type bracket, null when they cannot be compared
+     */
+    private static Integer compareSameType(Object a, Object b) {
+        if (a == null || b == null) {
+            return null;
+        }
+        if (typeOrder(a) != typeOrder(b)) {
+            return null;
+        }
+        return compareValues(a, b);
+    }
+
+    /**
+     * Orders values the way the server sorts them: first by type bracket, then by value.
+     * @param a
+     * @param b
+     * @return
+     */
+    static int compareValues(Object a, Object b) {
+        int ta = typeOrder(a);
+        int tb = typeOrder(b);
+        if (ta != tb) {
+            return ta < tb ? -1 : 1;
+        }
+        if (a == null || b == null) {
+            return 0;
+        }
+        if (a instanceof Number) {
+            return compareNumbers((Number) a, (Number) b);
+        }
+        if (a instanceof Map) {
+            Iterator<Map.Entry> ia = ((Map) a).entrySet().iterator();
+            Iterator<Map.Entry> ib = ((Map) b).entrySet().iterator();
+            while (ia.hasNext() && ib.hasNext()) {
+                Map.Entry ea = ia.next();
+                Map.Entry eb = ib.next();
+                int c = ea.getKey().toString().compareTo(eb.getKey().toString());
+                if (c == 0) {
+                    c = compareValues(ea.getValue(), eb.getValue());
+                }
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return ia.hasNext() ? 1 : (ib.hasNext() ? -1 : 0);
+        }
+        if (a instanceof List) {
+            List la = (List) a;
+            List lb = (List) b;
+            for (int i = 0; i < Math.min(la.size(), lb.size()); i++) {
+                int c = compareValues(la.get(i), lb.get(i));
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return Integer.compare(la.size(), lb.size());
+        }
+        if (a instanceof Comparable && a.getClass().isInstance(b)) {
+            return ((Comparable) a).compareTo(b);
+        }
+        return 0;
+    }
+
+    private static int typeOrder(Object v) {
+        if (v instanceof MinKey) {
+            return 0;
+        }
+        if (v == null) {
+            return 1;
+        }
+        if (v instanceof Number) {
+            return 2;
+        }
+        if (v instanceof String) {
+            return 3;
+        }
+        if (v instanceof Map) {
+            return 4;
+        }
+        if (v instanceof List) {
+            return 5;
+        }
+        if (v instanceof Binary || v instanceof byte[]) {
+            return 6;
+        }
+        if (v instanceof ObjectId) {
+            return 7;
+        }
+        if (v instanceof Boolean) {
+            return 8;
+        }
+        if (v instanceof Date) {
+            return 9;
+        }
+        if (v instanceof BsonTimestamp) {
+            return 10;
+        }
+        if (v instanceof Pattern) {
+            return 11;
+        }
+        if (v instanceof MaxKey) {
+            return 13;
+        }
+        return 12;
+    }
+
+    private static boolean typeMatches(Object value, Object type) {
+        int code;
+        if (type instanceof Number) {
+            code = ((Number) type).intValue();
+        } else {
+            switch (String.valueOf(type)) {
+                case "number":
+                    return value instanceof Number;
+                case "double":
+                    code = 1;
+                    break;
+                case "string":
+                    code = 2;
+                    break;
+                case "object":
+                    code = 3;
+                    break;
+                case "array":
+                    code = 4;
+                    break;
+                case "binData":
+                    code = 5;
+                    break;
+                case "objectId":
+                    code = 7;
+                    break;
+                case "bool":
+                    code = 8;
+                    break;
+                case "date":
+                    code = 9;
+                    break;
+                case "null":
+                    code = 10;
+                    break;
+                case "regex":
+                    code = 11;
+                    break;
+                case "int":
+                    code = 16;
+                    break;
+                case "timestamp":
+                    code = 17;
+                    break;
+                case "long":
+                    code = 18;
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown type name alias: " + type);
+            }
+        }
+        return typeCode(value) == code;
+    }
+
+    static int typeCode(Object v) {
+        if (v == null) {
+            return 10;
+        }
+        if (v instanceof Double || v instanceof Float) {
+            return 1;
+        }
+        if (v instanceof String) {
+            return 2;
+        }
+        if (v instanceof Map) {
+            return 3;
+        }
+        if (v instanceof List) {
+            return 4;
+        }
+        if (v instanceof Binary || v instanceof byte[]) {
+            return 5;
+        }
+        if (v instanceof ObjectId) {
+            return 7;
+        }
+        if (v instanceof Boolean) {
+            return 8;
+        }
+        if (v instanceof Date) {
+            return 9;
+        }
+        if (v instanceof Pattern) {
+            return 11;
+        }
+        if (v instanceof Code) {
+            return 13;
+        }
+        if (v instanceof Integer || v instanceof Short || v instanceof Byte) {
+            return 16;
+        }
+        if (v instanceof BsonTimestamp) {
+            return 17;
+        }
+        if (v instanceof Long) {
+            return 18;
+        }
+        if (v instanceof MinKey) {
+            return -1;
+        }
+        if (v instanceof MaxKey) {
+            return 127;
+        }
+        return 0;
+    }
+
+    private static Pattern toPattern(Object regex, Object options) {
+        if (regex instanceof Pattern && options == null) {
+            return (Pattern) regex;
+        }
+        String source = regex instanceof Pattern ? ((Pattern) regex).pattern() : String.valueOf(regex);
+        int flags = regex instanceof Pattern ? ((Pattern) regex).flags() : 0;
+        if (options != null) {
+            for (char c : options.toString().toCharArray()) {
+                switch (c) {
+                    case 'i':
+                        flags |= Pattern.CASE_INSENSITIVE;
+                        break;
+                    case 'm':
+                        flags |= Pattern.MULTILINE;
+                        break;
+                    case 'x':
+                        flags |= Pattern.COMMENTS;
+                        break;
+                    case 's':
+                        flags |= Pattern.DOTALL;
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+        return Pattern.compile(source, flags);
+    }
+
+    static boolean isTruthy(Object o) {
+        if (o instanceof Boolean) {
+            return (Boolean) o;
+        }
+        if (o instanceof Number) {
+            return ((Number) o).doubleValue() != 0;
+        }
+        return o != null;
+    }
+
+    static List<Object> asList(String operator, Object o) {
+        if (o instanceof List) {
+            return (List<Object>) o;
+        }
+        if (o instanceof Collection) {
+            return new ArrayList<>((Collection<Object>) o);
+        }
+        if (o instanceof Object[]) {
+            return Arrays.asList((Object[]) o);
+        }
+        throw new IllegalArgumentException(operator + " needs an array");
+    }
+
+    static Map<String, Object> asMap(String operator, Object o) {
+        if (o instanceof Map) {
+            return (Map<String, Object>) o;
+        }
+        throw new IllegalArgumentException(operator + " entries need to be documents");
+    }
+
+}
@@ -0,0 +1,756 @@
+package net.wouto.modelsync.mongo.memory;
+
+import com.mongodb.MongoWriteException;
+import com.mongodb.ServerAddress;
+import com.mongodb.WriteError;
+import com.mongodb.client.result.UpdateResult;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentWriter;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.codecs.Codec;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.types.ObjectId;
+
+/**
+ * The documents of a single in-memory collection.
+ * <br />
+ * Documents are kept as private deep copies keyed by their _id, in insertion order.
+ * Reads share a read lock, every write holds the write lock for the whole
+ * operation, so a single update is atomic just like on a server.
+ * Equality lookups on _id and on fields passed to {@link #createIndex(String, boolean)}
+ * use hash indexes, any other filter scans the collection.
+ * @author Wouter
+ */
+final class DocumentStore {
+
+    static final ServerAddress address = new ServerAddress("in-memory", ServerAddress.defaultPort());
+
+    private final CodecRegistry registry;
+    private final ReentrantReadWriteLock lock;
+    private final LinkedHashMap<Object, Document> documents;
+    private final Map<String, Index> indexes;
+
+    /**
+     * A hash index on a single (dotted) field.
+     */
+    private static final class Index {
+
+        private final String field;
+        private final String[] path;
+        private final boolean unique;
+        private final Map<Object, Set<Object>> entries;
+
+        private Index(String field, boolean unique) {
+            this.field = field;
+            this.path = field.split("\\.");
+            this.unique = unique;
+            this.entries = new HashMap<>();
+        }
+
+        private List<Object> keys(Document document) {
+            List<Object> values = new ArrayList<>();
+            DocumentMatcher.resolve(document, this.path, 0, values);
+            List<Object> keys = new ArrayList<>(values.size());
+            for (Object v : values) {
+                if (v instanceof List) {
+                    for (Object element : (List) v) {
+                        keys.add(key(element));
+                    }
+                } else {
+                    keys.add(key(v));
+                }
+            }
+            if (keys.isEmpty()) {
+                keys.add(null);
+            }
+            return keys;
+        }
+
+        private void check(Object id, Document document) {
+            if (!this.unique) {
+                return;
+            }
+            for (Object k : this.keys(document)) {
+                Set<Object> ids = this.entries.get(k);
+                if (ids != null && (ids.size() > 1 || !ids.contains(id))) {
+                    throw duplicateKey(this.field, k);
+                }
+            }
+        }
+
+        private void add(Object id, Document document) {
+            for (Object k : this.keys(document)) {
+                Set<Object> ids = this.entries.get(k);
+                if (ids == null) {
+                    ids = new LinkedHashSet<>();
+                    this.entries.put(k, ids);
+                }
+                ids.add(id);
+            }
+        }
+
+        private void remove(Object id, Document document) {
+            for (Object k : this.keys(document)) {
+                Set<Object> ids = this.entries.get(k);
+                if (ids != null) {
+                    ids.remove(id);
+                    if (ids.isEmpty()) {
+                        this.entries.remove(k);
+                    }
+                }
+            }
+        }
+
+    }
+
+    DocumentStore(CodecRegistry registry) {
+        this.registry = registry;
+        this.lock = new ReentrantReadWriteLock();
+        this.documents = new LinkedHashMap<>();
+        this.indexes = new LinkedHashMap<>();
+    }
+
+    static MongoWriteException writeError(int code, String message) {
+        return new MongoWriteException(new WriteError(code, message, new BsonDocument()), address);
+    }
+
+    private static MongoWriteException duplicateKey(String field, Object value) {
+        return writeError(11000, "E11000 duplicate key error index: " + field + "_1 dup key: { : " + value + " }");
+    }
+
+    /**
+     * Normalizes a value for hash lookups, so 1, 1L and 1.0 find the same entry.
+     * @param value
+     * @return
+     */
+    static Object key(Object value) {
+        if (value instanceof Number) {
+            double d = ((Number) value).doubleValue();
+            if (d == Math.rint(d) && !Double.isInfinite(d) && Math.abs(d) < 9.0E15D) {
+                return ((Number) value).longValue();
+            }
+            return d;
+        }
+        return value;
+    }
+
+    /**
+     * Deep copies documents, lists and mutable values, so nothing the caller
+     * holds on to shares state with the store.
+     * @param value
+     * @return
+     */
+    static Object copy(Object value) {
+        if (value instanceof Map) {
+            Document copy = new Document();
+            for (Map.Entry<String, Object> e : ((Map<String, Object>) value).entrySet()) {
+                copy.put(e.getKey(), copy(e.getValue()));
+            }
+            return copy;
+        }
+        if (value instanceof Collection) {
+            List<Object> copy = new ArrayList<>(((Collection) value).size());
+            for (Object o : (Collection) value) {
+                copy.add(copy(o));
+            }
+            return copy;
+        }
+        if (value instanceof Object[]) {
+            List<Object> copy = new ArrayList<>(((Object[]) value).length);
+            for (Object o : (Object[]) value) {
+                copy.add(copy(o));
+            }
+            return copy;
+        }
+        if (value instanceof byte[]) {
+            return ((byte[]) value).clone();
+        }
+        if (value instanceof Date) {
+            return new Date(((Date) value).getTime());
+        }
+        return value;
+    }
+
+    private static Document copyDocument(Document document) {
+        return (Document) copy(document);
+    }
+
+    BsonValue toBsonValue(Object value) {
+        if (value == null) {
+            return null;
+        }
+        BsonDocument holder = new BsonDocument();
+        BsonDocumentWriter writer = new BsonDocumentWriter(holder);
+        writer.writeStartDocument();
+        writer.writeName("v");
+        Codec codec = this.registry.get(value.getClass());
+        EncoderContext.builder().build().encodeWithChildContext(codec, writer, value);
+        writer.writeEndDocument();
+        return holder.get("v");
+    }
+
+    /**
+     * @param filter
+     * @return the stored (uncopied) documents matching the filter, in insertion order.
+     * Callers need to hold a lock.
+     */
+    private List<Document> matching(Map<String, Object> filter, int max) {
+        List<Document> result = new ArrayList<>();
+        for (Document d : this.candidates(filter)) {
+            if (DocumentMatcher.matches(d, filter)) {
+                result.add(d);
+                if (max > 0 && result.size() >= max) {
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    private Collection<Document> candidates(Map<String, Object> filter) {
+        if (filter.isEmpty()) {
+            return this.documents.values();
+        }
+        Object id = filter.get("_id");
+        if (filter.containsKey("_id") && isPlainValue(id)) {
+            Document d = this.documents.get(key(id));
+            return d == null ? Collections.<Document>emptyList() : Collections.singletonList(d);
+        }
+        for (Index index : this.indexes.values()) {
+            Object value = filter.get(index.field);
+            if (filter.containsKey(index.field) && isPlainValue(value)) {
+                Set<Object> ids = index.entries.get(key(value));
+                if (ids == null) {
+                    return Collections.emptyList();
+                }
+                List<Document> result = new ArrayList<>(ids.size());
+                for (Object i : ids) {
+                    result.add(this.documents.get(i));
+                }
+                return result;
+            }
+        }
+        return this.documents.values();
+    }
+
+    private static boolean isPlainValue(Object value) {
+        return value != null && !(value instanceof Map) && !(value instanceof List) && !(value instanceof java.util.regex.Pattern);
+    }
+
+    private static void sort(List<Document> documents, final Map<String, Object> sort) {
+        if (sort == null || sort.isEmpty()) {
+            return;
+        }
+        Collections.sort(documents, new Comparator<Document>() {
+
+            @Override
+            public int compare(Document a, Document b) {
+                for (Map.Entry<String, Object> e : sort.entrySet()) {
+                    int direction = ((Number) e.getValue()).intValue() < 0 ? -1 : 1;
+                    int c = DocumentMatcher.compareValues(DocumentUpdater.get(a, e.getKey()), DocumentUpdater.get(b, e.getKey()));
+                    if (c != 0) {
+                        return c * direction;
+                    }
+                }
+                return 0;
+            }
+
+        });
+    }
+
+    private static Document project(Document document, Map<String, Object> projection) {
+        if (projection == null || projection.isEmpty()) {
+            return copyDocument(document);
+        }
+        boolean inclusion = false;
+        for (Map.Entry<String, Object> e : projection.entrySet()) {
+            if (e.getValue() instanceof Map) {
+                throw new UnsupportedOperationException("projection operators are not supported by the in-memory backend");
+            }
+            if (!e.getKey().equals("_id") && DocumentMatcher.isTruthy(e.getValue())) {
+                inclusion = true;
+            }
+        }
+        boolean withId = !projection.containsKey("_id") || DocumentMatcher.isTruthy(projection.get("_id"));
+        if (!inclusion) {
+            Document result = copyDocument(document);
+            for (String field : projection.keySet()) {
+                if (!field.equals("_id") || !withId) {
+                    DocumentUpdater.unset(result, field);
+                }
+            }
+            return result;
+        }
+        Document result = new Document();
+        if (withId && document.containsKey("_id")) {
+            result.put("_id", copy(document.get("_id")));
+        }
+        for (Map.Entry<String, Object> e : projection.entrySet()) {
+            if (e.getKey().equals("_id") || !DocumentMatcher.isTruthy(e.getValue())) {
+                continue;
+            }
+            include(document, result, e.getKey().split("\\."), 0);
+        }
+        return result;
+    }
+
+    /**
+     * Copies an included path into the result the way the server does, the
+     * rest of the path is applied to every embedded document of an array.
+     */
+    private static void include(Map<String, Object> source, Map<String, Object> target, String[] path, int i) {
+        if (!source.containsKey(path[i])) {
+            return;
+        }
+        Object value = source.get(path[i]);
+        Object existing = target.get(path[i]);
+        if (i == path.length - 1) {
+            target.put(path[i], copy(value));
+        } else if (value instanceof Map) {
+            Map<String, Object> nested = existing instanceof Map ? (Map<String, Object>) existing : new Document();
+            include((Map<String, Object>) value, nested, path, i + 1);
+            target.put(path[i], nested);
+        } else if (value instanceof List) {
+            List<Object> previous = existing instanceof List ? (List<Object>) existing : null;
+            List<Object> nested = new ArrayList<>();
+            for (Object element : (List<?>) value) {
+                if (!(element instanceof Map)) {
+                    continue;
+                }
+                int n = nested.size();
+                Map<String, Object> item = previous != null && n < previous.size() ? (Map<String, Object>) previous.get(n) : new Document();
+                include((Map<String, Object>) element, item, path, i + 1);
+                nested.add(item);
+            }
+            target.put(path[i], nested);
+        }
+    }
+
+    List<Document> find(Map<String, Object> filter, Map<String, Object> sort, int skip, int limit, Map<String, Object> projection) {
+        this.lock.readLock().lock();
+        try {
+            boolean sorted = sort != null && !sort.isEmpty();
+            int max = sorted || limit == 0 ? 0 : skip + Math.abs(limit);
+            List<Document> found = this.matching(filter, max);
+            sort(found, sort);
+            int from = Math.min(skip, found.size());
+            int to = limit == 0 ? found.size() : Math.min(found.size(), from + Math.abs(limit));
+            List<Document> result = new ArrayList<>(to - from);
+            for (Document d : found.subList(from, to)) {
+                result.add(project(d, projection));
+            }
+            return result;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    long count(Map<String, Object> filter, int skip, int limit) {
+        this.lock.readLock().lock();
+        try {
+            long count = filter.isEmpty() ? this.documents.size() : this.matching(filter, 0).size();
+            count = Math.max(0, count - skip);
+            return limit > 0 ? Math.min(count, limit) : count;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Stores a copy of the document, assigning an ObjectId to the given document if it has no _id.
+     * @param document
+     */
+    void insert(Document document) {
+        if (!document.containsKey("_id")) {
+            document.put("_id", new ObjectId());
+        }
+        Document copy = copyDocument(document);
+        this.lock.writeLock().lock();
+        try {
+            this.store(copy);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    private void store(Document document) {
+        Object id = key(document.get("_id"));
+        if (this.documents.containsKey(id)) {
+            throw duplicateKey("_id", document.get("_id"));
+        }
+        for (Index index : this.indexes.values()) {
+            index.check(id, document);
+        }
+        this.documents.put(id, document);
+        for (Index index : this.indexes.values()) {
+            index.add(id, document);
+        }
+    }
+
+    private void unstore(Document document) {
+        Object id = key(document.get("_id"));
+        this.documents.remove(id);
+        for (Index index : this.indexes.values()) {
+            index.remove(id, document);
+        }
+    }
+
+    /**
+     * Swaps the stored document for its modified copy, keeping its position.
+     * @return whether anything changed
+     */
+    private boolean restore(Document original, Document modified) {
+        if (!DocumentMatcher.valuesEqual(original.get("_id"), modified.get("_id"))) {
+            throw writeError(66, "After applying the update, the (immutable) field '_id' was found to have been altered to _id: " + modified.get("_id"));
+        }
+        if (DocumentMatcher.valuesEqual(original, modified)) {
+            return false;
+        }
+        Object id = key(original.get("_id"));
+        for (Index index : this.indexes.values()) {
+            index.remove(id, original);
+        }
+        try {
+            for (Index index : this.indexes.values()) {
+                index.check(id, modified);
+            }
+        } catch (MongoWriteException ex) {
+            for (Index index : this.indexes.values()) {
+                index.add(id, original);
+            }
+            throw ex;
+        }
+        this.documents.put(id, modified);
+        for (Index index : this.indexes.values()) {
+            index.add(id, modified);
+        }
+        return true;
+    }
+
+    /**
+     * Builds the document an upsert starts from: the equality conditions of the filter.
+     */
+    private static Document seed(Map<String, Object> filter) {
+        Document seed = new Document();
+        seed(seed, filter);
+        return seed;
+    }
+
+    private static void seed(Document seed, Map<String, Object> filter) {
+        for (Map.Entry<String, Object> e : filter.entrySet()) {
+            String key = e.getKey();
+            Object value = e.getValue();
+            if (key.equals("$and")) {
+                for (Object f : DocumentMatcher.asList(key, value)) {
+                    seed(seed, DocumentMatcher.asMap(key, f));
+                }
+            } else if (!key.startsWith("$")) {
+                if (DocumentMatcher.isOperatorDocument(value)) {
+                    Map<String, Object> operators = (Map<String, Object>) value;
+                    if (operators.size() == 1 && operators.containsKey("$eq")) {
+                        DocumentUpdater.set(seed, key, copy(operators.get("$eq")));
+                    }
+                } else if (!(value instanceof java.util.regex.Pattern)) {
+                    DocumentUpdater.set(seed, key, copy(value));
+                }
+            }
+        }
+    }
+
+    UpdateResult update(Map<String, Object> filter, Map<String, Object> update, boolean upsert, boolean multi) {
+        DocumentUpdater.validate(update);
+        this.lock.writeLock().lock();
+        try {
+            List<Document> found = this.matching(filter, multi ? 0 : 1);
+            if (found.isEmpty()) {
+                if (!upsert) {
+                    return UpdateResult.acknowledged(0, 0L, null);
+                }
+                Document created = seed(filter);
+                DocumentUpdater.apply(created, update, true);
+                if (!created.containsKey("_id")) {
+                    created.put("_id", new ObjectId());
+                }
+                this.store(created);
+                return UpdateResult.acknowledged(0, 0L, this.toBsonValue(created.get("_id")));
+            }
+            long modified = 0;
+            for (Document d : found) {
+                Document copy = copyDocument(d);
+                DocumentUpdater.apply(copy, update, false);
+                if (this.restore(d, copy)) {
+                    modified++;
+                }
+            }
+            return UpdateResult.acknowledged(found.size(), modified, null);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    UpdateResult replace(Map<String, Object> filter, Document replacement, boolean upsert) {
+        for (String key : replacement.keySet()) {
+            if (key.startsWith("$")) {
+                throw new IllegalArgumentException("Invalid BSON field name " + key);
+            }
+        }
+        this.lock.writeLock().lock();
+        try {
+            List<Document> found = this.matching(filter, 1);
+            if (found.isEmpty()) {
+                if (!upsert) {
+                    return UpdateResult.acknowledged(0, 0L, null);
+                }
+                Document created = this.replacement(seed(filter).get("_id"), replacement);
+                this.store(created);
+                return UpdateResult.acknowledged(0, 0L, this.toBsonValue(created.get("_id")));
+            }
+            Document original = found.get(0);
+            boolean modified = this.restore(original, this.replacement(original.get("_id"), replacement));
+            return UpdateResult.acknowledged(1, modified ? 1L : 0L, null);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    private Document replacement(Object id, Document replacement) {
+        Document created = new Document();
+        if (replacement.containsKey("_id")) {
+            created.put("_id", copy(replacement.get("_id")));
+        } else {
+            created.put("_id", id == null ? new ObjectId() : copy(id));
+        }
+        for (Map.Entry<String, Object> e : replacement.entrySet()) {
+            if (!e.getKey().equals("_id")) {
+                created.put(e.getKey(), copy(e.getValue()));
+            }
+        }
+        return created;
+    }
+
+    long delete(Map<String, Object> filter, boolean multi) {
+        this.lock.writeLock().lock();
+        try {
+            if (multi && filter.isEmpty()) {
+                long count = this.documents.size();
+                this.clear();
+                return count;
+            }
+            List<Document> found = this.matching(filter, multi ? 0 : 1);
+            for (Document d : found) {
+                this.unstore(d);
+            }
+            return found.size();
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    private Document first(Map<String, Object> filter, Map<String, Object> sort) {
+        List<Document> found = this.matching(filter, sort == null || sort.isEmpty() ? 1 : 0);
+        sort(found, sort);
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    Document findOneAndDelete(Map<String, Object> filter, Map<String, Object> sort, Map<String, Object> projection) {
+        this.lock.writeLock().lock();
+        try {
+            Document d = this.first(filter, sort);
+            if (d == null) {
+                return null;
+            }
+            this.unstore(d);
+            return project(d, projection);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    Document findOneAndUpdate(Map<String, Object> filter, Map<String, Object> update, Map<String, Object> sort,
+            Map<String, Object> projection, boolean upsert, boolean returnAfter) {
+        DocumentUpdater.validate(update);
+        this.lock.writeLock().lock();
+        try {
+            Document d = this.first(filter, sort);
+            if (d == null) {
+                if (!upsert) {
+                    return null;
+                }
+                Document created = seed(filter);
+                DocumentUpdater.apply(created, update, true);
+                if (!created.containsKey("_id")) {
+                    created.put("_id", new ObjectId());
+                }
+                this.store(created);
+                return returnAfter ? project(created, projection) : null;
+            }
+            Document copy = copyDocument(d);
+            DocumentUpdater.apply(copy, update, false);
+            this.restore(d, copy);
+            return project(returnAfter ? copy : d, projection);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    Document findOneAndReplace(Map<String, Object> filter, Document replacement, Map<String, Object> sort,
+            Map<String, Object> projection, boolean upsert, boolean returnAfter) {
+        this.lock.writeLock().lock();
+        try {
+            Document d = this.first(filter, sort);
+            if (d == null) {
+                if (!upsert) {
+                    return null;
+                }
+                Document created = this.replacement(seed(filter).get("_id"), replacement);
+                this.store(created);
+                return returnAfter ? project(created, projection) : null;
+            }
+            Document replaced = this.replacement(d.get("_id"), replacement);
+            this.restore(d, replaced);
+            return project(returnAfter ? replaced : d, projection);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    List<Object> distinct(String field, Map<String, Object> filter) {
+        this.lock.readLock().lock();
+        try {
+            List<Object> result = new ArrayList<>();
+            String[] path = field.split("\\.");
+            for (Document d : this.matching(filter, 0)) {
+                List<Object> values = new ArrayList<>();
+                DocumentMatcher.resolve(d, path, 0, values);
+                for (Object v : values) {
+                    if (v instanceof List) {
+                        for (Object element : (List) v) {
+                            addDistinct(result, element);
+                        }
+                    } else {
+                        addDistinct(result, v);
+                    }
+                }
+            }
+            return result;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    private static void addDistinct(List<Object> result, Object value) {
+        for (Object o : result) {
+            if (DocumentMatcher.valuesEqual(o, value)) {
+                return;
+            }
+        }
+        result.add(copy(value));
+    }
+
+    /**
+     * @param field the (dotted) field to index
+     * @param unique whether to reject documents sharing a value
+     * @return the index name
+     */
+    String createIndex(String field, boolean unique) {
+        this.lock.writeLock().lock();
+        try {
+            String name = field + "_1";
+            if (field.equals("_id") || this.indexes.containsKey(name)) {
+                return name;
+            }
+            Index index = new Index(field, unique);
+            for (Map.Entry<Object, Document> e : this.documents.entrySet()) {
+                index.check(e.getKey(), e.getValue());
+                index.add(e.getKey(), e.getValue());
+            }
+            this.indexes.put(name, index);
+            return name;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    List<Document> listIndexes(String namespace) {
+        this.lock.readLock().lock();
+        try {
+            List<Document> result = new ArrayList<>();
+            result.add(new Document("v", 1).append("key", new Document("_id", 1)).append("name", "_id_").append("ns", namespace));
+            for (Map.Entry<String, Index> e : this.indexes.entrySet()) {
+                Document index = new Document("v", 1).append("key", new Document(e.getValue().field, 1)).append("name", e.getKey()).append("ns", namespace);
+                if (e.getValue().unique) {
+                    index.append("unique", true);
+                }
+                result.add(index);
+            }
+            return result;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    void dropIndex(String name) {
+        this.lock.writeLock().lock();
+        try {
+            if (this.indexes.remove(name) == null) {
+                throw new IllegalArgumentException("index not found with name [" + name + "]");
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    void dropIndexes() {
+        this.lock.writeLock().lock();
+        try {
+            this.indexes.clear();
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes every document, keeping the indexes. Callers need to hold the write lock.
+     */
+    private void clear() {
+        this.documents.clear();
+        for (Iterator<Index> it = this.indexes.values().iterator(); it.hasNext();) {
+            it.next().entries.clear();
+        }
+    }
+
+    void drop() {
+        this.lock.writeLock().lock();
+        try {
+            this.documents.clear();
+            this.indexes.clear();
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    int size() {
+        this.lock.readLock().lock();
+        try {
+            return this.documents.size();
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+}
@@ -0,0 +1,316 @@
+package net.wouto.modelsync.mongo.memory;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+
+/**
+ * Applies the update operators {@link net.wouto.modelsync.mongo.update.Update}
+ * builds to a stored document, in place.
+ * @author Wouter
+ */
+final class DocumentUpdater {
+
+    private DocumentUpdater() {
+    }
+
+    /**
+     * @param document the document to modify
+     * @param update the update document, every key has to be an operator
+     * @param inserting whether the document is being created by an upsert, enables $setOnInsert
+     */
+    static void apply(Document document, Map<String, Object> update, boolean inserting) {
+        validate(update);
+        for (Map.Entry<String, Object> e : update.entrySet()) {
+            String operator = e.getKey();
+            Map<String, Object> fields = DocumentMatcher.asMap(operator, e.getValue());
+            for (Map.Entry<String, Object> f : fields.entrySet()) {
+                apply(document, operator, f.getKey(), f.getValue(), inserting);
+            }
+        }
+    }
+
+    static void validate(Map<String, Object> update) {
+        if (update.isEmpty()) {
+            throw new IllegalArgumentException("Invalid BSON document for an update");
+        }
+        for (String key : update.keySet()) {
+            if (!key.startsWith("$")) {
+                throw new IllegalArgumentException("Invalid BSON field name " + key);
+            }
+        }
+    }
+
+    private static void apply(Document document, String operator, String path, Object arg, boolean inserting) {
+        switch (operator) {
+            case "$set":
+                set(document, path, DocumentStore.copy(arg));
+                break;
+            case "$setOnInsert":
+                if (inserting) {
+                    set(document, path, DocumentStore.copy(arg));
+                }
+                break;
+            case "$unset":
+                unset(document, path);
+                break;
+            case "$inc":
+                set(document, path, arithmetic(operator, path, get(document, path), arg, false));
+                break;
+            case "$mul":
+                Object current = get(document, path);
+                set(document, path, arithmetic(operator, path, current == null ? zeroOf(arg) : current, arg, true));
+                break;
+            case "$rename":
+                if (has(document, path)) {
+                    Object value = get(document, path);
+                    unset(document, path);
+                    set(document, String.valueOf(arg), value);
+                }
+                break;
+            case "$min":
+            case "$max":
+                if (!has(document, path)) {
+                    set(document, path, DocumentStore.copy(arg));
+                } else {
+                    int c = DocumentMatcher.compareValues(arg, get(document, path));
+                    if (operator.equals("$min") ? c < 0 : c > 0) {
+                        set(document, path, DocumentStore.copy(arg));
+                    }
+                }
+                break;
+            case "$currentDate":
+                boolean timestamp = arg instanceof Map && "timestamp".equals(((Map) arg).get("$type"));
+                set(document, path, timestamp ? new BsonTimestamp((int) (System.currentTimeMillis() / 1000), 1) : new Date());
+                break;
+            case "$addToSet":
+                List<Object> set = array(document, path, operator);
+                for (Object value : each(arg)) {
+                    boolean present = false;
+                    for (Object existing : set) {
+                        if (DocumentMatcher.valuesEqual(existing, value)) {
+                            present = true;
+                            break;
+                        }
+                    }
+                    if (!present) {
+                        set.add(DocumentStore.copy(value));
+                    }
+                }
+                break;
+            case "$push":
+                List<Object> list = array(document, path, operator);
+                for (Object value : each(arg)) {
+                    list.add(DocumentStore.copy(value));
+                }
+                if (arg instanceof Map && ((Map) arg).get("$slice") instanceof Number) {
+                    slice(list, ((Number) ((Map) arg).get("$slice")).intValue());
+                }
+                break;
+            case "$pushAll":
+                List<Object> target = array(document, path, operator);
+                for (Object value : DocumentMatcher.asList(operator, arg)) {
+                    target.add(DocumentStore.copy(value));
+                }
+                break;
+            case "$pop":
+                if (has(document, path)) {
+                    List<Object> pop = array(document, path, operator);
+                    if (!pop.isEmpty()) {
+                        pop.remove(((Number) arg).intValue() < 0 ? 0 : pop.size() - 1);
+                    }
+                }
+                break;
+            case "$pullAll":
+                if (has(document, path)) {
+                    List<Object> values = DocumentMatcher.asList(operator, arg);
+                    for (Iterator<Object> it = array(document, path, operator).iterator(); it.hasNext();) {
+                        Object existing = it.next();
+                        for (Object value : values) {
+                            if (DocumentMatcher.valuesEqual(existing, value)) {
+                                it.remove();
+                                break;
+                            }
+                        }
+                    }
+                }
+                break;
+            case "$pull":
+                if (has(document, path)) {
+                    for (Iterator<Object> it = array(document, path, operator).iterator(); it.hasNext();) {
+                        if (pullMatches(it.next(), arg)) {
+                            it.remove();
+                        }
+                    }
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown modifier: " + operator);
+        }
+    }
+
+    private static boolean pullMatches(Object element, Object condition) {
+        if (DocumentMatcher.isOperatorDocument(condition)) {
+            Document wrapper = new Document("v", element);
+            return DocumentMatcher.matches(wrapper, new Document("v", condition));
+        }
+        if (condition instanceof Map && element instanceof Map) {
+            return DocumentMatcher.matches((Map<String, Object>) element, (Map<String, Object>) condition);
+        }
+        return DocumentMatcher.equalsOrMatches(element, condition);
+    }
+
+    private static List<Object> each(Object arg) {
+        if (arg instanceof Map && ((Map) arg).containsKey("$each")) {
+            return DocumentMatcher.asList("$each", ((Map) arg).get("$each"));
+        }
+        List<Object> single = new ArrayList<>(1);
+        single.add(arg);
+        return single;
+    }
+
+    private static void slice(List<Object> list, int slice) {
+        if (slice >= 0) {
+            while (list.size() > slice) {
+                list.remove(list.size() - 1);
+            }
+        } else {
+            while (list.size() > -slice) {
+                list.remove(0);
+            }
+        }
+    }
+
+    private static Object zeroOf(Object arg) {
+        if (arg instanceof Double || arg instanceof Float) {
+            return 0.0D;
+        }
+        return arg instanceof Long ? (Object) 0L : (Object) 0;
+    }
+
+    private static Object arithmetic(String operator, String path, Object current, Object arg, boolean multiply) {
+        if (!(arg instanceof Number)) {
+            throw DocumentStore.writeError(14, "Cannot " + (multiply ? "multiply" : "increment") + " with non-numeric argument: {" + path + ": " + arg + "}");
+        }
+        if (current == null) {
+            return arg;
+        }
+        if (!(current instanceof Number)) {
+            throw DocumentStore.writeError(14, "Cannot apply " + operator + " to a value of non-numeric type. {_id: ...} has the field '" + path + "' of non-numeric type " + current.getClass().getSimpleName());
+        }
+        Number a = (Number) current;
+        Number b = (Number) arg;
+        if (a instanceof Double || a instanceof Float || b instanceof Double || b instanceof Float) {
+            return multiply ? a.doubleValue() * b.doubleValue() : a.doubleValue() + b.doubleValue();
+        }
+        long result = multiply ? a.longValue() * b.longValue() : a.longValue() + b.longValue();
+        if (a instanceof Long || b instanceof Long || result != (int) result) {
+            return result;
+        }
+        return (int) result;
+    }
+
+    private static boolean has(Document document, String path) {
+        List<Object> values = new ArrayList<>(1);
+        DocumentMatcher.resolve(document, path.split("\\."), 0, values);
+        return !values.isEmpty();
+    }
+
+    static Object get(Document document, String path) {
+        Object current = document;
+        for (String part : path.split("\\.")) {
+            if (current instanceof Map) {
+                current = ((Map) current).get(part);
+            } else if (current instanceof List && DocumentMatcher.isIndex(part)) {
+                List list = (List) current;
+                int index = Integer.parseInt(part);
+                current = index < list.size() ? list.get(index) : null;
+            } else {
+                return null;
+            }
+        }
+        return current;
+    }
+
+    private static List<Object> array(Document document, String path, String operator) {
+        Object value = get(document, path);
+        if (value == null) {
+            List<Object> list = new ArrayList<>();
+            set(document, path, list);
+            return list;
+        }
+        if (!(value instanceof List)) {
+            throw DocumentStore.writeError(2, "The field '" + path + "' must be an array for " + operator);
+        }
+        return (List<Object>) value;
+    }
+
+    static void set(Document document, String path, Object value) {
+        String[] parts = path.split("\\.");
+        Object current = document;
+        for (int i = 0; i < parts.length; i++) {
+            boolean last = i == parts.length - 1;
+            String part = parts[i];
+            if (current instanceof Map) {
+                Map<String, Object> map = (Map<String, Object>) current;
+                if (last) {
+                    map.put(part, value);
+                    return;
+                }
+                Object next = map.get(part);
+                if (next == null) {
+                    next = new Document();
+                    map.put(part, next);
+                }
+                current = next;
+            } else if (current instanceof List && DocumentMatcher.isIndex(part)) {
+                List<Object> list = (List<Object>) current;
+                int index = Integer.parseInt(part);
+                while (list.size() <= index) {
+                    list.add(null);
+                }
+                if (last) {
+                    list.set(index, value);
+                    return;
+                }
+                if (list.get(index) == null) {
+                    list.set(index, new Document());
+                }
+                current = list.get(index);
+            } else {
+                throw DocumentStore.writeError(28, "Cannot create field '" + part + "' in element of " + path);
+            }
+        }
+    }
+
+    static void unset(Document document, String path) {
+        String[] parts = path.split("\\.");
+        Object current = document;
+        for (int i = 0; i < parts.length - 1 && current != null; i++) {
+            if (current instanceof Map) {
+                current = ((Map) current).get(parts[i]);
+            } else if (current instanceof List && DocumentMatcher.isIndex(parts[i])) {
+                List list = (List) current;
+                int index = Integer.parseInt(parts[i]);
+                current = index < list.size() ? list.get(index) : null;
+            } else {
+                return;
+            }
+        }
+        String last = parts[parts.length - 1];
+        if (current instanceof Map) {
+            ((Map) current).remove(last);
+        } else if (current instanceof List && DocumentMatcher.isIndex(last)) {
+            List list = (List) current;
+            int index = Integer.parseInt(last);
+            if (index < list.size()) {
+                list.set(index, null);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,746 @@
+package net.wouto.modelsync.mongo.memory;
+
+import com.mongodb.Block;
+import com.mongodb.CursorType;
+import com.mongodb.Function;
+import com.mongodb.MongoNamespace;
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
+import com.mongodb.async.AsyncBatchCursor;
+import com.mongodb.async.SingleResultCallback;
+import com.mongodb.async.client.AggregateIterable;
+import com.mongodb.async.client.DistinctIterable;
+import com.mongodb.async.client.FindIterable;
+import com.mongodb.async.client.ListIndexesIterable;
+import com.mongodb.async.client.MapReduceIterable;
+import com.mongodb.async.client.MongoCollection;
+import com.mongodb.async.client.MongoIterable;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.CountOptions;
+import com.mongodb.client.model.FindOneAndDeleteOptions;
+import com.mongodb.client.model.FindOneAndReplaceOptions;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.RenameCollectionOptions;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import org.bson.Document;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+
+/**
+ * An asynchronous driver {@link MongoCollection} backed by an {@link InMemoryMongo}.
+ * <br />
+ * Operations are evaluated right away on the calling thread, their replies
+ * are delivered after the simulated latency of the store without holding a
+ * thread, the way the asynchronous driver waits for a server. Requires
+ * org.mongodb:mongodb-driver-async on the classpath.
+ * @author Wouter
+ * @param <T> the document type
+ */
+public class InMemoryAsyncCollection<T> implements MongoCollection<T> {
+
+    private final InMemoryMongo mongo;
+    private final InMemoryCollection<T> collection;
+
+    InMemoryAsyncCollection(InMemoryMongo mongo, InMemoryCollection<T> collection) {
+        this.mongo = mongo;
+        this.collection = collection;
+    }
+
+    public static InMemoryAsyncCollection<Document> open(InMemoryMongo mongo, String database, String collection) {
+        InMemoryCollection<Document> blocking = (InMemoryCollection<Document>) mongo.getCollection(database, collection);
+        return new InMemoryAsyncCollection<>(mongo, new InMemoryCollection<>(mongo, blocking.getNamespace(), Document.class,
+                blocking.getCodecRegistry(), blocking.getReadPreference(), blocking.getWriteConcern(), false));
+    }
+
+    static <R> void reply(InMemoryMongo mongo, Callable<R> operation, final SingleResultCallback<R> callback) {
+        R result = null;
+        Throwable error = null;
+        try {
+            result = operation.call();
+        } catch (Throwable t) {
+            error = t;
+        }
+        final R r = result;
+        final Throwable t = error;
+        mongo.reply(new Runnable() {
+
+            @Override
+            public void run() {
+                callback.onResult(r, t);
+            }
+
+        });
+    }
+
+    private <R> void reply(Callable<R> operation, SingleResultCallback<R> callback) {
+        reply(this.mongo, operation, callback);
+    }
+
+    private <N> InMemoryAsyncCollection<N> wrap(com.mongodb.client.MongoCollection<N> collection) {
+        return new InMemoryAsyncCollection<>(this.mongo, (InMemoryCollection<N>) collection);
+    }
+
+    @Override
+    public MongoNamespace getNamespace() {
+        return this.collection.getNamespace();
+    }
+
+    @Override
+    public Class<T> getDocumentClass() {
+        return this.collection.getDocumentClass();
+    }
+
+    @Override
+    public CodecRegistry getCodecRegistry() {
+        return this.collection.getCodecRegistry();
+    }
+
+    @Override
+    public ReadPreference getReadPreference() {
+        return this.collection.getReadPreference();
+    }
+
+    @Override
+    public WriteConcern getWriteConcern() {
+        return this.collection.getWriteConcern();
+    }
+
+    @Override
+    public <N> MongoCollection<N> withDocumentClass(Class<N> clazz) {
+        return this.wrap(this.collection.withDocumentClass(clazz));
+    }
+
+    @Override
+    public MongoCollection<T> withCodecRegistry(CodecRegistry codecRegistry) {
+        return this.wrap(this.collection.withCodecRegistry(codecRegistry));
+    }
+
+    @Override
+    public MongoCollection<T> withReadPreference(ReadPreference readPreference) {
+        return this.wrap(this.collection.withReadPreference(readPreference));
+    }
+
+    @Override
+    public MongoCollection<T> withWriteConcern(WriteConcern writeConcern) {
+        return this.wrap(this.collection.withWriteConcern(writeConcern));
+    }
+
+    @Override
+    public void count(SingleResultCallback<Long> callback) {
+        this.count(new Document(), new CountOptions(), callback);
+    }
+
+    @Override
+    public void count(Bson filter, SingleResultCallback<Long> callback) {
+        this.count(filter, new CountOptions(), callback);
+    }
+
+    @Override
+    public void count(final Bson filter, final CountOptions options, SingleResultCallback<Long> callback) {
+        this.reply(new Callable<Long>() {
+
+            @Override
+            public Long call() {
+                return InMemoryAsyncCollection.this.collection.count(filter, options);
+            }
+
+        }, callback);
+    }
+
+    @Override
+    public <R> DistinctIterable<R> distinct(String fieldName, Class<R> resultClass) {
+        return new Distinct<>(this.mongo, (InMemoryIterable<R>) this.collection.distinct(fieldName, resultClass));
+    }
+
+    @Override
+    public FindIterable<T> find() {
+        return this.find(new Document(), this.getDocumentClass());
+    }
+
+    @Override
+    public <R> FindIterable<R> find(Class<R> resultClass) {
+        return this.find(new Document(), resultClass);
+    }
+
+    @Override
+    public FindIterable<T> find(Bson filter) {
+        return this.find(filter, this.getDocumentClass());
+    }
+
+    @Override
+    public <R> FindIterable<R> find(Bson filter, Class<R> resultClass) {
+        return new Find<>(this.mongo, (InMemoryFindIterable<R>) this.collection.find(filter, resultClass));
+    }
+
+    @Override
+    public AggregateIterable<T> aggregate(List<? extends Bson> pipeline) {
+        throw new UnsupportedOperationException("aggregate is not supported by the in-memory backend");
+    }
+
+    @Override
+    public <R> AggregateIterable<R> aggregate(List<? extends Bson> pipeline, Class<R> resultClass) {
+        throw new UnsupportedOperationException("aggregate is not supported by the in-memory backend");
+    }
+
+    @Override
+    public MapReduceIterable<T> mapReduce(String mapFunction, String reduceFunction) {
+        throw new UnsupportedOperationException("mapReduce is not supported by the in-memory backend");
+    }
+
+    @Override
+    public <R> MapReduceIterable<R> mapReduce(String mapFunction, String reduceFunction, Class<R> resultClass) {
+        throw new UnsupportedOperationException("mapReduce is not supported by the in-memory backend");
+    }
+
+    @Override
+    public void bulkWrite(List<? extends WriteModel<? extends T>> requests, SingleResultCallback<BulkWriteResult> callback) {
+        this.bulkWrite(requests, new BulkWriteOptions(), callback);
+    }
+
+    @Override
+    public void bulkWrite(final List<? extends WriteModel<? extends T>> requests, final BulkWriteOptions options, SingleResultCallback<BulkWriteResult> callback) {
+        this.reply(new Callable<BulkWriteResult>() {
+
+            @Override
+            public BulkWriteResult call() {
+                return InMemoryAsyncCollection.this.collection.bulkWrite(requests, options);
+            }
+
+        }, callback);
+    }
+
+    @Override
+    public void insertOne(final T document, SingleResultCallback<Void> callback) {
+        this.reply(new Callable<Void>() {
+
+            @Override
+            public Void call() {
+                InMemoryAsyncCollection.this.collection.insertOne(document);
+                return null;
+            }
+
+        }, callback);
+    }
+
+    @Override
+    public void insertMany(List<? extends T> documents, SingleResultCallback<Void> callback) {
+        this.insertMany(documents, new InsertManyOptions(), callback);
+    }
+
+    @Override
+    public void insertMany(final List<? extends T> documents, final InsertManyOptions options, SingleResultCallback<Void> callback) {
+        this.reply(new Callable<Void>() {
+
+            @Override
+            public Void call() {
+                InMemoryAsyncCollection.this.collection.insertMany(documents, options);
+                return null;
+            }
+
+        }, callback);
+    }
+
+    @Override
+    public void deleteOne(final Bson filter, SingleResultCallback<DeleteResult> callback) {
+        this.reply(new Callable<DeleteResult>() {
+
+            @Override
+            public DeleteResult call() {
+                return InMemoryAsyncCollection.this.collection.deleteOne(filter);
+            }
+
+        }, callback);
+    }
+
+    @Override
+    public void deleteMany(final Bson filter, SingleResultCallback<DeleteResult> callback) {
+        this.reply(new Callable<DeleteResult>() {
+
+            @Override
+            public DeleteResult call() {
+                return InMemoryAsyncCollection.this.collection.deleteMany(filter);
+            }
+
+        }, callback);
+    }
+
+    @Override
+    public void replaceOne(Bson filter, T replacement, SingleResultCallback<UpdateResult> callback) {
+        this.replaceOne(filter, replacement, new UpdateOptions(), callback);
+    }
+
+    @Override
+    public void replaceOne(final Bson filter, final T replacement, final UpdateOptions options, SingleResultCallback<UpdateResult> callback) {
+        this.reply(new Callable<UpdateResult>() {
+
+            @Override
+            public UpdateResult call() {
+                return InMemoryAsyncCollection.this.collection.replaceOne(filter, replacement, options);
+            }
+
+        }, callback);
+    }
+
+    @Override
+    public void updateOne(Bson filter, Bson update, SingleResultCallback<UpdateResult> callback) {
+        this.updateOne(filter, update, new UpdateOptions(), callback);
+    }
+
+    @Override
+    public void updateOne(final Bson filter, final Bson update, final UpdateOptions options, SingleResultCallback<UpdateResult> callback) {
+        this.reply(new Callable<UpdateResult>() {
+
+            @Override
+            public UpdateResult call() {
+                return InMemoryAsyncCollection.this.collection.updateOne(filter, update, options);
+            }
+
+        }, callback);
+    }
+
+    @Override
+    public void updateMany(Bson filter, Bson update, SingleResultCallback<UpdateResult> callback) {
+        this.updateMany(filter, update, new UpdateOptions(), callback);
+    }
+
+    @Override
+    public void updateMany(final Bson filter, final Bson update, final UpdateOptions options, SingleResultCallback<UpdateResult> callback) {
+        this.reply(new Callable<UpdateResult>() {
+
+            @Override
+            public UpdateResult call() {
+                return InMemoryAsyncCollection.this.collection.updateMany(filter, update, options);
+            }
+
+        }, callback);
+    }
+
+    @Override
+    public void findOneAndDelete(Bson filter, SingleResultCallback<T> callback) {
+        this.findOneAndDelete(filter, new FindOneAndDeleteOptions(), callback);
+    }
+
+    @Override
+    public void findOneAndDelete(final Bson filter, final FindOneAndDeleteOptions options, SingleResultCallback<T> callback) {
+        this.reply(new Callable<T>() {
+
+            @Override
+            public T call() {
+                return InMemoryAsyncCollection.this.collection.findOneAndDelete(filter, options);
+            }
+
+        }, callback);
+    }
+
+    @Override
+    public void findOneAndReplace(Bson filter, T replacement, SingleResultCallback<T> callback) {
+        this.findOneAndReplace(filter, replacement, new FindOneAndReplaceOptions(), callback);
+    }
+
+    @Override
+    public void findOneAndReplace(final Bson filter, final T replacement, final FindOneAndReplaceOptions options, SingleResultCallback<T> callback) {
+        this.reply(new Callable<T>() {
+
+            @Override
+            public T call() {
+                return InMemoryAsyncCollection.this.collection.findOneAndReplace(filter, replacement, options);
+            }
+
+        }, callback);
+    }
+
+    @Override
+    public void findOneAndUpdate(Bson filter, Bson update, SingleResultCallback<T> callback) {
+        this.findOneAndUpdate(filter, update, new FindOneAndUpdateOptions(), callback);
+    }
+
+    @Override
+    public void findOneAndUpdate(final Bson filter, final Bson update, final FindOneAndUpdateOptions options, SingleResultCallback<T> callback) {
+        this.reply(new Callable<T>() {
+
+            @Override
+            public T call() {
+                return InMemoryAsyncCollection.this.collection.findOneAndUpdate(filter, update, options);
+            }
+
+        }, callback);
+    }
+
+    @Override
+    public void drop(SingleResultCallback<Void> callback) {
+        this.reply(new Callable<Void>() {
+
+            @Override
+            public Void call() {
+                InMemoryAsyncCollection.this.collection.drop();
+                return null;
+            }
+
+        }, callback);
+    }
+
+    @Override
+    public void createIndex(Bson keys, SingleResultCallback<String> callback) {
+        this.createIndex(keys, new IndexOptions(), callback);
+    }
+
+    @Override
+    public void createIndex(final Bson keys, final IndexOptions options, SingleResultCallback<String> callback) {
+        this.reply(new Callable<String>() {
+
+            @Override
+            public String call() {
+                return InMemoryAsyncCollection.this.collection.createIndex(keys, options);
+            }
+
+        }, callback);
+    }
+
+    @Override
+    public void createIndexes(final List<IndexModel> indexes, SingleResultCallback<List<String>> callback) {
+        this.reply(new Callable<List<String>>() {
+
+            @Override
+            public List<String> call() {
+                return InMemoryAsyncCollection.this.collection.createIndexes(indexes);
+            }
+
+        }, callback);
+    }
+
+    @Override
+    public ListIndexesIterable<Document> listIndexes() {
+        return this.listIndexes(Document.class);
+    }
+
+    @Override
+    public <R> ListIndexesIterable<R> listIndexes(Class<R> resultClass) {
+        return new Indexes<>(this.mongo, (InMemoryIterable<R>) this.collection.listIndexes(resultClass));
+    }
+
+    @Override
+    public void dropIndex(final String indexName, SingleResultCallback<Void> callback) {
+        this.reply(new Callable<Void>() {
+
+            @Override
+            public Void call() {
+                InMemoryAsyncCollection.this.collection.dropIndex(indexName);
+                return null;
+            }
+
+        }, callback);
+    }
+
+    @Override
+    public void dropIndex(final Bson keys, SingleResultCallback<Void> callback) {
+        this.reply(new Callable<Void>() {
+
+            @Override
+            public Void call() {
+                InMemoryAsyncCollection.this.collection.dropIndex(keys);
+                return null;
+            }
+
+        }, callback);
+    }
+
+    @Override
+    public void dropIndexes(SingleResultCallback<Void> callback) {
+        this.reply(new Callable<Void>() {
+
+            @Override
+            public Void call() {
+                InMemoryAsyncCollection.this.collection.dropIndexes();
+                return null;
+            }
+
+        }, callback);
+    }
+
+    @Override
+    public void renameCollection(MongoNamespace newCollectionNamespace, SingleResultCallback<Void> callback) {
+        this.renameCollection(newCollectionNamespace, new RenameCollectionOptions(), callback);
+    }
+
+    @Override
+    public void renameCollection(final MongoNamespace newCollectionNamespace, final RenameCollectionOptions options, SingleResultCallback<Void> callback) {
+        this.reply(new Callable<Void>() {
+
+            @Override
+            public Void call() {
+                InMemoryAsyncCollection.this.collection.renameCollection(newCollectionNamespace, options);
+                return null;
+            }
+
+        }, callback);
+    }
+
+    /**
+     * An asynchronous view of an in-memory result, evaluated when one of the
+     * callback methods is called.
+     * @param <R>
+     */
+    static class Results<R> implements MongoIterable<R> {
+
+        final InMemoryMongo mongo;
+        final InMemoryIterable<R> results;
+
+        Results(InMemoryMongo mongo, InMemoryIterable<R> results) {
+            this.mongo = mongo;
+            this.results = results;
+        }
+
+        @Override
+        public void first(SingleResultCallback<R> callback) {
+            reply(this.mongo, new Callable<R>() {
+
+                @Override
+                public R call() {
+                    return Results.this.results.first();
+                }
+
+            }, callback);
+        }
+
+        @Override
+        public void forEach(final Block<? super R> block, final SingleResultCallback<Void> callback) {
+            reply(this.mongo, new Callable<List<R>>() {
+
+                @Override
+                public List<R> call() {
+                    return Results.this.results.results();
+                }
+
+            }, new SingleResultCallback<List<R>>() {
+
+                @Override
+                public void onResult(List<R> result, Throwable t) {
+                    if (t == null) {
+                        try {
+                            for (R r : result) {
+                                block.apply(r);
+                            }
+                        } catch (Throwable ex) {
+                            t = ex;
+                        }
+                    }
+                    callback.onResult(null, t);
+                }
+
+            });
+        }
+
+        @Override
+        public <A extends Collection<? super R>> void into(final A target, SingleResultCallback<A> callback) {
+            reply(this.mongo, new Callable<A>() {
+
+                @Override
+                public A call() {
+                    return Results.this.results.into(target);
+                }
+
+            }, callback);
+        }
+
+        @Override
+        public <U> MongoIterable<U> map(Function<R, U> mapper) {
+            return new Results<>(this.mongo, (InMemoryIterable<U>) this.results.map(mapper));
+        }
+
+        @Override
+        public MongoIterable<R> batchSize(int batchSize) {
+            return this;
+        }
+
+        @Override
+        public void batchCursor(SingleResultCallback<AsyncBatchCursor<R>> callback) {
+            reply(this.mongo, new Callable<AsyncBatchCursor<R>>() {
+
+                @Override
+                public AsyncBatchCursor<R> call() {
+                    return new BatchCursor<>(Results.this.results.results());
+                }
+
+            }, callback);
+        }
+
+    }
+
+    private static final class Find<R> extends Results<R> implements FindIterable<R> {
+
+        private final InMemoryFindIterable<R> find;
+
+        private Find(InMemoryMongo mongo, InMemoryFindIterable<R> find) {
+            super(mongo, find);
+            this.find = find;
+        }
+
+        @Override
+        public FindIterable<R> filter(Bson filter) {
+            this.find.filter(filter);
+            return this;
+        }
+
+        @Override
+        public FindIterable<R> limit(int limit) {
+            this.find.limit(limit);
+            return this;
+        }
+
+        @Override
+        public FindIterable<R> skip(int skip) {
+            this.find.skip(skip);
+            return this;
+        }
+
+        @Override
+        public FindIterable<R> maxTime(long maxTime, TimeUnit timeUnit) {
+            return this;
+        }
+
+        @Override
+        public FindIterable<R> modifiers(Bson modifiers) {
+            this.find.modifiers(modifiers);
+            return this;
+        }
+
+        @Override
+        public FindIterable<R> projection(Bson projection) {
+            this.find.projection(projection);
+            return this;
+        }
+
+        @Override
+        public FindIterable<R> sort(Bson sort) {
+            this.find.sort(sort);
+            return this;
+        }
+
+        @Override
+        public FindIterable<R> noCursorTimeout(boolean noCursorTimeout) {
+            return this;
+        }
+
+        @Override
+        public FindIterable<R> oplogReplay(boolean oplogReplay) {
+            return this;
+        }
+
+        @Override
+        public FindIterable<R> partial(boolean partial) {
+            return this;
+        }
+
+        @Override
+        public FindIterable<R> cursorType(CursorType cursorType) {
+            return this;
+        }
+
+        @Override
+        public FindIterable<R> batchSize(int batchSize) {
+            return this;
+        }
+
+    }
+
+    private static final class Distinct<R> extends Results<R> implements DistinctIterable<R> {
+
+        private Distinct(InMemoryMongo mongo, InMemoryIterable<R> distinct) {
+            super(mongo, distinct);
+        }
+
+        @Override
+        public DistinctIterable<R> filter(Bson filter) {
+            ((com.mongodb.client.DistinctIterable<R>) this.results).filter(filter);
+            return this;
+        }
+
+        @Override
+        public DistinctIterable<R> maxTime(long maxTime, TimeUnit timeUnit) {
+            return this;
+        }
+
+        @Override
+        public DistinctIterable<R> batchSize(int batchSize) {
+            return this;
+        }
+
+    }
+
+    private static final class Indexes<R> extends Results<R> implements ListIndexesIterable<R> {
+
+        private Indexes(InMemoryMongo mongo, InMemoryIterable<R> indexes) {
+            super(mongo, indexes);
+        }
+
+        @Override
+        public ListIndexesIterable<R> maxTime(long maxTime, TimeUnit timeUnit) {
+            return this;
+        }
+
+        @Override
+        public ListIndexesIterable<R> batchSize(int batchSize) {
+            return this;
+        }
+
+    }
+
+    /**
+     * Hands out a result snapshot as a single batch.
+     * @param <R>
+     */
+    private static final class BatchCursor<R> implements AsyncBatchCursor<R> {
+
+        private List<R> batch;
+        private int batchSize;
+        private boolean closed;
+
+        private BatchCursor(List<R> batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public void next(SingleResultCallback<List<R>> callback) {
+            List<R> next;
+            synchronized (this) {
+                next = this.batch == null || this.batch.isEmpty() ? null : this.batch;
+                this.batch = null;
+            }
+            callback.onResult(next, null);
+        }
+
+        @Override
+        public synchronized void setBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+        }
+
+        @Override
+        public synchronized int getBatchSize() {
+            return this.batchSize;
+        }
+
+        @Override
+        public synchronized boolean isClosed() {
+            return this.closed;
+        }
+
+        @Override
+        public synchronized void close() {
+            this.closed = true;
+            this.batch = null;
+        }
+
+    }
+
+}
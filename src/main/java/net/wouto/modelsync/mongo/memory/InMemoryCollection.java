@@ -0,0 +1,547 @@
+package net.wouto.modelsync.mongo.memory;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoNamespace;
+import com.mongodb.MongoWriteException;
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.BulkWriteUpsert;
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.DistinctIterable;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.ListIndexesIterable;
+import com.mongodb.client.MapReduceIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.CountOptions;
+import com.mongodb.client.model.DeleteManyModel;
+import com.mongodb.client.model.DeleteOneModel;
+import com.mongodb.client.model.FindOneAndDeleteOptions;
+import com.mongodb.client.model.FindOneAndReplaceOptions;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.RenameCollectionOptions;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateManyModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonDocumentWriter;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+
+/**
+ * A {@link MongoCollection} backed by an {@link InMemoryMongo} instead of a server.
+ * <br />
+ * Filters, updates, projections and sorts are evaluated in process, documents
+ * of other classes than {@link Document} go through the codec registry just
+ * like they would on the wire. Aggregation and map-reduce are not supported.
+ * @author Wouter
+ * @param <T> the document type
+ */
+public class InMemoryCollection<T> implements MongoCollection<T> {
+
+    private static final EncoderContext encoderContext = EncoderContext.builder().build();
+    private static final DecoderContext decoderContext = DecoderContext.builder().build();
+
+    private final InMemoryMongo mongo;
+    private final MongoNamespace namespace;
+    private final Class<T> documentClass;
+    private final CodecRegistry registry;
+    private final ReadPreference readPreference;
+    private final WriteConcern writeConcern;
+    private final boolean blocking;
+
+    /**
+     * @param blocking whether operations wait out the simulated latency of the
+     * {@link InMemoryMongo}, false when replies are delayed by the caller instead
+     */
+    InMemoryCollection(InMemoryMongo mongo, MongoNamespace namespace, Class<T> documentClass, CodecRegistry registry,
+            ReadPreference readPreference, WriteConcern writeConcern, boolean blocking) {
+        this.mongo = mongo;
+        this.namespace = namespace;
+        this.documentClass = documentClass;
+        this.registry = registry;
+        this.readPreference = readPreference;
+        this.writeConcern = writeConcern;
+        this.blocking = blocking;
+    }
+
+    DocumentStore getStore() {
+        this.mongo.checkReachable();
+        if (this.blocking) {
+            this.mongo.roundTrip();
+        }
+        return this.mongo.getStore(this.namespace);
+    }
+
+    Document toDocument(Bson bson) {
+        if (bson == null) {
+            return new Document();
+        }
+        if (bson instanceof Document) {
+            return (Document) bson;
+        }
+        BsonDocument document = bson.toBsonDocument(this.documentClass, this.registry);
+        return this.registry.get(Document.class).decode(new BsonDocumentReader(document), decoderContext);
+    }
+
+    private Document encode(Object document) {
+        if (document instanceof Document) {
+            return (Document) document;
+        }
+        BsonDocument encoded = new BsonDocument();
+        Codec codec = this.registry.get(document.getClass());
+        codec.encode(new BsonDocumentWriter(encoded), document, encoderContext);
+        return this.registry.get(Document.class).decode(new BsonDocumentReader(encoded), decoderContext);
+    }
+
+    <R> R fromDocument(Document document, Class<R> type) {
+        if (document == null) {
+            return null;
+        }
+        if (type.isInstance(document)) {
+            return type.cast(document);
+        }
+        BsonDocument encoded = new BsonDocument();
+        this.registry.get(Document.class).encode(new BsonDocumentWriter(encoded), document, encoderContext);
+        if (type.isInstance(encoded)) {
+            return type.cast(encoded);
+        }
+        return this.registry.get(type).decode(new BsonDocumentReader(encoded), decoderContext);
+    }
+
+    @Override
+    public MongoNamespace getNamespace() {
+        return this.namespace;
+    }
+
+    @Override
+    public Class<T> getDocumentClass() {
+        return this.documentClass;
+    }
+
+    @Override
+    public CodecRegistry getCodecRegistry() {
+        return this.registry;
+    }
+
+    @Override
+    public ReadPreference getReadPreference() {
+        return this.readPreference;
+    }
+
+    @Override
+    public WriteConcern getWriteConcern() {
+        return this.writeConcern;
+    }
+
+    @Override
+    public <N> MongoCollection<N> withDocumentClass(Class<N> clazz) {
+        return new InMemoryCollection<>(this.mongo, this.namespace, clazz, this.registry, this.readPreference, this.writeConcern, this.blocking);
+    }
+
+    @Override
+    public MongoCollection<T> withCodecRegistry(CodecRegistry codecRegistry) {
+        return new InMemoryCollection<>(this.mongo, this.namespace, this.documentClass, codecRegistry, this.readPreference, this.writeConcern, this.blocking);
+    }
+
+    @Override
+    public MongoCollection<T> withReadPreference(ReadPreference readPreference) {
+        return new InMemoryCollection<>(this.mongo, this.namespace, this.documentClass, this.registry, readPreference, this.writeConcern, this.blocking);
+    }
+
+    @Override
+    public MongoCollection<T> withWriteConcern(WriteConcern writeConcern) {
+        return new InMemoryCollection<>(this.mongo, this.namespace, this.documentClass, this.registry, this.readPreference, writeConcern, this.blocking);
+    }
+
+    @Override
+    public long count() {
+        return this.count(new Document());
+    }
+
+    @Override
+    public long count(Bson filter) {
+        return this.count(filter, new CountOptions());
+    }
+
+    @Override
+    public long count(Bson filter, CountOptions options) {
+        return this.getStore().count(this.toDocument(filter), options.getSkip(), options.getLimit());
+    }
+
+    @Override
+    public <R> DistinctIterable<R> distinct(String fieldName, Class<R> resultClass) {
+        return new Distinct<>(fieldName, resultClass);
+    }
+
+    @Override
+    public FindIterable<T> find() {
+        return this.find(new Document(), this.documentClass);
+    }
+
+    @Override
+    public <R> FindIterable<R> find(Class<R> resultClass) {
+        return this.find(new Document(), resultClass);
+    }
+
+    @Override
+    public FindIterable<T> find(Bson filter) {
+        return this.find(filter, this.documentClass);
+    }
+
+    @Override
+    public <R> FindIterable<R> find(Bson filter, Class<R> resultClass) {
+        return new InMemoryFindIterable<>(this, resultClass, filter);
+    }
+
+    @Override
+    public AggregateIterable<T> aggregate(List<? extends Bson> pipeline) {
+        throw new UnsupportedOperationException("aggregate is not supported by the in-memory backend");
+    }
+
+    @Override
+    public <R> AggregateIterable<R> aggregate(List<? extends Bson> pipeline, Class<R> resultClass) {
+        throw new UnsupportedOperationException("aggregate is not supported by the in-memory backend");
+    }
+
+    @Override
+    public MapReduceIterable<T> mapReduce(String mapFunction, String reduceFunction) {
+        throw new UnsupportedOperationException("mapReduce is not supported by the in-memory backend");
+    }
+
+    @Override
+    public <R> MapReduceIterable<R> mapReduce(String mapFunction, String reduceFunction, Class<R> resultClass) {
+        throw new UnsupportedOperationException("mapReduce is not supported by the in-memory backend");
+    }
+
+    @Override
+    public BulkWriteResult bulkWrite(List<? extends WriteModel<? extends T>> requests) {
+        return this.bulkWrite(requests, new BulkWriteOptions());
+    }
+
+    /**
+     * Runs the requests one by one. Unlike on a server the batch is not
+     * isolated from concurrent writers, every single request is.
+     */
+    @Override
+    public BulkWriteResult bulkWrite(List<? extends WriteModel<? extends T>> requests, BulkWriteOptions options) {
+        DocumentStore store = this.getStore();
+        int inserted = 0;
+        int matched = 0;
+        int removed = 0;
+        int modified = 0;
+        List<BulkWriteUpsert> upserts = new ArrayList<>();
+        List<BulkWriteError> errors = new ArrayList<>();
+        for (int i = 0; i < requests.size(); i++) {
+            WriteModel<? extends T> request = requests.get(i);
+            try {
+                UpdateResult result = null;
+                if (request instanceof InsertOneModel) {
+                    store.insert(this.encode(((InsertOneModel) request).getDocument()));
+                    inserted++;
+                } else if (request instanceof ReplaceOneModel) {
+                    ReplaceOneModel model = (ReplaceOneModel) request;
+                    result = store.replace(this.toDocument(model.getFilter()), this.encode(model.getReplacement()), model.getOptions().isUpsert());
+                } else if (request instanceof UpdateOneModel) {
+                    UpdateOneModel model = (UpdateOneModel) request;
+                    result = store.update(this.toDocument(model.getFilter()), this.toDocument(model.getUpdate()), model.getOptions().isUpsert(), false);
+                } else if (request instanceof UpdateManyModel) {
+                    UpdateManyModel model = (UpdateManyModel) request;
+                    result = store.update(this.toDocument(model.getFilter()), this.toDocument(model.getUpdate()), model.getOptions().isUpsert(), true);
+                } else if (request instanceof DeleteOneModel) {
+                    removed += store.delete(this.toDocument(((DeleteOneModel) request).getFilter()), false);
+                } else if (request instanceof DeleteManyModel) {
+                    removed += store.delete(this.toDocument(((DeleteManyModel) request).getFilter()), true);
+                } else {
+                    throw new UnsupportedOperationException("Unknown write model " + request.getClass().getName());
+                }
+                if (result != null) {
+                    matched += result.getMatchedCount();
+                    modified += result.getModifiedCount();
+                    if (result.getUpsertedId() != null) {
+                        upserts.add(new BulkWriteUpsert(i, result.getUpsertedId()));
+                    }
+                }
+            } catch (MongoWriteException ex) {
+                errors.add(new BulkWriteError(ex.getError().getCode(), ex.getError().getMessage(), ex.getError().getDetails(), i));
+                if (options.isOrdered()) {
+                    break;
+                }
+            }
+        }
+        BulkWriteResult result = BulkWriteResult.acknowledged(inserted, matched, removed, modified, upserts);
+        if (!errors.isEmpty()) {
+            throw new MongoBulkWriteException(result, errors, null, DocumentStore.address);
+        }
+        return result;
+    }
+
+    @Override
+    public void insertOne(T document) {
+        this.getStore().insert(this.encode(document));
+    }
+
+    @Override
+    public void insertMany(List<? extends T> documents) {
+        this.insertMany(documents, new InsertManyOptions());
+    }
+
+    @Override
+    public void insertMany(List<? extends T> documents, InsertManyOptions options) {
+        List<WriteModel<T>> requests = new ArrayList<>(documents.size());
+        for (T document : documents) {
+            requests.add(new InsertOneModel<>(document));
+        }
+        this.bulkWrite(requests, new BulkWriteOptions().ordered(options.isOrdered()));
+    }
+
+    @Override
+    public DeleteResult deleteOne(Bson filter) {
+        return DeleteResult.acknowledged(this.getStore().delete(this.toDocument(filter), false));
+    }
+
+    @Override
+    public DeleteResult deleteMany(Bson filter) {
+        return DeleteResult.acknowledged(this.getStore().delete(this.toDocument(filter), true));
+    }
+
+    @Override
+    public UpdateResult replaceOne(Bson filter, T replacement) {
+        return this.replaceOne(filter, replacement, new UpdateOptions());
+    }
+
+    @Override
+    public UpdateResult replaceOne(Bson filter, T replacement, UpdateOptions options) {
+        return this.getStore().replace(this.toDocument(filter), this.encode(replacement), options.isUpsert());
+    }
+
+    @Override
+    public UpdateResult updateOne(Bson filter, Bson update) {
+        return this.updateOne(filter, update, new UpdateOptions());
+    }
+
+    @Override
+    public UpdateResult updateOne(Bson filter, Bson update, UpdateOptions options) {
+        return this.getStore().update(this.toDocument(filter), this.toDocument(update), options.isUpsert(), false);
+    }
+
+    @Override
+    public UpdateResult updateMany(Bson filter, Bson update) {
+        return this.updateMany(filter, update, new UpdateOptions());
+    }
+
+    @Override
+    public UpdateResult updateMany(Bson filter, Bson update, UpdateOptions options) {
+        return this.getStore().update(this.toDocument(filter), this.toDocument(update), options.isUpsert(), true);
+    }
+
+    @Override
+    public T findOneAndDelete(Bson filter) {
+        return this.findOneAndDelete(filter, new FindOneAndDeleteOptions());
+    }
+
+    @Override
+    public T findOneAndDelete(Bson filter, FindOneAndDeleteOptions options) {
+        Document found = this.getStore().findOneAndDelete(this.toDocument(filter), this.optional(options.getSort()), this.optional(options.getProjection()));
+        return this.fromDocument(found, this.documentClass);
+    }
+
+    @Override
+    public T findOneAndReplace(Bson filter, T replacement) {
+        return this.findOneAndReplace(filter, replacement, new FindOneAndReplaceOptions());
+    }
+
+    @Override
+    public T findOneAndReplace(Bson filter, T replacement, FindOneAndReplaceOptions options) {
+        Document found = this.getStore().findOneAndReplace(this.toDocument(filter), this.encode(replacement), this.optional(options.getSort()),
+                this.optional(options.getProjection()), options.isUpsert(), options.getReturnDocument() == ReturnDocument.AFTER);
+        return this.fromDocument(found, this.documentClass);
+    }
+
+    @Override
+    public T findOneAndUpdate(Bson filter, Bson update) {
+        return this.findOneAndUpdate(filter, update, new FindOneAndUpdateOptions());
+    }
+
+    @Override
+    public T findOneAndUpdate(Bson filter, Bson update, FindOneAndUpdateOptions options) {
+        Document found = this.getStore().findOneAndUpdate(this.toDocument(filter), this.toDocument(update), this.optional(options.getSort()),
+                this.optional(options.getProjection()), options.isUpsert(), options.getReturnDocument() == ReturnDocument.AFTER);
+        return this.fromDocument(found, this.documentClass);
+    }
+
+    private Document optional(Bson bson) {
+        return bson == null ? null : this.toDocument(bson);
+    }
+
+    @Override
+    public void drop() {
+        this.mongo.drop(this.namespace);
+    }
+
+    @Override
+    public String createIndex(Bson keys) {
+        return this.createIndex(keys, new IndexOptions());
+    }
+
+    /**
+     * Only the first key is indexed, which serves the equality lookups the
+     * in-memory backend accelerates. Compound indexes still filter correctly.
+     */
+    @Override
+    public String createIndex(Bson keys, IndexOptions options) {
+        Document document = this.toDocument(keys);
+        if (document.isEmpty()) {
+            throw new IllegalArgumentException("Index keys can not be empty");
+        }
+        return this.getStore().createIndex(document.keySet().iterator().next(), options.isUnique());
+    }
+
+    @Override
+    public List<String> createIndexes(List<IndexModel> indexes) {
+        List<String> names = new ArrayList<>(indexes.size());
+        for (IndexModel index : indexes) {
+            names.add(this.createIndex(index.getKeys(), index.getOptions()));
+        }
+        return names;
+    }
+
+    @Override
+    public ListIndexesIterable<Document> listIndexes() {
+        return this.listIndexes(Document.class);
+    }
+
+    @Override
+    public <R> ListIndexesIterable<R> listIndexes(Class<R> resultClass) {
+        return new Indexes<>(resultClass);
+    }
+
+    @Override
+    public void dropIndex(String indexName) {
+        this.getStore().dropIndex(indexName);
+    }
+
+    @Override
+    public void dropIndex(Bson keys) {
+        Document document = this.toDocument(keys);
+        if (document.isEmpty()) {
+            throw new IllegalArgumentException("Index keys can not be empty");
+        }
+        this.getStore().dropIndex(document.keySet().iterator().next() + "_1");
+    }
+
+    @Override
+    public void dropIndexes() {
+        this.getStore().dropIndexes();
+    }
+
+    @Override
+    public void renameCollection(MongoNamespace newCollectionNamespace) {
+        this.renameCollection(newCollectionNamespace, new RenameCollectionOptions());
+    }
+
+    @Override
+    public void renameCollection(MongoNamespace newCollectionNamespace, RenameCollectionOptions options) {
+        this.mongo.rename(this.namespace, newCollectionNamespace, options.isDropTarget());
+    }
+
+    private final class Distinct<R> extends InMemoryIterable<R> implements DistinctIterable<R> {
+
+        private final String field;
+        private final Class<R> resultClass;
+        private Document filter;
+
+        private Distinct(String field, Class<R> resultClass) {
+            this.field = field;
+            this.resultClass = resultClass;
+            this.filter = new Document();
+        }
+
+        @Override
+        List<R> results() {
+            DocumentStore store = InMemoryCollection.this.getStore();
+            List<R> results = new ArrayList<>();
+            for (Object value : store.distinct(this.field, this.filter)) {
+                if (value == null || this.resultClass.isInstance(value)) {
+                    results.add(this.resultClass.cast(value));
+                } else if (value instanceof Document) {
+                    results.add(InMemoryCollection.this.fromDocument((Document) value, this.resultClass));
+                } else {
+                    BsonValue bson = store.toBsonValue(value);
+                    if (!this.resultClass.isInstance(bson)) {
+                        throw new ClassCastException("Cannot return " + value.getClass().getName() + " as " + this.resultClass.getName());
+                    }
+                    results.add(this.resultClass.cast(bson));
+                }
+            }
+            return results;
+        }
+
+        @Override
+        public DistinctIterable<R> filter(Bson filter) {
+            this.filter = InMemoryCollection.this.toDocument(filter);
+            return this;
+        }
+
+        @Override
+        public DistinctIterable<R> maxTime(long maxTime, TimeUnit timeUnit) {
+            return this;
+        }
+
+        @Override
+        public DistinctIterable<R> batchSize(int batchSize) {
+            return this;
+        }
+
+    }
+
+    private final class Indexes<R> extends InMemoryIterable<R> implements ListIndexesIterable<R> {
+
+        private final Class<R> resultClass;
+
+        private Indexes(Class<R> resultClass) {
+            this.resultClass = resultClass;
+        }
+
+        @Override
+        List<R> results() {
+            List<R> results = new ArrayList<>();
+            for (Document index : InMemoryCollection.this.getStore().listIndexes(InMemoryCollection.this.namespace.getFullName())) {
+                results.add(InMemoryCollection.this.fromDocument(index, this.resultClass));
+            }
+            return results;
+        }
+
+        @Override
+        public ListIndexesIterable<R> maxTime(long maxTime, TimeUnit timeUnit) {
+            return this;
+        }
+
+        @Override
+        public ListIndexesIterable<R> batchSize(int batchSize) {
+            return this;
+        }
+
+    }
+
+}
@@ -0,0 +1,118 @@
+package net.wouto.modelsync.mongo.memory;
+
+import com.mongodb.CursorType;
+import com.mongodb.client.FindIterable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+/**
+ * The result of {@link InMemoryCollection#find()}, honouring filter, sort,
+ * skip, limit and projection. Server-side cursor options are accepted and ignored.
+ * @author Wouter
+ * @param <T> the result type
+ */
+class InMemoryFindIterable<T> extends InMemoryIterable<T> implements FindIterable<T> {
+
+    private final InMemoryCollection<?> collection;
+    private final Class<T> resultClass;
+    private Document filter;
+    private Document sort;
+    private Document projection;
+    private int skip;
+    private int limit;
+
+    InMemoryFindIterable(InMemoryCollection<?> collection, Class<T> resultClass, Bson filter) {
+        this.collection = collection;
+        this.resultClass = resultClass;
+        this.filter = collection.toDocument(filter);
+    }
+
+    @Override
+    List<T> results() {
+        List<Document> found = this.collection.getStore().find(this.filter, this.sort, this.skip, this.limit, this.projection);
+        List<T> results = new ArrayList<>(found.size());
+        for (Document d : found) {
+            results.add(this.collection.fromDocument(d, this.resultClass));
+        }
+        return results;
+    }
+
+    @Override
+    public T first() {
+        List<Document> found = this.collection.getStore().find(this.filter, this.sort, this.skip, -1, this.projection);
+        return found.isEmpty() ? null : this.collection.fromDocument(found.get(0), this.resultClass);
+    }
+
+    @Override
+    public FindIterable<T> filter(Bson filter) {
+        this.filter = this.collection.toDocument(filter);
+        return this;
+    }
+
+    @Override
+    public FindIterable<T> limit(int limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    @Override
+    public FindIterable<T> skip(int skip) {
+        this.skip = skip;
+        return this;
+    }
+
+    @Override
+    public FindIterable<T> maxTime(long maxTime, TimeUnit timeUnit) {
+        return this;
+    }
+
+    @Override
+    public FindIterable<T> modifiers(Bson modifiers) {
+        Document m = this.collection.toDocument(modifiers);
+        if (m.get("$orderby") instanceof Document) {
+            this.sort = (Document) m.get("$orderby");
+        }
+        return this;
+    }
+
+    @Override
+    public FindIterable<T> projection(Bson projection) {
+        this.projection = projection == null ? null : this.collection.toDocument(projection);
+        return this;
+    }
+
+    @Override
+    public FindIterable<T> sort(Bson sort) {
+        this.sort = sort == null ? null : this.collection.toDocument(sort);
+        return this;
+    }
+
+    @Override
+    public FindIterable<T> noCursorTimeout(boolean noCursorTimeout) {
+        return this;
+    }
+
+    @Override
+    public FindIterable<T> oplogReplay(boolean oplogReplay) {
+        return this;
+    }
+
+    @Override
+    public FindIterable<T> partial(boolean partial) {
+        return this;
+    }
+
+    @Override
+    public FindIterable<T> cursorType(CursorType cursorType) {
+        return this;
+    }
+
+    @Override
+    public FindIterable<T> batchSize(int batchSize) {
+        return this;
+    }
+
+}
@@ -0,0 +1,125 @@
+package net.wouto.modelsync.mongo.memory;
+
+import com.mongodb.Block;
+import com.mongodb.Function;
+import com.mongodb.ServerAddress;
+import com.mongodb.ServerCursor;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoIterable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A {@link MongoIterable} over results that are computed when iteration starts.
+ * @author Wouter
+ * @param <T> the result type
+ */
+abstract class InMemoryIterable<T> implements MongoIterable<T> {
+
+    /**
+     * @return a fresh snapshot of the results
+     */
+    abstract List<T> results();
+
+    @Override
+    public MongoCursor<T> iterator() {
+        return new Cursor<>(this.results());
+    }
+
+    @Override
+    public T first() {
+        List<T> results = this.results();
+        return results.isEmpty() ? null : results.get(0);
+    }
+
+    @Override
+    public <U> MongoIterable<U> map(final Function<T, U> mapper) {
+        final InMemoryIterable<T> source = this;
+        return new InMemoryIterable<U>() {
+
+            @Override
+            List<U> results() {
+                List<T> results = source.results();
+                List<U> mapped = new ArrayList<>(results.size());
+                for (T t : results) {
+                    mapped.add(mapper.apply(t));
+                }
+                return mapped;
+            }
+
+        };
+    }
+
+    @Override
+    public void forEach(Block<? super T> block) {
+        for (T t : this.results()) {
+            block.apply(t);
+        }
+    }
+
+    @Override
+    public <A extends Collection<? super T>> A into(A target) {
+        target.addAll(this.results());
+        return target;
+    }
+
+    @Override
+    public MongoIterable<T> batchSize(int batchSize) {
+        return this;
+    }
+
+    /**
+     * A cursor over a result snapshot, it holds no server resources.
+     * @param <T>
+     */
+    static final class Cursor<T> implements MongoCursor<T> {
+
+        private final Iterator<T> results;
+
+        Cursor(List<T> results) {
+            this.results = results.iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.results.hasNext();
+        }
+
+        @Override
+        public T next() {
+            if (!this.results.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return this.results.next();
+        }
+
+        @Override
+        public T tryNext() {
+            return this.results.hasNext() ? this.results.next() : null;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Cursors do not support removal");
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public ServerCursor getServerCursor() {
+            return null;
+        }
+
+        @Override
+        public ServerAddress getServerAddress() {
+            return DocumentStore.address;
+        }
+
+    }
+
+}
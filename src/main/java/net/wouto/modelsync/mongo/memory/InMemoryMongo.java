@@ -0,0 +1,210 @@
+package net.wouto.modelsync.mongo.memory;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoNamespace;
+import com.mongodb.MongoSocketOpenException;
+import com.mongodb.ReadPreference;
+import com.mongodb.ServerAddress;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.MongoCollection;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.bson.Document;
+import org.bson.codecs.configuration.CodecRegistry;
+
+/**
+ * An embedded, thread-safe stand-in for a MongoDB server.
+ * <br />
+ * Hand it to {@link net.wouto.modelsync.mongo.SimpleConnection#connectInMemory(InMemoryMongo)}
+ * to run the scheduling, mapping and caching layers against process memory,
+ * for load tests and benchmarks that should not measure a network.
+ * Collections are created on first use and live as long as this instance.
+ * @author Wouter
+ */
+public class InMemoryMongo {
+
+    private final CodecRegistry registry;
+    private final ConcurrentMap<MongoNamespace, DocumentStore> stores;
+    private volatile long latencyNanos;
+    private volatile boolean unreachable;
+    private ScheduledExecutorService network;
+
+    public InMemoryMongo() {
+        this(MongoClient.getDefaultCodecRegistry());
+    }
+
+    public InMemoryMongo(CodecRegistry registry) {
+        this.registry = registry;
+        this.stores = new ConcurrentHashMap<>();
+    }
+
+    DocumentStore getStore(MongoNamespace namespace) {
+        DocumentStore store = this.stores.get(namespace);
+        if (store == null) {
+            store = new DocumentStore(this.registry);
+            DocumentStore existing = this.stores.putIfAbsent(namespace, store);
+            if (existing != null) {
+                store = existing;
+            }
+        }
+        return store;
+    }
+
+    public MongoCollection<Document> getCollection(String database, String collection) {
+        return new InMemoryCollection<>(this, new MongoNamespace(database, collection), Document.class, this.registry,
+                ReadPreference.primary(), WriteConcern.ACKNOWLEDGED, true);
+    }
+
+    /**
+     * Simulates a network round trip on every operation. Synchronous
+     * collections park the calling thread for it, asynchronous ones reply
+     * after it without holding a thread.
+     * @param latency
+     * @param unit
+     */
+    public void setLatency(long latency, TimeUnit unit) {
+        if (latency < 0) {
+            throw new IllegalArgumentException("latency can not be negative");
+        }
+        this.latencyNanos = unit.toNanos(latency);
+    }
+
+    public long getLatency(TimeUnit unit) {
+        return unit.convert(this.latencyNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Simulates losing the server, every operation fails with a
+     * {@link MongoSocketOpenException} until it is reachable again.
+     * @param reachable
+     */
+    public void setReachable(boolean reachable) {
+        this.unreachable = !reachable;
+    }
+
+    public boolean isReachable() {
+        return !this.unreachable;
+    }
+
+    void checkReachable() {
+        if (this.unreachable) {
+            throw new MongoSocketOpenException("Exception opening socket", new ServerAddress(), new IOException("In-memory server is unreachable"));
+        }
+    }
+
+    void roundTrip() {
+        long latency = this.latencyNanos;
+        if (latency > 0) {
+            LockSupport.parkNanos(latency);
+        }
+    }
+
+    /**
+     * Runs a reply once the simulated latency has passed, right away when there is none.
+     */
+    void reply(Runnable reply) {
+        long latency = this.latencyNanos;
+        if (latency <= 0) {
+            reply.run();
+            return;
+        }
+        this.network().schedule(reply, latency, TimeUnit.NANOSECONDS);
+    }
+
+    private synchronized ScheduledExecutorService network() {
+        if (this.network == null) {
+            this.network = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "InMemoryMongo-Network");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+
+            });
+        }
+        return this.network;
+    }
+
+    /**
+     * @return the names of the databases holding at least one collection
+     */
+    public List<String> getDatabaseNames() {
+        Set<String> names = new LinkedHashSet<>();
+        for (MongoNamespace namespace : this.stores.keySet()) {
+            names.add(namespace.getDatabaseName());
+        }
+        return new ArrayList<>(names);
+    }
+
+    public List<String> getCollectionNames(String database) {
+        List<String> names = new ArrayList<>();
+        for (MongoNamespace namespace : this.stores.keySet()) {
+            if (namespace.getDatabaseName().equals(database)) {
+                names.add(namespace.getCollectionName());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @param database
+     * @param collection
+     * @return the number of documents stored, 0 for unknown collections
+     */
+    public int size(String database, String collection) {
+        DocumentStore store = this.stores.get(new MongoNamespace(database, collection));
+        return store == null ? 0 : store.size();
+    }
+
+    void drop(MongoNamespace namespace) {
+        DocumentStore store = this.stores.remove(namespace);
+        if (store != null) {
+            store.drop();
+        }
+    }
+
+    public void dropDatabase(String database) {
+        for (MongoNamespace namespace : this.stores.keySet()) {
+            if (namespace.getDatabaseName().equals(database)) {
+                this.drop(namespace);
+            }
+        }
+    }
+
+    /**
+     * Removes every database.
+     */
+    public void clear() {
+        for (MongoNamespace namespace : this.stores.keySet()) {
+            this.drop(namespace);
+        }
+    }
+
+    synchronized void rename(MongoNamespace from, MongoNamespace to, boolean dropTarget) {
+        DocumentStore store = this.stores.get(from);
+        if (store == null) {
+            throw new IllegalArgumentException("source namespace does not exist: " + from);
+        }
+        if (this.stores.containsKey(to)) {
+            if (!dropTarget) {
+                throw new IllegalArgumentException("target namespace exists: " + to);
+            }
+            this.drop(to);
+        }
+        this.stores.put(to, store);
+        this.stores.remove(from);
+    }
+
+}
@@ -2,12 +2,21 @@ package net.wouto.modelsync.mongo.query;
 
 import com.mongodb.BasicDBList;
 import com.mongodb.DBObject;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 import org.bson.Document;
 
 public class Query {
 
     private final Document queryObject;
+    private int limit;
+    private int skip;
+    private int batchSize;
+    private long maxTimeMS;
+    private Document sort;
+    private Document projection;
+    private Object hint;
+    private long cacheForMillis = -1;
 
     public Query() {
         this.queryObject = new Document();
@@ -17,10 +26,213 @@ public class Query {
         this.queryObject = q;
     }
 
+    private Query(Query other) {
+        this.queryObject = new Document(other.queryObject);
+        this.limit = other.limit;
+        this.skip = other.skip;
+        this.batchSize = other.batchSize;
+        this.maxTimeMS = other.maxTimeMS;
+        this.sort = other.sort;
+        this.projection = other.projection;
+        this.hint = other.hint;
+        this.cacheForMillis = other.cacheForMillis;
+    }
+
     public Document getQuery() {
         return this.queryObject;
     }
 
+    /**
+     * @param limit the maximum number of documents to return, 0 for no limit
+     * @return a copy of this query with the limit set
+     */
+    public Query limit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit can not be negative");
+        }
+        Query q = new Query(this);
+        q.limit = limit;
+        return q;
+    }
+
+    /**
+     * @param skip the number of matching documents to skip
+     * @return a copy of this query with the skip set
+     */
+    public Query skip(int skip) {
+        if (skip < 0) {
+            throw new IllegalArgumentException("skip can not be negative");
+        }
+        Query q = new Query(this);
+        q.skip = skip;
+        return q;
+    }
+
+    /**
+     * @param batchSize the number of documents per batch the server returns, 0 for the server default
+     * @return a copy of this query with the batch size set
+     */
+    public Query batchSize(int batchSize) {
+        if (batchSize < 0) {
+            throw new IllegalArgumentException("batchSize can not be negative");
+        }
+        Query q = new Query(this);
+        q.batchSize = batchSize;
+        return q;
+    }
+
+    /**
+     * @param maxTime how long the server may run the query before aborting it, 0 for no limit
+     * @param unit
+     * @return a copy of this query with the time limit set
+     */
+    public Query maxTime(long maxTime, TimeUnit unit) {
+        if (maxTime < 0) {
+            throw new IllegalArgumentException("maxTime can not be negative");
+        }
+        Query q = new Query(this);
+        q.maxTimeMS = unit.toMillis(maxTime);
+        return q;
+    }
+
+    /**
+     * Sets how long the results of this query are served from the result
+     * cache of a collection, see {@link net.wouto.modelsync.mongo.SimpleCollection#enableQueryCache}.
+     * The cache key does not include this time.
+     * @param duration 0 to always read from the server
+     * @param unit
+     * @return a copy of this query with the cache time set
+     */
+    public Query cacheFor(long duration, TimeUnit unit) {
+        if (duration < 0) {
+            throw new IllegalArgumentException("duration can not be negative");
+        }
+        Query q = new Query(this);
+        q.cacheForMillis = unit.toMillis(duration);
+        return q;
+    }
+
+    /**
+     * Sorts on one more field, after the fields sorted on already.
+     * @param key
+     * @param ascending
+     * @return a copy of this query with the sort extended
+     */
+    public Query sort(String key, boolean ascending) {
+        Document sort = this.sort == null ? new Document() : new Document(this.sort);
+        sort.put(key, ascending ? 1 : -1);
+        return this.sort(sort);
+    }
+
+    /**
+     * @param sort the sort specification, null for natural order
+     * @return a copy of this query with the sort replaced
+     */
+    public Query sort(Document sort) {
+        Query q = new Query(this);
+        q.sort = sort;
+        return q;
+    }
+
+    /**
+     * @param keys the only fields to return, _id is returned as well unless excluded
+     * @return a copy of this query with the fields added to the projection
+     */
+    public Query include(String... keys) {
+        return this.project(1, keys);
+    }
+
+    /**
+     * @param keys the fields not to return
+     * @return a copy of this query with the fields added to the projection
+     */
+    public Query exclude(String... keys) {
+        return this.project(0, keys);
+    }
+
+    private Query project(int value, String... keys) {
+        Document projection = this.projection == null ? new Document() : new Document(this.projection);
+        for (String key : keys) {
+            projection.put(key, value);
+        }
+        return this.projection(projection);
+    }
+
+    /**
+     * @param projection the projection specification, null to return whole documents
+     * @return a copy of this query with the projection replaced
+     */
+    public Query projection(Document projection) {
+        Query q = new Query(this);
+        q.projection = projection;
+        return q;
+    }
+
+    /**
+     * @param index the name of the index the server should use
+     * @return a copy of this query with the hint set
+     */
+    public Query hint(String index) {
+        Query q = new Query(this);
+        q.hint = index;
+        return q;
+    }
+
+    /**
+     * @param keys the keys of the index the server should use
+     * @return a copy of this query with the hint set
+     */
+    public Query hint(Document keys) {
+        Query q = new Query(this);
+        q.hint = keys;
+        return q;
+    }
+
+    public int getLimit() {
+        return this.limit;
+    }
+
+    public int getSkip() {
+        return this.skip;
+    }
+
+    public int getBatchSize() {
+        return this.batchSize;
+    }
+
+    public long getMaxTime(TimeUnit unit) {
+        return unit.convert(this.maxTimeMS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param unit
+     * @return how long the results may be cached, -1 when not set to use the default of the collection
+     */
+    public long getCacheFor(TimeUnit unit) {
+        return this.cacheForMillis < 0 ? -1 : unit.convert(this.cacheForMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the sort specification, null for natural order
+     */
+    public Document getSort() {
+        return this.sort;
+    }
+
+    /**
+     * @return the projection, null for whole documents
+     */
+    public Document getProjection() {
+        return this.projection;
+    }
+
+    /**
+     * @return the query modifiers carrying the hint, null when there is none
+     */
+    public Document getModifiers() {
+        return this.hint == null ? null : new Document("$hint", this.hint);
+    }
+
     public static Query greaterThan(String key, Number nr) {
         return new Query(
                 new Document(
@@ -0,0 +1,136 @@
+package net.wouto.modelsync.mongo.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import org.bson.Document;
+
+/**
+ * A key for a {@link Query} that is equal for queries returning the same
+ * documents, to share or cache their results.
+ * <br />
+ * The keys of the filter, of operator documents like {"$gt": 1, "$lt": 5} and
+ * of the projection are compared regardless of their order, as the server does.
+ * Embedded documents matched as a whole, sort specifications and lists keep
+ * their order. Limit, skip, sort, projection and hint are part of the key,
+ * batch size and time limit do not change the result and are not.
+ * @author Wouter
+ */
+public final class QueryKey {
+
+    private final Object filter;
+    private final int limit;
+    private final int skip;
+    private final Object sort;
+    private final Object projection;
+    private final Object hint;
+    private final int hash;
+
+    private QueryKey(Query q) {
+        this.filter = canonical(q.getQuery(), true);
+        this.limit = q.getLimit();
+        this.skip = q.getSkip();
+        this.sort = q.getSort() == null ? null : canonical(q.getSort(), false);
+        this.projection = q.getProjection() == null ? null : canonical(q.getProjection(), true);
+        Document modifiers = q.getModifiers();
+        this.hint = modifiers == null ? null : canonicalValue(modifiers.get("$hint"));
+        this.hash = Arrays.hashCode(new Object[]{this.filter, this.limit, this.skip, this.sort, this.projection, this.hint});
+    }
+
+    public static QueryKey of(Query q) {
+        return new QueryKey(q);
+    }
+
+    /**
+     * @param document
+     * @param unordered whether the order of its keys does not matter
+     * @return the document as a list of key and value pairs
+     */
+    private static List<Object> canonical(Map<String, Object> document, boolean unordered) {
+        List<String> keys = new ArrayList<>(document.keySet());
+        if (unordered) {
+            Collections.sort(keys);
+        }
+        List<Object> pairs = new ArrayList<>(keys.size() * 2 + 1);
+        // tells a document from a list with the same elements
+        pairs.add(Document.class);
+        for (String key : keys) {
+            pairs.add(key);
+            Object value = document.get(key);
+            pairs.add(value instanceof Map && isOperators((Map<String, Object>) value)
+                    ? canonical((Map<String, Object>) value, true)
+                    : canonicalValue(value));
+        }
+        return pairs;
+    }
+
+    private static boolean isOperators(Map<String, Object> document) {
+        if (document.isEmpty()) {
+            return false;
+        }
+        for (String key : document.keySet()) {
+            if (!key.startsWith("$")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Object canonicalValue(Object value) {
+        if (value instanceof Map) {
+            // matched as a whole, the order of its keys matters
+            return canonical((Map<String, Object>) value, false);
+        } else if (value instanceof List) {
+            List<Object> list = new ArrayList<>(((List<?>) value).size());
+            for (Object element : (List<?>) value) {
+                list.add(element instanceof Map && isOperators((Map<String, Object>) element)
+                        ? canonical((Map<String, Object>) element, true)
+                        : canonicalValue(element));
+            }
+            return list;
+        } else if (value instanceof Pattern) {
+            Pattern pattern = (Pattern) value;
+            return Arrays.asList(Pattern.class, pattern.pattern(), pattern.flags());
+        } else if (value instanceof byte[]) {
+            return Arrays.asList(byte[].class, Arrays.toString((byte[]) value));
+        }
+        return value;
+    }
+
+    @Override
+    public int hashCode() {
+        return this.hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof QueryKey)) {
+            return false;
+        }
+        QueryKey other = (QueryKey) obj;
+        return this.hash == other.hash
+                && this.limit == other.limit
+                && this.skip == other.skip
+                && this.filter.equals(other.filter)
+                && equal(this.sort, other.sort)
+                && equal(this.projection, other.projection)
+                && equal(this.hint, other.hint);
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    @Override
+    public String toString() {
+        return "QueryKey{" + "filter=" + this.filter + ", limit=" + this.limit + ", skip=" + this.skip
+                + ", sort=" + this.sort + ", projection=" + this.projection + ", hint=" + this.hint + '}';
+    }
+
+}
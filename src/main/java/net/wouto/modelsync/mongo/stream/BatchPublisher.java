@@ -0,0 +1,181 @@
+package net.wouto.modelsync.mongo.stream;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.wouto.modelsync.mongo.future.FutureCallback;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * Publishes the results of a query as subscribers request them.
+ * <br />
+ * Every subscriber gets its own {@link BatchSource}. A batch is only read
+ * once the previous one has been handed out and more results are requested,
+ * so at most one batch per subscriber is held in memory and no thread waits
+ * for demand. Results are delivered on the thread that read the batch or the
+ * one that requested more.
+ * @author Wouter
+ * @param <T> the result type
+ */
+public abstract class BatchPublisher<T> implements Publisher<T> {
+
+    private static final Logger logger = Logger.getLogger(BatchPublisher.class.getName());
+
+    /**
+     * @return a source that has not read anything yet
+     */
+    protected abstract BatchSource<T> open();
+
+    @Override
+    public void subscribe(Subscriber<? super T> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber can not be null");
+        }
+        BatchSubscription subscription = new BatchSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        subscription.drain();
+    }
+
+    private final class BatchSubscription implements Subscription, FutureCallback<List<T>> {
+
+        private final Subscriber<? super T> subscriber;
+        private final AtomicLong requested;
+        private final AtomicInteger wip;
+        private final ArrayDeque<T> buffer;
+        private BatchSource<T> source;
+        private boolean done;
+
+        private volatile boolean cancelled;
+        private volatile boolean reading;
+        private volatile boolean exhausted;
+        private volatile List<T> received;
+        private volatile Exception error;
+
+        private BatchSubscription(Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+            this.requested = new AtomicLong();
+            this.wip = new AtomicInteger();
+            this.buffer = new ArrayDeque<>();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                this.error = new IllegalArgumentException("Requested " + n + " results, must be positive");
+            } else {
+                long current;
+                long next;
+                do {
+                    current = this.requested.get();
+                    next = current + n < 0 ? Long.MAX_VALUE : current + n;
+                } while (!this.requested.compareAndSet(current, next));
+            }
+            this.drain();
+        }
+
+        @Override
+        public void cancel() {
+            this.cancelled = true;
+            this.drain();
+        }
+
+        @Override
+        public void onComplete(List<T> batch, Exception err) {
+            if (err != null) {
+                this.error = err;
+            } else if (batch == null || batch.isEmpty()) {
+                this.exhausted = true;
+            } else {
+                this.received = batch;
+            }
+            this.reading = false;
+            this.drain();
+        }
+
+        /**
+         * Emits what is buffered and requested, only one thread at a time
+         * runs this loop, others leave their work to it.
+         */
+        private void drain() {
+            if (this.wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                this.emit();
+                missed = this.wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void emit() {
+            if (this.done) {
+                return;
+            }
+            if (this.cancelled) {
+                this.terminate();
+                return;
+            }
+            if (this.error != null) {
+                this.terminate();
+                this.subscriber.onError(this.error);
+                return;
+            }
+            List<T> batch = this.received;
+            if (batch != null) {
+                this.received = null;
+                this.buffer.addAll(batch);
+            }
+            while (!this.buffer.isEmpty() && this.requested.get() > 0) {
+                try {
+                    this.subscriber.onNext(this.buffer.poll());
+                } catch (RuntimeException ex) {
+                    logger.log(Level.WARNING, "Subscriber failed, cancelling its subscription", ex);
+                    this.terminate();
+                    return;
+                }
+                if (this.requested.get() != Long.MAX_VALUE) {
+                    this.requested.decrementAndGet();
+                }
+                if (this.cancelled) {
+                    this.terminate();
+                    return;
+                }
+            }
+            if (!this.buffer.isEmpty() || this.reading) {
+                return;
+            }
+            if (this.exhausted) {
+                this.terminate();
+                this.subscriber.onComplete();
+                return;
+            }
+            if (this.requested.get() > 0) {
+                this.reading = true;
+                try {
+                    if (this.source == null) {
+                        this.source = BatchPublisher.this.open();
+                    }
+                    this.source.next(this);
+                } catch (RuntimeException ex) {
+                    this.onComplete(null, ex);
+                }
+            }
+        }
+
+        private void terminate() {
+            this.done = true;
+            this.buffer.clear();
+            this.received = null;
+            if (this.source != null) {
+                this.source.close();
+            }
+        }
+
+    }
+
+}
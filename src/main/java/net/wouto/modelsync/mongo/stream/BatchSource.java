@@ -0,0 +1,24 @@
+package net.wouto.modelsync.mongo.stream;
+
+import java.util.List;
+import net.wouto.modelsync.mongo.future.FutureCallback;
+
+/**
+ * Reads the results of one query a batch at a time.
+ * @author Wouter
+ * @param <T> the result type
+ */
+public interface BatchSource<T> {
+
+    /**
+     * Reads the next batch. Never called again before the callback ran.
+     * @param callback receives the batch, null or an empty list when there are no more results
+     */
+    public void next(FutureCallback<List<T>> callback);
+
+    /**
+     * Releases the cursor. May be called while a batch is being read.
+     */
+    public void close();
+
+}
@@ -0,0 +1,33 @@
+package net.wouto.modelsync.mongo.sync;
+
+import java.lang.reflect.Field;
+
+/**
+ * How {@link FieldAccessor}s are created for model fields.
+ * @author Wouter
+ */
+public enum AccessorStrategy {
+
+    /**
+     * Plain {@link Field#get(Object)} / {@link Field#set(Object, Object)} calls.
+     */
+    REFLECTION {
+        @Override
+        public FieldAccessor create(Field field) {
+            return new ReflectionFieldAccessor(field);
+        }
+    },
+    /**
+     * {@link java.lang.invoke.MethodHandle}s resolved once per field,
+     * falling back to reflection for fields a handle cannot write (final fields).
+     */
+    METHOD_HANDLE {
+        @Override
+        public FieldAccessor create(Field field) {
+            return new MethodHandleFieldAccessor(field);
+        }
+    };
+
+    public abstract FieldAccessor create(Field field);
+
+}
@@ -0,0 +1,33 @@
+package net.wouto.modelsync.mongo.sync;
+
+/**
+ * Reads and writes a single model field.
+ * <br />
+ * The primitive variants only avoid boxing when the field is declared with
+ * that exact primitive type, other fields go through {@link #get(Object)} and
+ * {@link #set(Object, Object)}.
+ * @author Wouter
+ */
+public interface FieldAccessor {
+
+    public Object get(Object instance) throws IllegalAccessException;
+
+    public void set(Object instance, Object value) throws IllegalAccessException;
+
+    public int getInt(Object instance) throws IllegalAccessException;
+
+    public void setInt(Object instance, int value) throws IllegalAccessException;
+
+    public long getLong(Object instance) throws IllegalAccessException;
+
+    public void setLong(Object instance, long value) throws IllegalAccessException;
+
+    public double getDouble(Object instance) throws IllegalAccessException;
+
+    public void setDouble(Object instance, double value) throws IllegalAccessException;
+
+    public boolean getBoolean(Object instance) throws IllegalAccessException;
+
+    public void setBoolean(Object instance, boolean value) throws IllegalAccessException;
+
+}
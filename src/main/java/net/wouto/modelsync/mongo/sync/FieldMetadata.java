@@ -0,0 +1,251 @@
+package net.wouto.modelsync.mongo.sync;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Collection;
+import net.wouto.modelsync.mongo.annotations.DBSync;
+
+/**
+ * Resolved mapping information of a single {@link DBSync} field.
+ * Instances are immutable and shared through {@link ModelMetadata}.
+ * @author Wouter
+ */
+public final class FieldMetadata {
+
+    /**
+     * How a field is written to and read from a document.
+     */
+    public enum Kind {
+        VALUE,
+        MODEL,
+        VALUE_ARRAY,
+        MODEL_ARRAY,
+        VALUE_COLLECTION,
+        MODEL_COLLECTION
+    }
+
+    private final Field field;
+    private final FieldAccessor accessor;
+    private final String dbName;
+    private final boolean index;
+    private final Kind kind;
+    private final Class<?> elementType;
+    private final boolean serializable;
+
+    FieldMetadata(Field field, DBSync annotation, AccessorStrategy strategy) {
+        this.field = field;
+        this.accessor = strategy.create(field);
+        this.dbName = annotation.value().isEmpty() ? field.getName() : annotation.value();
+        this.index = annotation.index();
+        Class<?> type = field.getType();
+        if (type.isArray()) {
+            this.elementType = type.getComponentType();
+            this.kind = ModelMetadata.isPrimitive(this.elementType) ? Kind.VALUE_ARRAY : Kind.MODEL_ARRAY;
+        } else if (Collection.class.isAssignableFrom(type)) {
+            this.elementType = getCollectionType(field);
+            this.kind = ModelMetadata.isPrimitive(this.elementType) ? Kind.VALUE_COLLECTION : Kind.MODEL_COLLECTION;
+        } else {
+            this.elementType = type;
+            this.kind = ModelMetadata.isPrimitive(type) ? Kind.VALUE : Kind.MODEL;
+        }
+        this.serializable = ModelMetadata.isPrimitive(this.elementType) || ModelMetadata.isModel(this.elementType);
+    }
+
+    private static Class<?> getCollectionType(Field f) {
+        Type generic = f.getGenericType();
+        if (generic instanceof ParameterizedType) {
+            Type arg = ((ParameterizedType) generic).getActualTypeArguments()[0];
+            if (arg instanceof Class) {
+                return (Class<?>) arg;
+            }
+            if (arg instanceof ParameterizedType) {
+                return (Class<?>) ((ParameterizedType) arg).getRawType();
+            }
+        }
+        return Object.class;
+    }
+
+    public Field getField() {
+        return this.field;
+    }
+
+    public String getName() {
+        return this.field.getName();
+    }
+
+    /**
+     * @return the document key, {@link DBSync#value()} when set, the field name otherwise
+     */
+    public String getDbName() {
+        return this.dbName;
+    }
+
+    public boolean isIndex() {
+        return this.index;
+    }
+
+    public Kind getKind() {
+        return this.kind;
+    }
+
+    public Class<?> getType() {
+        return this.field.getType();
+    }
+
+    /**
+     * @return the component type for arrays, the type argument for collections
+     * and the field type itself otherwise
+     */
+    public Class<?> getElementType() {
+        return this.elementType;
+    }
+
+    /**
+     * @return whether the element type is either a value type or a model
+     * with {@link DBSync} fields of its own
+     */
+    public boolean isSerializable() {
+        return this.serializable;
+    }
+
+    public FieldAccessor getAccessor() {
+        return this.accessor;
+    }
+
+    public Object get(Object instance) throws IllegalAccessException {
+        return this.accessor.get(instance);
+    }
+
+    /**
+     * Writes a value, converting numbers to the declared type of
+     * int, long and double fields without boxing them again.
+     * @param instance
+     * @param value
+     * @throws IllegalAccessException
+     * @throws ArithmeticException when a number does not fit the field exactly
+     */
+    public void set(Object instance, Object value) throws IllegalAccessException {
+        Class<?> type = this.field.getType();
+        if (value instanceof Number) {
+            if (type == int.class) {
+                this.accessor.setInt(instance, toInt((Number) value));
+                return;
+            } else if (type == long.class) {
+                this.accessor.setLong(instance, toLong((Number) value));
+                return;
+            } else if (type == double.class) {
+                this.accessor.setDouble(instance, toDouble((Number) value));
+                return;
+            } else if (type == short.class) {
+                this.accessor.set(instance, toShort((Number) value));
+                return;
+            } else if (type == byte.class) {
+                this.accessor.set(instance, toByte((Number) value));
+                return;
+            } else if (type == float.class) {
+                this.accessor.set(instance, toFloat((Number) value));
+                return;
+            }
+        } else if (value instanceof Boolean && type == boolean.class) {
+            this.accessor.setBoolean(instance, (Boolean) value);
+            return;
+        }
+        this.accessor.set(instance, value);
+    }
+
+    /**
+     * @param value
+     * @return the value as an int
+     * @throws ArithmeticException when it has a fraction or is out of range
+     */
+    public static int toInt(Number value) {
+        long whole = whole(value, "an int");
+        if (whole != (int) whole) {
+            throw new ArithmeticException(value + " does not fit an int");
+        }
+        return (int) whole;
+    }
+
+    /**
+     * @param value
+     * @return the value as a short
+     * @throws ArithmeticException when it has a fraction or is out of range
+     */
+    public static short toShort(Number value) {
+        long whole = whole(value, "a short");
+        if (whole != (short) whole) {
+            throw new ArithmeticException(value + " does not fit a short");
+        }
+        return (short) whole;
+    }
+
+    /**
+     * @param value
+     * @return the value as a byte
+     * @throws ArithmeticException when it has a fraction or is out of range
+     */
+    public static byte toByte(Number value) {
+        long whole = whole(value, "a byte");
+        if (whole != (byte) whole) {
+            throw new ArithmeticException(value + " does not fit a byte");
+        }
+        return (byte) whole;
+    }
+
+    /**
+     * @param value
+     * @return the value as a long
+     * @throws ArithmeticException when it has a fraction or is out of range
+     */
+    public static long toLong(Number value) {
+        return whole(value, "a long");
+    }
+
+    private static long whole(Number value, String type) {
+        if (value instanceof Double || value instanceof Float) {
+            double real = value.doubleValue();
+            // 2^63 itself would be rounded down to Long.MAX_VALUE
+            if (real != Math.rint(real) || real < -0x1p63 || real >= 0x1p63) {
+                throw new ArithmeticException(value + " does not fit " + type);
+            }
+            return (long) real;
+        }
+        return value.longValue();
+    }
+
+    /**
+     * @param value
+     * @return the value as a double
+     * @throws ArithmeticException when it is a long a double can not hold exactly
+     */
+    public static double toDouble(Number value) {
+        if (value instanceof Long) {
+            long whole = value.longValue();
+            double real = whole;
+            if (real >= 0x1p63 || (long) real != whole) {
+                throw new ArithmeticException(value + " does not fit a double exactly");
+            }
+            return real;
+        }
+        return value.doubleValue();
+    }
+
+    /**
+     * @param value
+     * @return the value as a float
+     * @throws ArithmeticException when a float can not hold it exactly
+     */
+    public static float toFloat(Number value) {
+        if (value instanceof Float) {
+            return value.floatValue();
+        }
+        double real = toDouble(value);
+        float narrow = (float) real;
+        if (narrow != real && !Double.isNaN(real)) {
+            throw new ArithmeticException(value + " does not fit a float exactly");
+        }
+        return narrow;
+    }
+
+}
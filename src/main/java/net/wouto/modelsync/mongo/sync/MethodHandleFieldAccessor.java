@@ -0,0 +1,201 @@
+package net.wouto.modelsync.mongo.sync;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+/**
+ * {@link FieldAccessor} backed by {@link MethodHandle}s that are resolved once per field.
+ * <br />
+ * Handles never touch the accessible flag after creation, so concurrent
+ * mapping threads do not race on it, and fields declared as int, long, double
+ * or boolean get handles of that exact type so their values are never boxed.
+ * @author Wouter
+ */
+public class MethodHandleFieldAccessor implements FieldAccessor {
+
+    private final Class<?> type;
+    private final MethodHandle getter;
+    private final MethodHandle setter;
+    private final MethodHandle primitiveGetter;
+    private final MethodHandle primitiveSetter;
+    private final ReflectionFieldAccessor fallback;
+
+    public MethodHandleFieldAccessor(Field field) {
+        field.setAccessible(true);
+        this.type = field.getType();
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            MethodHandle get = lookup.unreflectGetter(field);
+            this.getter = get.asType(MethodType.methodType(Object.class, Object.class));
+            this.primitiveGetter = isSpecialized(this.type) ? get.asType(MethodType.methodType(this.type, Object.class)) : null;
+        } catch (IllegalAccessException ex) {
+            throw new IllegalArgumentException("Cannot access field " + field, ex);
+        }
+        MethodHandle set = null;
+        if (!Modifier.isFinal(field.getModifiers())) {
+            try {
+                set = lookup.unreflectSetter(field);
+            } catch (IllegalAccessException ex) {
+                set = null;
+            }
+        }
+        if (set != null) {
+            this.setter = set.asType(MethodType.methodType(void.class, Object.class, Object.class));
+            this.primitiveSetter = isSpecialized(this.type) ? set.asType(MethodType.methodType(void.class, Object.class, this.type)) : null;
+            this.fallback = null;
+        } else {
+            this.setter = null;
+            this.primitiveSetter = null;
+            this.fallback = new ReflectionFieldAccessor(field);
+        }
+    }
+
+    private static boolean isSpecialized(Class<?> type) {
+        return type == int.class || type == long.class || type == double.class || type == boolean.class;
+    }
+
+    private static IllegalArgumentException rethrow(Throwable t) {
+        if (t instanceof ClassCastException) {
+            return new IllegalArgumentException(t.getMessage(), t);
+        }
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return new IllegalArgumentException(t);
+    }
+
+    @Override
+    public Object get(Object instance) {
+        try {
+            return (Object) this.getter.invokeExact(instance);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    public void set(Object instance, Object value) throws IllegalAccessException {
+        if (this.setter == null) {
+            this.fallback.set(instance, value);
+            return;
+        }
+        try {
+            this.setter.invokeExact(instance, value);
+        } catch (NullPointerException ex) {
+            if (value == null && this.type.isPrimitive()) {
+                // unboxing null, reflection reports it as an illegal argument
+                throw new IllegalArgumentException("Cannot set " + this.type.getName() + " field to null", ex);
+            }
+            throw ex;
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    public int getInt(Object instance) {
+        if (this.type != int.class) {
+            return ((Number) this.get(instance)).intValue();
+        }
+        try {
+            return (int) this.primitiveGetter.invokeExact(instance);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    public void setInt(Object instance, int value) throws IllegalAccessException {
+        if (this.type != int.class || this.primitiveSetter == null) {
+            this.set(instance, value);
+            return;
+        }
+        try {
+            this.primitiveSetter.invokeExact(instance, value);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    public long getLong(Object instance) {
+        if (this.type != long.class) {
+            return ((Number) this.get(instance)).longValue();
+        }
+        try {
+            return (long) this.primitiveGetter.invokeExact(instance);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    public void setLong(Object instance, long value) throws IllegalAccessException {
+        if (this.type != long.class || this.primitiveSetter == null) {
+            this.set(instance, value);
+            return;
+        }
+        try {
+            this.primitiveSetter.invokeExact(instance, value);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    public double getDouble(Object instance) {
+        if (this.type != double.class) {
+            return ((Number) this.get(instance)).doubleValue();
+        }
+        try {
+            return (double) this.primitiveGetter.invokeExact(instance);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    public void setDouble(Object instance, double value) throws IllegalAccessException {
+        if (this.type != double.class || this.primitiveSetter == null) {
+            this.set(instance, value);
+            return;
+        }
+        try {
+            this.primitiveSetter.invokeExact(instance, value);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    public boolean getBoolean(Object instance) {
+        if (this.type != boolean.class) {
+            return (Boolean) this.get(instance);
+        }
+        try {
+            return (boolean) this.primitiveGetter.invokeExact(instance);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    public void setBoolean(Object instance, boolean value) throws IllegalAccessException {
+        if (this.type != boolean.class || this.primitiveSetter == null) {
+            this.set(instance, value);
+            return;
+        }
+        try {
+            this.primitiveSetter.invokeExact(instance, value);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+}
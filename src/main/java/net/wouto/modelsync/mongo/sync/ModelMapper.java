@@ -0,0 +1,43 @@
+package net.wouto.modelsync.mongo.sync;
+
+import org.bson.Document;
+
+/**
+ * Converts a model to and from its document form.
+ * <br />
+ * Implementations are either generated at compile time by the
+ * ModelSyncMongoDB processor, or fall back to {@link ReflectionModelMapper}.
+ * Use {@link ModelMappers#forClass(Class)} to get the one in effect for a class.
+ * @author Wouter
+ * @param <T> the model type
+ */
+public interface ModelMapper<T> {
+
+    public Class<T> getType();
+
+    public T newInstance() throws Exception;
+
+    public Document encode(T instance);
+
+    /**
+     * Copies every mapped key present in the document onto the instance.
+     * @param instance
+     * @param data
+     * @return the instance
+     */
+    public T decode(T instance, Document data);
+
+    /**
+     * @return the document key of the index field, or null if the model has none
+     */
+    public String getIndexKey();
+
+    public Object getIndexValue(T instance);
+
+    /**
+     * @return a projection including every document key the model maps,
+     * the keys of nested models as dotted paths
+     */
+    public Document getProjection();
+
+}
@@ -0,0 +1,147 @@
+package net.wouto.modelsync.mongo.sync;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.bson.Document;
+
+/**
+ * Looks up the {@link ModelMapper} of a class.
+ * <br />
+ * A mapper generated at compile time, named {@link #getGeneratedName(Class)},
+ * is used when it is on the classpath. Other classes are mapped through
+ * {@link ReflectionModelMapper}.
+ * @author Wouter
+ */
+public final class ModelMappers {
+
+    public static final String GENERATED_SUFFIX = "_DBSyncMapper";
+
+    private static final ConcurrentMap<Class<?>, ModelMapper<?>> mappers = new ConcurrentHashMap<>();
+    private static volatile boolean generated = !"false".equalsIgnoreCase(System.getProperty("modelsync.generatedMappers"));
+
+    private ModelMappers() {
+    }
+
+    public static <T> ModelMapper<T> forClass(Class<T> type) {
+        ModelMapper<?> mapper = mappers.get(type);
+        if (mapper == null) {
+            mapper = generated ? loadGenerated(type) : null;
+            if (mapper == null) {
+                mapper = new ReflectionModelMapper<>(ModelMetadata.of(type));
+            }
+            ModelMapper<?> existing = mappers.putIfAbsent(type, mapper);
+            if (existing != null) {
+                mapper = existing;
+            }
+        }
+        return (ModelMapper<T>) mapper;
+    }
+
+    /**
+     * Turns the lookup of generated mappers on or off, mappers resolved before are dropped.
+     * The default can also be set with the <i>modelsync.generatedMappers</i> system property.
+     * @param enabled
+     */
+    public static void setGeneratedMappers(boolean enabled) {
+        generated = enabled;
+        mappers.clear();
+    }
+
+    static void clear() {
+        mappers.clear();
+    }
+
+    public static boolean isGenerated(Class<?> type) {
+        return !(forClass(type) instanceof ReflectionModelMapper);
+    }
+
+    /**
+     * @param type
+     * @return the binary name of the mapper the processor generates for the type,
+     * nested classes have their enclosing names joined with an underscore
+     */
+    public static String getGeneratedName(Class<?> type) {
+        String name = type.getName();
+        int pkg = name.lastIndexOf('.');
+        String prefix = pkg < 0 ? "" : name.substring(0, pkg + 1);
+        return prefix + name.substring(pkg + 1).replace('$', '_') + GENERATED_SUFFIX;
+    }
+
+    private static <T> ModelMapper<T> loadGenerated(Class<T> type) {
+        ClassLoader loader = type.getClassLoader();
+        if (loader == null) {
+            return null;
+        }
+        try {
+            Class<?> c = Class.forName(getGeneratedName(type), true, loader);
+            return (ModelMapper<T>) c.newInstance();
+        } catch (ClassNotFoundException ex) {
+            return null;
+        } catch (InstantiationException | IllegalAccessException | ClassCastException ex) {
+            Logger.getLogger(ModelMappers.class.getName()).log(Level.WARNING, "Ignoring generated mapper of " + type.getName(), ex);
+            return null;
+        }
+    }
+
+    public static Document encode(Object instance) {
+        if (instance == null) {
+            return null;
+        }
+        return ((ModelMapper<Object>) forClass(instance.getClass())).encode(instance);
+    }
+
+    /**
+     * @param values an array or collection of models, may be null
+     * @return the encoded models
+     */
+    public static List<Document> encodeAll(Object values) {
+        if (values == null) {
+            return null;
+        }
+        Iterable<?> it;
+        if (values instanceof Object[]) {
+            List<Object> list = new ArrayList<>();
+            for (Object o : (Object[]) values) {
+                list.add(o);
+            }
+            it = list;
+        } else {
+            it = (Iterable<?>) values;
+        }
+        List<Document> documents = new ArrayList<>();
+        for (Object o : it) {
+            documents.add(encode(o));
+        }
+        return documents;
+    }
+
+    public static <T> T decode(Class<T> type, Document data) {
+        if (data == null) {
+            return null;
+        }
+        ModelMapper<T> mapper = forClass(type);
+        try {
+            return mapper.decode(mapper.newInstance(), data);
+        } catch (Exception ex) {
+            Logger.getLogger(ModelMappers.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return null;
+    }
+
+    public static <T> List<T> decodeAll(Class<T> type, Collection<?> data) {
+        if (data == null) {
+            return null;
+        }
+        List<T> list = new ArrayList<>();
+        for (Object o : data) {
+            list.add(decode(type, (Document) o));
+        }
+        return list;
+    }
+
+}
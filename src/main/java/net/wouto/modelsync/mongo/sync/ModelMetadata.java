@@ -0,0 +1,290 @@
+package net.wouto.modelsync.mongo.sync;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import net.wouto.modelsync.mongo.annotations.DBSync;
+
+/**
+ * Immutable mapping information of a {@link DBSync} model class.
+ * <br />
+ * Resolving a model walks the class hierarchy and reads the annotations once,
+ * after which the result is cached for the lifetime of the class loader.
+ * Use {@link #prewarm(Class[])} at startup to move that cost out of the first request.
+ * @author Wouter
+ * @param <T> the model type
+ */
+public final class ModelMetadata<T> {
+
+    private static final ConcurrentMap<Class<?>, ModelMetadata<?>> models = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<Class<?>, Boolean> modelTypes = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<Class<?>, Boolean> primitiveTypes = new ConcurrentHashMap<>();
+    private static volatile AccessorStrategy accessorStrategy = defaultAccessorStrategy();
+
+    private static final Class<?>[] primitives = new Class<?>[]{
+        Boolean.class,
+        Character.class,
+        Byte.class,
+        Short.class,
+        Integer.class,
+        Long.class,
+        Float.class,
+        Double.class,
+        Object.class,
+        String.class
+    };
+
+    private final Class<T> type;
+    private final List<FieldMetadata> fields;
+    private final Map<String, FieldMetadata> fieldsByDbName;
+    private final FieldMetadata indexField;
+    private final Constructor<T> constructor;
+    private final Object[] constructorArguments;
+
+    private ModelMetadata(Class<T> type, AccessorStrategy strategy) {
+        this.type = type;
+        List<FieldMetadata> list = new ArrayList<>();
+        Map<String, FieldMetadata> byName = new HashMap<>();
+        FieldMetadata index = null;
+        Class<?> clazz = type;
+        while (clazz != null && clazz != Object.class) {
+            for (Field f : clazz.getDeclaredFields()) {
+                DBSync annotation = f.getAnnotation(DBSync.class);
+                if (annotation == null) {
+                    continue;
+                }
+                FieldMetadata meta = new FieldMetadata(f, annotation, strategy);
+                list.add(meta);
+                if (!byName.containsKey(meta.getDbName())) {
+                    byName.put(meta.getDbName(), meta);
+                }
+                if (index == null && meta.isIndex()) {
+                    index = meta;
+                }
+            }
+            clazz = clazz.getSuperclass();
+        }
+        this.fields = Collections.unmodifiableList(list);
+        this.fieldsByDbName = Collections.unmodifiableMap(byName);
+        this.indexField = index;
+        this.constructor = findConstructor(type);
+        this.constructorArguments = this.constructor == null ? null : defaultArguments(this.constructor.getParameterTypes());
+    }
+
+    /**
+     * Returns the cached metadata of a class, resolving it on first use.
+     * @param <T>
+     * @param type
+     * @return
+     */
+    public static <T> ModelMetadata<T> of(Class<T> type) {
+        ModelMetadata<?> meta = models.get(type);
+        if (meta == null) {
+            meta = new ModelMetadata<>(type, accessorStrategy);
+            ModelMetadata<?> existing = models.putIfAbsent(type, meta);
+            if (existing != null) {
+                meta = existing;
+            }
+        }
+        return (ModelMetadata<T>) meta;
+    }
+
+    private static AccessorStrategy defaultAccessorStrategy() {
+        String name = System.getProperty("modelsync.accessors");
+        if (name != null) {
+            try {
+                return AccessorStrategy.valueOf(name.toUpperCase());
+            } catch (IllegalArgumentException ex) {
+                // unknown strategy, keep the default
+            }
+        }
+        return AccessorStrategy.METHOD_HANDLE;
+    }
+
+    public static AccessorStrategy getAccessorStrategy() {
+        return accessorStrategy;
+    }
+
+    /**
+     * Switches how model fields are read and written. Models resolved before
+     * the switch are dropped from the cache and resolved again on their next use,
+     * codecs of collections opened before the switch keep their accessors.
+     * The default can also be set with the <i>modelsync.accessors</i> system property.
+     * @param strategy
+     */
+    public static void setAccessorStrategy(AccessorStrategy strategy) {
+        if (strategy == null) {
+            throw new IllegalArgumentException("strategy cannot be null");
+        }
+        accessorStrategy = strategy;
+        models.clear();
+        // reflection mappers hold the accessors of the old strategy
+        ModelMappers.clear();
+    }
+
+    /**
+     * Resolves the metadata of the given classes and of every model they reference.
+     * @param types
+     */
+    public static void prewarm(Class<?>... types) {
+        for (Class<?> t : types) {
+            prewarm(t, new ArrayList<Class<?>>());
+        }
+    }
+
+    public static void prewarm(Iterable<? extends Class<?>> types) {
+        for (Class<?> t : types) {
+            prewarm(t, new ArrayList<Class<?>>());
+        }
+    }
+
+    private static void prewarm(Class<?> type, List<Class<?>> seen) {
+        if (seen.contains(type) || isPrimitive(type)) {
+            return;
+        }
+        seen.add(type);
+        for (FieldMetadata f : of(type).getFields()) {
+            if (f.getKind() == FieldMetadata.Kind.MODEL
+                    || f.getKind() == FieldMetadata.Kind.MODEL_ARRAY
+                    || f.getKind() == FieldMetadata.Kind.MODEL_COLLECTION) {
+                prewarm(f.getElementType(), seen);
+            }
+        }
+    }
+
+    /**
+     * @param type
+     * @return whether the type is stored as-is instead of being mapped as a model
+     */
+    public static boolean isPrimitive(Class<?> type) {
+        Boolean cached = primitiveTypes.get(type);
+        if (cached == null) {
+            cached = type.isPrimitive();
+            if (!cached) {
+                for (Class<?> p : primitives) {
+                    if (type.isAssignableFrom(p)) {
+                        cached = true;
+                        break;
+                    }
+                }
+            }
+            primitiveTypes.put(type, cached);
+        }
+        return cached;
+    }
+
+    /**
+     * @param type
+     * @return whether the type, or one of its superclasses, declares {@link DBSync} fields
+     */
+    public static boolean isModel(Class<?> type) {
+        Boolean cached = modelTypes.get(type);
+        if (cached == null) {
+            cached = false;
+            Class<?> clazz = type;
+            search:
+            while (clazz != null && clazz != Object.class) {
+                for (Field f : clazz.getDeclaredFields()) {
+                    if (f.isAnnotationPresent(DBSync.class)) {
+                        cached = true;
+                        break search;
+                    }
+                }
+                clazz = clazz.getSuperclass();
+            }
+            modelTypes.put(type, cached);
+        }
+        return cached;
+    }
+
+    private static <T> Constructor<T> findConstructor(Class<T> type) {
+        Constructor<T> c;
+        try {
+            c = type.getDeclaredConstructor();
+        } catch (NoSuchMethodException ex) {
+            Constructor<?>[] constructors = type.getConstructors();
+            if (constructors.length == 0) {
+                constructors = type.getDeclaredConstructors();
+            }
+            if (constructors.length == 0) {
+                return null;
+            }
+            c = (Constructor<T>) constructors[0];
+        } catch (SecurityException ex) {
+            return null;
+        }
+        c.setAccessible(true);
+        return c;
+    }
+
+    private static Object[] defaultArguments(Class<?>[] types) {
+        Object[] params = new Object[types.length];
+        for (int i = 0; i < types.length; i++) {
+            Class<?> p = types[i];
+            if (p == int.class || p == Integer.class) {
+                params[i] = 0;
+            } else if (p == long.class || p == Long.class) {
+                params[i] = 0L;
+            } else if (p == short.class || p == Short.class) {
+                params[i] = (short) 0;
+            } else if (p == byte.class || p == Byte.class) {
+                params[i] = (byte) 0;
+            } else if (p == char.class || p == Character.class) {
+                params[i] = '\0';
+            } else if (p == boolean.class || p == Boolean.class) {
+                params[i] = false;
+            } else if (p == float.class || p == Float.class) {
+                params[i] = 0.0f;
+            } else if (p == double.class || p == Double.class) {
+                params[i] = 0.0d;
+            }
+        }
+        return params;
+    }
+
+    public Class<T> getType() {
+        return this.type;
+    }
+
+    /**
+     * @return every {@link DBSync} field, declared fields first followed by those of the superclasses
+     */
+    public List<FieldMetadata> getFields() {
+        return this.fields;
+    }
+
+    public FieldMetadata getField(String dbName) {
+        return this.fieldsByDbName.get(dbName);
+    }
+
+    /**
+     * @return the first field marked with {@link DBSync#index()}, or null
+     */
+    public FieldMetadata getIndexField() {
+        return this.indexField;
+    }
+
+    public Constructor<T> getConstructor() {
+        return this.constructor;
+    }
+
+    /**
+     * Creates an instance using the no-argument constructor when there is one,
+     * otherwise using the first public constructor with zero/null arguments.
+     * @return
+     * @throws Exception
+     */
+    public T newInstance() throws Exception {
+        if (this.constructor == null) {
+            throw new InstantiationException("No usable constructor for " + this.type.getName());
+        }
+        return this.constructor.newInstance(this.constructorArguments.clone());
+    }
+
+}
@@ -0,0 +1,272 @@
+package net.wouto.modelsync.mongo.sync;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.bson.Document;
+
+/**
+ * Remembers the document form of model instances as they were last loaded
+ * or saved, so a save only has to send what changed since.
+ * <br />
+ * Snapshots are kept per owner, the collection the instance was loaded from
+ * or saved to, so saving it to another collection does not diff against a
+ * document that collection never had. Instances are held weakly and compared
+ * by identity, their snapshots go away together with them. Snapshots are
+ * deep copies, changing a list or map of the model afterwards does not
+ * change its snapshot.
+ * @author Wouter
+ */
+public final class ModelSnapshots {
+
+    private static final ConcurrentMap<InstanceKey, ConcurrentMap<Object, Document>> snapshots = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+
+    private ModelSnapshots() {
+    }
+
+    /**
+     * @param owner the collection the instance belongs to, compared by equals
+     * @param instance
+     * @param document the document form of the instance, copied before it is stored
+     */
+    public static void track(Object owner, Object instance, Document document) {
+        trackCopy(owner, instance, copy(document));
+    }
+
+    /**
+     * @param owner the collection the instance belongs to, compared by equals
+     * @param instance
+     * @param snapshot a copy made with {@link #copy(Document)} that is not changed afterwards
+     */
+    public static void trackCopy(Object owner, Object instance, Document snapshot) {
+        expunge();
+        ConcurrentMap<Object, Document> owners = snapshots.get(new InstanceKey(instance, null));
+        if (owners == null) {
+            owners = new ConcurrentHashMap<>(2);
+            ConcurrentMap<Object, Document> current = snapshots.putIfAbsent(new InstanceKey(instance, collected), owners);
+            if (current != null) {
+                owners = current;
+            }
+        }
+        owners.put(owner, snapshot);
+    }
+
+    /**
+     * @param owner
+     * @param instance
+     * @return the document form of the instance when it was last loaded from
+     * or saved to the owner, null when it is not tracked there
+     */
+    public static Document get(Object owner, Object instance) {
+        expunge();
+        ConcurrentMap<Object, Document> owners = snapshots.get(new InstanceKey(instance, null));
+        return owners == null ? null : owners.get(owner);
+    }
+
+    public static void forget(Object owner, Object instance) {
+        ConcurrentMap<Object, Document> owners = snapshots.get(new InstanceKey(instance, null));
+        if (owners != null) {
+            owners.remove(owner);
+        }
+    }
+
+    /**
+     * Forgets the instance for every owner.
+     * @param instance
+     */
+    public static void forget(Object instance) {
+        snapshots.remove(new InstanceKey(instance, null));
+    }
+
+    /**
+     * @return the number of instances tracked
+     */
+    public static int size() {
+        expunge();
+        return snapshots.size();
+    }
+
+    private static void expunge() {
+        Object ref;
+        while ((ref = collected.poll()) != null) {
+            snapshots.remove((InstanceKey) ref);
+        }
+    }
+
+    /**
+     * Compares two document forms of a model. Embedded documents are compared
+     * key by key, so a change inside one is set by its dotted path. Lists and
+     * other values are set as a whole.
+     * @param before the snapshot
+     * @param after the current document form
+     * @return an update with the $set and $unset needed to turn before into
+     * after, empty when nothing changed
+     */
+    public static Document diff(Document before, Document after) {
+        Document set = new Document();
+        Document unset = new Document();
+        diff("", before, after, set, unset);
+        Document update = new Document();
+        if (!set.isEmpty()) {
+            update.put("$set", set);
+        }
+        if (!unset.isEmpty()) {
+            update.put("$unset", unset);
+        }
+        return update;
+    }
+
+    private static void diff(String prefix, Map<String, Object> before, Map<String, Object> after, Document set, Document unset) {
+        for (Map.Entry<String, Object> e : after.entrySet()) {
+            String key = prefix + e.getKey();
+            Object value = e.getValue();
+            if (!before.containsKey(e.getKey())) {
+                set.put(key, value);
+                continue;
+            }
+            Object old = before.get(e.getKey());
+            if (old instanceof Map && value instanceof Map && !((Map) value).isEmpty()) {
+                diff(key + ".", (Map<String, Object>) old, (Map<String, Object>) value, set, unset);
+            } else if (!equal(old, value)) {
+                set.put(key, value);
+            }
+        }
+        for (String k : before.keySet()) {
+            if (!after.containsKey(k) && !(prefix.isEmpty() && k.equals("_id"))) {
+                unset.put(prefix + k, "");
+            }
+        }
+    }
+
+    /**
+     * @param a
+     * @param b
+     * @return whether both values are the same, comparing documents, collections
+     * and arrays by content
+     */
+    public static boolean equal(Object a, Object b) {
+        if (a == b) {
+            return true;
+        }
+        if (a == null || b == null) {
+            return false;
+        }
+        if (a instanceof Map && b instanceof Map) {
+            Map<?, ?> x = (Map<?, ?>) a;
+            Map<?, ?> y = (Map<?, ?>) b;
+            if (x.size() != y.size()) {
+                return false;
+            }
+            for (Map.Entry<?, ?> e : x.entrySet()) {
+                if (!y.containsKey(e.getKey()) || !equal(e.getValue(), y.get(e.getKey()))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (a instanceof Collection && b instanceof Collection) {
+            Collection<?> x = (Collection<?>) a;
+            Collection<?> y = (Collection<?>) b;
+            if (x.size() != y.size()) {
+                return false;
+            }
+            Iterator<?> i = x.iterator();
+            Iterator<?> j = y.iterator();
+            while (i.hasNext()) {
+                if (!equal(i.next(), j.next())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (a.getClass().isArray() && b.getClass().isArray()) {
+            int length = Array.getLength(a);
+            if (length != Array.getLength(b)) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (!equal(Array.get(a, i), Array.get(b, i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return Objects.equals(a, b);
+    }
+
+    /**
+     * @param document
+     * @return a copy sharing no documents, collections, arrays or dates with the original
+     */
+    public static Document copy(Document document) {
+        return (Document) copyValue(document);
+    }
+
+    private static Object copyValue(Object value) {
+        if (value instanceof Map) {
+            Document copy = new Document();
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+                copy.put(String.valueOf(e.getKey()), copyValue(e.getValue()));
+            }
+            return copy;
+        }
+        if (value instanceof Collection) {
+            List<Object> copy = new ArrayList<>(((Collection<?>) value).size());
+            for (Object o : (Collection<?>) value) {
+                copy.add(copyValue(o));
+            }
+            return copy;
+        }
+        if (value instanceof Date) {
+            return new Date(((Date) value).getTime());
+        }
+        if (value != null && value.getClass().isArray()) {
+            int length = Array.getLength(value);
+            Object copy = Array.newInstance(value.getClass().getComponentType(), length);
+            for (int i = 0; i < length; i++) {
+                Array.set(copy, i, copyValue(Array.get(value, i)));
+            }
+            return copy;
+        }
+        return value;
+    }
+
+    private static final class InstanceKey extends WeakReference<Object> {
+
+        private final int hash;
+
+        private InstanceKey(Object instance, ReferenceQueue<Object> queue) {
+            super(instance, queue);
+            this.hash = System.identityHashCode(instance);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof InstanceKey)) {
+                return false;
+            }
+            Object instance = this.get();
+            return instance != null && instance == ((InstanceKey) obj).get();
+        }
+
+    }
+
+}
@@ -0,0 +1,68 @@
+package net.wouto.modelsync.mongo.sync;
+
+import java.lang.reflect.Field;
+
+/**
+ * {@link FieldAccessor} backed by {@link Field}, made accessible once on creation.
+ * @author Wouter
+ */
+public class ReflectionFieldAccessor implements FieldAccessor {
+
+    private final Field field;
+
+    public ReflectionFieldAccessor(Field field) {
+        this.field = field;
+        this.field.setAccessible(true);
+    }
+
+    @Override
+    public Object get(Object instance) throws IllegalAccessException {
+        return this.field.get(instance);
+    }
+
+    @Override
+    public void set(Object instance, Object value) throws IllegalAccessException {
+        this.field.set(instance, value);
+    }
+
+    @Override
+    public int getInt(Object instance) throws IllegalAccessException {
+        return this.field.getInt(instance);
+    }
+
+    @Override
+    public void setInt(Object instance, int value) throws IllegalAccessException {
+        this.field.setInt(instance, value);
+    }
+
+    @Override
+    public long getLong(Object instance) throws IllegalAccessException {
+        return this.field.getLong(instance);
+    }
+
+    @Override
+    public void setLong(Object instance, long value) throws IllegalAccessException {
+        this.field.setLong(instance, value);
+    }
+
+    @Override
+    public double getDouble(Object instance) throws IllegalAccessException {
+        return this.field.getDouble(instance);
+    }
+
+    @Override
+    public void setDouble(Object instance, double value) throws IllegalAccessException {
+        this.field.setDouble(instance, value);
+    }
+
+    @Override
+    public boolean getBoolean(Object instance) throws IllegalAccessException {
+        return this.field.getBoolean(instance);
+    }
+
+    @Override
+    public void setBoolean(Object instance, boolean value) throws IllegalAccessException {
+        this.field.setBoolean(instance, value);
+    }
+
+}
@@ -0,0 +1,147 @@
+package net.wouto.modelsync.mongo.sync;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.bson.Document;
+
+/**
+ * {@link ModelMapper} driven by the {@link ModelMetadata} of a class.
+ * @author Wouter
+ * @param <T> the model type
+ */
+public class ReflectionModelMapper<T> implements ModelMapper<T> {
+
+    private final ModelMetadata<T> metadata;
+    private final Document projection;
+
+    public ReflectionModelMapper(ModelMetadata<T> metadata) {
+        this.metadata = metadata;
+        this.projection = new Document();
+        project(this.projection, "", metadata, new ArrayList<Class<?>>());
+    }
+
+    /**
+     * Adds the keys of a model to a projection, those of nested models as
+     * dotted paths so only the fields they map are returned. A model nested
+     * in itself is projected whole from where it repeats.
+     */
+    private static void project(Document projection, String prefix, ModelMetadata<?> metadata, List<Class<?>> path) {
+        path.add(metadata.getType());
+        for (FieldMetadata f : metadata.getFields()) {
+            if (!f.isSerializable()) {
+                continue;
+            }
+            String key = prefix + f.getDbName();
+            boolean model = f.getKind() == FieldMetadata.Kind.MODEL
+                    || f.getKind() == FieldMetadata.Kind.MODEL_ARRAY
+                    || f.getKind() == FieldMetadata.Kind.MODEL_COLLECTION;
+            if (model && !path.contains(f.getElementType())) {
+                int size = projection.size();
+                project(projection, key + ".", ModelMetadata.of(f.getElementType()), path);
+                if (projection.size() > size) {
+                    continue;
+                }
+            }
+            projection.put(key, 1);
+        }
+        path.remove(path.size() - 1);
+    }
+
+    @Override
+    public Class<T> getType() {
+        return this.metadata.getType();
+    }
+
+    @Override
+    public T newInstance() throws Exception {
+        return this.metadata.newInstance();
+    }
+
+    @Override
+    public Document encode(T instance) {
+        Document b = new Document();
+        for (FieldMetadata f : this.metadata.getFields()) {
+            try {
+                if (!f.isSerializable()) {
+                    continue;
+                }
+                Object value = f.get(instance);
+                switch (f.getKind()) {
+                    case MODEL_ARRAY:
+                    case MODEL_COLLECTION:
+                        value = ModelMappers.encodeAll(value);
+                        break;
+                    case MODEL:
+                        value = ModelMappers.encode(value);
+                        break;
+                    default:
+                        break;
+                }
+                b.put(f.getDbName(), value);
+            } catch (IllegalAccessException | IllegalArgumentException ex) {
+                ex.printStackTrace();
+            }
+        }
+        return b;
+    }
+
+    @Override
+    public T decode(T instance, Document data) {
+        for (FieldMetadata f : this.metadata.getFields()) {
+            String varName = f.getDbName();
+            if (!data.containsKey(varName)) {
+                continue;
+            }
+            Object o = data.get(varName);
+            try {
+                switch (f.getKind()) {
+                    case VALUE_ARRAY:
+                    case MODEL_ARRAY:
+                        // unsupported, arrays are only written
+                        continue;
+                    case MODEL_COLLECTION:
+                        o = ModelMappers.decodeAll(f.getElementType(), (Collection) o);
+                        break;
+                    case MODEL:
+                        o = ModelMappers.decode(f.getElementType(), (Document) o);
+                        break;
+                    default:
+                        break;
+                }
+                f.set(instance, o);
+            } catch (IllegalAccessException | IllegalArgumentException | ArithmeticException | ClassCastException ex) {
+                Logger.getLogger(ReflectionModelMapper.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        return instance;
+    }
+
+    @Override
+    public String getIndexKey() {
+        FieldMetadata index = this.metadata.getIndexField();
+        return index == null ? null : index.getDbName();
+    }
+
+    @Override
+    public Object getIndexValue(T instance) {
+        FieldMetadata index = this.metadata.getIndexField();
+        if (index == null) {
+            return null;
+        }
+        try {
+            return index.get(instance);
+        } catch (IllegalAccessException | IllegalArgumentException ex) {
+            Logger.getLogger(ReflectionModelMapper.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
+        }
+    }
+
+    @Override
+    public Document getProjection() {
+        return new Document(this.projection);
+    }
+
+}
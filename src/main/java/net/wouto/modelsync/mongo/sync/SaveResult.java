@@ -0,0 +1,118 @@
+package net.wouto.modelsync.mongo.sync;
+
+import com.mongodb.client.result.UpdateResult;
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.io.BasicOutputBuffer;
+
+/**
+ * The outcome of saving a model, and how much of it had to be sent.
+ * <br />
+ * A model that was loaded or saved before only sends the fields that changed
+ * since, see {@link ModelSnapshots}. Sizes are those of the BSON documents,
+ * they are only encoded when asked for.
+ * @author Wouter
+ */
+public final class SaveResult {
+
+    private final UpdateResult result;
+    private final Document document;
+    private final Document sent;
+    private final boolean partial;
+    private final CodecRegistry registry;
+    private int documentSize;
+    private int sentSize;
+
+    /**
+     * @param result
+     * @param document the whole model as document
+     * @param sent the replacement or update that was sent, null when nothing was
+     * @param partial whether sent is an update of the changed fields
+     * @param registry to measure the documents with
+     */
+    public SaveResult(UpdateResult result, Document document, Document sent, boolean partial, CodecRegistry registry) {
+        this.result = result;
+        this.document = document;
+        this.sent = sent;
+        this.partial = partial;
+        this.registry = registry;
+        this.documentSize = -1;
+        this.sentSize = -1;
+    }
+
+    /**
+     * @return the result of the server, null when nothing was sent
+     */
+    public UpdateResult getUpdateResult() {
+        return this.result;
+    }
+
+    /**
+     * @return whether only the changed fields were sent
+     */
+    public boolean isPartial() {
+        return this.partial;
+    }
+
+    /**
+     * @return whether nothing changed since the model was loaded or last saved, in which case nothing was sent
+     */
+    public boolean isUnchanged() {
+        return this.sent == null;
+    }
+
+    /**
+     * @return the replacement or $set/$unset update that was sent, null when nothing was
+     */
+    public Document getSent() {
+        return this.sent;
+    }
+
+    /**
+     * @return the size of the whole model as BSON
+     */
+    public synchronized int getDocumentSize() {
+        if (this.documentSize == -1) {
+            this.documentSize = this.measure(this.document);
+        }
+        return this.documentSize;
+    }
+
+    /**
+     * @return the size of what was sent as BSON
+     */
+    public synchronized int getBytesSent() {
+        if (this.sentSize == -1) {
+            this.sentSize = this.sent == null ? 0 : this.sent == this.document ? this.getDocumentSize() : this.measure(this.sent);
+        }
+        return this.sentSize;
+    }
+
+    /**
+     * @return how many bytes less were sent than a full replace would have,
+     * negative in the rare case an update of many nested paths is larger
+     */
+    public int getBytesAvoided() {
+        return this.getDocumentSize() - this.getBytesSent();
+    }
+
+    private int measure(Document document) {
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        BsonBinaryWriter writer = new BsonBinaryWriter(buffer);
+        try {
+            this.registry.get(Document.class).encode(writer, document, EncoderContext.builder().build());
+        } finally {
+            writer.close();
+        }
+        return buffer.getSize();
+    }
+
+    @Override
+    public String toString() {
+        return "SaveResult{" + "partial=" + this.partial + ", unchanged=" + this.isUnchanged() + ", bytesSent=" + this.getBytesSent()
+                + ", bytesAvoided=" + this.getBytesAvoided() + '}';
+    }
+
+}